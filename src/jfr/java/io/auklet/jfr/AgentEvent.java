@@ -0,0 +1,32 @@
+package io.auklet.jfr;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.core.Instrumentation;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Base class for the agent's JFR events. Setters that do not apply to an event are ignored, and
+ * subclasses override the ones that do.</p>
+ *
+ * <p>Stack traces are not recorded: every event is raised from a known place in the agent, and
+ * walking the stack would add to the overhead that these events are meant to measure.</p>
+ */
+@Category("Auklet")
+@StackTrace(false)
+abstract class AgentEvent extends Event implements Instrumentation.Span {
+
+    @Override public void setBytes(long bytes) { /* no-op */ }
+
+    @Override public void setCount(int count) { /* no-op */ }
+
+    @Override public void setDetail(@Nullable String detail) { /* no-op */ }
+
+    @Override public void setSuccess(boolean success) { /* no-op */ }
+
+    @Override public void finish() {
+        this.commit();
+    }
+
+}
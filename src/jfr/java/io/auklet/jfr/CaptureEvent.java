@@ -0,0 +1,21 @@
+package io.auklet.jfr;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Taking the snapshot of a throwable and queuing it, on the application thread.</p> */
+@Name("io.auklet.Capture")
+@Label("Event Capture")
+@Description("Taking the snapshot of a throwable and queuing it, on the application thread.")
+final class CaptureEvent extends AgentEvent {
+
+    @Label("Throwable Class")
+    String throwableClass;
+
+    @Override public void setDetail(@Nullable String detail) {
+        this.throwableClass = detail;
+    }
+
+}
@@ -0,0 +1,28 @@
+package io.auklet.jfr;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Fetching a config file from the API.</p> */
+@Name("io.auklet.ConfigFetch")
+@Label("Config Fetch")
+@Description("Fetching a config file from the API.")
+final class ConfigFetchEvent extends AgentEvent {
+
+    @Label("Config File")
+    String configFile;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    @Override public void setDetail(@Nullable String detail) {
+        this.configFile = detail;
+    }
+
+    @Override public void setSuccess(boolean success) {
+        this.succeeded = success;
+    }
+
+}
@@ -0,0 +1,30 @@
+package io.auklet.jfr;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Flushing one of the agent's files to the storage device.</p> */
+@Name("io.auklet.DiskPersist")
+@Label("Disk Persist")
+@Description("Flushing one of the agent's files to the storage device.")
+final class DiskPersistEvent extends AgentEvent {
+
+    @Label("Store")
+    String store;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Override public void setDetail(@Nullable String detail) {
+        this.store = detail;
+    }
+
+    @Override public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+}
@@ -0,0 +1,48 @@
+package io.auklet.jfr;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.core.Instrumentation;
+import jdk.jfr.EventType;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * <p>Emits a JFR event for each instrumented operation. Loaded reflectively by
+ * {@link Instrumentation#get()} on JVMs that provide JFR.</p>
+ *
+ * <p>An event object is only allocated if a recording that enables its type is in progress; otherwise
+ * {@link Instrumentation#NOOP_SPAN} is returned.</p>
+ */
+@ThreadSafe
+public final class JfrInstrumentation extends Instrumentation {
+
+    private final EventType[] types = new EventType[Kind.values().length];
+
+    /** <p>Constructor.</p> */
+    public JfrInstrumentation() {
+        this.types[Kind.CAPTURE.ordinal()] = EventType.getEventType(CaptureEvent.class);
+        this.types[Kind.SERIALIZATION.ordinal()] = EventType.getEventType(SerializationEvent.class);
+        this.types[Kind.QUOTA_CHECK.ordinal()] = EventType.getEventType(QuotaCheckEvent.class);
+        this.types[Kind.MQTT_PUBLISH.ordinal()] = EventType.getEventType(MqttPublishEvent.class);
+        this.types[Kind.MQTT_ACK.ordinal()] = EventType.getEventType(MqttAckEvent.class);
+        this.types[Kind.CONFIG_FETCH.ordinal()] = EventType.getEventType(ConfigFetchEvent.class);
+        this.types[Kind.DISK_PERSIST.ordinal()] = EventType.getEventType(DiskPersistEvent.class);
+    }
+
+    @NonNull @Override public Span begin(@NonNull Kind kind) {
+        if (!this.types[kind.ordinal()].isEnabled()) return NOOP_SPAN;
+        AgentEvent event;
+        switch (kind) {
+            case CAPTURE: event = new CaptureEvent(); break;
+            case SERIALIZATION: event = new SerializationEvent(); break;
+            case QUOTA_CHECK: event = new QuotaCheckEvent(); break;
+            case MQTT_PUBLISH: event = new MqttPublishEvent(); break;
+            case MQTT_ACK: event = new MqttAckEvent(); break;
+            case CONFIG_FETCH: event = new ConfigFetchEvent(); break;
+            case DISK_PERSIST: event = new DiskPersistEvent(); break;
+            default: return NOOP_SPAN;
+        }
+        event.begin();
+        return event;
+    }
+
+}
@@ -0,0 +1,25 @@
+package io.auklet.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>The time from publishing a message until the broker acknowledged it. The event is committed on
+ * the MQTT client's callback thread.</p>
+ */
+@Name("io.auklet.MqttAck")
+@Label("MQTT Acknowledgement")
+@Description("The time from publishing a message until the broker acknowledged it.")
+final class MqttAckEvent extends AgentEvent {
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Override public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+}
@@ -0,0 +1,29 @@
+package io.auklet.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Handing a message to the MQTT client.</p> */
+@Name("io.auklet.MqttPublish")
+@Label("MQTT Publish")
+@Description("Handing a message to the MQTT client.")
+final class MqttPublishEvent extends AgentEvent {
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Published")
+    boolean published;
+
+    @Override public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override public void setSuccess(boolean success) {
+        this.published = success;
+    }
+
+}
@@ -0,0 +1,29 @@
+package io.auklet.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Checking a message against the data usage limit.</p> */
+@Name("io.auklet.QuotaCheck")
+@Label("Data Usage Check")
+@Description("Checking a message against the data usage limit.")
+final class QuotaCheckEvent extends AgentEvent {
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Within Limit")
+    boolean allowed;
+
+    @Override public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override public void setSuccess(boolean success) {
+        this.allowed = success;
+    }
+
+}
@@ -0,0 +1,29 @@
+package io.auklet.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** <p>Serializing an event with MessagePack.</p> */
+@Name("io.auklet.Serialization")
+@Label("Event Serialization")
+@Description("Serializing an event with MessagePack.")
+final class SerializationEvent extends AgentEvent {
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Stack Frames")
+    int frames;
+
+    @Override public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override public void setCount(int count) {
+        this.frames = count;
+    }
+
+}
@@ -0,0 +1,58 @@
+package io.auklet;
+
+import io.auklet.core.EventQueue;
+import io.auklet.core.EventRing;
+import io.auklet.core.ThrowableSnapshot;
+import io.auklet.sink.Throwables;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures what {@link Auklet#send(Throwable)} costs the calling application thread: taking the
+ * snapshot of the throwable and queuing it. The agent is not initialized, so nothing drains the queue;
+ * the forked JVM uses the {@code drop_oldest} overflow policy so that every send still queues its
+ * snapshot (evicting the oldest one), as it would if the event thread were keeping up.</p>
+ *
+ * <p>The {@code queue} variants measure the same thing against an {@link EventQueue} that is drained
+ * by a concurrent consumer thread, to include the cost of contention with the event thread.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dauklet.event.queue.overflow=drop_oldest")
+public class AukletSendBenchmark {
+
+    @Param({"16", "64", "256"})
+    public int stackDepth;
+
+    private Throwable throwable;
+    private EventQueue queue;
+
+    @Setup
+    public void setup() {
+        this.throwable = Throwables.withDepth(this.stackDepth, 0);
+        this.queue = new EventQueue(1024, EventRing.OverflowPolicy.DROP_NEWEST);
+    }
+
+    @Benchmark
+    public void send() {
+        Auklet.send(this.throwable);
+    }
+
+    @Benchmark
+    public ThrowableSnapshot snapshotOnly() {
+        return ThrowableSnapshot.of(this.throwable, System.currentTimeMillis());
+    }
+
+    @Benchmark @Group("queue") @GroupThreads(1)
+    public boolean queueOffer() {
+        return this.queue.offer(this.throwable);
+    }
+
+    @Benchmark @Group("queue") @GroupThreads(1)
+    public ThrowableSnapshot queuePoll() {
+        return this.queue.poll();
+    }
+
+}
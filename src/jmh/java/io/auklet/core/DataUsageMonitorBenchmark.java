@@ -0,0 +1,47 @@
+package io.auklet.core;
+
+import io.auklet.config.DataUsageTracker;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the {@link DataUsageMonitor} methods that sinks call for every payload, as the number of
+ * sending threads grows. The monitor is built around a tracker that has not been started, so usage is
+ * only counted in memory and no config files are read or written.</p>
+ *
+ * <p>The limit is high enough that it is never reached, so every reservation succeeds.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DataUsageMonitorBenchmark {
+
+    private static final int PAYLOAD_SIZE = 2048;
+
+    private DataUsageMonitor monitor;
+
+    @Setup
+    public void setup() {
+        this.monitor = new DataUsageMonitor(new DataUsageTracker(), new DataUsageConfig(0L, 0L, Long.MAX_VALUE / 2, 1, 1));
+    }
+
+    @Benchmark @Threads(1) public boolean willExceedLimit1() { return this.monitor.willExceedLimit(PAYLOAD_SIZE); }
+    @Benchmark @Threads(4) public boolean willExceedLimit4() { return this.monitor.willExceedLimit(PAYLOAD_SIZE); }
+    @Benchmark @Threads(8) public boolean willExceedLimit8() { return this.monitor.willExceedLimit(PAYLOAD_SIZE); }
+
+    @Benchmark @Threads(1) public void addMoreData1() { this.monitor.addMoreData(PAYLOAD_SIZE); }
+    @Benchmark @Threads(4) public void addMoreData4() { this.monitor.addMoreData(PAYLOAD_SIZE); }
+    @Benchmark @Threads(8) public void addMoreData8() { this.monitor.addMoreData(PAYLOAD_SIZE); }
+
+    @Benchmark @Threads(1) public boolean reserveCommit1() { return this.reserveCommit(); }
+    @Benchmark @Threads(4) public boolean reserveCommit4() { return this.reserveCommit(); }
+    @Benchmark @Threads(8) public boolean reserveCommit8() { return this.reserveCommit(); }
+
+    private boolean reserveCommit() {
+        if (!this.monitor.reserve(PAYLOAD_SIZE)) return false;
+        this.monitor.commit(PAYLOAD_SIZE);
+        return true;
+    }
+
+}
@@ -0,0 +1,53 @@
+package io.auklet.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares the cost of enforcing the data limit through two separately locked steps (the previous
+ * {@link DataUsageMonitor} design: check the limit, then record the usage) against a single lock-free
+ * reservation in a {@link DataUsageQuota}, as the number of sending threads grows.</p>
+ *
+ * <p>The limit is set high enough that every payload is accepted, so both variants do the same amount
+ * of work per operation.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DataUsageQuotaBenchmark {
+
+    private static final int PAYLOAD_SIZE = 2048;
+
+    private final Object lock = new Object();
+    private long lockedUsage = 0L;
+    private long lockedLimit = Long.MAX_VALUE;
+    private DataUsageQuota quota;
+
+    @Setup
+    public void setup() {
+        this.quota = new DataUsageQuota();
+        this.quota.setLimit(Long.MAX_VALUE);
+    }
+
+    @Benchmark @Threads(1) public boolean locked1() { return this.checkThenAdd(); }
+    @Benchmark @Threads(4) public boolean locked4() { return this.checkThenAdd(); }
+    @Benchmark @Threads(8) public boolean locked8() { return this.checkThenAdd(); }
+
+    @Benchmark @Threads(1) public boolean reserve1() { return this.quota.tryReserve(PAYLOAD_SIZE); }
+    @Benchmark @Threads(4) public boolean reserve4() { return this.quota.tryReserve(PAYLOAD_SIZE); }
+    @Benchmark @Threads(8) public boolean reserve8() { return this.quota.tryReserve(PAYLOAD_SIZE); }
+
+    private boolean checkThenAdd() {
+        boolean exceeds;
+        synchronized (this.lock) {
+            exceeds = this.lockedUsage + PAYLOAD_SIZE > this.lockedLimit;
+        }
+        if (exceeds) return false;
+        synchronized (this.lock) {
+            this.lockedUsage += PAYLOAD_SIZE;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,81 @@
+package io.auklet.core;
+
+import io.auklet.util.ThreadUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares the cost of scheduling and then cancelling a timer (what the {@link io.auklet.sink.EmissionScheduler}
+ * does whenever a batch is flushed early) on an {@link AukletDaemonExecutor} against a {@link HashedWheelTimer}.</p>
+ *
+ * <p>Each variant starts with {@code outstanding} timers already pending, one second out; at 100k timers
+ * per second, that is the number of timers that are pending at any given time. The executor's delay
+ * queue is a binary heap, so its cost grows with the number of pending timers, while the wheel's does
+ * not. The {@code executorKeepCancelled} variant shows the previous configuration, in which cancelled
+ * tasks were left in the heap until they were due.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class HashedWheelTimerBenchmark {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override public void run() { /* no-op */ }
+    };
+
+    @Param({"1000", "100000"})
+    public int outstanding;
+
+    private AukletDaemonExecutor executor;
+    private AukletDaemonExecutor keepCancelledExecutor;
+    private HashedWheelTimer wheel;
+    private final List<Future<?>> preloaded = new ArrayList<>();
+    private final List<HashedWheelTimer.Timeout> preloadedTimeouts = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        this.executor = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("BenchExecutor"));
+        this.keepCancelledExecutor = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("BenchKeepCancelled"));
+        this.keepCancelledExecutor.setRemoveOnCancelPolicy(false);
+        this.wheel = new HashedWheelTimer(10L, TimeUnit.MILLISECONDS, 512, ThreadUtil.createDaemonThreadFactory("BenchWheel"));
+        // Far enough out that nothing expires during an iteration.
+        for (int i = 0; i < this.outstanding; i++) {
+            this.preloaded.add(this.executor.schedule(NOOP, 1L, TimeUnit.HOURS));
+            this.preloaded.add(this.keepCancelledExecutor.schedule(NOOP, 1L, TimeUnit.HOURS));
+            this.preloadedTimeouts.add(this.wheel.newTimeout(this.executor, NOOP, 1L, TimeUnit.HOURS));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Future<?> future : this.preloaded) future.cancel(false);
+        for (HashedWheelTimer.Timeout timeout : this.preloadedTimeouts) timeout.cancel();
+        this.wheel.stop();
+        ThreadUtil.shutdown(this.executor);
+        ThreadUtil.shutdown(this.keepCancelledExecutor);
+    }
+
+    @Benchmark
+    public boolean executor() {
+        ScheduledFuture<?> future = this.executor.schedule(NOOP, 1L, TimeUnit.SECONDS);
+        return future.cancel(false);
+    }
+
+    @Benchmark
+    public boolean executorKeepCancelled() {
+        ScheduledFuture<?> future = this.keepCancelledExecutor.schedule(NOOP, 1L, TimeUnit.SECONDS);
+        return future.cancel(false);
+    }
+
+    @Benchmark
+    public boolean wheel() {
+        HashedWheelTimer.Timeout timeout = this.wheel.newTimeout(this.executor, NOOP, 1L, TimeUnit.SECONDS);
+        return timeout.cancel();
+    }
+
+}
@@ -0,0 +1,34 @@
+package io.auklet.platform.metrics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares parsing the CPU line of {@code /proc/stat} with {@link ProcStat} against the previous
+ * {@link AndroidMetrics} implementation, which split the line with a regular expression and then parsed
+ * each field with {@link Long#parseLong(String)}.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ProcStatBenchmark {
+
+    private static final String LINE = "cpu  10132153 290696 3084719 46828483 16683 0 25195 0 175628 0";
+
+    private final long[] times = new long[2];
+
+    @Benchmark
+    public long split() {
+        String[] s = LINE.split("[ ]+", 9);
+        long work = Long.parseLong(s[1]) + Long.parseLong(s[2]) + Long.parseLong(s[3]);
+        return work + Long.parseLong(s[4]) + Long.parseLong(s[5]) + Long.parseLong(s[6]) + Long.parseLong(s[7]);
+    }
+
+    @Benchmark
+    public long procStat() {
+        ProcStat.parseCpuLine(LINE, this.times);
+        return this.times[ProcStat.TOTAL];
+    }
+
+}
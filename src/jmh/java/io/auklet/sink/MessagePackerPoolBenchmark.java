@@ -0,0 +1,75 @@
+package io.auklet.sink;
+
+import io.auklet.core.Event;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares the throughput of event serialization through one shared, synchronized packer (the
+ * previous {@link AbstractSink} design) against packers borrowed from a {@link MessagePackerPool},
+ * as the number of serializing threads grows.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MessagePackerPoolBenchmark {
+
+    @Param({"16", "64", "256"})
+    public int stackDepth;
+
+    private Event event;
+    private MessageBufferPacker shared;
+    private MessagePackerPool pool;
+    private StackFrameCache frames;
+
+    @Setup
+    public void setup() {
+        this.event = Event.of(Throwables.withDepth(this.stackDepth, 0), System.currentTimeMillis());
+        this.shared = MessagePack.newDefaultBufferPacker();
+        this.pool = new MessagePackerPool();
+        this.frames = new StackFrameCache();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.shared.close();
+        this.pool.clear();
+    }
+
+    @Benchmark @Threads(1) public byte[] shared1() throws IOException { return this.serializeShared(); }
+    @Benchmark @Threads(2) public byte[] shared2() throws IOException { return this.serializeShared(); }
+    @Benchmark @Threads(4) public byte[] shared4() throws IOException { return this.serializeShared(); }
+    @Benchmark @Threads(8) public byte[] shared8() throws IOException { return this.serializeShared(); }
+
+    @Benchmark @Threads(1) public byte[] pooled1() throws IOException { return this.serializePooled(); }
+    @Benchmark @Threads(2) public byte[] pooled2() throws IOException { return this.serializePooled(); }
+    @Benchmark @Threads(4) public byte[] pooled4() throws IOException { return this.serializePooled(); }
+    @Benchmark @Threads(8) public byte[] pooled8() throws IOException { return this.serializePooled(); }
+
+    private byte[] serializeShared() throws IOException {
+        synchronized (this.shared) {
+            this.shared.clear();
+            this.shared.packMapHeader(4);
+            AbstractSink.packEvent(this.shared, this.event, this.frames);
+            return this.shared.toByteArray();
+        }
+    }
+
+    private byte[] serializePooled() throws IOException {
+        MessagePackerPool.Entry entry = this.pool.acquire();
+        try {
+            MessagePacker msgpack = entry.getPacker();
+            msgpack.packMapHeader(4);
+            AbstractSink.packEvent(msgpack, this.event, this.frames);
+            return entry.toByteArray();
+        } finally {
+            this.pool.release(entry);
+        }
+    }
+
+}
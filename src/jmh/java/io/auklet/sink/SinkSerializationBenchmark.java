@@ -0,0 +1,74 @@
+package io.auklet.sink;
+
+import io.auklet.AukletException;
+import io.auklet.core.Event;
+import io.auklet.platform.JavaPlatform;
+import io.auklet.platform.Platform;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the cost of assembling a complete event message in {@link AbstractSink}, as done by
+ * {@link AbstractSink#send(Event)} before the message is handed to the emission scheduler, across stack
+ * depths and cause chain lengths. The sink is a fake that discards what it is given, and the envelope
+ * is built in memory, so no agent, config files or network are needed.</p>
+ *
+ * <p>The {@code snapshotAndSerialize} variants also include taking the {@link io.auklet.core.ThrowableSnapshot},
+ * which happens on the application thread in {@link io.auklet.Auklet#send(Throwable)}.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SinkSerializationBenchmark {
+
+    @Param({"16", "64", "256"})
+    public int stackDepth;
+
+    @Param({"0", "4"})
+    public int causes;
+
+    @Param({"MAP", "COMPACT"})
+    public WireFormat format;
+
+    private Throwable throwable;
+    private Event event;
+    private FakeSink sink;
+    private EnvelopeTemplate template;
+    private Platform platform;
+
+    @Setup
+    public void setup() throws AukletException {
+        this.throwable = Throwables.withDepth(this.stackDepth, this.causes);
+        this.event = Event.of(this.throwable, System.currentTimeMillis());
+        this.sink = new FakeSink();
+        this.template = EnvelopeTemplate.create("benchmark-app", "0123456789abcdef", "127.0.0.1", "benchmark", "benchmark-device");
+        this.platform = new JavaPlatform();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.sink.shutdown();
+    }
+
+    @Benchmark @Threads(1) public byte[] serialize1() throws AukletException { return this.serialize(this.event); }
+    @Benchmark @Threads(4) public byte[] serialize4() throws AukletException { return this.serialize(this.event); }
+
+    @Benchmark @Threads(1)
+    public byte[] snapshotAndSerialize1() throws AukletException {
+        return this.serialize(Event.of(this.throwable, System.currentTimeMillis()));
+    }
+
+    private byte[] serialize(Event e) throws AukletException {
+        return this.sink.serialize(e, this.template, this.platform, this.format, null, StackTraceReducer.NONE, Integer.MAX_VALUE, 0L);
+    }
+
+    /** <p>A sink that discards everything written to it.</p> */
+    private static final class FakeSink extends AbstractSink {
+        @Override protected void write(byte[] bytes) { /* discard */ }
+        @Override public void shutdown() {
+            // Nothing was started, so there is nothing to flush.
+        }
+    }
+
+}
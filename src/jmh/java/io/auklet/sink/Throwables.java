@@ -0,0 +1,38 @@
+package io.auklet.sink;
+
+/** <p>Builds throwables with predictable shapes for benchmarks.</p> */
+public final class Throwables {
+
+    private Throwables() {}
+
+    /**
+     * <p>Returns a throwable whose stack trace has exactly the given number of frames, wrapped in the
+     * given number of causes.</p>
+     *
+     * @param depth the number of stack frames.
+     * @param causes the length of the cause chain below the returned throwable.
+     * @return never {@code null}.
+     */
+    public static Throwable withDepth(int depth, int causes) {
+        Throwable throwable = new IllegalStateException("Simulated failure at depth " + depth);
+        throwable.setStackTrace(frames(depth, 0));
+        for (int i = 1; i <= causes; i++) {
+            Throwable wrapper = new RuntimeException("Wrapped failure " + i, throwable);
+            // Wrappers share the bottom of the stack with their causes, as they do in practice.
+            wrapper.setStackTrace(frames(depth, i));
+            throwable = wrapper;
+        }
+        return throwable;
+    }
+
+    private static StackTraceElement[] frames(int depth, int variant) {
+        StackTraceElement[] frames = new StackTraceElement[depth];
+        for (int i = 0; i < depth; i++) {
+            String className = "com.example.service.layer" + (i % 8) + ".Component" + i;
+            String methodName = (i < 4 ? "variant" + variant + "Method" : "method") + i;
+            frames[i] = new StackTraceElement(className, methodName, "Component" + i + ".java", 10 + i);
+        }
+        return frames;
+    }
+
+}
@@ -0,0 +1,244 @@
+package io.auklet.loadtest;
+
+import io.auklet.config.CompressionDictionary;
+import io.auklet.sink.PayloadCompressor;
+import io.auklet.sink.WireFormat;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ValueType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Matches the events that arrive at the {@link StubMqttBroker} with the moment at which the load
+ * generator passed them to the agent.</p>
+ *
+ * <p>Every throwable sent by the load generator carries its sequence number in its message, as
+ * {@value #MESSAGE_PREFIX}{@code <sequence>}. Payloads are decoded as the agent's MessagePack event
+ * maps (or arrays of them, when the agent batches events), and the capture-to-broker latency of each
+ * event is recorded under its sequence number. Compressed payloads are inflated with the agent's default
+ * compression dictionary, which is the one that the {@link StubApiServer} serves, before they are
+ * decoded. Aggregate events count all of their occurrences as
+ * delivered, but only the latency of the occurrence whose message they carry is recorded. The
+ * {@code droppedEvents} counts that the agent attaches to events are summed, as are the skipped
+ * occurrences that their {@code sampleWeight} stands for.</p>
+ */
+final class DeliveryRecorder implements StubMqttBroker.Listener {
+
+    /** <p>The prefix of the message of every throwable sent by the load generator.</p> */
+    static final String MESSAGE_PREFIX = "loadtest-";
+
+    private final long[] captureNanos;
+    private final AtomicLongArray latencies;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong reportedDrops = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong undecodable = new AtomicLong();
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param capacity the highest number of events that the load generator will send.
+     */
+    DeliveryRecorder(int capacity) {
+        this.captureNanos = new long[capacity];
+        this.latencies = new AtomicLongArray(capacity);
+    }
+
+    /**
+     * <p>Records the moment at which the event with the given sequence number is passed to the agent.
+     * Must be called before the event is sent.</p>
+     *
+     * @param sequence the sequence number.
+     * @param nanos the value of {@link System#nanoTime()}.
+     */
+    void captured(int sequence, long nanos) {
+        // Written before the event is handed to the agent's queue, so it is visible to the broker's threads.
+        this.captureNanos[sequence] = nanos;
+    }
+
+    @Override public void onPublish(byte[] payload, long receivedNanos) {
+        this.payloadBytes.addAndGet(payload.length);
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(decompress(payload))) {
+            if (unpacker.getNextFormat().getValueType() == ValueType.ARRAY) {
+                int events = unpacker.unpackArrayHeader();
+                for (int i = 0; i < events; i++) this.readEvent(unpacker, receivedNanos);
+            } else {
+                this.readEvent(unpacker, receivedNanos);
+            }
+        } catch (IOException | RuntimeException e) {
+            this.undecodable.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Returns the number of events, counting every occurrence of an aggregate event, that have
+     * arrived at the broker.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getDeliveredCount() {
+        return this.delivered.get();
+    }
+
+    /**
+     * <p>Returns the number of events that arrived at the broker more than once, e.g. because a publish
+     * was retried after a reconnect.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getDuplicateCount() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * <p>Returns the sum of the {@code droppedEvents} counts reported by the agent.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getReportedDropCount() {
+        return this.reportedDrops.get();
+    }
+
+    /**
+     * <p>Returns the number of occurrences that the agent skipped by sampling, as extrapolated from the
+     * {@code sampleWeight} of the events that were delivered. Occurrences skipped after the last
+     * delivered event of their exception are not included.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getSampledCount() {
+        return this.sampled.get();
+    }
+
+    /**
+     * <p>Returns the total size of the payloads that have arrived at the broker.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getPayloadBytes() {
+        return this.payloadBytes.get();
+    }
+
+    /**
+     * <p>Returns the number of payloads that could not be decoded.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getUndecodableCount() {
+        return this.undecodable.get();
+    }
+
+    /**
+     * <p>Returns the recorded latencies of the events with the given sequence numbers, in ascending
+     * order. Events that have not been delivered are left out.</p>
+     *
+     * @param from the first sequence number, inclusive.
+     * @param to the last sequence number, exclusive.
+     * @return never {@code null}.
+     */
+    long[] getSortedLatencies(int from, int to) {
+        long[] sorted = new long[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            long latency = this.latencies.get(i);
+            if (latency > 0) sorted[count++] = latency;
+        }
+        sorted = Arrays.copyOf(sorted, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * <p>Returns the payload that the given one stands for, inflating it if it was compressed by a
+     * {@link PayloadCompressor}.</p>
+     */
+    private static byte[] decompress(byte[] payload) throws IOException {
+        byte[] compressed = null;
+        int size = -1;
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(payload)) {
+            if (unpacker.getNextFormat().getValueType() != ValueType.MAP) return payload;
+            int entries = unpacker.unpackMapHeader();
+            for (int i = 0; i < entries; i++) {
+                if (unpacker.getNextFormat().getValueType() != ValueType.STRING) return payload;
+                String key = unpacker.unpackString();
+                if (i == 0 && !"contentEncoding".equals(key)) return payload;
+                if ("contentEncoding".equals(key)) {
+                    if (!PayloadCompressor.CONTENT_ENCODING.equals(unpacker.unpackString())) throw new IOException("Unknown content encoding.");
+                } else if ("size".equals(key)) {
+                    size = unpacker.unpackInt();
+                } else if ("payload".equals(key)) {
+                    compressed = unpacker.readPayload(unpacker.unpackBinaryHeader());
+                } else {
+                    unpacker.skipValue();
+                }
+            }
+        }
+        if (compressed == null || size < 0) throw new IOException("Incomplete compressed payload.");
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] inflated = new byte[size];
+            int length = inflater.inflate(inflated);
+            if (length == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(CompressionDictionary.getDefaultDictionary());
+                length = inflater.inflate(inflated);
+            }
+            if (length != size || !inflater.finished()) throw new IOException("Compressed payload has the wrong size.");
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed payload.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String compactKey(int tag) {
+        for (WireFormat.Field field : WireFormat.Field.values()) {
+            if (field.getTag() == tag) return field.getName();
+        }
+        return null;
+    }
+
+    private void readEvent(MessageUnpacker unpacker, long receivedNanos) throws IOException {
+        int entries = unpacker.unpackMapHeader();
+        String message = null;
+        long occurrences = 1L;
+        double sampleWeight = 1.0;
+        for (int i = 0; i < entries; i++) {
+            // The compact event format uses integer keys; see WireFormat.Field.
+            String key = unpacker.getNextFormat().getValueType() == ValueType.INTEGER
+                    ? compactKey(unpacker.unpackInt()) : unpacker.unpackString();
+            if (WireFormat.Field.MESSAGE.getName().equals(key) && unpacker.getNextFormat().getValueType() == ValueType.STRING) {
+                message = unpacker.unpackString();
+            } else if (WireFormat.Field.OCCURRENCES.getName().equals(key)) {
+                occurrences = unpacker.unpackLong();
+            } else if (WireFormat.Field.DROPPED_EVENTS.getName().equals(key)) {
+                this.reportedDrops.addAndGet(unpacker.unpackLong());
+            } else if (WireFormat.Field.SAMPLE_WEIGHT.getName().equals(key)) {
+                sampleWeight = unpacker.unpackDouble();
+            } else {
+                unpacker.skipValue();
+            }
+        }
+        if (sampleWeight > 1) this.sampled.addAndGet(Math.round(occurrences * (sampleWeight - 1)));
+        if (message == null || !message.startsWith(MESSAGE_PREFIX)) return;
+        int sequence = Integer.parseInt(message.substring(MESSAGE_PREFIX.length()));
+        if (sequence < 0 || sequence >= this.captureNanos.length) return;
+        // A latency of zero would be indistinguishable from "not delivered".
+        long latency = Math.max(1L, receivedNanos - this.captureNanos[sequence]);
+        if (this.latencies.compareAndSet(sequence, 0L, latency)) {
+            this.delivered.addAndGet(occurrences);
+        } else {
+            this.duplicates.incrementAndGet();
+        }
+    }
+
+}
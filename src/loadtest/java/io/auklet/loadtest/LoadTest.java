@@ -0,0 +1,259 @@
+package io.auklet.loadtest;
+
+import io.auklet.Auklet;
+import io.auklet.Config;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>End-to-end load test of the agent: boots a {@link StubApiServer} and a {@link StubMqttBroker} on
+ * the loopback interface, starts the agent against them, drives {@link Auklet#send(Throwable)} from
+ * several threads at a fixed total rate, and reports the capture-to-broker latency percentiles, the
+ * number of events that were dropped or lost, and the CPU time consumed by the agent's threads.</p>
+ *
+ * <p>Run with {@code ./gradlew loadtest}, passing options with
+ * {@code -PloadtestArgs="--threads 4 --rate 2000 --duration 30"}. Options:</p>
+ *
+ * <ul>
+ *   <li>{@code --threads} - the number of sending threads (default 4).</li>
+ *   <li>{@code --rate} - the total number of events per second (default 1000).</li>
+ *   <li>{@code --duration} - how long to send for, in seconds (default 30).</li>
+ *   <li>{@code --warmup} - how long to send for before measuring, in seconds (default 5).</li>
+ *   <li>{@code --emission-period} - the emission period served to the agent, in seconds (default 0, which
+ *   disables batching).</li>
+ *   <li>{@code --drain} - how long to wait for outstanding events after sending stops, in seconds
+ *   (default 10).</li>
+ *   <li>{@code --event-format} - the highest event format version advertised to the agent (default 3;
+ *   2 disables the frame dictionary, and 1 makes the agent send the original map format).</li>
+ * </ul>
+ *
+ * <p>Agent options that are not covered above, such as {@code auklet.event.queue.size} or
+ * {@code auklet.aggregation.window.ms}, are read from JVM system properties as usual.</p>
+ */
+public final class LoadTest {
+
+    private static final String AGENT_THREAD_PREFIX = "Auklet";
+
+    private int threads = 4;
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int emissionPeriodSeconds = 0;
+    private int drainSeconds = 10;
+    private int eventFormatVersion = 3;
+
+    private LoadTest() {}
+
+    /**
+     * <p>Runs the load test.</p>
+     *
+     * @param args the command line options.
+     * @throws Exception if the load test cannot be set up.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parse(args);
+        boolean ok = test.run();
+        // The agent and stubs leave non-daemon threads behind (e.g. the HTTP server's dispatcher).
+        System.exit(ok ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            int value = Integer.parseInt(args[++i]);
+            switch (option) {
+                case "--threads": this.threads = value; break;
+                case "--rate": this.rate = value; break;
+                case "--duration": this.durationSeconds = value; break;
+                case "--warmup": this.warmupSeconds = value; break;
+                case "--emission-period": this.emissionPeriodSeconds = value; break;
+                case "--drain": this.drainSeconds = value; break;
+                case "--event-format": this.eventFormatVersion = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (this.threads < 1 || this.rate < 1 || this.durationSeconds < 1 || this.warmupSeconds < 0
+                || this.emissionPeriodSeconds < 0 || this.drainSeconds < 0 || this.eventFormatVersion < 1) {
+            throw new IllegalArgumentException("Options must not be negative; threads, rate, duration and event format must be positive.");
+        }
+    }
+
+    private boolean run() throws Exception {
+        File dir = Files.createTempDirectory("auklet-loadtest").toFile();
+        int warmupEvents = (int) Math.min(Integer.MAX_VALUE / 2, (long) this.rate * this.warmupSeconds);
+        int measuredEvents = (int) Math.min(Integer.MAX_VALUE / 2, (long) this.rate * this.durationSeconds);
+        DeliveryRecorder recorder = new DeliveryRecorder(warmupEvents + measuredEvents);
+
+        SelfSignedIdentity identity = SelfSignedIdentity.generate(dir);
+        StubMqttBroker broker = new StubMqttBroker(identity.getSslContext(), recorder);
+        broker.start();
+        StubApiServer api = new StubApiServer(broker.getPort(), identity.getCertificatePem(), this.emissionPeriodSeconds, this.eventFormatVersion);
+        api.start();
+        try {
+            Config config = new Config()
+                    .setAppId("loadtest-app-0000000000")
+                    .setApiKey("loadtest-api-key")
+                    .setBaseUrl(api.getBaseUrl())
+                    .setConfigDir(new File(dir, "agent").getPath())
+                    .setAutoShutdown(false)
+                    .setUncaughtExceptionHandler(false);
+            if (!Auklet.init(config).get(60, TimeUnit.SECONDS)) {
+                System.err.println("Agent did not start; see the log for details.");
+                return false;
+            }
+            System.out.printf(Locale.ROOT, "Agent started against API %s and broker port %d.%n", api.getBaseUrl(), broker.getPort());
+
+            if (warmupEvents > 0) {
+                System.out.printf(Locale.ROOT, "Warming up: %d events over %d s.%n", warmupEvents, this.warmupSeconds);
+                this.drive(recorder, 0, warmupEvents);
+            }
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            boolean cpuTime = threadBean.isThreadCpuTimeSupported();
+            if (cpuTime) threadBean.setThreadCpuTimeEnabled(true);
+            Map<Long, Long> cpuBefore = agentCpuTimes(threadBean);
+
+            System.out.printf(Locale.ROOT, "Measuring: %d events over %d s from %d threads.%n", measuredEvents, this.durationSeconds, this.threads);
+            long start = System.nanoTime();
+            long senderCpu = this.drive(recorder, warmupEvents, measuredEvents);
+            long sendElapsed = System.nanoTime() - start;
+            int sent = warmupEvents + measuredEvents;
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.drainSeconds);
+            while (recorder.getDeliveredCount() + recorder.getReportedDropCount() + recorder.getSampledCount() < sent
+                    && System.nanoTime() < drainDeadline) {
+                Thread.sleep(50L);
+            }
+            Map<Long, Long> cpuAfter = agentCpuTimes(threadBean);
+
+            long[] latencies = recorder.getSortedLatencies(warmupEvents, sent);
+            long delivered = recorder.getDeliveredCount();
+            long reportedDrops = recorder.getReportedDropCount();
+            long sampled = recorder.getSampledCount();
+            long agentCpu = cpuDelta(cpuBefore, cpuAfter);
+
+            System.out.println();
+            System.out.printf(Locale.ROOT, "Sent:              %d (%d measured, %.0f events/s achieved)%n",
+                    sent, measuredEvents, measuredEvents / (sendElapsed / 1e9));
+            System.out.printf(Locale.ROOT, "Delivered:         %d in %d MQTT messages, %d bytes%n",
+                    delivered, broker.getPublishCount(), recorder.getPayloadBytes());
+            System.out.printf(Locale.ROOT, "Reported dropped:  %d%n", reportedDrops);
+            System.out.printf(Locale.ROOT, "Sampled:           %d (extrapolated from sample weights)%n", sampled);
+            System.out.printf(Locale.ROOT, "Unaccounted:       %d%n", Math.max(0L, sent - delivered - reportedDrops - sampled));
+            System.out.printf(Locale.ROOT, "Duplicates:        %d%n", recorder.getDuplicateCount());
+            System.out.printf(Locale.ROOT, "Undecodable:       %d%n", recorder.getUndecodableCount());
+            System.out.printf(Locale.ROOT, "MQTT connects:     %d%n", broker.getConnectCount());
+            System.out.printf(Locale.ROOT, "API requests:      %d%n", api.getRequestCount());
+            System.out.printf(Locale.ROOT, "Latency (ms):      p50 %.3f  p99 %.3f  p999 %.3f  max %.3f  (%d measured samples)%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    percentile(latencies, 1.0), latencies.length);
+            if (cpuTime) {
+                System.out.printf(Locale.ROOT, "Agent CPU:         %.1f ms (%.1f%% of one core, %.1f us/event)%n",
+                        agentCpu / 1e6, 100.0 * agentCpu / sendElapsed, agentCpu / 1e3 / measuredEvents);
+                System.out.printf(Locale.ROOT, "Caller CPU:        %.1f ms (%.2f us/event, including throwable creation)%n",
+                        senderCpu / 1e6, senderCpu / 1e3 / measuredEvents);
+            } else {
+                System.out.println("Agent CPU:         not supported by this JVM");
+            }
+            return true;
+        } finally {
+            Auklet.shutdown().get(30, TimeUnit.SECONDS);
+            api.stop();
+            broker.stop();
+        }
+    }
+
+    /**
+     * <p>Sends the given number of events at the configured rate, spread over the configured number of
+     * threads, and waits for all of them to be sent.</p>
+     *
+     * @return the CPU time consumed by the sending threads, in nanoseconds, or zero if not supported.
+     */
+    private long drive(final DeliveryRecorder recorder, final int firstSequence, final int events) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(firstSequence);
+        final int end = firstSequence + events;
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * this.threads / this.rate;
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(this.threads);
+        final long[] cpu = new long[this.threads];
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        for (int t = 0; t < this.threads; t++) {
+            final int index = t;
+            Thread sender = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        // Stagger the threads so that the total rate is smooth.
+                        long due = start + intervalNanos * index / LoadTest.this.threads;
+                        int sequence;
+                        while ((sequence = next.getAndIncrement()) < end) {
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) LockSupport.parkNanos(wait);
+                            long now = System.nanoTime();
+                            recorder.captured(sequence, now);
+                            Auklet.send(new LoadTestException(DeliveryRecorder.MESSAGE_PREFIX + sequence));
+                            due += intervalNanos;
+                        }
+                        if (threadBean.isCurrentThreadCpuTimeSupported()) cpu[index] = threadBean.getCurrentThreadCpuTime();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "LoadTestSender-" + t);
+            sender.start();
+        }
+        done.await();
+        long total = 0L;
+        for (long c : cpu) total += c;
+        return total;
+    }
+
+    private static Map<Long, Long> agentCpuTimes(ThreadMXBean threadBean) {
+        Map<Long, Long> times = new HashMap<>();
+        if (!threadBean.isThreadCpuTimeSupported()) return times;
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info == null || !info.getThreadName().startsWith(AGENT_THREAD_PREFIX)) continue;
+            long time = threadBean.getThreadCpuTime(info.getThreadId());
+            if (time >= 0) times.put(info.getThreadId(), time);
+        }
+        return times;
+    }
+
+    /** <p>Threads that exited in between are not counted; threads that started in between are counted in full.</p> */
+    private static long cpuDelta(Map<Long, Long> before, Map<Long, Long> after) {
+        long total = 0L;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            Long previous = before.get(entry.getKey());
+            total += entry.getValue() - (previous == null ? 0L : previous);
+        }
+        return total;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    /** <p>The throwable sent by the load generator. Its message carries the event's sequence number.</p> */
+    private static final class LoadTestException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private LoadTestException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+package io.auklet.loadtest;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>A throwaway self-signed TLS identity for {@code 127.0.0.1}, used by the {@link StubMqttBroker}.</p>
+ *
+ * <p>The JDK has no public API for generating certificates, so the key pair and certificate are
+ * generated by running the JDK's {@code keytool} in a temporary directory. The certificate is
+ * served to the agent as its CA by the {@link StubApiServer}, exactly as the real API serves the
+ * broker's CA.</p>
+ */
+final class SelfSignedIdentity {
+
+    private static final char[] PASSWORD = "loadtest".toCharArray();
+    private static final String ALIAS = "broker";
+
+    private final SSLContext sslContext;
+    private final String certificatePem;
+
+    private SelfSignedIdentity(SSLContext sslContext, String certificatePem) {
+        this.sslContext = sslContext;
+        this.certificatePem = certificatePem;
+    }
+
+    /**
+     * <p>Generates a new identity in the given directory.</p>
+     *
+     * @param dir the directory in which the key store and certificate are written.
+     * @return never {@code null}.
+     * @throws IOException if {@code keytool} cannot be run or fails.
+     * @throws GeneralSecurityException if the generated key store cannot be loaded.
+     */
+    static SelfSignedIdentity generate(File dir) throws IOException, GeneralSecurityException {
+        File keyStore = new File(dir, "broker.p12");
+        File cert = new File(dir, "broker.pem");
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        String password = new String(PASSWORD);
+        run(Arrays.asList(keytool, "-genkeypair", "-alias", ALIAS, "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "2", "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1,dns:localhost",
+                "-storetype", "PKCS12", "-keystore", keyStore.getPath(), "-storepass", password, "-keypass", password));
+        run(Arrays.asList(keytool, "-exportcert", "-rfc", "-alias", ALIAS, "-storetype", "PKCS12",
+                "-keystore", keyStore.getPath(), "-storepass", password, "-file", cert.getPath()));
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStore)) {
+            store.load(in, PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(store, PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        String pem = new String(Files.readAllBytes(cert.toPath()), StandardCharsets.US_ASCII);
+        return new SelfSignedIdentity(context, pem);
+    }
+
+    /**
+     * <p>Returns an SSL context whose key manager presents this identity.</p>
+     *
+     * @return never {@code null}.
+     */
+    SSLContext getSslContext() {
+        return this.sslContext;
+    }
+
+    /**
+     * <p>Returns the certificate of this identity, PEM-encoded.</p>
+     *
+     * @return never {@code null}.
+     */
+    String getCertificatePem() {
+        return this.certificatePem;
+    }
+
+    private static void run(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = readFully(process.getInputStream());
+        try {
+            int exit = process.waitFor();
+            if (exit != 0) throw new IOException("keytool exited with " + exit + ": " + new String(output, StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for keytool.", e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,160 @@
+package io.auklet.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.auklet.config.CompressionDictionary;
+import mjson.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A local stand-in for the Auklet API, which serves the endpoints that the agent calls on start-up
+ * with the responses that {@link io.auklet.config.DeviceAuth}, {@link io.auklet.config.AukletIoBrokers},
+ * {@link io.auklet.config.AukletIoCert} and {@link io.auklet.config.DataUsageLimit} expect, and which
+ * accepts the entries that {@link io.auklet.config.FrameDictionary} syncs. The compression dictionary is
+ * served as the agent's own default dictionary, so that payloads can be decompressed without the
+ * agent's help. Any other
+ * request is answered with a 404, which causes the agent to fail to start, so that a change in the
+ * endpoints the agent relies on is noticed.</p>
+ */
+final class StubApiServer {
+
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Map<String, Integer> frameCounts = new HashMap<>();
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param brokerPort the port on which the {@link StubMqttBroker} listens.
+     * @param certificatePem the broker's certificate, served as the MQTT CA.
+     * @param emissionPeriodSeconds the emission period served in the app config.
+     * @param eventFormatVersion the highest event format version served in the app config.
+     * @throws IOException if the server cannot be bound to a local port.
+     */
+    StubApiServer(int brokerPort, String certificatePem, long emissionPeriodSeconds, int eventFormatVersion) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        final String brokers = Json.object()
+                .set("brokers", "127.0.0.1")
+                .set("port", String.valueOf(brokerPort))
+                .toString();
+        final String device = Json.object()
+                .set("organization", "loadtest-org")
+                .set("client_id", "loadtest-client")
+                .set("id", "loadtest-device")
+                .set("client_password", "loadtest-password")
+                .toString();
+        final String appConfig = Json.object().set("config", Json.object()
+                .set("features", Json.object()
+                        .set("performance_metrics", false)
+                        .set("user_metrics", false))
+                .set("emission_period", emissionPeriodSeconds)
+                .set("storage", Json.object().set("storage_limit", Json.nil()))
+                .set("data", Json.object()
+                        .set("cellular_data_limit", Json.nil())
+                        .set("normalized_cell_plan_date", 1))
+                .set("event_format_version", eventFormatVersion))
+                .toString();
+        final String cert = certificatePem;
+        this.server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                StubApiServer.this.requests.incrementAndGet();
+                String body = read(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                String method = exchange.getRequestMethod();
+                if ("POST".equals(method) && path.equals("/private/devices/")) {
+                    respond(exchange, 201, "application/json", device);
+                } else if ("GET".equals(method) && path.equals("/private/devices/config/")) {
+                    respond(exchange, 200, "application/json", brokers);
+                } else if ("GET".equals(method) && path.equals("/private/devices/certificates/")) {
+                    respond(exchange, 200, "text/plain", cert);
+                } else if ("GET".equals(method) && path.startsWith("/private/devices/") && path.endsWith("/app_config/")) {
+                    respond(exchange, 200, "application/json", appConfig);
+                } else if ("POST".equals(method) && path.equals("/private/devices/frame_dictionary/")) {
+                    respond(exchange, 200, "application/json", Json.object().set("count", addFrames(Json.read(body))).toString());
+                } else if ("GET".equals(method) && path.equals("/private/devices/compression_dictionary/")) {
+                    respond(exchange, 200, "application/octet-stream", CompressionDictionary.getDefaultDictionary());
+                } else {
+                    respond(exchange, 404, "text/plain", "Not found: " + method + " " + path);
+                }
+            }
+        });
+    }
+
+    /** <p>Starts serving requests on a background thread.</p> */
+    void start() {
+        this.server.start();
+    }
+
+    /** <p>Stops the server.</p> */
+    void stop() {
+        this.server.stop(0);
+    }
+
+    /**
+     * <p>Returns the base URL that the agent should be configured with.</p>
+     *
+     * @return never {@code null}.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * <p>Returns the number of requests that have been served.</p>
+     *
+     * @return a non-negative value.
+     */
+    int getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * <p>Returns the number of frame dictionary entries that have been received for the given sync
+     * request's dictionary, including its own entries if they continue the ones received before.</p>
+     */
+    private int addFrames(Json request) {
+        String dictionary = request.at("dictionary").asString();
+        int offset = request.at("offset").asInteger();
+        int count = request.at("frames").asJsonList().size();
+        synchronized (this.frameCounts) {
+            Integer held = this.frameCounts.get(dictionary);
+            int total = held == null ? 0 : held;
+            if (offset <= total) total = Math.max(total, offset + count);
+            this.frameCounts.put(dictionary, total);
+            return total;
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        respond(exchange, status, contentType + "; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package io.auklet.loadtest;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A minimal MQTT 3.1/3.1.1 broker stand-in that accepts TLS connections on {@code 127.0.0.1} and
+ * hands every published payload to a {@link Listener}. It implements just enough of the protocol for
+ * the agent's Paho client: {@code CONNECT}, {@code PUBLISH} at QoS 0, 1 and 2, {@code PINGREQ} and
+ * {@code DISCONNECT}. Credentials are not checked, subscriptions are not supported and nothing is
+ * retained.</p>
+ *
+ * <p>Each connection is served by its own thread, which acknowledges a publish before handing its
+ * payload to the listener, so a slow listener delays the next publish on that connection but not the
+ * acknowledgement of the current one.</p>
+ */
+final class StubMqttBroker {
+
+    /** <p>Receives published payloads.</p> */
+    interface Listener {
+
+        /**
+         * <p>Invoked on the connection's thread for each published payload.</p>
+         *
+         * @param payload the payload.
+         * @param receivedNanos the value of {@link System#nanoTime()} when the publish was read.
+         */
+        void onPublish(byte[] payload, long receivedNanos);
+
+    }
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBREL = 6;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket serverSocket;
+    private final Listener listener;
+    private final List<Socket> connections = new CopyOnWriteArrayList<>();
+    private final AtomicLong publishes = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param sslContext the context whose key manager presents the broker's certificate.
+     * @param listener receives published payloads.
+     * @throws IOException if the server socket cannot be bound to a local port.
+     */
+    StubMqttBroker(SSLContext sslContext, Listener listener) throws IOException {
+        this.serverSocket = sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ((SSLServerSocket) this.serverSocket).setNeedClientAuth(false);
+        this.listener = listener;
+    }
+
+    /** <p>Starts accepting connections on a background thread.</p> */
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override public void run() {
+                StubMqttBroker.this.accept();
+            }
+        }, "StubMqttBroker-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** <p>Closes the server socket and all open connections.</p> */
+    void stop() {
+        this.running = false;
+        closeQuietly(this.serverSocket);
+        for (Socket socket : this.connections) closeQuietly(socket);
+    }
+
+    /**
+     * <p>Returns the port on which the broker accepts connections.</p>
+     *
+     * @return the port.
+     */
+    int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * <p>Returns the number of {@code PUBLISH} packets that have been received.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getPublishCount() {
+        return this.publishes.get();
+    }
+
+    /**
+     * <p>Returns the number of {@code CONNECT} packets that have been received.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getConnectCount() {
+        return this.connects.get();
+    }
+
+    private void accept() {
+        while (this.running) {
+            final Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                if (this.running) System.err.println("Broker stopped accepting connections: " + e);
+                return;
+            }
+            this.connections.add(socket);
+            Thread connection = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        StubMqttBroker.this.serve(socket);
+                    } catch (EOFException | SocketException e) {
+                        // The client disconnected, or the broker was stopped.
+                    } catch (IOException e) {
+                        if (StubMqttBroker.this.running) System.err.println("Broker connection failed: " + e);
+                    } finally {
+                        StubMqttBroker.this.connections.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            }, "StubMqttBroker-connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        while (true) {
+            int header = in.readUnsignedByte();
+            int type = header >>> 4;
+            byte[] body = new byte[readRemainingLength(in)];
+            in.readFully(body);
+            switch (type) {
+                case CONNECT:
+                    this.connects.incrementAndGet();
+                    // Session not present, connection accepted.
+                    write(out, 0x20, 0x00, 0x00);
+                    break;
+                case PUBLISH:
+                    long receivedNanos = System.nanoTime();
+                    this.publishes.incrementAndGet();
+                    int qos = (header >>> 1) & 0x03;
+                    int topicLength = ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+                    int offset = 2 + topicLength;
+                    if (qos > 0) {
+                        // PUBACK for QoS 1, PUBREC for QoS 2.
+                        write(out, qos == 1 ? 0x40 : 0x50, body[offset], body[offset + 1]);
+                        offset += 2;
+                    }
+                    byte[] payload = new byte[body.length - offset];
+                    System.arraycopy(body, offset, payload, 0, payload.length);
+                    this.listener.onPublish(payload, receivedNanos);
+                    break;
+                case PUBREL:
+                    write(out, 0x70, body[0], body[1]);
+                    break;
+                case PINGREQ:
+                    write(out, 0xD0);
+                    break;
+                case DISCONNECT:
+                    return;
+                default:
+                    throw new IOException("Unsupported MQTT packet type " + type + ".");
+            }
+        }
+    }
+
+    private static int readRemainingLength(DataInputStream in) throws IOException {
+        int length = 0;
+        int multiplier = 1;
+        int digit;
+        do {
+            digit = in.readUnsignedByte();
+            length += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return length;
+    }
+
+    /**
+     * <p>Writes a packet that consists of the given header byte, followed by the remaining length and
+     * the given bytes, all of which fit in a single-byte remaining length.</p>
+     */
+    private static void write(OutputStream out, int header, int... rest) throws IOException {
+        out.write(header);
+        out.write(rest.length);
+        for (int b : rest) out.write(b);
+        out.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+}
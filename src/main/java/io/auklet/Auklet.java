@@ -3,10 +3,24 @@ package io.auklet;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.core.AgentMetrics;
+import io.auklet.core.AgentMetricsBean;
 import io.auklet.core.AukletDaemonExecutor;
+import io.auklet.core.DaemonLane;
 import io.auklet.core.DataUsageMonitor;
 import io.auklet.core.AukletExceptionHandler;
+import io.auklet.core.Event;
+import io.auklet.core.EventAggregator;
+import io.auklet.core.EventQueue;
+import io.auklet.core.EventRing;
+import io.auklet.core.HashedWheelTimer;
+import io.auklet.core.Instrumentation;
+import io.auklet.core.EventSampler;
+import io.auklet.core.OverheadGovernor;
+import io.auklet.core.ThrowableSnapshot;
+import io.auklet.config.CompressionDictionary;
 import io.auklet.config.DeviceAuth;
+import io.auklet.config.FrameDictionary;
 import io.auklet.net.Https;
 import io.auklet.util.SysUtil;
 import io.auklet.util.ThreadUtil;
@@ -23,7 +37,12 @@ import okhttp3.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 /**
@@ -54,9 +73,16 @@ public final class Auklet {
     public static final boolean LOUD_SECURITY_EXCEPTIONS;
     private static final Logger LOGGER = LoggerFactory.getLogger(Auklet.class);
     private static final Object LOCK = new Object();
-    private static final AukletDaemonExecutor DAEMON = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("Auklet"));
+    private static final Map<DaemonLane, AukletDaemonExecutor> LANES = createLanes();
+    private static final AukletDaemonExecutor DAEMON = LANES.get(DaemonLane.HOUSEKEEPING);
+    private static final HashedWheelTimer TIMER = new HashedWheelTimer(10L, TimeUnit.MILLISECONDS, 512, ThreadUtil.createDaemonThreadFactory("AukletTimer"));
+    private static final AgentMetrics METRICS = new AgentMetrics();
     private static final String INVALID_INIT_MSG = "Use Auklet.init() to initialize the agent.";
+    private static final int DEFAULT_EVENT_QUEUE_SIZE = 1024;
+    private static final EventQueue EVENTS;
     @GuardedBy("LOCK") private static Auklet agent = null;
+    // Read without the lock by send(), which must not block; true from init() until the agent fails to start or is shut down.
+    private static volatile boolean acceptingEvents = false;
 
     private final String appId;
     private final String apiKey;
@@ -71,7 +97,23 @@ public final class Auklet {
     private final DeviceAuth deviceAuth;
     private final AbstractSink sink;
     private final DataUsageMonitor usageMonitor;
+    private final FrameDictionary frameDictionary;
+    private final CompressionDictionary compressionDictionary;
     private final Thread shutdownHook;
+    private final AukletDaemonExecutor eventDrain;
+    private final EventAggregator aggregator;
+    private final EventSampler sampler;
+    private final OverheadGovernor governor;
+    private final StackTraceReducer stackTraceReducer;
+    private final int maxEventFormatVersion;
+    private final boolean compression;
+    private final int compressionThreshold;
+    private volatile boolean draining = true;
+    // Scheduled on the static lanes, so they must be cancelled explicitly on shutdown.
+    private volatile ScheduledFuture<?> frameDictionarySyncTask = null;
+    private volatile ScheduledFuture<?> compressionDictionaryRefreshTask = null;
+    private final Object metricsLock = new Object();
+    @GuardedBy("metricsLock") private ObjectName metricsBeanName = null;
 
     static {
         // Extract Auklet agent version from the BuildConfig class.
@@ -116,6 +158,14 @@ public final class Auklet {
             // was successful and returned true, so there would be no reason to log anything.
             LOGGER.warn("JVM security manager prevented checking for 'loud security exceptions' flag!");
         }
+        // The event queue must exist before the first call to send(), which may happen before init(),
+        // so its settings are read only from env vars/JVM sysprops.
+        Integer queueSizeMaybeNull = SysUtil.getValue((Integer) null, "AUKLET_EVENT_QUEUE_SIZE", "auklet.event.queue.size", LOUD_SECURITY_EXCEPTIONS);
+        int queueSize = (queueSizeMaybeNull == null || queueSizeMaybeNull < 1 || queueSizeMaybeNull > (1 << 20)) ? DEFAULT_EVENT_QUEUE_SIZE : queueSizeMaybeNull;
+        String overflowPolicyName = SysUtil.getValue((String) null, "AUKLET_EVENT_QUEUE_OVERFLOW", "auklet.event.queue.overflow", LOUD_SECURITY_EXCEPTIONS);
+        EventRing.OverflowPolicy overflowPolicy = EventRing.OverflowPolicy.fromString(overflowPolicyName, EventRing.OverflowPolicy.DROP_NEWEST);
+        EVENTS = new EventQueue(queueSize, overflowPolicy);
+        LOGGER.debug("Event queue capacity: {}, overflow policy: {}", EVENTS.capacity(), overflowPolicy);
         // Initialize the Auklet agent if requested via env var or JVM sysprop.
         boolean autoStart = Boolean.valueOf(SysUtil.getValue((String) null, "AUKLET_AUTO_START", "auklet.auto.start", LOUD_SECURITY_EXCEPTIONS));
         if (autoStart) {
@@ -184,6 +234,41 @@ public final class Auklet {
         if (mqttThreadsFromConfig < 1) mqttThreadsFromConfig = 3;
         this.mqttThreads = mqttThreadsFromConfig;
 
+        Integer aggregationWindowMaybeNull = SysUtil.getValue(config.getAggregationWindowMillis(), "AUKLET_AGGREGATION_WINDOW_MS", "auklet.aggregation.window.ms", LOUD_SECURITY_EXCEPTIONS);
+        int aggregationWindow = aggregationWindowMaybeNull == null ? 0 : aggregationWindowMaybeNull;
+        if (aggregationWindow < 0) aggregationWindow = 0;
+        this.aggregator = new EventAggregator(aggregationWindow);
+
+        Double cpuBudgetMaybeNull = SysUtil.getValue(config.getOverheadCpuBudgetPercent(), "AUKLET_OVERHEAD_CPU_BUDGET_PERCENT", "auklet.overhead.cpu.budget.percent", LOUD_SECURITY_EXCEPTIONS);
+        Integer allocationBudgetMaybeNull = SysUtil.getValue(config.getOverheadAllocationBudget(), "AUKLET_OVERHEAD_ALLOCATION_BUDGET", "auklet.overhead.allocation.budget", LOUD_SECURITY_EXCEPTIONS);
+        double cpuBudget = cpuBudgetMaybeNull == null || !(cpuBudgetMaybeNull >= 0) ? 0.0 : cpuBudgetMaybeNull;
+        long allocationBudget = allocationBudgetMaybeNull == null || allocationBudgetMaybeNull < 0 ? 0L : allocationBudgetMaybeNull;
+        this.governor = new OverheadGovernor(cpuBudget, allocationBudget, METRICS);
+
+        Double samplingRateMaybeNull = SysUtil.getValue(config.getSamplingRate(), "AUKLET_SAMPLING_RATE", "auklet.sampling.rate", LOUD_SECURITY_EXCEPTIONS);
+        Integer samplingBurstMaybeNull = SysUtil.getValue(config.getSamplingBurst(), "AUKLET_SAMPLING_BURST", "auklet.sampling.burst", LOUD_SECURITY_EXCEPTIONS);
+        Double samplingGlobalRateMaybeNull = SysUtil.getValue(config.getSamplingGlobalRate(), "AUKLET_SAMPLING_GLOBAL_RATE", "auklet.sampling.global.rate", LOUD_SECURITY_EXCEPTIONS);
+        double samplingRate = samplingRateMaybeNull == null || !(samplingRateMaybeNull >= 0) ? 0.0 : samplingRateMaybeNull;
+        int samplingBurst = samplingBurstMaybeNull == null || samplingBurstMaybeNull < 1 ? 10 : samplingBurstMaybeNull;
+        double samplingGlobalRate = samplingGlobalRateMaybeNull == null || !(samplingGlobalRateMaybeNull >= 0) ? 0.0 : samplingGlobalRateMaybeNull;
+        this.sampler = new EventSampler(samplingRate, samplingBurst, samplingGlobalRate);
+        if (this.sampler.isEnabled()) LOGGER.debug("Event sampling: {}/s per exception (burst {}), {}/s in total (0 = unlimited).", samplingRate, samplingBurst, samplingGlobalRate);
+
+        Integer stackMaxDepthMaybeNull = SysUtil.getValue(config.getStackMaxDepth(), "AUKLET_STACK_MAX_DEPTH", "auklet.stack.max.depth", LOUD_SECURITY_EXCEPTIONS);
+        Boolean stackFoldRecursionMaybeNull = SysUtil.getValue(config.getStackFoldRecursion(), "AUKLET_STACK_FOLD_RECURSION", "auklet.stack.fold.recursion", LOUD_SECURITY_EXCEPTIONS);
+        String stackCollapsePackages = SysUtil.getValue(config.getStackCollapsePackages(), "AUKLET_STACK_COLLAPSE_PACKAGES", "auklet.stack.collapse.packages", LOUD_SECURITY_EXCEPTIONS);
+        Integer maxMessageLengthMaybeNull = SysUtil.getValue(config.getMaxMessageLength(), "AUKLET_MAX_MESSAGE_LENGTH", "auklet.max.message.length", LOUD_SECURITY_EXCEPTIONS);
+        int stackMaxDepth = stackMaxDepthMaybeNull == null || stackMaxDepthMaybeNull < 0 ? 0 : stackMaxDepthMaybeNull;
+        boolean stackFoldRecursion = stackFoldRecursionMaybeNull == null ? false : stackFoldRecursionMaybeNull;
+        int maxMessageLength = maxMessageLengthMaybeNull == null || maxMessageLengthMaybeNull < 0 ? 0 : maxMessageLengthMaybeNull;
+        this.stackTraceReducer = new StackTraceReducer(stackMaxDepth, stackFoldRecursion, StackTraceReducer.parsePackages(stackCollapsePackages), maxMessageLength);
+        Integer maxEventFormatVersionMaybeNull = SysUtil.getValue(config.getMaxEventFormatVersion(), "AUKLET_EVENT_FORMAT_VERSION", "auklet.event.format.version", LOUD_SECURITY_EXCEPTIONS);
+        this.maxEventFormatVersion = maxEventFormatVersionMaybeNull == null || maxEventFormatVersionMaybeNull < 1 ? WireFormat.DICTIONARY.getVersion() : maxEventFormatVersionMaybeNull;
+        Boolean compressionMaybeNull = SysUtil.getValue(config.getCompression(), "AUKLET_COMPRESSION", "auklet.compression", LOUD_SECURITY_EXCEPTIONS);
+        Integer compressionThresholdMaybeNull = SysUtil.getValue(config.getCompressionThreshold(), "AUKLET_COMPRESSION_THRESHOLD", "auklet.compression.threshold", LOUD_SECURITY_EXCEPTIONS);
+        this.compression = compressionMaybeNull == null ? false : compressionMaybeNull;
+        this.compressionThreshold = compressionThresholdMaybeNull == null || compressionThresholdMaybeNull < 0 ? 256 : compressionThresholdMaybeNull;
+
         // Finalizing the config dir may cause changes to the filesystem, so we wait to do this
         // until we've validated the rest of the config, in case there is a config error; this
         // approach avoids unnecessary filesystem changes for bad configs.
@@ -210,7 +295,8 @@ public final class Auklet {
             } else {
                 LOGGER.warn("Could not get public IP address: {}", responseString);
             }
-        } catch (IOException e) {
+        } catch (IOException | AukletException e) {
+            // The public IP address is informational only, so do not fail to start (e.g. when offline).
             LOGGER.warn("Could not get public IP address.", e);
         }
         this.ipAddress = ip;
@@ -222,6 +308,9 @@ public final class Auklet {
             this.sink = new AukletIoSink();
         }
         this.usageMonitor = new DataUsageMonitor();
+        this.frameDictionary = new FrameDictionary();
+        this.compressionDictionary = new CompressionDictionary();
+        this.eventDrain = new AukletDaemonExecutor(1, ThreadUtil.createDaemonThreadFactory("AukletEvents"));
 
         LOGGER.debug("Configuring JVM integrations.");
         if (autoShutdown) {
@@ -284,6 +373,8 @@ public final class Auklet {
      */
     @NonNull public static Future<Boolean> init(@Nullable final Config config) {
         LOGGER.debug("Scheduling init task.");
+        // Events sent while the agent starts are queued, and sent once it has started.
+        acceptingEvents = true;
         Callable<Boolean> initTask = new Callable<Boolean>() {
             @NonNull @Override public Boolean call() {
                 synchronized (LOCK) {
@@ -294,6 +385,8 @@ public final class Auklet {
                         return false;
                     }
                     LOGGER.info("Starting agent.");
+                    // A shutdown that was scheduled before this init may have run in the meantime.
+                    acceptingEvents = true;
                     try {
                         agent = new Auklet(config);
                         agent.start();
@@ -302,6 +395,7 @@ public final class Auklet {
                     } catch (Exception e) {
                         // Catch everything so that even programming errors result in an orderly
                         // shutdown of the agent.
+                        acceptingEvents = false;
                         shutdown();
                         LOGGER.error("Could not start agent.", e);
                         return false;
@@ -322,6 +416,16 @@ public final class Auklet {
     /**
      * <p>Sends the given throwable to the agent as an <i>event</i>.</p>
      *
+     * <p>This method never blocks. A snapshot of the throwable (its type, message and stack trace) is
+     * queued and later delivered to the data sink by the agent's event thread; the throwable itself is not
+     * retained. If the queue is full, the event is dropped or coalesced with a duplicate according to the
+     * configured overflow policy, and the number of dropped events is reported with the next event that is
+     * sent.</p>
+     *
+     * <p>Events sent after {@link #init()} is called but before the agent has started are queued (up to
+     * the capacity of the queue) and sent once it starts. Events sent before {@code init()} is called,
+     * after the agent fails to start, or after it is shut down are ignored.</p>
+     *
      * @param throwable if {@code null}, this method is no-op.
      */
     public static void send(@Nullable final Throwable throwable) {
@@ -329,23 +433,17 @@ public final class Auklet {
             LOGGER.debug("Ignoring send request for null throwable.");
             return;
         }
-        LOGGER.debug("Scheduling send task.");
-        Runnable sendTask = new Runnable() {
-            @Override public void run() {
-                synchronized (LOCK) {
-                    if (agent == null) {
-                        LOGGER.debug("Ignoring send request because agent is null.");
-                        return;
-                    }
-                    agent.doSend(throwable);
-                }
-            }
-        };
-        try {
-            DAEMON.submit(sendTask);
-        } catch (RejectedExecutionException e) {
-            LOGGER.error("Could not send event.", e);
+        if (!acceptingEvents) {
+            LOGGER.debug("Ignoring send request because the agent is not running.");
+            return;
         }
+        METRICS.getEventsSubmitted().increment();
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.CAPTURE);
+        span.setDetail(throwable.getClass().getName());
+        boolean queued = EVENTS.offer(throwable);
+        span.setSuccess(queued);
+        span.finish();
+        if (!queued) LOGGER.debug("Event queue is full; dropped event.");
     }
 
     /**
@@ -367,11 +465,12 @@ public final class Auklet {
                         LOGGER.debug("Ignoring shutdown request because agent is null.");
                         return;
                     }
+                    acceptingEvents = false;
                     // Do not log cancelled tasks during shutdown.
-                    DAEMON.logCancelExceptions(false);
+                    for (AukletDaemonExecutor lane : LANES.values()) lane.logCancelExceptions(false);
                     agent.doShutdown(false);
                     agent = null;
-                    DAEMON.logCancelExceptions(true);
+                    for (AukletDaemonExecutor lane : LANES.values()) lane.logCancelExceptions(true);
                 }
             }
         };
@@ -455,6 +554,99 @@ public final class Auklet {
         return this.usageMonitor;
     }
 
+    /**
+     * <p>Returns the dictionary through which events refer to stack frames that were sent before.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public FrameDictionary getFrameDictionary() {
+        return this.frameDictionary;
+    }
+
+    /**
+     * <p>Returns the preset dictionary with which payloads are compressed. It is only loaded if
+     * compression is enabled.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public CompressionDictionary getCompressionDictionary() {
+        return this.compressionDictionary;
+    }
+
+    /**
+     * <p>Returns the event format to use, given the version accepted by the backend and the configured
+     * maximum version.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public WireFormat getEventFormat() {
+        return WireFormat.negotiate(this.usageMonitor.getUsageConfig().getEventFormatVersion(), this.maxEventFormatVersion);
+    }
+
+    /**
+     * <p>Returns the queue through which events are handed from application threads to the agent's
+     * event thread.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public EventQueue getEventQueue() {
+        return EVENTS;
+    }
+
+    /**
+     * <p>Returns the registry of the agent's internal metrics.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public AgentMetrics getMetrics() {
+        return METRICS;
+    }
+
+    /**
+     * <p>Returns the governor that keeps the agent's own overhead within budget.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public OverheadGovernor getGovernor() {
+        return this.governor;
+    }
+
+    /**
+     * <p>Returns the policies that reduce stack traces and messages before they are sent.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StackTraceReducer getStackTraceReducer() {
+        return this.stackTraceReducer;
+    }
+
+    /**
+     * <p>Returns the highest event format version that the agent is configured to use.</p>
+     *
+     * @return a positive value.
+     */
+    public int getMaxEventFormatVersion() {
+        return this.maxEventFormatVersion;
+    }
+
+    /**
+     * <p>Returns whether payloads are compressed before they are sent.</p>
+     *
+     * @return {@code true} if compression is enabled, {@code false} otherwise.
+     */
+    public boolean isCompressionEnabled() {
+        return this.compression;
+    }
+
+    /**
+     * <p>Returns the size, in bytes, below which payloads are not compressed.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
     /**
      * <p>Returns the platform for this instance of the agent.</p>
      *
@@ -484,7 +676,20 @@ public final class Auklet {
     }
 
     /**
-     * <p>Schedules the given one-shot task to run on the Auklet agent's daemon executor thread.</p>
+     * <p>Returns the executor that runs the tasks in the given lane.</p>
+     *
+     * @param lane the lane.
+     * @return never {@code null}.
+     * @throws AukletException if the lane is {@code null}.
+     */
+    @NonNull public AukletDaemonExecutor getDaemonExecutor(@NonNull DaemonLane lane) throws AukletException {
+        if (lane == null) throw new AukletException("Daemon lane is null.");
+        return LANES.get(lane);
+    }
+
+    /**
+     * <p>Schedules the given one-shot task to run in the {@linkplain DaemonLane#HOUSEKEEPING housekeeping}
+     * lane of the Auklet agent's daemon executors.</p>
      *
      * @param command the task to execute.
      * @param delay the time from now to delay execution.
@@ -494,17 +699,33 @@ public final class Auklet {
      * @see ScheduledExecutorService#schedule(Runnable, long, TimeUnit)
      */
     @NonNull public ScheduledFuture<?> scheduleOneShotTask(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) throws AukletException { //NOSONAR
+        return this.scheduleOneShotTask(DaemonLane.HOUSEKEEPING, command, delay, unit);
+    }
+
+    /**
+     * <p>Schedules the given one-shot task to run in the given lane of the Auklet agent's daemon executors.</p>
+     *
+     * @param lane the lane in which to run the task.
+     * @param command the task to execute.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter.
+     * @return never {@code null}.
+     * @throws AukletException to wrap any underlying exceptions, including if the lane's queue is full.
+     * @see ScheduledExecutorService#schedule(Runnable, long, TimeUnit)
+     */
+    @NonNull public ScheduledFuture<?> scheduleOneShotTask(@NonNull DaemonLane lane, @NonNull Runnable command, long delay, @NonNull TimeUnit unit) throws AukletException { //NOSONAR
         if (command == null) throw new AukletException("Daemon task is null.");
         if (unit == null) throw new AukletException("Daemon task time unit is null.");
         try {
-            return DAEMON.schedule(command, delay, unit);
+            return this.getDaemonExecutor(lane).schedule(command, delay, unit);
         } catch (RejectedExecutionException e) {
             throw new AukletException("Could not schedule one-shot task.", e);
         }
     }
 
     /**
-     * <p>Schedules the given task to run on the Auklet agent's daemon executor thread.</p>
+     * <p>Schedules the given task to run in the {@linkplain DaemonLane#HOUSEKEEPING housekeeping} lane of
+     * the Auklet agent's daemon executors.</p>
      *
      * @param command the task to execute.
      * @param initialDelay the time to delay first execution.
@@ -515,15 +736,84 @@ public final class Auklet {
      * @see ScheduledExecutorService#scheduleAtFixedRate(Runnable, long, long, TimeUnit)
      */
     @NonNull public ScheduledFuture<?> scheduleRepeatingTask(@NonNull Runnable command, long initialDelay, long period, @NonNull TimeUnit unit) throws AukletException { //NOSONAR
+        return this.scheduleRepeatingTask(DaemonLane.HOUSEKEEPING, command, initialDelay, period, unit);
+    }
+
+    /**
+     * <p>Schedules the given task to run in the given lane of the Auklet agent's daemon executors.</p>
+     *
+     * @param lane the lane in which to run the task.
+     * @param command the task to execute.
+     * @param initialDelay the time to delay first execution.
+     * @param period the period between successive executions.
+     * @param unit the time unit of the initialDelay and period parameters.
+     * @return never {@code null}.
+     * @throws AukletException to wrap any underlying exceptions, including if the lane's queue is full.
+     * @see ScheduledExecutorService#scheduleAtFixedRate(Runnable, long, long, TimeUnit)
+     */
+    @NonNull public ScheduledFuture<?> scheduleRepeatingTask(@NonNull DaemonLane lane, @NonNull Runnable command, long initialDelay, long period, @NonNull TimeUnit unit) throws AukletException { //NOSONAR
         if (command == null) throw new AukletException("Daemon task is null.");
         if (unit == null) throw new AukletException("Daemon task time unit is null.");
         try {
-            return DAEMON.scheduleAtFixedRate(command, initialDelay, period, unit);
+            return this.getDaemonExecutor(lane).scheduleAtFixedRate(command, initialDelay, period, unit);
         } catch (RejectedExecutionException | IllegalArgumentException e) {
             throw new AukletException("Could not schedule repeating task.", e);
         }
     }
 
+    /**
+     * <p>Schedules the given one-shot task to run in the given lane of the Auklet agent's daemon executors,
+     * using the agent's timer wheel instead of the executor's own delay queue. This is cheaper for timers
+     * that are created and cancelled at a high rate, but is only accurate to 10 milliseconds. A task with
+     * no delay is handed to the lane immediately.</p>
+     *
+     * @param lane the lane in which to run the task.
+     * @param command the task to execute.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter.
+     * @return never {@code null}.
+     * @throws AukletException to wrap any underlying exceptions, including if the lane's queue is full.
+     */
+    @NonNull public HashedWheelTimer.Timeout newTimeout(@NonNull DaemonLane lane, @NonNull Runnable command, long delay, @NonNull TimeUnit unit) throws AukletException {
+        return this.newTimeout(this.getDaemonExecutor(lane), command, delay, unit);
+    }
+
+    /**
+     * <p>Schedules the given one-shot task to be handed to the given executor, using the agent's timer
+     * wheel. This allows callers to wrap one of the agent's daemon executors, e.g. to find out when the
+     * lane rejects the task.</p>
+     *
+     * @param executor the executor that runs the task.
+     * @param command the task to execute.
+     * @param delay the time from now to delay execution.
+     * @param unit the time unit of the delay parameter.
+     * @return never {@code null}.
+     * @throws AukletException to wrap any underlying exceptions, including if the executor rejects a task
+     * with no delay.
+     */
+    @NonNull public HashedWheelTimer.Timeout newTimeout(@NonNull Executor executor, @NonNull Runnable command, long delay, @NonNull TimeUnit unit) throws AukletException {
+        if (executor == null) throw new AukletException("Daemon executor is null.");
+        if (command == null) throw new AukletException("Daemon task is null.");
+        if (unit == null) throw new AukletException("Daemon task time unit is null.");
+        try {
+            return TIMER.newTimeout(executor, command, delay, unit);
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            throw new AukletException("Could not schedule timer.", e);
+        }
+    }
+
+    /**
+     * <p>Creates the daemon executors, one per lane. Their threads are only started once tasks are
+     * scheduled in them.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private static Map<DaemonLane, AukletDaemonExecutor> createLanes() {
+        Map<DaemonLane, AukletDaemonExecutor> lanes = new EnumMap<>(DaemonLane.class);
+        for (DaemonLane lane : DaemonLane.values()) lanes.put(lane, AukletDaemonExecutor.forLane(lane));
+        return lanes;
+    }
+
     /**
      * <p>Creates a JVM shutdown thread that shuts down the Auklet agent.</p>
      *
@@ -533,6 +823,7 @@ public final class Auklet {
         return new Thread() {
             @Override public void run() {
                 synchronized (LOCK) {
+                    acceptingEvents = false;
                     if (agent != null) {
                         try {
                             agent.doShutdown(true);
@@ -556,6 +847,11 @@ public final class Auklet {
      *     <li>Loading configuration files from disk.</li>
      *     <li>Starting the data sink selected by the agent configuration.</li>
      *     <li>Starting the data usage monitor daemon.</li>
+     *     <li>Loading the frame dictionary, and starting the task that syncs it with the backend.</li>
+     *     <li>If compression is enabled, loading the compression dictionary, and starting the task that
+     *     refreshes it from the API.</li>
+     *     <li>Starting the overhead governor.</li>
+     *     <li>Starting the event thread, which drains the event queue into the data sink.</li>
      * </ul>
      *
      * @throws AukletException if the underlying resources cannot be started.
@@ -564,30 +860,151 @@ public final class Auklet {
         LOGGER.debug("Starting internal resources.");
         this.deviceAuth.start(this);
         this.usageMonitor.start(this);
+        this.frameDictionary.start(this);
+        this.frameDictionarySyncTask = this.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createFrameDictionarySyncTask(),
+                FrameDictionary.SYNC_PERIOD_SECONDS, FrameDictionary.SYNC_PERIOD_SECONDS, TimeUnit.SECONDS);
+        if (this.compression) {
+            this.compressionDictionary.start(this);
+            this.compressionDictionaryRefreshTask = this.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createCompressionDictionaryRefreshTask(), 1L, 1L, TimeUnit.DAYS);
+        }
         this.platform.start(this);
         this.sink.start(this);
+        this.sink.refreshEnvelope();
+        this.governor.start(this);
+        this.registerMetricsBean();
+        try {
+            this.eventDrain.submit(this.createEventDrainTask());
+        } catch (RejectedExecutionException e) {
+            throw new AukletException("Could not start event thread.", e);
+        }
     }
 
     /**
-     * <p>Queues a task to submit the given throwable to the data sink.</p>
+     * <p>Creates the long-running task that drains the event queue, through the duplicate event
+     * aggregator, into the data sink. When the agent shuts down, the task delivers any events that are
+     * still queued, and any pending aggregates, before it exits; see {@link #doSendPending(List)}.</p>
      *
-     * @param throwable if {@code null}, this method is no-op.
+     * @return never {@code null}.
      */
-    private void doSend(@Nullable final Throwable throwable) {
-        if (throwable == null) return;
-        try {
-            this.scheduleOneShotTask(new Runnable() {
-                @Override public void run() {
-                    try {
-                        LOGGER.debug("Sending event for exception: {}", throwable.getClass().getName());
-                        sink.send(throwable);
-                    } catch (AukletException e) {
-                        LOGGER.warn("Could not send event.", e);
-                    }
+    @NonNull private Runnable createEventDrainTask() {
+        return new Runnable() {
+            @Override public void run() {
+                while (draining) {
+                    long now = System.currentTimeMillis();
+                    Event aggregate;
+                    while ((aggregate = aggregator.pollExpired(now)) != null) doSend(aggregate);
+                    Event coalesced;
+                    while ((coalesced = EVENTS.pollCoalesced()) != null) doSend(aggregator.add(coalesced, now));
+                    long timeout = Math.min(1000L, aggregator.millisUntilNextExpiry(now));
+                    ThrowableSnapshot snapshot = EVENTS.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (snapshot != null) doSend(aggregator.add(snapshot, System.currentTimeMillis()));
                 }
-            }, 0, TimeUnit.SECONDS); // 5-second cooldown.
-        } catch (AukletException e) {
-            LOGGER.warn("Could not queue event send task.", e);
+                // Only deliver what was queued at shutdown time, in case application threads keep sending.
+                List<Event> pending = new ArrayList<>();
+                for (int remaining = EVENTS.size(); remaining > 0; remaining--) {
+                    ThrowableSnapshot snapshot = EVENTS.poll();
+                    if (snapshot == null) break;
+                    Event event = aggregator.add(snapshot, System.currentTimeMillis());
+                    if (event != null) pending.add(event);
+                }
+                Event aggregate;
+                while ((aggregate = EVENTS.pollCoalesced()) != null) pending.add(aggregate);
+                while ((aggregate = aggregator.pollAny()) != null) pending.add(aggregate);
+                doSendPending(pending);
+            }
+        };
+    }
+
+    /**
+     * <p>Creates the periodic task that saves new frame dictionary entries, and sends them to the backend
+     * if it accepts dictionary references.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createFrameDictionarySyncTask() {
+        return new Runnable() {
+            @Override public void run() {
+                frameDictionary.sync(getEventFormat() == WireFormat.DICTIONARY);
+            }
+        };
+    }
+
+    /**
+     * <p>Creates the daily task that refreshes the compression dictionary from the API.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createCompressionDictionaryRefreshTask() {
+        return new Runnable() {
+            @Override public void run() {
+                compressionDictionary.refresh();
+            }
+        };
+    }
+
+    /**
+     * <p>Submits the given event to the data sink.</p>
+     *
+     * @param event if {@code null}, this method is no-op.
+     */
+    private void doSend(@Nullable Event event) {
+        if (event == null) return;
+        int occurrences = event.getOccurrences();
+        event = this.sampler.sample(event, System.currentTimeMillis());
+        // Occurrences of evicted fingerprints can no longer be carried by a sample weight.
+        long evicted = this.sampler.takeEvictedOccurrences();
+        if (evicted > 0) EVENTS.restoreUnreportedDrops(evicted);
+        if (event == null) {
+            METRICS.getEventsSampled().add(occurrences);
+            return;
+        }
+        this.deliver(event);
+    }
+
+    /**
+     * <p>Submits the events that were pending when the agent shut down to the data sink. They are not
+     * sampled, since there are at most as many as the event queue and the aggregator hold. Instead, they
+     * carry the occurrences that the sampler skipped: in their sample weight for their own fingerprints,
+     * and as dropped events for fingerprints that did not recur, which would otherwise never be
+     * reported.</p>
+     *
+     * @param events never {@code null}.
+     */
+    private void doSendPending(@NonNull List<Event> events) {
+        for (int i = 0; i < events.size(); i++) events.set(i, this.sampler.flush(events.get(i)));
+        long skipped = this.sampler.takeSkippedOccurrences();
+        if (skipped > 0) {
+            if (events.isEmpty()) {
+                LOGGER.debug("Could not report {} sampled occurrences at shutdown, because no event was pending.", skipped);
+            } else {
+                EVENTS.restoreUnreportedDrops(skipped);
+            }
+        }
+        for (Event event : events) this.deliver(event);
+    }
+
+    /**
+     * <p>Submits the given event to the data sink if the overhead governor admits it, carrying the
+     * number of events that were dropped since the last one was sent.</p>
+     *
+     * @param event never {@code null}.
+     */
+    private void deliver(@NonNull Event event) {
+        if (!this.governor.admit()) {
+            // Report the sampled occurrences, including those the event stood for, as dropped with the next event that is sent.
+            long represented = Math.round(event.getOccurrences() * event.getSampleWeight());
+            METRICS.getEventsSampledByGovernor().add(represented);
+            EVENTS.restoreUnreportedDrops(represented);
+            return;
+        }
+        long dropped = EVENTS.takeUnreportedDrops();
+        try {
+            LOGGER.debug("Sending event for exception: {}", event.getSnapshot().getClassName());
+            this.sink.send(event.withDroppedEvents(dropped));
+        } catch (AukletException | RuntimeException e) {
+            // Keep the event thread alive no matter what happens in the sink.
+            EVENTS.restoreUnreportedDrops(dropped);
+            LOGGER.warn("Could not send event.", e);
         }
     }
 
@@ -598,10 +1015,50 @@ public final class Auklet {
      */
     private void doShutdown(boolean viaJvmHook) {
         LOGGER.info("Shutting down agent.");
-        boolean jvmHookIsShuttingDown = this.shutdownHook != null && viaJvmHook;
-        if (!jvmHookIsShuttingDown) Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        // There is no hook to remove if auto-shutdown is disabled, and it cannot be removed while it is running.
+        if (this.shutdownHook != null && !viaJvmHook) Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        this.draining = false;
+        EVENTS.wakeConsumer();
+        ThreadUtil.shutdown(this.eventDrain);
+        this.governor.shutdown();
         this.sink.shutdown();
+        if (this.frameDictionarySyncTask != null) this.frameDictionarySyncTask.cancel(false);
+        if (this.compressionDictionaryRefreshTask != null) this.compressionDictionaryRefreshTask.cancel(false);
+        this.frameDictionary.shutdown();
+        this.usageMonitor.shutdown();
         this.https.shutdown();
+        this.unregisterMetricsBean();
+    }
+
+    /**
+     * <p>Publishes the agent's metrics as a platform MBean. Failure to do so is logged, but does not
+     * prevent the agent from starting. This is skipped on Android, which does not provide JMX.</p>
+     */
+    private void registerMetricsBean() {
+        if (this.platform instanceof AndroidPlatform) return;
+        try {
+            ObjectName name = AgentMetricsBean.register(new AgentMetricsBean(METRICS, EVENTS, LANES, this.sink));
+            synchronized (this.metricsLock) {
+                this.metricsBeanName = name;
+            }
+        } catch (AukletException | NoClassDefFoundError e) {
+            LOGGER.warn("Could not publish agent metrics via JMX.", e);
+        }
+    }
+
+    /** <p>Removes the platform MBean registered by {@link #registerMetricsBean()}, if any.</p> */
+    private void unregisterMetricsBean() {
+        ObjectName name;
+        synchronized (this.metricsLock) {
+            name = this.metricsBeanName;
+            this.metricsBeanName = null;
+        }
+        if (name == null) return;
+        try {
+            AgentMetricsBean.unregister(name);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not remove agent metrics MBean.", e);
+        }
     }
 
 }
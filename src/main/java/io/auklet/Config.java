@@ -52,6 +52,29 @@ import java.util.*;
  *       <td>{@code false} (SecurityExceptions will be logged normally)</td>
  *     </tr>
  *     <tr>
+ *       <td>Event queue size (rounded up to a power of two)</td>
+ *       <td><i>N/A</i></td>
+ *       <td>
+ *         <ol>
+ *           <li>Environment variable {@code AUKLET_EVENT_QUEUE_SIZE}</li>
+ *           <li>JVM system property {@code auklet.event.queue.size}</li>
+ *         </ol>
+ *       </td>
+ *       <td>1024</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Event queue overflow policy ({@code drop_newest}, {@code drop_oldest} or {@code coalesce}, which
+ *       merges events into pending duplicates)</td>
+ *       <td><i>N/A</i></td>
+ *       <td>
+ *         <ol>
+ *           <li>Environment variable {@code AUKLET_EVENT_QUEUE_OVERFLOW}</li>
+ *           <li>JVM system property {@code auklet.event.queue.overflow}</li>
+ *         </ol>
+ *       </td>
+ *       <td>{@code drop_newest} (events sent while the queue is full are discarded)</td>
+ *     </tr>
+ *     <tr>
  *       <td>Application ID</td>
  *       <td>{@link #setAppId(String)}</td>
  *       <td>
@@ -158,6 +181,169 @@ import java.util.*;
  *       </td>
  *       <td>3</td>
  *     </tr>
+ *     <tr>
+ *       <td>Duplicate event aggregation window, in milliseconds</td>
+ *       <td>{@link #setAggregationWindowMillis(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_AGGREGATION_WINDOW_MS}</li>
+ *           <li>JVM system property {@code auklet.aggregation.window.ms}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (every occurrence of an exception is sent as its own event)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>CPU budget for the agent's own threads, as a percentage of one core (e.g. {@code 1.0});
+ *       when exceeded, the agent degrades what it sends</td>
+ *       <td>{@link #setOverheadCpuBudgetPercent(Double)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_OVERHEAD_CPU_BUDGET_PERCENT}</li>
+ *           <li>JVM system property {@code auklet.overhead.cpu.budget.percent}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no CPU budget)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Allocation budget for the agent's own threads, in bytes per second; when exceeded, the
+ *       agent degrades what it sends</td>
+ *       <td>{@link #setOverheadAllocationBudget(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_OVERHEAD_ALLOCATION_BUDGET}</li>
+ *           <li>JVM system property {@code auklet.overhead.allocation.budget}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no allocation budget)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Events per second that may be sent for each distinct exception; the first occurrence of a
+ *       new exception is always sent, and later ones are sampled with a weight that lets the backend
+ *       extrapolate counts</td>
+ *       <td>{@link #setSamplingRate(Double)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_SAMPLING_RATE}</li>
+ *           <li>JVM system property {@code auklet.sampling.rate}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no per-exception limit)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Events that may be sent in a burst for each distinct exception, before sampling starts</td>
+ *       <td>{@link #setSamplingBurst(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_SAMPLING_BURST}</li>
+ *           <li>JVM system property {@code auklet.sampling.burst}</li>
+ *         </ol>
+ *       </td>
+ *       <td>10</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Events per second that may be sent in total, across all exceptions</td>
+ *       <td>{@link #setSamplingGlobalRate(Double)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_SAMPLING_GLOBAL_RATE}</li>
+ *           <li>JVM system property {@code auklet.sampling.global.rate}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no global limit)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum number of stack frames per event; the top and the bottom of longer stack traces are
+ *       kept</td>
+ *       <td>{@link #setStackMaxDepth(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_STACK_MAX_DEPTH}</li>
+ *           <li>JVM system property {@code auklet.stack.max.depth}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no limit)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Whether or not to fold recursive cycles of stack frames into one copy and a repeat count</td>
+ *       <td>{@link #setStackFoldRecursion(Boolean)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_STACK_FOLD_RECURSION}</li>
+ *           <li>JVM system property {@code auklet.stack.fold.recursion}</li>
+ *         </ol>
+ *       </td>
+ *       <td>false</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Comma-separated packages (e.g. {@code org.springframework,io.netty}) whose consecutive stack
+ *       frames are collapsed into one frame and a count</td>
+ *       <td>{@link #setStackCollapsePackages(String)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_STACK_COLLAPSE_PACKAGES}</li>
+ *           <li>JVM system property {@code auklet.stack.collapse.packages}</li>
+ *         </ol>
+ *       </td>
+ *       <td>None</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Maximum number of characters of exception messages</td>
+ *       <td>{@link #setMaxMessageLength(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_MAX_MESSAGE_LENGTH}</li>
+ *           <li>JVM system property {@code auklet.max.message.length}</li>
+ *         </ol>
+ *       </td>
+ *       <td>0 (no limit)</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Highest event format version to use, if the backend accepts it (1 = original map format,
+ *       2 = compact format, 3 = compact format with frame dictionary)</td>
+ *       <td>{@link #setMaxEventFormatVersion(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_EVENT_FORMAT_VERSION}</li>
+ *           <li>JVM system property {@code auklet.event.format.version}</li>
+ *         </ol>
+ *       </td>
+ *       <td>3</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Compress payloads with a preset dictionary before sending them</td>
+ *       <td>{@link #setCompression(Boolean)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_COMPRESSION}</li>
+ *           <li>JVM system property {@code auklet.compression}</li>
+ *         </ol>
+ *       </td>
+ *       <td>false</td>
+ *     </tr>
+ *     <tr>
+ *       <td>Size, in bytes, below which payloads are not compressed</td>
+ *       <td>{@link #setCompressionThreshold(Integer)}</td>
+ *       <td>
+ *         <ol>
+ *           <li>Setter method value</li>
+ *           <li>Environment variable {@code AUKLET_COMPRESSION_THRESHOLD}</li>
+ *           <li>JVM system property {@code auklet.compression.threshold}</li>
+ *         </ol>
+ *       </td>
+ *       <td>256</td>
+ *     </tr>
  *   </tbody>
  * </table>
  *
@@ -188,6 +374,19 @@ public final class Config {
     private String serialPort = null;
     private Object androidContext = null;
     private Integer mqttThreads = null;
+    private Integer aggregationWindowMillis = null;
+    private Double overheadCpuBudgetPercent = null;
+    private Integer overheadAllocationBudget = null;
+    private Double samplingRate = null;
+    private Integer samplingBurst = null;
+    private Double samplingGlobalRate = null;
+    private Integer stackMaxDepth = null;
+    private Boolean stackFoldRecursion = null;
+    private String stackCollapsePackages = null;
+    private Integer maxMessageLength = null;
+    private Integer maxEventFormatVersion = null;
+    private Boolean compression = null;
+    private Integer compressionThreshold = null;
 
     /**
      * <p>Sets the Auklet agent's app ID.</p>
@@ -316,6 +515,193 @@ public final class Config {
         return this;
     }
 
+    /**
+     * <p>Tells the Auklet agent to collapse duplicate exceptions (same type, same message modulo numbers,
+     * same topmost stack frames) that occur within the given window into a single event that carries
+     * the number of occurrences. The first occurrence is always sent immediately.</p>
+     *
+     * @param aggregationWindowMillis may be {@code null}. Negative values are coerced to {@code null};
+     * zero disables aggregation.
+     * @return {@code this}.
+     */
+    @NonNull public Config setAggregationWindowMillis(@Nullable Integer aggregationWindowMillis) {
+        if (aggregationWindowMillis != null && aggregationWindowMillis < 0) aggregationWindowMillis = null;
+        this.aggregationWindowMillis = aggregationWindowMillis;
+        return this;
+    }
+
+    /**
+     * <p>Limits the CPU time used by the Auklet agent's own threads to the given percentage of one core.
+     * When the agent exceeds the budget, it progressively reuses system metrics, truncates stack traces
+     * and samples events until it is back within budget; events that are not sent are reported as
+     * dropped.</p>
+     *
+     * @param overheadCpuBudgetPercent may be {@code null}. Negative values are coerced to {@code null};
+     * zero disables the budget.
+     * @return {@code this}.
+     */
+    @NonNull public Config setOverheadCpuBudgetPercent(@Nullable Double overheadCpuBudgetPercent) {
+        if (overheadCpuBudgetPercent != null && !(overheadCpuBudgetPercent >= 0)) overheadCpuBudgetPercent = null;
+        this.overheadCpuBudgetPercent = overheadCpuBudgetPercent;
+        return this;
+    }
+
+    /**
+     * <p>Limits the memory allocated by the Auklet agent's own threads to the given number of bytes per
+     * second, in the same way as {@link #setOverheadCpuBudgetPercent(Double)}.</p>
+     *
+     * @param overheadAllocationBudget may be {@code null}. Negative values are coerced to {@code null};
+     * zero disables the budget.
+     * @return {@code this}.
+     */
+    @NonNull public Config setOverheadAllocationBudget(@Nullable Integer overheadAllocationBudget) {
+        if (overheadAllocationBudget != null && overheadAllocationBudget < 0) overheadAllocationBudget = null;
+        this.overheadAllocationBudget = overheadAllocationBudget;
+        return this;
+    }
+
+    /**
+     * <p>Limits the number of events per second that are sent for each distinct exception. The first
+     * occurrence of an exception that the agent has not seen recently is always sent; after that, up to
+     * {@link #setSamplingBurst(Integer) a burst} of events is sent, and then events are sampled down to
+     * this rate. Each event that is sent carries a weight that accounts for the skipped occurrences, so
+     * the backend can still extrapolate how often the exception occurred.</p>
+     *
+     * @param samplingRate may be {@code null}. Negative values are coerced to {@code null}; zero
+     * disables the limit.
+     * @return {@code this}.
+     */
+    @NonNull public Config setSamplingRate(@Nullable Double samplingRate) {
+        if (samplingRate != null && !(samplingRate >= 0)) samplingRate = null;
+        this.samplingRate = samplingRate;
+        return this;
+    }
+
+    /**
+     * <p>Sets the number of events that may be sent in a burst for each distinct exception before
+     * {@link #setSamplingRate(Double) sampling} starts.</p>
+     *
+     * @param samplingBurst may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setSamplingBurst(@Nullable Integer samplingBurst) {
+        if (samplingBurst != null && samplingBurst < 1) samplingBurst = null;
+        this.samplingBurst = samplingBurst;
+        return this;
+    }
+
+    /**
+     * <p>Limits the number of events per second that are sent in total, in the same way as
+     * {@link #setSamplingRate(Double)}. The first occurrence of a new exception is sent even if this
+     * limit has been reached.</p>
+     *
+     * @param samplingGlobalRate may be {@code null}. Negative values are coerced to {@code null}; zero
+     * disables the limit.
+     * @return {@code this}.
+     */
+    @NonNull public Config setSamplingGlobalRate(@Nullable Double samplingGlobalRate) {
+        if (samplingGlobalRate != null && !(samplingGlobalRate >= 0)) samplingGlobalRate = null;
+        this.samplingGlobalRate = samplingGlobalRate;
+        return this;
+    }
+
+    /**
+     * <p>Limits the number of stack frames sent per event. Of longer stack traces, the topmost three
+     * quarters and the bottommost quarter of the frames are kept, and the number of frames that were left
+     * out in between is sent instead.</p>
+     *
+     * @param stackMaxDepth may be {@code null}. Negative values are coerced to {@code null}; zero
+     * disables the limit.
+     * @return {@code this}.
+     */
+    @NonNull public Config setStackMaxDepth(@Nullable Integer stackMaxDepth) {
+        if (stackMaxDepth != null && stackMaxDepth < 0) stackMaxDepth = null;
+        this.stackMaxDepth = stackMaxDepth;
+        return this;
+    }
+
+    /**
+     * <p>Sets whether or not a sequence of stack frames that repeats back to back, as in the stack trace
+     * of a {@link StackOverflowError}, is sent as one copy of the sequence and the number of times it
+     * repeats.</p>
+     *
+     * @param stackFoldRecursion may be {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setStackFoldRecursion(@Nullable Boolean stackFoldRecursion) {
+        this.stackFoldRecursion = stackFoldRecursion;
+        return this;
+    }
+
+    /**
+     * <p>Sets the packages whose consecutive stack frames are collapsed. Of each run of three or more
+     * frames in one of these packages, only the topmost frame is sent, followed by the number of frames
+     * that were left out.</p>
+     *
+     * @param stackCollapsePackages a comma-separated list of package names (e.g.
+     * {@code org.springframework,io.netty}). May be {@code null}. Empty string is coerced to
+     * {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setStackCollapsePackages(@Nullable String stackCollapsePackages) {
+        if (stackCollapsePackages != null && stackCollapsePackages.isEmpty()) stackCollapsePackages = null;
+        this.stackCollapsePackages = stackCollapsePackages;
+        return this;
+    }
+
+    /**
+     * <p>Limits the number of characters of exception messages that are sent. Longer messages are cut and
+     * followed by an ellipsis.</p>
+     *
+     * @param maxMessageLength may be {@code null}. Negative values are coerced to {@code null}; zero
+     * disables the limit.
+     * @return {@code this}.
+     */
+    @NonNull public Config setMaxMessageLength(@Nullable Integer maxMessageLength) {
+        if (maxMessageLength != null && maxMessageLength < 0) maxMessageLength = null;
+        this.maxMessageLength = maxMessageLength;
+        return this;
+    }
+
+    /**
+     * <p>Sets the highest event format version that the agent uses. The agent uses the highest version
+     * that is accepted by both the backend and this setting; set this to 1 to always send events in the
+     * original map format.</p>
+     *
+     * @param maxEventFormatVersion may be {@code null}. Values less than 1 are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setMaxEventFormatVersion(@Nullable Integer maxEventFormatVersion) {
+        if (maxEventFormatVersion != null && maxEventFormatVersion < 1) maxEventFormatVersion = null;
+        this.maxEventFormatVersion = maxEventFormatVersion;
+        return this;
+    }
+
+    /**
+     * <p>Sets whether the agent compresses payloads before sending them. Payloads are compressed with zlib,
+     * using a preset dictionary that is refreshed from the API, so that even small payloads shrink.</p>
+     *
+     * @param compression may be {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setCompression(@Nullable Boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * <p>Sets the size, in bytes, below which payloads are sent uncompressed even if compression is
+     * enabled.</p>
+     *
+     * @param compressionThreshold may be {@code null}. Negative values are coerced to {@code null}.
+     * @return {@code this}.
+     */
+    @NonNull public Config setCompressionThreshold(@Nullable Integer compressionThreshold) {
+        if (compressionThreshold != null && compressionThreshold < 0) compressionThreshold = null;
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
     /** <p>Returns the desired app ID.</p> */
     /*package*/ @CheckForNull String getAppId() {
         return appId;
@@ -362,4 +748,43 @@ public final class Config {
     /** <p>Returns the desired number of MQTT threads.</p> */
     /*package*/ @CheckForNull Integer getMqttThreads() { return mqttThreads; }
 
+    /** <p>Returns the desired duplicate event aggregation window.</p> */
+    /*package*/ @CheckForNull Integer getAggregationWindowMillis() { return aggregationWindowMillis; }
+
+    /** <p>Returns the desired CPU budget for the agent's own threads.</p> */
+    /*package*/ @CheckForNull Double getOverheadCpuBudgetPercent() { return overheadCpuBudgetPercent; }
+
+    /** <p>Returns the desired allocation budget for the agent's own threads.</p> */
+    /*package*/ @CheckForNull Integer getOverheadAllocationBudget() { return overheadAllocationBudget; }
+
+    /** <p>Returns the desired per-exception sampling rate.</p> */
+    /*package*/ @CheckForNull Double getSamplingRate() { return samplingRate; }
+
+    /** <p>Returns the desired per-exception sampling burst.</p> */
+    /*package*/ @CheckForNull Integer getSamplingBurst() { return samplingBurst; }
+
+    /** <p>Returns the desired global sampling rate.</p> */
+    /*package*/ @CheckForNull Double getSamplingGlobalRate() { return samplingGlobalRate; }
+
+    /** <p>Returns the desired maximum number of stack frames per event.</p> */
+    /*package*/ @CheckForNull Integer getStackMaxDepth() { return stackMaxDepth; }
+
+    /** <p>Returns the desired recursion folding behavior.</p> */
+    /*package*/ @CheckForNull Boolean getStackFoldRecursion() { return stackFoldRecursion; }
+
+    /** <p>Returns the desired packages whose stack frames are collapsed.</p> */
+    /*package*/ @CheckForNull String getStackCollapsePackages() { return stackCollapsePackages; }
+
+    /** <p>Returns the desired maximum length of exception messages.</p> */
+    /*package*/ @CheckForNull Integer getMaxMessageLength() { return maxMessageLength; }
+
+    /** <p>Returns the desired highest event format version.</p> */
+    /*package*/ @CheckForNull Integer getMaxEventFormatVersion() { return maxEventFormatVersion; }
+
+    /** <p>Returns the desired payload compression behavior.</p> */
+    /*package*/ @CheckForNull Boolean getCompression() { return compression; }
+
+    /** <p>Returns the desired minimum size of compressed payloads.</p> */
+    /*package*/ @CheckForNull Integer getCompressionThreshold() { return compressionThreshold; }
+
 }
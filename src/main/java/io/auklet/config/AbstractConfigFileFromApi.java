@@ -3,10 +3,12 @@ package io.auklet.config;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.AukletException;
+import io.auklet.core.Instrumentation;
 import io.auklet.util.FileUtil;
 import net.jcip.annotations.NotThreadSafe;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Base class of all Auklet agent config files that are sourced from the API.</p>
@@ -28,12 +30,33 @@ public abstract class AbstractConfigFileFromApi<T> extends AbstractConfigFile {
     @NonNull protected final T loadConfig() throws AukletException {
         T config = this.readFromDisk();
         if (config == null) {
-            config = this.fetchFromApi();
+            config = this.fetchFromApiTimed();
             this.writeToDisk(config);
         }
         return config;
     }
 
+    /**
+     * <p>Fetches the config file from the Auklet API via {@link #fetchFromApi()}, and records how long
+     * that took in the agent's metrics.</p>
+     *
+     * @return never {@code null}.
+     * @throws AukletException if there is a problem communicating with the API.
+     */
+    @NonNull protected final T fetchFromApiTimed() throws AukletException {
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.CONFIG_FETCH);
+        span.setDetail(this.getName());
+        long start = System.nanoTime();
+        try {
+            T config = this.fetchFromApi();
+            span.setSuccess(true);
+            return config;
+        } finally {
+            this.getAgent().getMetrics().getConfigRefreshMillis().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            span.finish();
+        }
+    }
+
     /**
      * <p>Returns the config file contents from disk.</p>
      *
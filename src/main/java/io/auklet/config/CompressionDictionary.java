@@ -0,0 +1,153 @@
+package io.auklet.config;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.util.FileUtil;
+import net.jcip.annotations.ThreadSafe;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * <p>This config file contains the preset dictionary with which payloads are compressed. A preset
+ * dictionary lets deflate find matches for class names, method names and message keys in the very
+ * first bytes of a payload, which is what makes compression pay off for payloads of a few hundred
+ * bytes.</p>
+ *
+ * <p>The dictionary is fetched from the API, so that the backend can replace it with one trained on the
+ * payloads it receives, and is refreshed by {@link #refresh()}. Until a dictionary has been fetched
+ * successfully, or if the API does not provide one, a default dictionary built from a vocabulary of
+ * common Java stack frames and message keys is used. The backend identifies the dictionary that a
+ * payload was compressed with by its Adler-32 checksum, which is part of the zlib header.</p>
+ */
+@ThreadSafe
+public final class CompressionDictionary extends AbstractConfigFileFromApi<byte[]> {
+
+    /** <p>The maximum size of a dictionary; deflate cannot refer back further than this.</p> */
+    public static final int MAX_SIZE = 32768;
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressionDictionary.class);
+    private static final String VOCABULARY_RESOURCE = "io/auklet/config/CompressionDictionary.default.txt";
+    private static final byte[] DEFAULT_DICTIONARY = buildDefault();
+
+    private volatile byte[] dictionary = DEFAULT_DICTIONARY;
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        LOGGER.debug("Loading compression dictionary.");
+        super.start(agent);
+        try {
+            this.update(this.loadConfig());
+        } catch (AukletException e) {
+            LOGGER.warn("Could not load compression dictionary, using the default dictionary.", e);
+        }
+    }
+
+    @Override public String getName() { return "dictionary"; }
+
+    /**
+     * <p>Returns the dictionary. The array is shared, and must not be modified.</p>
+     *
+     * @return never {@code null}. Empty only if the default dictionary could not be built, and none has
+     * been fetched from the API.
+     */
+    @NonNull public byte[] getDictionary() {
+        return this.dictionary;
+    }
+
+    /**
+     * <p>Returns the dictionary that is used until one is fetched from the API. The array is shared, and
+     * must not be modified.</p>
+     *
+     * @return never {@code null}. Empty if the vocabulary could not be read.
+     */
+    @NonNull public static byte[] getDefaultDictionary() {
+        return DEFAULT_DICTIONARY; //NOSONAR
+    }
+
+    /** <p>Refreshes the dictionary from the API.</p> */
+    public void refresh() {
+        try {
+            byte[] fetched = this.fetchFromApiTimed();
+            this.writeToDisk(fetched);
+            this.update(fetched);
+        } catch (AukletException e) {
+            LOGGER.warn("Could not refresh compression dictionary from API.", e);
+        }
+    }
+
+    @Override protected byte[] readFromDisk() {
+        try {
+            byte[] fromDisk = FileUtil.read(this.file);
+            return fromDisk.length == 0 ? null : fromDisk;
+        } catch (IOException e) {
+            LOGGER.warn("Could not read compression dictionary from disk, will re-download from API.", e);
+            return null;
+        }
+    }
+
+    @Override protected byte[] fetchFromApi() throws AukletException {
+        try (Response response = this.getAgent().doApiRequest(new Request.Builder().get(), "/private/devices/compression_dictionary/")) {
+            if (!response.isSuccessful()) {
+                throw new AukletException(String.format("Error while getting compression dictionary: %s: %s", response.message(), response.body().string()));
+            }
+            byte[] bytes = response.body().bytes();
+            if (bytes.length == 0) throw new AukletException("Compression dictionary from API is empty.");
+            return bytes;
+        } catch (IOException e) {
+            throw new AukletException("Error while getting compression dictionary.", e);
+        }
+    }
+
+    @Override protected void writeToDisk(@NonNull byte[] contents) throws AukletException {
+        if (contents == null || contents.length == 0) throw new AukletException("Input is null or empty.");
+        try {
+            FileUtil.write(this.file, contents);
+        } catch (IOException e) {
+            throw new AukletException("Could not save compression dictionary to disk.", e);
+        }
+    }
+
+    /**
+     * <p>Replaces the dictionary with the given one. Only the last {@value #MAX_SIZE} bytes of a larger
+     * dictionary are kept, since those are the ones deflate can refer to.</p>
+     *
+     * @param bytes never {@code null}.
+     */
+    private void update(@NonNull byte[] bytes) {
+        if (bytes.length == 0) return;
+        this.dictionary = bytes.length <= MAX_SIZE ? bytes : Arrays.copyOfRange(bytes, bytes.length - MAX_SIZE, bytes.length);
+    }
+
+    /**
+     * <p>Builds the default dictionary by packing each line of the vocabulary as a MessagePack string.</p>
+     *
+     * @return never {@code null}. Empty if the vocabulary could not be read.
+     */
+    @NonNull private static byte[] buildDefault() {
+        try (InputStream in = CompressionDictionary.class.getClassLoader().getResourceAsStream(VOCABULARY_RESOURCE);
+             MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker()) {
+            if (in == null) throw new IOException("Compression dictionary vocabulary not found.");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                msgpack.packString(line);
+            }
+            byte[] bytes = msgpack.toByteArray();
+            return bytes.length <= MAX_SIZE ? bytes : Arrays.copyOfRange(bytes, bytes.length - MAX_SIZE, bytes.length);
+        } catch (IOException e) {
+            LOGGER.warn("Could not build default compression dictionary.", e);
+            return new byte[0];
+        }
+    }
+
+}
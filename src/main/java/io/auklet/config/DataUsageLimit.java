@@ -45,7 +45,7 @@ public final class DataUsageLimit extends AbstractJsonConfigFileFromApi {
     /** <p>Refreshes the data usage limit config from the API.</p> */
     public void refresh() {
         try {
-            Json config = this.fetchFromApi();
+            Json config = this.fetchFromApiTimed();
             this.writeToDisk(config);
             this.updateConfig(config);
         } catch (AukletException e) {
@@ -83,7 +83,10 @@ public final class DataUsageLimit extends AbstractJsonConfigFileFromApi {
         Json cdlJson = config.at("config").at("data").at("cellular_data_limit");
         long cellularDataLimit = cdlJson.isNull() ? 0 : cdlJson.asLong() * MEGABYTES_TO_BYTES;
         int cellularPlanDate = config.at("config").at("data").at("normalized_cell_plan_date").asInteger();
-        this.usageConfig = new DataUsageConfig(emissionPeriod, storageLimit, cellularDataLimit, cellularPlanDate);
+        // Backends that predate the compact event format do not advertise a version.
+        Json efvJson = config.at("config").at("event_format_version");
+        int eventFormatVersion = efvJson == null || efvJson.isNull() ? 1 : efvJson.asInteger();
+        this.usageConfig = new DataUsageConfig(emissionPeriod, storageLimit, cellularDataLimit, cellularPlanDate, eventFormatVersion);
     }
 
 }
@@ -3,7 +3,7 @@ package io.auklet.config;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
-import io.auklet.core.AukletDaemonExecutor;
+import io.auklet.core.Instrumentation;
 import io.auklet.util.FileUtil;
 import io.auklet.util.JsonUtil;
 import mjson.Json;
@@ -12,53 +12,132 @@ import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  * <p>This config file persists between agent restarts the amount of data that has been sent by
  * the Auklet agent to the sink, pursuant to the defined {@link DataUsageLimit}.</p>
+ *
+ * <p>The file is a small memory-mapped segment that is shared by every JVM that runs the agent with the
+ * same config directory, so that the data limit applies to the whole device. It consists of a header
+ * and {@value #PROCESS_SLOTS} process slots. Each JVM claims a free process slot on start by taking a
+ * region lock on it, which it holds until shutdown, and is the only writer of that slot; a slot left
+ * behind by a JVM that has stopped is taken over, along with its count, by the next JVM that claims it.
+ * The usage of the device is the sum of all slots.</p>
+ *
+ * <p>Recording usage is a single atomic add on an in-memory counter. Each time {@link #sync()} runs, the
+ * counter is written to the JVM's slot if it has changed, and the counters of the other slots are read;
+ * the slot is flushed to the storage device at most every {@value #FORCE_PERIOD_MILLIS} milliseconds.
+ * Each slot holds two records, which are written alternately; each holds a sequence number, the reset
+ * epoch, the count and a CRC32 checksum. If the device loses power while a record is being written (or
+ * if another JVM reads a record while it is being written), that record fails its checksum and the
+ * other record is used instead.</p>
+ *
+ * <p>The header holds the reset epoch. A monthly {@link #reset()} increments it, under an exclusive
+ * lock on the header region; records from an older epoch count as zero, and every JVM zeroes its own
+ * counter when it notices the new epoch. The header also records which month was last reset, so that
+ * several JVMs resetting on the same day only reset once.</p>
+ *
+ * <p>Usage recorded in the JSON file used by earlier versions of the agent is migrated on start.</p>
  */
 @ThreadSafe
 public final class DataUsageTracker extends AbstractConfigFile {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataUsageTracker.class);
-    private static final String USAGE_FILE = "usage";
+    private static final String USAGE_FILE = "usage.shm";
+    private static final String LEGACY_USAGE_FILE = "usage";
     private static final String USAGE_KEY = "usage";
+    private static final int PROCESS_SLOTS = 16;
+    private static final long FORCE_PERIOD_MILLIS = 5000L;
+    private static final int MAGIC = 0x41555347; // AUSG
+    // The layout of the file is also used by tests.
+    // Magic, padding, epoch, last reset month, checksum.
+    /*package*/ static final int HEADER_SIZE = 64;
+    // Sequence number, epoch, count, checksum.
+    /*package*/ static final int RECORD_SIZE = 32;
+    /*package*/ static final int SLOT_SIZE = 2 * RECORD_SIZE;
+    private static final int FILE_SIZE = HEADER_SIZE + PROCESS_SLOTS * SLOT_SIZE;
+    // File locks are held per JVM, so agents in the same JVM must also be excluded from each other.
+    private static final Object HEADER_LOCK = new Object();
 
     private final Object lock = new Object();
-    @GuardedBy("lock") private ScheduledFuture<?> currentWriteTask;
-    @GuardedBy("lock") private long bytesSent = 0L;
+    private final AtomicLong bytesSent = new AtomicLong(0L);
+    private final AtomicLong externalBytesSent = new AtomicLong(0L);
+    @GuardedBy("lock") private final CRC32 crc = new CRC32();
+    @GuardedBy("lock") private RandomAccessFile raf;
+    @GuardedBy("lock") private MappedByteBuffer buffer;
+    @GuardedBy("lock") private FileLock slotLock;
+    @GuardedBy("lock") private int slot = -1;
+    @GuardedBy("lock") private long epoch = 0L;
+    @GuardedBy("lock") private long sequence = 0L;
+    @GuardedBy("lock") private long writtenValue = -1L;
+    @GuardedBy("lock") private boolean forcePending = false;
+    @GuardedBy("lock") private long lastForce = 0L;
 
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.debug("Loading data usage tracker file.");
         super.start(agent);
-        try {
-            // If the file doesn't exist, create it.
-            if (!this.file.exists()) this.writeUsageToDisk(0L);
-            // Read from disk.
-            byte[] usageBytes = FileUtil.read(this.file);
-            String usageString = new String(usageBytes, "UTF-8");
-            // Parse the JSON and set relevant fields.
-            Json usageJson = JsonUtil.validateJson(JsonUtil.readJson(usageString), this.getClass().getName());
-            this.bytesSent = usageJson.at(USAGE_KEY, 0L).asLong();
-        } catch (IOException | IllegalArgumentException e) {
-            LOGGER.warn("Could not read data usage tracker file from disk, assuming zero usage.", e);
+        this.open(new File(agent.getConfigDir(), LEGACY_USAGE_FILE));
+    }
+
+    /**
+     * <p>Maps the file, claims a process slot and recovers its count, along with any usage recorded in
+     * the given legacy file. If that fails, usage is only tracked in memory.</p>
+     *
+     * @param legacyFile the JSON file used by earlier versions of the agent. Never {@code null}.
+     */
+    /*package*/ void open(@NonNull File legacyFile) {
+        synchronized (this.lock) {
+            try {
+                this.raf = new RandomAccessFile(this.file, "rw");
+                this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                synchronized (HEADER_LOCK) {
+                    try (FileLock ignored = this.raf.getChannel().lock(0, HEADER_SIZE, false)) {
+                        this.epoch = this.readOrInitHeader();
+                        this.claimSlot();
+                        if (this.slot < 0) throw new IOException("All " + PROCESS_SLOTS + " data usage slots are in use.");
+                        long recovered = this.recoverSlot();
+                        recovered += this.readLegacyUsage(legacyFile);
+                        this.bytesSent.set(recovered);
+                        this.writeSlot(true);
+                    }
+                }
+                this.readExternal();
+            } catch (IOException | SecurityException e) {
+                LOGGER.warn("Could not open data usage tracker file; usage will not be persisted or shared.", e);
+                this.close();
+            }
         }
     }
 
     @Override public String getName() { return USAGE_FILE; }
 
     /**
-     * <p>Return the number of bytes sent so far.</p>
+     * <p>Return the number of bytes sent so far by this JVM.</p>
      *
      * @return the number of bytes sent.
      */
     public long getBytesSent() {
-        synchronized (lock) {
-            return this.bytesSent;
-        }
+        return this.bytesSent.get();
+    }
+
+    /**
+     * <p>Returns the number of bytes sent so far by other JVMs that share this file, as of the last
+     * {@link #sync()}.</p>
+     *
+     * @return the number of bytes sent.
+     */
+    public long getExternalBytesSent() {
+        return this.externalBytesSent.get();
     }
 
     /**
@@ -68,63 +147,292 @@ public final class DataUsageTracker extends AbstractConfigFile {
      */
     public void addMoreData(long moreBytes) {
         if (moreBytes < 1) return;
-        synchronized (lock) {
-            this.bytesSent += moreBytes;
-            this.saveUsage(this.bytesSent);
+        this.bytesSent.addAndGet(moreBytes);
+    }
+
+    /**
+     * <p>Resets the data usage of all JVMs that share this file to zero, unless another JVM has already
+     * done so this month.</p>
+     *
+     * @return the data usage of this JVM prior to the reset.
+     */
+    public long reset() {
+        synchronized (this.lock) {
+            if (this.buffer == null) return this.bytesSent.getAndSet(0L);
+            synchronized (HEADER_LOCK) {
+                try (FileLock ignored = this.raf.getChannel().lock(0, HEADER_SIZE, false)) {
+                    long headerEpoch = this.readOrInitHeader();
+                    Calendar now = Calendar.getInstance();
+                    long month = now.get(Calendar.YEAR) * 12L + now.get(Calendar.MONTH);
+                    if (this.buffer.getLong(16) != month) this.writeHeader(headerEpoch + 1, month);
+                } catch (IOException | OverlappingFileLockException e) {
+                    LOGGER.warn("Could not lock data usage tracker file; resetting this JVM's usage only.", e);
+                    return this.bytesSent.getAndSet(0L);
+                }
+            }
+            // Adopt the new epoch, whether this JVM or another one started it.
+            return this.sync();
+        }
+    }
+
+    /**
+     * <p>Publishes this JVM's usage to its slot, adopts any reset made by another JVM, and re-reads the
+     * usage of the other JVMs.</p>
+     *
+     * @return the usage of this JVM that was dropped because the usage was reset; zero otherwise.
+     */
+    public long sync() {
+        synchronized (this.lock) {
+            if (this.buffer == null) return 0L;
+            long dropped = 0L;
+            long headerEpoch = this.readHeaderEpoch();
+            if (headerEpoch > this.epoch) {
+                this.epoch = headerEpoch;
+                dropped = this.bytesSent.getAndSet(0L);
+                this.writtenValue = -1L;
+                LOGGER.info("Data usage was reset.");
+            }
+            this.writeSlot(false);
+            this.readExternal();
+            return dropped;
+        }
+    }
+
+    /** <p>Flushes this JVM's usage to disk, releases its slot and closes the file.</p> */
+    public void shutdown() {
+        synchronized (this.lock) {
+            if (this.buffer != null) this.writeSlot(true);
+            this.close();
         }
     }
 
-    /** <p>Resets the data usage to zero.</p> */
-    public void reset() {
-        synchronized (lock) {
-            this.bytesSent = 0L;
-            this.saveUsage(this.bytesSent);
+    /**
+     * <p>Returns the epoch from the header, initializing the header if it is missing or corrupt. The
+     * header region must be locked.</p>
+     *
+     * @return the current epoch.
+     */
+    @GuardedBy("lock") private long readOrInitHeader() {
+        long headerEpoch = this.readHeaderEpoch();
+        if (headerEpoch > 0) return headerEpoch;
+        // Never move the epoch backwards past records that were already written.
+        long maxEpoch = 1L;
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            for (int record = 0; record < 2; record++) {
+                int base = HEADER_SIZE + i * SLOT_SIZE + record * RECORD_SIZE;
+                if (this.isValidRecord(base)) maxEpoch = Math.max(maxEpoch, this.buffer.getLong(base + 8));
+            }
         }
+        this.writeHeader(maxEpoch, 0L);
+        return maxEpoch;
+    }
+
+    /**
+     * <p>Reads the epoch from the header.</p>
+     *
+     * @return zero if the header is missing or corrupt.
+     */
+    @GuardedBy("lock") private long readHeaderEpoch() {
+        if (this.buffer.getInt(0) != MAGIC) return 0L;
+        long headerEpoch = this.buffer.getLong(8);
+        long month = this.buffer.getLong(16);
+        if (this.buffer.getLong(24) != this.checksum(MAGIC, headerEpoch, month)) return 0L;
+        return headerEpoch;
+    }
+
+    /**
+     * <p>Writes the header and flushes it to disk. The header region must be locked.</p>
+     *
+     * @param newEpoch the epoch.
+     * @param month the month in which the usage was last reset.
+     */
+    @GuardedBy("lock") private void writeHeader(long newEpoch, long month) {
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putLong(8, newEpoch);
+        this.buffer.putLong(16, month);
+        this.buffer.putLong(24, this.checksum(MAGIC, newEpoch, month));
+        this.force();
     }
 
     /**
-     * <p>Asynchronously saves the given usage value to disk.</p>
+     * <p>Claims the first process slot that is not locked by another JVM, or by another agent in this JVM.</p>
      *
-     * @param givenUsage the usage value to write.
+     * @throws IOException if an error occurs while locking a slot.
      */
-    @GuardedBy("lock") private void saveUsage(final long givenUsage) {
+    @GuardedBy("lock") private void claimSlot() throws IOException {
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            try {
+                FileLock claimed = this.raf.getChannel().tryLock(HEADER_SIZE + (long) i * SLOT_SIZE, SLOT_SIZE, false);
+                if (claimed == null) continue;
+                this.slotLock = claimed;
+                this.slot = i;
+                return;
+            } catch (OverlappingFileLockException e) {
+                // Claimed by another agent in this JVM.
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the count in this JVM's slot, if it belongs to the current epoch.</p>
+     *
+     * @return a non-negative value.
+     */
+    @GuardedBy("lock") private long recoverSlot() {
+        int base = this.newestRecord(this.slot);
+        if (base < 0) return 0L;
+        this.sequence = this.buffer.getLong(base);
+        long value = this.buffer.getLong(base + 16);
+        return this.buffer.getLong(base + 8) == this.epoch ? Math.max(0L, value) : 0L;
+    }
+
+    /**
+     * <p>Writes the current count to the older record of this JVM's slot, if it has changed, and flushes
+     * it to disk if it has not been flushed recently.</p>
+     *
+     * @param force whether or not to flush to disk immediately.
+     */
+    @GuardedBy("lock") private void writeSlot(boolean force) {
+        long value = this.bytesSent.get();
+        if (value != this.writtenValue) {
+            this.sequence++;
+            int base = HEADER_SIZE + this.slot * SLOT_SIZE + (int) (this.sequence & 1) * RECORD_SIZE;
+            this.buffer.putLong(base, this.sequence);
+            this.buffer.putLong(base + 8, this.epoch);
+            this.buffer.putLong(base + 16, value);
+            this.buffer.putLong(base + 24, this.checksum(this.sequence, this.epoch, value));
+            this.writtenValue = value;
+            this.forcePending = true;
+        }
+        long now = System.currentTimeMillis();
+        if (this.forcePending && (force || Math.abs(now - this.lastForce) >= FORCE_PERIOD_MILLIS)) {
+            this.force();
+            this.lastForce = now;
+        }
+    }
+
+    /** <p>Sums the counts in the other JVMs' slots that belong to the current epoch.</p> */
+    @GuardedBy("lock") private void readExternal() {
+        long total = 0L;
+        for (int i = 0; i < PROCESS_SLOTS; i++) {
+            if (i == this.slot) continue;
+            int base = this.newestRecord(i);
+            if (base < 0 || this.buffer.getLong(base + 8) != this.epoch) continue;
+            total += Math.max(0L, this.buffer.getLong(base + 16));
+        }
+        this.externalBytesSent.set(total);
+    }
+
+    /**
+     * <p>Returns the position of the newest valid record in the given slot.</p>
+     *
+     * @param index the slot index.
+     * @return a negative value if neither record is valid.
+     */
+    @GuardedBy("lock") private int newestRecord(int index) {
+        int newest = -1;
+        long newestSequence = Long.MIN_VALUE;
+        for (int record = 0; record < 2; record++) {
+            int base = HEADER_SIZE + index * SLOT_SIZE + record * RECORD_SIZE;
+            if (!this.isValidRecord(base)) continue;
+            long recordSequence = this.buffer.getLong(base);
+            if (recordSequence > newestSequence) {
+                newest = base;
+                newestSequence = recordSequence;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * <p>Returns whether or not the record at the given position has been written and passes its checksum.</p>
+     *
+     * @param base the position of the record.
+     * @return {@code true} if the record is valid.
+     */
+    @GuardedBy("lock") private boolean isValidRecord(int base) {
+        long recordSequence = this.buffer.getLong(base);
+        if (recordSequence == 0L) return false;
+        return this.buffer.getLong(base + 24) == this.checksum(recordSequence, this.buffer.getLong(base + 8), this.buffer.getLong(base + 16));
+    }
+
+    /**
+     * <p>Reads the usage value from the JSON file used by earlier versions of the agent, and deletes
+     * that file. The header region must be locked, so that only one JVM migrates it.</p>
+     *
+     * @param legacyFile the legacy file. Never {@code null}.
+     * @return zero if the legacy file does not exist or cannot be read.
+     */
+    private long readLegacyUsage(@NonNull File legacyFile) {
+        if (!legacyFile.exists()) return 0L;
+        long usage = 0L;
         try {
-            // If there is already a pending write task, cancel it.
-            if (this.currentWriteTask != null) currentWriteTask.cancel(false);
-            // Queue the new write task.
-            this.currentWriteTask = this.getAgent().scheduleOneShotTask(new AukletDaemonExecutor.CancelSilentlyRunnable() {
-                @Override
-                public void run() {
-                    // This task is no longer pending, so clear its status.
-                    synchronized (lock) {
-                        currentWriteTask = null;
-                    }
-                    try {
-                        writeUsageToDisk(givenUsage);
-                    } catch (SecurityException e) {
-                        if (Auklet.LOUD_SECURITY_EXCEPTIONS) LOGGER.warn("Could not save data usage to disk.", e);
-                        else LOGGER.warn("Could not save data usage to disk: " + e.getMessage());
-                    } catch (IOException e) {
-                        LOGGER.warn("Could not save data usage to disk.", e);
-                    }
-                }
-            }, 5, TimeUnit.SECONDS); // 5-second cooldown.
-        } catch (AukletException e) {
-            LOGGER.warn("Could not queue data usage save task.", e);
+            String usageString = new String(FileUtil.read(legacyFile), "UTF-8");
+            Json usageJson = JsonUtil.validateJson(JsonUtil.readJson(usageString), this.getClass().getName());
+            usage = usageJson.at(USAGE_KEY, 0L).asLong();
+        } catch (AukletException | IOException | IllegalArgumentException | Json.MalformedJsonException e) {
+            LOGGER.warn("Could not read legacy data usage tracker file from disk, assuming zero usage.", e);
         }
+        FileUtil.deleteQuietly(legacyFile);
+        return usage;
     }
 
     /**
-     * <p>Write the usage value to disk.</p>
+     * <p>Computes the checksum of three values. This does not allocate.</p>
      *
-     * @param usage the current usage value.
-     * @throws IOException if an error occurs while writing the file.
-     * @throws SecurityException if an error occurs while writing the file.
+     * @param a the first value.
+     * @param b the second value.
+     * @param c the third value.
+     * @return the checksum.
      */
-    @GuardedBy("lock") private void writeUsageToDisk(long usage) throws IOException {
-        Json usageJson = Json.object();
-        usageJson.set(USAGE_KEY, usage);
-        FileUtil.writeUtf8(this.file, usageJson.toString());
+    @GuardedBy("lock") private long checksum(long a, long b, long c) {
+        this.crc.reset();
+        this.update(a);
+        this.update(b);
+        this.update(c);
+        return this.crc.getValue();
+    }
+
+    /**
+     * <p>Adds the bytes of the given value to the checksum.</p>
+     *
+     * @param value the value.
+     */
+    @GuardedBy("lock") private void update(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) this.crc.update((int) (value >>> shift));
+    }
+
+    /** <p>Flushes the file to the storage device.</p> */
+    @GuardedBy("lock") private void force() {
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.DISK_PERSIST);
+        span.setDetail("data usage");
+        span.setBytes(this.buffer.capacity());
+        try {
+            this.buffer.force();
+            this.forcePending = false;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not save data usage to disk.", e);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /** <p>Releases this JVM's slot, drops the file mapping and closes the file.</p> */
+    @GuardedBy("lock") private void close() {
+        this.buffer = null;
+        this.slot = -1;
+        try {
+            if (this.slotLock != null) this.slotLock.release();
+        } catch (IOException e) {
+            LOGGER.warn("Could not release data usage tracker slot.", e);
+        }
+        this.slotLock = null;
+        try {
+            if (this.raf != null) this.raf.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close data usage tracker file.", e);
+        }
+        this.raf = null;
     }
 
 }
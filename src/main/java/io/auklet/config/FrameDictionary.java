@@ -0,0 +1,452 @@
+package io.auklet.config;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.core.Instrumentation;
+import io.auklet.util.JsonUtil;
+import io.auklet.util.Util;
+import mjson.Json;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>This config file assigns a device-local ID to each distinct stack frame that the agent has sent,
+ * so that events can refer to frames by ID instead of repeating their class, method and file names.
+ * For a deployed application that keeps failing in the same places, most frames of most events are
+ * then sent as a small integer.</p>
+ *
+ * <p>The file starts with a header that holds the random ID of the dictionary and the number of entries
+ * that the backend has acknowledged, followed by the entries in ID order. Entries are only ever
+ * appended; the dictionary stops growing once it holds {@value #MAX_ENTRIES} entries.</p>
+ *
+ * <p>New frames are staged by the event thread, in memory only, without taking any lock; frames that
+ * have an ID are then looked up without allocating. Every {@value #SYNC_PERIOD_SECONDS} seconds,
+ * {@link #sync(boolean)} assigns IDs to the staged frames, appends them to the file, flushes it to the
+ * storage device, and then, if the backend accepts dictionary references, sends the entries that the
+ * backend does not have yet. The file and the backend are only accessed outside of the lock that guards
+ * the entries, so a slow disk or API never holds up the event thread.
+ * The backend responds with the number of entries it holds for this dictionary; only those entries are
+ * ever referenced by ID. Because entries are on disk before they are sent, a restart can never assign
+ * an ID that the backend already knows to a different frame. If a sync finds that the backend holds
+ * fewer entries than it acknowledged before (e.g. because it lost them), the missing entries are sent
+ * again.</p>
+ *
+ * <p>The file is locked for the lifetime of the agent. If another JVM that uses the same config directory
+ * holds the lock, or if the file cannot be read or written, the dictionary is disabled, and frames are
+ * always sent in full.</p>
+ */
+@ThreadSafe
+public final class FrameDictionary extends AbstractConfigFile {
+
+    /** <p>The period, in seconds, at which new entries are saved and sent to the backend.</p> */
+    public static final long SYNC_PERIOD_SECONDS = 5L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameDictionary.class);
+    private static final String DICTIONARY_FILE = "frames";
+    private static final String API_PATH = "/private/devices/frame_dictionary/";
+    private static final int MAX_ENTRIES = 65536;
+    private static final int MAX_ENTRIES_PER_REQUEST = 512;
+    private static final int MAGIC = 0x41554644; // AUFD
+    // Magic, acknowledged count, dictionary ID.
+    private static final int HEADER_SIZE = 24;
+    private static final int ACKNOWLEDGED_OFFSET = 4;
+    // Frames that differ only in module or class loader names map to the same key, so allow for some.
+    private static final int MAX_CACHED_FRAMES = 2 * MAX_ENTRIES;
+    // Marks cached frames that are staged, but have no ID yet.
+    private static final int PENDING = -1;
+
+    // Serializes syncs and guards the file; acquired before lock, never by the event thread.
+    private final Object ioLock = new Object();
+    private final Object lock = new Object();
+    private final ConcurrentHashMap<Key, Integer> ids = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<StackTraceElement, Integer> frameIds = new ConcurrentHashMap<>();
+    private final Set<Key> staged = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+    // Entries whose ID is less than this value may be referenced.
+    private volatile int acknowledged = 0;
+    private volatile boolean enabled = false;
+    private volatile UUID dictionaryId;
+    @GuardedBy("lock") private final List<Key> entries = new ArrayList<>();
+    @GuardedBy("ioLock") private int persisted = 0;
+    @GuardedBy("ioLock") private RandomAccessFile raf;
+    @GuardedBy("ioLock") private FileLock fileLock;
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        LOGGER.debug("Loading frame dictionary file.");
+        super.start(agent);
+        this.open();
+    }
+
+    /** <p>Opens, locks and loads the file. If that fails, the dictionary is disabled.</p> */
+    /*package*/ void open() {
+        synchronized (this.ioLock) {
+            try {
+                this.raf = new RandomAccessFile(this.file, "rw");
+                this.fileLock = this.raf.getChannel().tryLock();
+                if (this.fileLock == null) throw new IOException("Frame dictionary is in use by another JVM.");
+                this.load();
+                this.enabled = true;
+                LOGGER.debug("Loaded {} frame dictionary entries, {} acknowledged by the backend.", this.persisted, this.acknowledged);
+            } catch (IOException | OverlappingFileLockException | SecurityException e) {
+                LOGGER.info("Could not open frame dictionary file; stack frames will always be sent in full.", e);
+                this.close();
+            }
+        }
+    }
+
+    @Override public String getName() { return DICTIONARY_FILE; }
+
+    /**
+     * <p>Returns whether or not this dictionary can be used.</p>
+     *
+     * @return {@code false} if the file could not be opened.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * <p>Returns the ID of this dictionary, which events that refer to its entries must carry.</p>
+     *
+     * @return {@code null} if the file could not be opened.
+     */
+    @Nullable public UUID getDictionaryId() {
+        return this.dictionaryId;
+    }
+
+    /**
+     * <p>Returns the ID of the given frame, if the backend knows it. Otherwise, the frame is staged, if
+     * there is room, and can be referenced once it has been synced. This method never blocks.</p>
+     *
+     * @param frame never {@code null}.
+     * @return a negative value if the frame must be sent in full.
+     */
+    public int lookup(@NonNull StackTraceElement frame) {
+        if (!this.enabled) return -1;
+        Integer id = this.frameIds.get(frame);
+        if (id == null) {
+            Key key = new Key(frame.getClassName(), frame.getMethodName(), frame.getFileName(), frame.getLineNumber());
+            id = this.ids.get(key);
+            if (id == null) {
+                if (this.ids.size() + this.staged.size() >= MAX_ENTRIES) return -1;
+                this.staged.add(key);
+                id = PENDING;
+            }
+            if (this.frameIds.size() < MAX_CACHED_FRAMES) {
+                this.frameIds.put(frame, id);
+                if (id == PENDING) {
+                    // A sync may have assigned the ID, and cleared the pending frames, before this frame
+                    // was cached; if so, nothing would ever clear it. Otherwise, the next sync clears it.
+                    Integer assigned = this.ids.get(key);
+                    if (assigned != null && this.frameIds.replace(frame, PENDING, assigned)) id = assigned;
+                }
+            }
+        }
+        return id >= 0 && id < this.acknowledged ? id : -1;
+    }
+
+    /**
+     * <p>Returns the number of entries in this dictionary, including those that have not been synced.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int size() {
+        return this.ids.size() + this.staged.size();
+    }
+
+    /**
+     * <p>Returns the number of entries that the backend has acknowledged.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int getAcknowledged() {
+        return this.acknowledged;
+    }
+
+    /**
+     * <p>Saves new entries to disk and, if requested, sends the entries that the backend does not have
+     * yet. Errors are logged, and the sync is retried on the next call.</p>
+     *
+     * @param upload whether or not the backend accepts dictionary references.
+     */
+    public void sync(boolean upload) {
+        synchronized (this.ioLock) {
+            if (this.raf == null) return;
+            try {
+                this.persist();
+            } catch (IOException e) {
+                LOGGER.warn("Could not save frame dictionary; disabling it.", e);
+                this.close();
+                return;
+            }
+            int offset = this.acknowledged;
+            if (!upload || offset >= this.persisted) return;
+            List<Key> unacknowledged = this.copyEntries(offset, Math.min(this.persisted, offset + MAX_ENTRIES_PER_REQUEST));
+            try {
+                int count = this.upload(offset, unacknowledged);
+                this.raf.seek(ACKNOWLEDGED_OFFSET);
+                this.raf.writeInt(count);
+                this.acknowledged = count;
+            } catch (AukletException | IOException e) {
+                LOGGER.warn("Could not sync frame dictionary with the backend.", e);
+            }
+        }
+    }
+
+    /** <p>Saves new entries to disk and closes the file.</p> */
+    public void shutdown() {
+        synchronized (this.ioLock) {
+            if (this.raf == null) return;
+            try {
+                this.persist();
+            } catch (IOException e) {
+                LOGGER.warn("Could not save frame dictionary.", e);
+            }
+            this.close();
+        }
+    }
+
+    /**
+     * <p>Assigns the next IDs to the staged frames, as long as the dictionary is not full.</p>
+     *
+     * @return the number of entries, including the new ones.
+     */
+    private int assignStaged() {
+        if (this.staged.isEmpty()) return this.entryCount();
+        int size;
+        synchronized (this.lock) {
+            for (Key key : this.staged) {
+                this.staged.remove(key);
+                if (this.entries.size() >= MAX_ENTRIES || this.ids.containsKey(key)) continue;
+                this.ids.put(key, this.entries.size());
+                this.entries.add(key);
+            }
+            size = this.entries.size();
+        }
+        // Cached frames that were staged now resolve through their key. Frames that are cached after
+        // this point re-read their key in lookup(), since they may have missed it.
+        this.frameIds.values().removeAll(Collections.singleton(PENDING));
+        return size;
+    }
+
+    /**
+     * <p>Returns the number of entries that have an ID.</p>
+     *
+     * @return a non-negative value.
+     */
+    private int entryCount() {
+        synchronized (this.lock) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * <p>Copies the given range of entries.</p>
+     *
+     * @param from the ID of the first entry to copy.
+     * @param to the ID after the last entry to copy.
+     * @return never {@code null}.
+     */
+    @NonNull private List<Key> copyEntries(int from, int to) {
+        synchronized (this.lock) {
+            return new ArrayList<>(this.entries.subList(from, to));
+        }
+    }
+
+    /**
+     * <p>Reads the header and the entries from the file, or initializes a new dictionary if the file is
+     * empty or was not written by this class. A partially written entry at the end of the file is
+     * discarded.</p>
+     *
+     * @throws IOException if the file cannot be read or written.
+     */
+    @GuardedBy("ioLock") private void load() throws IOException {
+        if (this.raf.length() < HEADER_SIZE || this.readHeader() != MAGIC) {
+            this.dictionaryId = UUID.randomUUID();
+            this.raf.setLength(0);
+            this.raf.writeInt(MAGIC);
+            this.raf.writeInt(0);
+            this.raf.writeLong(this.dictionaryId.getMostSignificantBits());
+            this.raf.writeLong(this.dictionaryId.getLeastSignificantBits());
+            this.raf.getChannel().force(false);
+            return;
+        }
+        int acknowledgedCount = this.raf.readInt();
+        this.dictionaryId = new UUID(this.raf.readLong(), this.raf.readLong());
+        long end = HEADER_SIZE;
+        List<Key> loaded = new ArrayList<>();
+        try {
+            while (loaded.size() < MAX_ENTRIES) {
+                Key key = new Key(this.raf.readUTF(), this.raf.readUTF(), this.raf.readBoolean() ? this.raf.readUTF() : null, this.raf.readInt());
+                this.ids.put(key, loaded.size());
+                loaded.add(key);
+                end = this.raf.getFilePointer();
+            }
+        } catch (EOFException e) {
+            // The agent stopped while an entry was being appended.
+        }
+        this.raf.setLength(end);
+        synchronized (this.lock) {
+            this.entries.addAll(loaded);
+        }
+        this.persisted = loaded.size();
+        this.acknowledged = Math.max(0, Math.min(acknowledgedCount, this.persisted));
+    }
+
+    /**
+     * <p>Reads the magic number at the start of the file.</p>
+     *
+     * @return the magic number.
+     * @throws IOException if the file cannot be read.
+     */
+    @GuardedBy("ioLock") private int readHeader() throws IOException {
+        this.raf.seek(0);
+        return this.raf.readInt();
+    }
+
+    /**
+     * <p>Assigns IDs to the staged frames, appends the entries that are not on disk yet to the file, and
+     * flushes it to the storage device.</p>
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    @GuardedBy("ioLock") private void persist() throws IOException {
+        int size = this.assignStaged();
+        if (size == this.persisted) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Key key : this.copyEntries(this.persisted, size)) {
+            out.writeUTF(key.className);
+            out.writeUTF(key.methodName);
+            out.writeBoolean(key.fileName != null);
+            if (key.fileName != null) out.writeUTF(key.fileName);
+            out.writeInt(key.lineNumber);
+        }
+        out.flush();
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.DISK_PERSIST);
+        span.setDetail("frame dictionary");
+        span.setBytes(bytes.size());
+        try {
+            this.raf.seek(this.raf.length());
+            this.raf.write(bytes.toByteArray());
+            // Entries must be on disk before the backend learns their IDs.
+            this.raf.getChannel().force(false);
+            this.persisted = size;
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * <p>Sends the given entries, which the backend has not acknowledged.</p>
+     *
+     * @param offset the ID of the first entry.
+     * @param unacknowledged never {@code null}.
+     * @return the number of entries that the backend holds, capped at the number of entries on disk.
+     * @throws AukletException if the request fails.
+     */
+    @GuardedBy("ioLock") private int upload(int offset, @NonNull List<Key> unacknowledged) throws AukletException {
+        Json frames = Json.array();
+        for (Key key : unacknowledged) {
+            frames.add(Json.object()
+                    .set("functionName", key.methodName)
+                    .set("className", key.className)
+                    .set("filePath", Util.orElse(key.fileName, ""))
+                    .set("lineNumber", key.lineNumber < 0 ? -1 : key.lineNumber));
+        }
+        Json requestJson = Json.object()
+                .set("device", this.getAgent().getDeviceAuth().getClientUsername())
+                .set("dictionary", this.dictionaryId.toString())
+                .set("offset", offset)
+                .set("frames", frames);
+        Request.Builder request = new Request.Builder()
+                .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), requestJson.toString()));
+        try (Response response = this.getAgent().doApiRequest(request, API_PATH)) {
+            String responseString = response.body().string();
+            if (!response.isSuccessful()) {
+                throw new AukletException(String.format("Error while syncing frame dictionary: %s: %s", response.message(), responseString));
+            }
+            Json responseJson = JsonUtil.validateJson(JsonUtil.readJson(responseString), this.getClass().getName());
+            return Math.max(0, Math.min(responseJson.at("count").asInteger(), this.persisted));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new AukletException("Error while syncing frame dictionary.", e);
+        }
+    }
+
+    /** <p>Disables the dictionary, releases the lock and closes the file.</p> */
+    @GuardedBy("ioLock") private void close() {
+        this.enabled = false;
+        try {
+            if (this.fileLock != null) this.fileLock.release();
+        } catch (IOException e) {
+            LOGGER.warn("Could not release frame dictionary lock.", e);
+        }
+        this.fileLock = null;
+        try {
+            if (this.raf != null) this.raf.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close frame dictionary file.", e);
+        }
+        this.raf = null;
+    }
+
+    /**
+     * <p>The parts of a stack frame that the backend receives. {@link StackTraceElement} is not used
+     * directly because, on Java 9 and later, its equality also depends on module and class loader
+     * names, which are not persisted.</p>
+     */
+    private static final class Key {
+
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+
+        private Key(@NonNull String className, @NonNull String methodName, @Nullable String fileName, int lineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.fileName = fileName;
+            // Normalize all negative values.
+            this.lineNumber = lineNumber < 0 ? -1 : lineNumber;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return this.lineNumber == other.lineNumber
+                    && this.className.equals(other.className)
+                    && this.methodName.equals(other.methodName)
+                    && (this.fileName == null ? other.fileName == null : this.fileName.equals(other.fileName));
+        }
+
+        @Override public int hashCode() {
+            int result = this.className.hashCode();
+            result = 31 * result + this.methodName.hashCode();
+            result = 31 * result + (this.fileName == null ? 0 : this.fileName.hashCode());
+            return 31 * result + this.lineNumber;
+        }
+
+    }
+
+}
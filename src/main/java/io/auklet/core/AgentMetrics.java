@@ -0,0 +1,264 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * <p>The registry of the agent's internal metrics, which tell whether the agent is keeping up with the
+ * events it is given. The metrics are published over JMX by {@link AgentMetricsBean}.</p>
+ *
+ * <p>Counters and histograms are striped, so updating them does not allocate and rarely contends,
+ * which allows them to be updated on the paths that every event takes. Metrics that the agent already
+ * tracks elsewhere, such as the depth of the event queue and of the daemon executor queues, and the
+ * latency of daemon tasks, are read from their owners when the bean is queried, rather than being
+ * duplicated here.</p>
+ */
+@ThreadSafe
+public final class AgentMetrics {
+
+    private final StripedCounter eventsSubmitted = new StripedCounter();
+    private final StripedCounter eventsSerialized = new StripedCounter();
+    private final StripedCounter messagesPublished = new StripedCounter();
+    private final StripedCounter messagesDroppedByQuota = new StripedCounter();
+    private final StripedCounter messagesDroppedByOverload = new StripedCounter();
+    private final StripedHistogram eventBytes = new StripedHistogram();
+    private final StripedCounter mqttReconnects = new StripedCounter();
+    private final StripedHistogram configRefreshMillis = new StripedHistogram();
+    private volatile boolean mqttConnected = false;
+    private final StripedCounter agentCpuNanos = new StripedCounter();
+    private final StripedCounter agentAllocatedBytes = new StripedCounter();
+    private volatile double agentCpuPercent = 0.0;
+    private volatile long agentAllocationRate = 0L;
+    private volatile int overheadLevel = 0;
+    private final StripedCounter overheadEscalations = new StripedCounter();
+    private final StripedCounter eventsSampledByGovernor = new StripedCounter();
+    private final StripedCounter eventsSampled = new StripedCounter();
+    private final StripedCounter stacksTruncatedByGovernor = new StripedCounter();
+    private final StripedCounter stackFramesElided = new StripedCounter();
+    private final StripedCounter bytesSavedByCompression = new StripedCounter();
+
+    /**
+     * <p>Returns the number of throwables passed to {@link io.auklet.Auklet#send(Throwable)}, whether or
+     * not they were queued.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getEventsSubmitted() {
+        return this.eventsSubmitted;
+    }
+
+    /**
+     * <p>Returns the number of events serialized by the data sink.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getEventsSerialized() {
+        return this.eventsSerialized;
+    }
+
+    /**
+     * <p>Returns the number of messages (single events or batches of events) handed to the MQTT client
+     * or written to the serial port.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getMessagesPublished() {
+        return this.messagesPublished;
+    }
+
+    /**
+     * <p>Returns the number of messages dropped because sending them would have exceeded the data
+     * usage limit.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getMessagesDroppedByQuota() {
+        return this.messagesDroppedByQuota;
+    }
+
+    /**
+     * <p>Returns the number of messages dropped because they could be neither published nor buffered.
+     * Events dropped because the event queue was full are counted by the {@link EventQueue}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getMessagesDroppedByOverload() {
+        return this.messagesDroppedByOverload;
+    }
+
+    /**
+     * <p>Returns the distribution of the size of serialized events, in bytes.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedHistogram getEventBytes() {
+        return this.eventBytes;
+    }
+
+    /**
+     * <p>Returns the number of times the MQTT client has reconnected after losing its connection.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getMqttReconnects() {
+        return this.mqttReconnects;
+    }
+
+    /**
+     * <p>Returns the distribution of the time taken to fetch config files from the API, in
+     * milliseconds.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedHistogram getConfigRefreshMillis() {
+        return this.configRefreshMillis;
+    }
+
+    /**
+     * <p>Returns whether the MQTT client is currently connected.</p>
+     *
+     * @return {@code false} if the agent does not use MQTT.
+     */
+    public boolean isMqttConnected() {
+        return this.mqttConnected;
+    }
+
+    /**
+     * <p>Records whether the MQTT client is currently connected.</p>
+     *
+     * @param connected the connection state.
+     */
+    public void setMqttConnected(boolean connected) {
+        this.mqttConnected = connected;
+    }
+
+    /**
+     * <p>Returns the CPU time used by the agent's own threads, in nanoseconds, as measured by the
+     * {@link OverheadGovernor}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getAgentCpuNanos() {
+        return this.agentCpuNanos;
+    }
+
+    /**
+     * <p>Returns the number of bytes allocated by the agent's own threads, as measured by the
+     * {@link OverheadGovernor}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getAgentAllocatedBytes() {
+        return this.agentAllocatedBytes;
+    }
+
+    /**
+     * <p>Returns the CPU usage of the agent's own threads during the governor's last sampling period,
+     * as a percentage of one core.</p>
+     *
+     * @return a non-negative value.
+     */
+    public double getAgentCpuPercent() {
+        return this.agentCpuPercent;
+    }
+
+    /**
+     * <p>Returns the rate at which the agent's own threads allocated memory during the governor's last
+     * sampling period, in bytes per second.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getAgentAllocationRate() {
+        return this.agentAllocationRate;
+    }
+
+    /**
+     * <p>Records the agent's overhead during the governor's last sampling period.</p>
+     *
+     * @param cpuPercent CPU usage, as a percentage of one core.
+     * @param allocationRate allocation rate, in bytes per second.
+     */
+    public void setAgentOverhead(double cpuPercent, long allocationRate) {
+        this.agentCpuPercent = cpuPercent;
+        this.agentAllocationRate = allocationRate;
+    }
+
+    /**
+     * <p>Returns the degradation level currently applied by the {@link OverheadGovernor}.</p>
+     *
+     * @return between 0 (no degradation) and {@link OverheadGovernor#MAX_LEVEL}.
+     */
+    public int getOverheadLevel() {
+        return this.overheadLevel;
+    }
+
+    /**
+     * <p>Records the degradation level currently applied by the {@link OverheadGovernor}.</p>
+     *
+     * @param level the level.
+     */
+    public void setOverheadLevel(int level) {
+        this.overheadLevel = level;
+    }
+
+    /**
+     * <p>Returns the number of times the {@link OverheadGovernor} raised the degradation level because
+     * the agent exceeded its overhead budget.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getOverheadEscalations() {
+        return this.overheadEscalations;
+    }
+
+    /**
+     * <p>Returns the number of occurrences that were not sent because the {@link OverheadGovernor} was
+     * sampling events. They are reported to the backend as dropped events.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getEventsSampledByGovernor() {
+        return this.eventsSampledByGovernor;
+    }
+
+    /**
+     * <p>Returns the number of occurrences that were not sent because the {@link EventSampler} skipped
+     * them. They are accounted for by the sample weight of later events of the same exception.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getEventsSampled() {
+        return this.eventsSampled;
+    }
+
+    /**
+     * <p>Returns the number of events whose stack trace was truncated by the {@link OverheadGovernor}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getStacksTruncatedByGovernor() {
+        return this.stacksTruncatedByGovernor;
+    }
+
+    /**
+     * <p>Returns the number of stack frames that were not sent because stack traces were reduced, either
+     * by the {@link io.auklet.sink.StackTraceReducer} or by the {@link OverheadGovernor}, or because a
+     * cause or suppressed throwable shared them with the throwable that encloses it.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getStackFramesElided() {
+        return this.stackFramesElided;
+    }
+
+    /**
+     * <p>Returns the number of bytes by which compression reduced the payloads handed to the data
+     * sink.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StripedCounter getBytesSavedByCompression() {
+        return this.bytesSavedByCompression;
+    }
+
+}
@@ -0,0 +1,293 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.AukletException;
+import net.jcip.annotations.ThreadSafe;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>Publishes the {@link AgentMetrics}, along with the state of the {@link EventQueue}, of the data
+ * sink and of the daemon executor lanes, as a read-only platform MBean named {@value #OBJECT_NAME}.</p>
+ *
+ * <p>This is a {@link DynamicMBean}, so that the JMX server reads attributes through this class rather
+ * than by reflecting on an MBean interface, which would require the package to be exported to
+ * {@code java.management} when the agent is used as a module. Attribute values are computed when they
+ * are read; histogram attributes are upper bounds, per {@link StripedHistogram.Snapshot#getPercentile(double)}.</p>
+ *
+ * <p>Android does not provide {@code javax.management}; the agent does not load this class there.</p>
+ */
+@ThreadSafe
+public final class AgentMetricsBean implements DynamicMBean {
+
+    /** <p>The name under which the bean is registered with the platform MBean server.</p> */
+    public static final String OBJECT_NAME = "io.auklet:type=Agent,name=Metrics";
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private final MBeanInfo info;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param agentMetrics the agent's metrics registry. Never {@code null}.
+     * @param events the agent's event queue. Never {@code null}.
+     * @param lanes the agent's daemon executors. Never {@code null}.
+     * @param sink the agent's data sink. Never {@code null}.
+     */
+    public AgentMetricsBean(@NonNull final AgentMetrics agentMetrics, @NonNull final EventQueue events,
+                            @NonNull Map<DaemonLane, AukletDaemonExecutor> lanes, @NonNull final SinkMetrics sink) {
+        if (agentMetrics == null) throw new IllegalArgumentException("Agent metrics are null.");
+        if (events == null) throw new IllegalArgumentException("Event queue is null.");
+        if (lanes == null) throw new IllegalArgumentException("Daemon lanes are null.");
+        if (sink == null) throw new IllegalArgumentException("Sink is null.");
+        this.add(new Metric("EventsSubmitted", "Throwables passed to Auklet.send().") {
+            @Override Object read() { return agentMetrics.getEventsSubmitted().sum(); }
+        });
+        this.add(new Metric("EventQueueDepth", "Events waiting in the event queue.") {
+            @Override Object read() { return (long) events.size(); }
+        });
+        this.add(new Metric("EventQueueCapacity", "Capacity of the event queue.") {
+            @Override Object read() { return (long) events.capacity(); }
+        });
+        this.add(new Metric("EventQueueHighWatermark", "Most events that have waited in the event queue at once.") {
+            @Override Object read() { return events.getHighWatermark(); }
+        });
+        this.add(new Metric("EventsEnqueued", "Events added to the event queue, not counting coalesced events.") {
+            @Override Object read() { return events.getEnqueuedCount(); }
+        });
+        this.add(new Metric("EventsCoalesced", "Events coalesced because the event queue was full.") {
+            @Override Object read() { return events.getCoalescedCount(); }
+        });
+        this.add(new Metric("EventsDroppedByOverload", "Events dropped because the event queue was full.") {
+            @Override Object read() { return events.getDroppedCount(); }
+        });
+        this.add(new Metric("EventsSerialized", "Events serialized by the data sink.") {
+            @Override Object read() { return agentMetrics.getEventsSerialized().sum(); }
+        });
+        this.addHistogram("EventBytes", "size of serialized events, in bytes", agentMetrics.getEventBytes());
+        this.add(new Metric("FrameCacheHitRate", "Fraction of stack frames whose encoding was found in the sink's cache.", Double.class) {
+            @Override Object read() { return sink.getFrameCacheHitRate(); }
+        });
+        this.add(new Metric("FrameCacheEvictions", "Encoded stack frames evicted from the sink's cache.") {
+            @Override Object read() { return sink.getFrameCacheEvictions(); }
+        });
+        this.add(new Metric("MessagesPublished", "Messages handed to the MQTT client or written to the serial port.") {
+            @Override Object read() { return agentMetrics.getMessagesPublished().sum(); }
+        });
+        this.add(new Metric("MessagesDroppedByQuota", "Messages dropped to stay within the data usage limit.") {
+            @Override Object read() { return agentMetrics.getMessagesDroppedByQuota().sum(); }
+        });
+        this.add(new Metric("MessagesDroppedByOverload", "Messages dropped because they could be neither published nor buffered.") {
+            @Override Object read() { return agentMetrics.getMessagesDroppedByOverload().sum(); }
+        });
+        this.add(new Metric("OutboundResidentBytes", "Bytes of messages waiting to be published because they could not be published immediately.") {
+            @Override Object read() { return sink.getOutboundResidentBytes(); }
+        });
+        this.add(new Metric("OutboundEvictions", "Waiting messages evicted to make room for newer messages.") {
+            @Override Object read() { return sink.getOutboundEvictions(); }
+        });
+        this.add(new Metric("MqttConnected", "Whether the MQTT client is connected.", Boolean.class) {
+            @Override Object read() { return agentMetrics.isMqttConnected(); }
+        });
+        this.add(new Metric("MqttReconnects", "Reconnections of the MQTT client.") {
+            @Override Object read() { return agentMetrics.getMqttReconnects().sum(); }
+        });
+        this.addHistogram("ConfigRefreshMillis", "time taken to fetch config files from the API, in milliseconds", agentMetrics.getConfigRefreshMillis());
+        this.add(new Metric("AgentCpuNanos", "CPU time used by the agent's threads, in nanoseconds.") {
+            @Override Object read() { return agentMetrics.getAgentCpuNanos().sum(); }
+        });
+        this.add(new Metric("AgentAllocatedBytes", "Bytes allocated by the agent's threads.") {
+            @Override Object read() { return agentMetrics.getAgentAllocatedBytes().sum(); }
+        });
+        this.add(new Metric("AgentCpuPercent", "CPU usage of the agent's threads in the last second, as a percentage of one core.", Double.class) {
+            @Override Object read() { return agentMetrics.getAgentCpuPercent(); }
+        });
+        this.add(new Metric("AgentAllocationRate", "Bytes allocated per second by the agent's threads in the last second.") {
+            @Override Object read() { return agentMetrics.getAgentAllocationRate(); }
+        });
+        this.add(new Metric("OverheadLevel", "Degradation level applied to stay within the overhead budget (0 = none).") {
+            @Override Object read() { return (long) agentMetrics.getOverheadLevel(); }
+        });
+        this.add(new Metric("OverheadEscalations", "Times the degradation level was raised because the overhead budget was exceeded.") {
+            @Override Object read() { return agentMetrics.getOverheadEscalations().sum(); }
+        });
+        this.add(new Metric("OverheadSampleRate", "One in how many events is sent at the current degradation level.") {
+            @Override Object read() { return (long) OverheadGovernor.sampleRateFor(agentMetrics.getOverheadLevel()); }
+        });
+        this.add(new Metric("OverheadMaxStackFrames", "Stack frames sent per event at the current degradation level (0 = unlimited).") {
+            @Override Object read() {
+                int frames = OverheadGovernor.maxStackFramesFor(agentMetrics.getOverheadLevel());
+                return frames == Integer.MAX_VALUE ? 0L : (long) frames;
+            }
+        });
+        this.add(new Metric("OverheadSystemMetricsIntervalMillis", "How long system metrics are reused at the current degradation level (0 = per event).") {
+            @Override Object read() { return OverheadGovernor.systemMetricsIntervalFor(agentMetrics.getOverheadLevel()); }
+        });
+        this.add(new Metric("EventsSampled", "Occurrences not sent because the exception was sampled; counted by the weight of later events.") {
+            @Override Object read() { return agentMetrics.getEventsSampled().sum(); }
+        });
+        this.add(new Metric("EventsSampledByGovernor", "Occurrences not sent because events were sampled to stay within the overhead budget.") {
+            @Override Object read() { return agentMetrics.getEventsSampledByGovernor().sum(); }
+        });
+        this.add(new Metric("StacksTruncatedByGovernor", "Stack traces truncated to stay within the overhead budget.") {
+            @Override Object read() { return agentMetrics.getStacksTruncatedByGovernor().sum(); }
+        });
+        this.add(new Metric("StackFramesElided", "Stack frames not sent because stack traces were folded, collapsed, truncated or shared with an enclosing exception.") {
+            @Override Object read() { return agentMetrics.getStackFramesElided().sum(); }
+        });
+        this.add(new Metric("BytesSavedByCompression", "Bytes by which compression reduced the payloads sent.") {
+            @Override Object read() { return agentMetrics.getBytesSavedByCompression().sum(); }
+        });
+        for (Map.Entry<DaemonLane, AukletDaemonExecutor> lane : lanes.entrySet()) {
+            String prefix = camelCase(lane.getKey().name());
+            final AukletDaemonExecutor executor = lane.getValue();
+            this.add(new Metric(prefix + "QueueDepth", "Tasks queued in the " + lane.getKey().getThreadName() + " lane.") {
+                @Override Object read() { return (long) executor.getQueue().size(); }
+            });
+            this.add(new Metric(prefix + "RejectedTasks", "Tasks rejected by the " + lane.getKey().getThreadName() + " lane.") {
+                @Override Object read() { return executor.getRejectedTaskCount(); }
+            });
+            this.add(new Metric(prefix + "FailedTasks", "Task runs that failed in the " + lane.getKey().getThreadName() + " lane.") {
+                @Override Object read() { return executor.getFailedTaskCount(); }
+            });
+            this.addHistogram(prefix + "TaskLatencyMicros", "time from when tasks in the " + lane.getKey().getThreadName()
+                    + " lane were due until they finished, in microseconds", executor.getTaskLatencyMicros());
+        }
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Metric metric : this.metrics.values()) {
+            attributes.add(new MBeanAttributeInfo(metric.name, metric.type.getName(), metric.description, true, false, false));
+        }
+        this.info = new MBeanInfo(AgentMetricsBean.class.getName(), "Auklet agent metrics.",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    /**
+     * <p>Registers the given bean with the platform MBean server under {@value #OBJECT_NAME}, replacing
+     * any bean that is already registered under that name.</p>
+     *
+     * @param bean the bean. Never {@code null}.
+     * @return the name of the registered bean. Never {@code null}.
+     * @throws AukletException if the bean cannot be registered.
+     */
+    @NonNull public static ObjectName register(@NonNull AgentMetricsBean bean) throws AukletException {
+        if (bean == null) throw new AukletException("Agent metrics bean is null.");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // Left behind by an agent that was not shut down cleanly.
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            return server.registerMBean(bean, name).getObjectName();
+        } catch (JMException | SecurityException e) {
+            throw new AukletException("Could not register agent metrics MBean.", e);
+        }
+    }
+
+    /**
+     * <p>Unregisters the bean with the given name from the platform MBean server.</p>
+     *
+     * @param name the name returned by {@link #register(AgentMetricsBean)}. Never {@code null}.
+     * @throws AukletException if the bean cannot be unregistered.
+     */
+    public static void unregister(@NonNull ObjectName name) throws AukletException {
+        if (name == null) throw new AukletException("Agent metrics bean name is null.");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException | SecurityException e) {
+            throw new AukletException("Could not unregister agent metrics MBean.", e);
+        }
+    }
+
+    @Override public Object getAttribute(@Nullable String attribute) throws AttributeNotFoundException {
+        Metric metric = this.metrics.get(attribute);
+        if (metric == null) throw new AttributeNotFoundException("No such attribute: " + attribute);
+        return metric.read();
+    }
+
+    @Override public void setAttribute(@Nullable Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Agent metrics are read-only.");
+    }
+
+    @Override public AttributeList getAttributes(@Nullable String[] attributes) {
+        AttributeList list = new AttributeList();
+        if (attributes == null) return list;
+        for (String attribute : attributes) {
+            Metric metric = this.metrics.get(attribute);
+            if (metric != null) list.add(new Attribute(attribute, metric.read()));
+        }
+        return list;
+    }
+
+    @Override public AttributeList setAttributes(@Nullable AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override public Object invoke(@Nullable String actionName, @Nullable Object[] params, @Nullable String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Agent metrics have no operations.");
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+        return this.info;
+    }
+
+    private void add(@NonNull Metric metric) {
+        this.metrics.put(metric.name, metric);
+    }
+
+    /** <p>Adds the count, mean, 50th and 99th percentiles and maximum of the given histogram.</p> */
+    private void addHistogram(@NonNull String prefix, @NonNull String description, @NonNull final StripedHistogram histogram) {
+        this.add(new Metric(prefix + "Count", "Number of samples of the " + description + ".") {
+            @Override Object read() { return histogram.snapshot().getCount(); }
+        });
+        this.add(new Metric(prefix + "Mean", "Mean " + description + ".", Double.class) {
+            @Override Object read() { return histogram.snapshot().getMean(); }
+        });
+        this.add(new Metric(prefix + "P50", "Median " + description + ".") {
+            @Override Object read() { return histogram.snapshot().getPercentile(0.50); }
+        });
+        this.add(new Metric(prefix + "P99", "99th percentile " + description + ".") {
+            @Override Object read() { return histogram.snapshot().getPercentile(0.99); }
+        });
+        this.add(new Metric(prefix + "Max", "Maximum " + description + ".") {
+            @Override Object read() { return histogram.snapshot().getMax(); }
+        });
+    }
+
+    /** <p>Converts e.g. {@code BLOCKING_IO} to {@code BlockingIo}.</p> */
+    @NonNull private static String camelCase(@NonNull String constant) {
+        StringBuilder sb = new StringBuilder(constant.length());
+        for (String word : constant.split("_")) {
+            if (word.isEmpty()) continue;
+            sb.append(word.charAt(0)).append(word.substring(1).toLowerCase(Locale.ROOT));
+        }
+        return sb.toString();
+    }
+
+    /** <p>A read-only attribute of the bean.</p> */
+    private abstract static class Metric {
+
+        private final String name;
+        private final String description;
+        private final Class<?> type;
+
+        private Metric(@NonNull String name, @NonNull String description) {
+            this(name, description, Long.class);
+        }
+
+        private Metric(@NonNull String name, @NonNull String description, @NonNull Class<?> type) {
+            this.name = name;
+            this.description = description;
+            this.type = type;
+        }
+
+        @NonNull abstract Object read();
+
+    }
+
+}
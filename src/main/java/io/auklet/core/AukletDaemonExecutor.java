@@ -2,18 +2,25 @@ package io.auklet.core;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.util.ThreadUtil;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>Auklet daemon task executor that logs exceptions that occur in submitted tasks.</p>
  *
  * <p>To prevent an infinite loop, exceptions that are logged by this executor are not submitted
  * to the Auklet data sink and are only logged to SLF4J.</p>
+ *
+ * <p>The queue of this executor may be bounded, in which case tasks scheduled while the queue is full
+ * are rejected with a {@link RejectedExecutionException}. The executor counts rejected and failed
+ * tasks and records how long tasks wait in the queue and how long they run, including the distribution
+ * of the latency of each task run, from when it was due until it finished.</p>
  */
 @ThreadSafe
 public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
@@ -21,6 +28,17 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
     private static final Logger LOGGER = LoggerFactory.getLogger(AukletDaemonExecutor.class);
     private final Object lock = new Object();
     @GuardedBy("lock") private boolean logCancelExceptions = true;
+    private final int queueCapacity;
+    // The start time and the queue delay of the task that is running on each thread.
+    private final ThreadLocal<long[]> runStart = new ThreadLocal<long[]>() {
+        @Override protected long[] initialValue() { return new long[2]; }
+    };
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+    private final AtomicLong maxQueueDelayNanos = new AtomicLong();
+    private final StripedHistogram taskLatencyMicros = new StripedHistogram();
 
     /**
      * Constructor.
@@ -29,7 +47,133 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
      * @param threadFactory the thread factory to use.
      */
     public AukletDaemonExecutor(int corePoolSize, @NonNull ThreadFactory threadFactory) {
+        this(corePoolSize, Integer.MAX_VALUE, threadFactory);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param corePoolSize the number of threads in this executor.
+     * @param queueCapacity the maximum number of queued tasks, including repeating tasks that are waiting
+     * for their next run.
+     * @param threadFactory the thread factory to use.
+     */
+    public AukletDaemonExecutor(int corePoolSize, int queueCapacity, @NonNull ThreadFactory threadFactory) {
         super(corePoolSize, threadFactory);
+        // Do not let cancelled tasks occupy the queue until their scheduled time.
+        this.setRemoveOnCancelPolicy(true);
+        if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be positive.");
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * <p>Creates an executor for the given lane.</p>
+     *
+     * @param lane the lane.
+     * @return never {@code null}.
+     */
+    @NonNull public static AukletDaemonExecutor forLane(@NonNull DaemonLane lane) {
+        if (lane == null) throw new IllegalArgumentException("Lane is null.");
+        return new AukletDaemonExecutor(lane.getThreads(), lane.getQueueCapacity(),
+                ThreadUtil.createDaemonThreadFactory(lane.getThreadName()));
+    }
+
+    /**
+     * <p>Returns the maximum number of queued tasks.</p>
+     *
+     * @return never less than 1.
+     */
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+    /**
+     * <p>Returns the number of tasks that were rejected because the queue was full.</p>
+     *
+     * @return never negative.
+     */
+    public long getRejectedTaskCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * <p>Returns the number of task runs that ended with an exception.</p>
+     *
+     * @return never negative.
+     */
+    public long getFailedTaskCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * <p>Returns the total time spent running tasks.</p>
+     *
+     * @return the time in milliseconds.
+     */
+    public long getTotalRunMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.totalRunNanos.get());
+    }
+
+    /**
+     * <p>Returns the longest time that a single task run has taken.</p>
+     *
+     * @return the time in milliseconds.
+     */
+    public long getMaxRunMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxRunNanos.get());
+    }
+
+    /**
+     * <p>Returns the longest time that a task has waited past its scheduled time before it started
+     * running; a long wait means that the threads of this executor were busy with other tasks.</p>
+     *
+     * @return the time in milliseconds.
+     */
+    public long getMaxQueueDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxQueueDelayNanos.get());
+    }
+
+    /**
+     * <p>Returns the distribution of the latency of task runs: the time from when a task was due until
+     * it finished running.</p>
+     *
+     * @return never {@code null}. Values are in microseconds.
+     */
+    @NonNull public StripedHistogram getTaskLatencyMicros() {
+        return this.taskLatencyMicros;
+    }
+
+    @NonNull @Override public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        this.checkCapacity();
+        return super.schedule(command, delay, unit);
+    }
+
+    @NonNull @Override public <V> ScheduledFuture<V> schedule(@NonNull Callable<V> callable, long delay, @NonNull TimeUnit unit) {
+        this.checkCapacity();
+        return super.schedule(callable, delay, unit);
+    }
+
+    @NonNull @Override public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period, @NonNull TimeUnit unit) {
+        this.checkCapacity();
+        return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+    }
+
+    @NonNull @Override public ScheduledFuture<?> scheduleWithFixedDelay(@NonNull Runnable command, long initialDelay, long delay, @NonNull TimeUnit unit) {
+        this.checkCapacity();
+        return super.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+    }
+
+    /* Records when each task starts running, and how long it waited for a thread. */
+    @Override protected void beforeExecute(@Nullable Thread t, @Nullable Runnable r) {
+        super.beforeExecute(t, r);
+        long lateNanos = 0L;
+        if (r instanceof Delayed) {
+            lateNanos = Math.max(0L, -((Delayed) r).getDelay(TimeUnit.NANOSECONDS));
+            if (lateNanos > 0) updateMax(this.maxQueueDelayNanos, lateNanos);
+        }
+        long[] start = this.runStart.get();
+        start[0] = System.nanoTime();
+        start[1] = lateNanos;
     }
 
     /**
@@ -44,6 +188,11 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
     /* Logs exceptions that occur in tasks. */
     @Override protected void afterExecute(@Nullable Runnable r, @Nullable Throwable t) {
         super.afterExecute(r, t);
+        long[] start = this.runStart.get();
+        long runNanos = System.nanoTime() - start[0];
+        this.totalRunNanos.addAndGet(runNanos);
+        updateMax(this.maxRunNanos, runNanos);
+        this.taskLatencyMicros.record(TimeUnit.NANOSECONDS.toMicros(start[1] + runNanos));
         if (t == null && r instanceof Future<?>) {
             Future<?> future = (Future<?>) r;
             try {
@@ -61,7 +210,35 @@ public final class AukletDaemonExecutor extends ScheduledThreadPoolExecutor {
             synchronized(lock) { logThis = logCancelExceptions; }
             if (logThis) LOGGER.warn("Auklet daemon task cancelled.", t);
         }
-        else if (t != null) LOGGER.warn("Exception in Auklet daemon task.", t);
+        else if (t != null) {
+            this.failed.incrementAndGet();
+            LOGGER.warn("Exception in Auklet daemon task.", t);
+        }
+    }
+
+    /**
+     * <p>Rejects the task that is about to be scheduled if the queue is full. Concurrent callers may
+     * overshoot the capacity by a few tasks, which is harmless.</p>
+     *
+     * @throws RejectedExecutionException if the queue is full.
+     */
+    private void checkCapacity() {
+        if (this.getQueue().size() < this.queueCapacity) return;
+        this.rejected.incrementAndGet();
+        throw new RejectedExecutionException("Auklet daemon task queue is full (" + this.queueCapacity + " tasks).");
+    }
+
+    /**
+     * <p>Raises the given maximum to the given value, if the value is larger.</p>
+     *
+     * @param max the maximum.
+     * @param value the value.
+     */
+    private static void updateMax(@NonNull AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
     }
 
     /* Decorates CancelSilentlyFutureTasks so that afterExecute() knows about them. */
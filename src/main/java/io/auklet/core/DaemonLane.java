@@ -0,0 +1,59 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+/**
+ * <p>The lanes into which the Auklet agent's background tasks are divided. Each lane is run by its own
+ * {@link AukletDaemonExecutor}, with its own threads and its own bounded queue, so that a slow task in
+ * one lane (such as an HTTP request that waits for a timeout) never delays tasks in another lane.</p>
+ */
+@Immutable
+public enum DaemonLane {
+
+    /** <p>Delivery of events to the data sink: emission batch flushes and redelivery of buffered messages.</p> */
+    DELIVERY("AukletDelivery", 1, 256),
+    /** <p>Tasks that block on the network or on disk: config refreshes from the API and data usage persistence.</p> */
+    BLOCKING_IO("AukletIO", 1, 64),
+    /** <p>Agent init and shutdown, and lightweight periodic tasks such as metrics sampling.</p> */
+    HOUSEKEEPING("Auklet", 1, 64);
+
+    private final String threadName;
+    private final int threads;
+    private final int queueCapacity;
+
+    DaemonLane(@NonNull String threadName, int threads, int queueCapacity) {
+        this.threadName = threadName;
+        this.threads = threads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * <p>Returns the name given to threads in this lane.</p>
+     *
+     * @return never {@code null} or empty.
+     */
+    @NonNull public String getThreadName() {
+        return this.threadName;
+    }
+
+    /**
+     * <p>Returns the number of threads in this lane.</p>
+     *
+     * @return never less than 1.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * <p>Returns the maximum number of tasks that may be queued in this lane, including repeating tasks
+     * that are waiting for their next run.</p>
+     *
+     * @return never less than 1.
+     */
+    public int getQueueCapacity() {
+        return this.queueCapacity;
+    }
+
+}
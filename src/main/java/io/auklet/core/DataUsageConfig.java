@@ -12,6 +12,7 @@ public final class DataUsageConfig {
     private final long storageLimit;
     private final long cellularDataLimit;
     private final int cellularPlanDate;
+    private final int eventFormatVersion;
 
     /**
      * <p>Constructor.</p>
@@ -20,12 +21,14 @@ public final class DataUsageConfig {
      * @param storageLimit the storage limit.
      * @param cellularDataLimit the cellular data limit.
      * @param cellularPlanDate the cellular plan date.
+     * @param eventFormatVersion the highest event format version accepted by the backend.
      */
-    public DataUsageConfig(long emissionPeriod, long storageLimit, long cellularDataLimit, int cellularPlanDate) {
+    public DataUsageConfig(long emissionPeriod, long storageLimit, long cellularDataLimit, int cellularPlanDate, int eventFormatVersion) {
         this.emissionPeriod = emissionPeriod;
         this.storageLimit = storageLimit;
         this.cellularDataLimit = cellularDataLimit;
         this.cellularPlanDate = cellularPlanDate;
+        this.eventFormatVersion = eventFormatVersion;
     }
 
     /**
@@ -64,4 +67,13 @@ public final class DataUsageConfig {
         return this.cellularPlanDate;
     }
 
+    /**
+     * <p>Returns the highest event format version accepted by the backend.</p>
+     *
+     * @return 1 if the backend only accepts the original format.
+     */
+    public int getEventFormatVersion() {
+        return this.eventFormatVersion;
+    }
+
 }
@@ -10,7 +10,10 @@ import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -21,26 +24,77 @@ import java.util.concurrent.TimeUnit;
  * of OS integration to sniff all traffic that's being sent across the wire, this class will always
  * underestimate the amount of data being sent by the agent. End-users must be careful to configure
  * their usage limits with some expected overhead in mind.</p>
+ *
+ * <p>Sinks enforce the limit by calling {@link #reserve(int)} before sending a payload, and then either
+ * {@link #commit(int)} if the payload was sent or {@link #release(int)} if it was not. These methods
+ * do not take locks, and concurrent senders cannot collectively exceed the limit.</p>
+ *
+ * <p>Other JVMs that use the same config directory share the limit. Their usage is read from the
+ * {@link DataUsageTracker} every {@value #SYNC_PERIOD_SECONDS} second(s), so all JVMs together may exceed
+ * the limit by at most what they send in that period.</p>
  */
 @ThreadSafe
 public final class DataUsageMonitor extends HasAgent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataUsageMonitor.class);
+    private static final long SYNC_PERIOD_SECONDS = 1L;
     private final Object lock = new Object();
     @GuardedBy("lock") private DataUsageLimit limit;
-    @GuardedBy("lock") private DataUsageTracker tracker;
+    private final DataUsageQuota quota = new DataUsageQuota();
+    // The tracker is thread-safe; it is only volatile because it is created during start-up.
+    private volatile DataUsageTracker tracker;
+    // Updated whenever the limit config is loaded, so that readers need not take the lock.
+    private volatile DataUsageConfig config;
     @GuardedBy("lock") private boolean awaitingMonthlyReset = false;
     @GuardedBy("lock") private int hoursSinceConfigRefresh = 0;
+    @GuardedBy("lock") private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    /** <p>Constructor.</p> */
+    public DataUsageMonitor() {
+        // Everything is set up when the monitor is started.
+    }
+
+    /**
+     * <p>Constructs a monitor that is ready to use without being started, and that does not read or write
+     * any config files. This is used by benchmarks.</p>
+     *
+     * @param tracker a tracker that has not been started, so that it only counts in memory. Never {@code null}.
+     * @param config the data usage config. Never {@code null}.
+     */
+    /*package*/ DataUsageMonitor(@NonNull DataUsageTracker tracker, @NonNull DataUsageConfig config) {
+        this.tracker = tracker;
+        this.config = config;
+        this.quota.setLimit(config.getCellularDataLimit());
+    }
 
     @Override public void start(@NonNull Auklet agent) throws AukletException {
         LOGGER.info("Starting data usage monitor service.");
         this.setAgent(agent);
-        this.limit = new DataUsageLimit();
-        this.limit.start(agent);
-        this.tracker = new DataUsageTracker();
-        this.tracker.start(agent);
-        agent.scheduleRepeatingTask(this.createMonthlyDataUsageResetTask(), 0L, 1L, TimeUnit.DAYS);
-        agent.scheduleRepeatingTask(this.createDataLimitConfigRefreshTask(), 0L, 1L, TimeUnit.HOURS);
+        synchronized (this.lock) {
+            this.limit = new DataUsageLimit();
+            this.limit.start(agent);
+            this.tracker = new DataUsageTracker();
+            this.tracker.start(agent);
+            this.quota.add(this.tracker.getBytesSent());
+            this.quota.setExternalUsage(this.tracker.getExternalBytesSent());
+            this.updateConfig();
+            this.tasks.add(agent.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createUsageSyncTask(), SYNC_PERIOD_SECONDS, SYNC_PERIOD_SECONDS, TimeUnit.SECONDS));
+            this.tasks.add(agent.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createMonthlyDataUsageResetTask(), 0L, 1L, TimeUnit.DAYS));
+            this.tasks.add(agent.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createDataLimitConfigRefreshTask(), 0L, 1L, TimeUnit.HOURS));
+        }
+    }
+
+    /**
+     * <p>Stops the periodic tasks, saves the current data usage to disk and releases the resources used to
+     * do so.</p>
+     */
+    public void shutdown() {
+        synchronized (this.lock) {
+            for (ScheduledFuture<?> task : this.tasks) task.cancel(false);
+            this.tasks.clear();
+        }
+        DataUsageTracker current = this.tracker;
+        if (current != null) current.shutdown();
     }
 
     /**
@@ -49,43 +103,76 @@ public final class DataUsageMonitor extends HasAgent {
      * @return never {@code null}.
      */
     @NonNull public DataUsageConfig getUsageConfig() {
-        synchronized (this.lock) {
-            return this.limit.getConfig();
-        }
+        return this.config;
     }
 
     /**
-     * <p>Adds the input number of bytes to the current amount of bytes sent.</p>
+     * <p>Reserves the given number of bytes against the data limit, ahead of sending a payload of that
+     * size. If this method returns {@code true}, the caller must later call either {@link #commit(int)}
+     * or {@link #release(int)} with the same number of bytes.</p>
+     *
+     * @param bytes the size of the payload in bytes.
+     * @return {@code true} if the payload may be sent, {@code false} if sending it would exceed the data
+     * limit.
+     */
+    public boolean reserve(int bytes) {
+        boolean reserved = this.quota.tryReserve(bytes);
+        if (!reserved) LOGGER.debug("Payload of {} bytes would exceed data limit.", bytes);
+        return reserved;
+    }
+
+    /**
+     * <p>Records that a payload for which bytes were {@linkplain #reserve(int) reserved} has been sent.
+     * The reservation already counts against the limit, so unlike {@link #addMoreData(int)}, this only
+     * adds the bytes to the usage that is saved to disk.</p>
+     *
+     * @param bytes no-op if less than 1.
+     */
+    public void commit(int bytes) {
+        if (bytes < 1) return;
+        this.tracker.addMoreData(bytes);
+    }
+
+    /**
+     * <p>Returns bytes that were {@linkplain #reserve(int) reserved} for a payload that was not sent.</p>
+     *
+     * @param bytes no-op if less than 1.
+     */
+    public void release(int bytes) {
+        this.quota.release(bytes);
+    }
+
+    /**
+     * <p>Adds the input number of bytes to the current amount of bytes sent, without checking the data
+     * limit.</p>
      *
      * @param moreBytes no-op if less than 1.
      */
     public void addMoreData(int moreBytes) {
         LOGGER.debug("Recording more sinked data: {}", moreBytes);
         if (moreBytes < 1) return;
-        synchronized (this.lock) {
-            this.tracker.addMoreData(moreBytes);
-        }
+        this.quota.add(moreBytes);
+        this.tracker.addMoreData(moreBytes);
     }
 
     /**
-     * <p>Determines whether or not the given proposed payload size would exceed the data limit.</p>
+     * <p>Determines whether or not the given proposed payload size would exceed the data limit. The
+     * answer may be stale by the time the payload is sent; use {@link #reserve(int)} instead.</p>
      *
      * @param proposedPayloadSize the size of the payload in bytes.
      * @return {@code true} if sending this payload to the sink would exceed the data limit, {@code false}
      * otherwise.
      */
     public boolean willExceedLimit(long proposedPayloadSize) {
-        LOGGER.debug("Testing data limit for payload size: {}", proposedPayloadSize);
-        long dataLimit;
-        long bytesSent;
-        synchronized (this.lock) {
-            bytesSent = this.tracker.getBytesSent();
-            dataLimit = this.limit.getConfig().getCellularDataLimit();
-        }
-        boolean result = false;
-        if (dataLimit > 0 && proposedPayloadSize > 0) result = bytesSent + proposedPayloadSize <= dataLimit;
-        LOGGER.debug("Data limit test result: {}", result);
-        return result;
+        long dataLimit = this.quota.getLimit();
+        return dataLimit > 0 && proposedPayloadSize > 0 && this.quota.getUsed() + this.quota.getExternalUsage() + proposedPayloadSize > dataLimit;
+    }
+
+    /** <p>Publishes the currently loaded limit config to lock-free readers.</p> */
+    @GuardedBy("lock") private void updateConfig() {
+        DataUsageConfig current = this.limit.getConfig();
+        this.config = current;
+        this.quota.setLimit(current.getCellularDataLimit());
     }
 
     /**
@@ -100,7 +187,8 @@ public final class DataUsageMonitor extends HasAgent {
                 synchronized (lock) {
                     if (Calendar.getInstance().get(Calendar.DAY_OF_MONTH) == limit.getConfig().getCellularPlanDate()) {
                         if (awaitingMonthlyReset) {
-                            tracker.reset();
+                            quota.release(tracker.reset());
+                            quota.setExternalUsage(tracker.getExternalBytesSent());
                             awaitingMonthlyReset = false;
                             LOGGER.info("Reset monthly data usage tracker.");
                         }
@@ -112,6 +200,22 @@ public final class DataUsageMonitor extends HasAgent {
         };
     }
 
+    /**
+     * <p>Creates the periodic task that publishes this JVM's usage to other JVMs and picks up theirs,
+     * including any monthly reset performed by another JVM.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createUsageSyncTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                quota.release(tracker.sync());
+                quota.setExternalUsage(tracker.getExternalBytesSent());
+            }
+        };
+    }
+
     /**
      * <p>Creates the periodic task that refreshes the limit config from the API once a day.</p>
      *
@@ -125,6 +229,7 @@ public final class DataUsageMonitor extends HasAgent {
                     hoursSinceConfigRefresh++;
                     if (hoursSinceConfigRefresh == 24) {
                         limit.refresh();
+                        updateConfig();
                         hoursSinceConfigRefresh = 0;
                         LOGGER.info("Refreshed data limit config from API.");
                     }
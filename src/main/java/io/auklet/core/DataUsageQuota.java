@@ -0,0 +1,111 @@
+package io.auklet.core;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A lock-free byte quota, used to enforce the cellular data limit.</p>
+ *
+ * <p>Before sending a payload, a sink {@linkplain #tryReserve(long) reserves} its size; the reservation
+ * is atomic, so concurrent senders can never collectively exceed the limit. If the payload is sent,
+ * the reservation simply stays counted as usage; if it is not, the sink must
+ * {@linkplain #release(long) release} it.</p>
+ *
+ * <p>Usage by other processes on the same device can be accounted for with
+ * {@link #setExternalUsage(long)}; it counts against the limit, but is not part of {@link #getUsed()}.
+ * Since it is only updated periodically, the limit can be exceeded by whatever other processes send
+ * between updates.</p>
+ */
+@ThreadSafe
+public final class DataUsageQuota {
+
+    private final AtomicLong used = new AtomicLong(0L);
+    private volatile long limit = 0L;
+    private volatile long external = 0L;
+
+    /**
+     * <p>Reserves the given number of bytes, if doing so would not exceed the limit.</p>
+     *
+     * @param bytes the number of bytes to reserve. Always succeeds if less than 1.
+     * @return {@code true} if the bytes were reserved, {@code false} if the reservation would exceed
+     * the limit.
+     */
+    public boolean tryReserve(long bytes) {
+        if (bytes < 1) return true;
+        while (true) {
+            long current = this.used.get();
+            long max = this.limit;
+            if (max > 0 && current + this.external + bytes > max) return false;
+            if (this.used.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    /**
+     * <p>Unconditionally adds the given number of bytes to the usage, even if doing so exceeds the limit.</p>
+     *
+     * @param bytes no-op if less than 1.
+     */
+    public void add(long bytes) {
+        if (bytes < 1) return;
+        this.used.addAndGet(bytes);
+    }
+
+    /**
+     * <p>Subtracts the given number of bytes from the usage, e.g. to return a reservation that was not
+     * used or to account for a usage reset.</p>
+     *
+     * @param bytes no-op if less than 1.
+     */
+    public void release(long bytes) {
+        if (bytes < 1) return;
+        this.used.addAndGet(-bytes);
+    }
+
+    /**
+     * <p>Returns the current usage, including outstanding reservations.</p>
+     *
+     * @return the current usage, in bytes.
+     */
+    public long getUsed() {
+        return this.used.get();
+    }
+
+    /**
+     * <p>Returns the usage by other processes, as of the last call to {@link #setExternalUsage(long)}.</p>
+     *
+     * @return the usage by other processes, in bytes.
+     */
+    public long getExternalUsage() {
+        return this.external;
+    }
+
+    /**
+     * <p>Sets the usage by other processes that share the same limit.</p>
+     *
+     * @param bytes values less than 0 are treated as 0.
+     */
+    public void setExternalUsage(long bytes) {
+        this.external = Math.max(0L, bytes);
+    }
+
+    /**
+     * <p>Returns the limit.</p>
+     *
+     * @return the limit in bytes, or zero if there is no limit.
+     */
+    public long getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * <p>Sets the limit. Lowering the limit below the current usage does not release anything; it only
+     * causes subsequent reservations to fail.</p>
+     *
+     * @param limit the limit in bytes. Values less than 1 remove the limit.
+     */
+    public void setLimit(long limit) {
+        this.limit = Math.max(0L, limit);
+    }
+
+}
@@ -0,0 +1,175 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+
+/**
+ * <p>An event that the agent sends to the data sink: a snapshot of a throwable, plus the number of times
+ * it (or a duplicate of it) occurred and when.</p>
+ *
+ * <p>Most events represent a single occurrence. When duplicate events are aggregated by an
+ * {@link EventAggregator}, or coalesced by an {@link EventQueue} that is full, a single event represents
+ * all of the duplicates, and carries the snapshot of one of them.</p>
+ *
+ * <p>An event may also carry the number of events that the agent had to drop since the previous event
+ * was sent, so that the backend knows that data was shed, and a sample weight if an {@link EventSampler}
+ * skipped duplicates of it, so that the backend can extrapolate the number of occurrences.</p>
+ */
+@Immutable
+public final class Event {
+
+    private final ThrowableSnapshot snapshot;
+    private final int occurrences;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final long droppedEvents;
+    private final double sampleWeight;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @param occurrences the number of occurrences represented by this event; must be positive.
+     * @param firstTimestamp when the first occurrence happened, in milliseconds since the epoch.
+     * @param lastTimestamp when the last occurrence happened, in milliseconds since the epoch.
+     * @throws IllegalArgumentException if the snapshot is {@code null} or if the number of
+     * occurrences is less than 1.
+     */
+    public Event(@NonNull ThrowableSnapshot snapshot, int occurrences, long firstTimestamp, long lastTimestamp) {
+        this(snapshot, occurrences, firstTimestamp, lastTimestamp, 0L, 1.0);
+    }
+
+    private Event(@NonNull ThrowableSnapshot snapshot, int occurrences, long firstTimestamp, long lastTimestamp, long droppedEvents,
+                  double sampleWeight) {
+        if (snapshot == null) throw new IllegalArgumentException("Snapshot is null.");
+        if (occurrences < 1) throw new IllegalArgumentException("Invalid number of occurrences: " + occurrences);
+        this.snapshot = snapshot;
+        this.occurrences = occurrences;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.droppedEvents = Math.max(0L, droppedEvents);
+        this.sampleWeight = sampleWeight >= 1.0 ? sampleWeight : 1.0;
+    }
+
+    /**
+     * <p>Returns an event that represents a single occurrence of the given throwable.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp when the throwable occurred, in milliseconds since the epoch.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if the throwable is {@code null}.
+     */
+    @NonNull public static Event of(@NonNull Throwable throwable, long timestamp) {
+        return of(ThrowableSnapshot.of(throwable, timestamp));
+    }
+
+    /**
+     * <p>Returns an event that represents a single occurrence of the given snapshot.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if the snapshot is {@code null}.
+     */
+    @NonNull public static Event of(@NonNull ThrowableSnapshot snapshot) {
+        if (snapshot == null) throw new IllegalArgumentException("Snapshot is null.");
+        return new Event(snapshot, 1, snapshot.getTimestamp(), snapshot.getTimestamp());
+    }
+
+    /**
+     * <p>Returns a copy of this event that carries the given number of dropped events.</p>
+     *
+     * @param dropped the number of events dropped since the previous event was sent.
+     * @return never {@code null}.
+     */
+    @NonNull public Event withDroppedEvents(long dropped) {
+        if (dropped == this.droppedEvents) return this;
+        return new Event(this.snapshot, this.occurrences, this.firstTimestamp, this.lastTimestamp, dropped, this.sampleWeight);
+    }
+
+    /**
+     * <p>Returns a copy of this event that carries the given sample weight.</p>
+     *
+     * @param weight the number of occurrences that each occurrence represented by this event stands
+     * for. Values less than 1 are coerced to 1.
+     * @return never {@code null}.
+     */
+    @NonNull public Event withSampleWeight(double weight) {
+        if (weight == this.sampleWeight) return this;
+        return new Event(this.snapshot, this.occurrences, this.firstTimestamp, this.lastTimestamp, this.droppedEvents, weight);
+    }
+
+    /**
+     * <p>Returns the snapshot of the throwable.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public ThrowableSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * <p>Returns the fingerprint of the throwable.</p>
+     *
+     * @return the fingerprint.
+     * @see ThrowableFingerprint
+     */
+    public long getFingerprint() {
+        return this.snapshot.getFingerprint();
+    }
+
+    /**
+     * <p>Returns the number of occurrences represented by this event.</p>
+     *
+     * @return a positive value.
+     */
+    public int getOccurrences() {
+        return this.occurrences;
+    }
+
+    /**
+     * <p>Returns whether or not this event represents more than one occurrence.</p>
+     *
+     * @return {@code true} if this event is an aggregate of duplicates.
+     */
+    public boolean isAggregate() {
+        return this.occurrences > 1;
+    }
+
+    /**
+     * <p>Returns when the first occurrence represented by this event happened.</p>
+     *
+     * @return milliseconds since the epoch.
+     */
+    public long getFirstTimestamp() {
+        return this.firstTimestamp;
+    }
+
+    /**
+     * <p>Returns when the last occurrence represented by this event happened.</p>
+     *
+     * @return milliseconds since the epoch.
+     */
+    public long getLastTimestamp() {
+        return this.lastTimestamp;
+    }
+
+    /**
+     * <p>Returns the number of events that the agent dropped since the previous event was sent.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getDroppedEvents() {
+        return this.droppedEvents;
+    }
+
+    /**
+     * <p>Returns the number of occurrences that each occurrence represented by this event stands for,
+     * because duplicates of it were skipped by an {@link EventSampler}.</p>
+     *
+     * @return 1 if no duplicates were skipped, or a greater value.
+     */
+    public double getSampleWeight() {
+        return this.sampleWeight;
+    }
+
+}
@@ -0,0 +1,170 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Collapses duplicate events (events whose throwables have the same {@link ThrowableFingerprint})
+ * that occur within a configurable window into a single event.</p>
+ *
+ * <p>The first occurrence of a fingerprint is always passed through immediately, so that new failures
+ * are never delayed, and opens an aggregation window for that fingerprint. Every duplicate that
+ * occurs while the window is open is absorbed. When the window closes, the absorbed duplicates are
+ * emitted as one event that carries their count and the timestamps of the first and last of them,
+ * and a new window is opened for the fingerprint; if no duplicates were absorbed, the fingerprint
+ * stops being tracked. A continuous storm of one exception therefore results in one event per
+ * window.</p>
+ *
+ * <p>At most {@value #MAX_TRACKED_FINGERPRINTS} fingerprints are tracked at once; occurrences of
+ * fingerprints beyond that limit are passed through without aggregation. If the window is zero,
+ * aggregation is disabled and every occurrence is passed through.</p>
+ *
+ * <p>This class is not thread-safe; it is owned by the agent's event thread.</p>
+ */
+@NotThreadSafe
+public final class EventAggregator {
+
+    private static final int MAX_TRACKED_FINGERPRINTS = 1024;
+    private final long windowMillis;
+    // Iteration order is the order in which windows were opened, which is also the order in which
+    // they close, so the next window to close is always at the head of the map.
+    private final LinkedHashMap<Long, Window> windows = new LinkedHashMap<>();
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param windowMillis the aggregation window, in milliseconds. Values less than 1 disable aggregation.
+     */
+    public EventAggregator(long windowMillis) {
+        this.windowMillis = Math.max(0L, windowMillis);
+    }
+
+    /**
+     * <p>Returns the aggregation window.</p>
+     *
+     * @return the aggregation window in milliseconds, or zero if aggregation is disabled.
+     */
+    public long getWindowMillis() {
+        return this.windowMillis;
+    }
+
+    /**
+     * <p>Adds an occurrence of the given throwable.</p>
+     *
+     * @param snapshot the snapshot of the throwable. Never {@code null}.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the event to send now, or {@code null} if the occurrence was absorbed into an open window.
+     */
+    @CheckForNull public Event add(@NonNull ThrowableSnapshot snapshot, long now) {
+        return this.add(Event.of(snapshot), now);
+    }
+
+    /**
+     * <p>Adds the occurrences represented by the given event, which may already be an aggregate.</p>
+     *
+     * @param event never {@code null}.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the event to send now, or {@code null} if the occurrences were absorbed into an open window.
+     */
+    @CheckForNull public Event add(@NonNull Event event, long now) {
+        if (this.windowMillis == 0L) return event;
+        Long fingerprint = event.getFingerprint();
+        Window window = this.windows.get(fingerprint);
+        if (window != null) {
+            window.absorb(event);
+            return null;
+        }
+        if (this.windows.size() < MAX_TRACKED_FINGERPRINTS) {
+            this.windows.put(fingerprint, new Window(fingerprint, now + this.windowMillis));
+        }
+        return event;
+    }
+
+    /**
+     * <p>Closes the next window that is due to close, if any, and returns the aggregate event for it.</p>
+     *
+     * @param now the current time, in milliseconds since the epoch.
+     * @return {@code null} if no window with absorbed duplicates is due to close.
+     */
+    @CheckForNull public Event pollExpired(long now) {
+        Iterator<Map.Entry<Long, Window>> iterator = this.windows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Window window = iterator.next().getValue();
+            // Treat the window as due if the wall clock was set backwards past its opening time.
+            boolean due = window.closesAt <= now || window.closesAt - now > this.windowMillis;
+            if (!due) return null;
+            iterator.remove();
+            Event aggregate = window.toEvent();
+            if (aggregate != null) {
+                // The storm is still going on, so keep aggregating it.
+                this.windows.put(window.fingerprint, new Window(window.fingerprint, now + this.windowMillis));
+                return aggregate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>Returns the number of milliseconds until the next window closes.</p>
+     *
+     * @param now the current time, in milliseconds since the epoch.
+     * @return a non-negative value, or {@link Long#MAX_VALUE} if no windows are open.
+     */
+    public long millisUntilNextExpiry(long now) {
+        if (this.windows.isEmpty()) return Long.MAX_VALUE;
+        Window next = this.windows.values().iterator().next();
+        return Math.max(0L, Math.min(next.closesAt - now, this.windowMillis));
+    }
+
+    /**
+     * <p>Closes the next open window, regardless of whether or not it is due, and returns the aggregate
+     * event for it. This is used to flush all pending duplicates when the agent shuts down.</p>
+     *
+     * @return {@code null} if no open window has absorbed duplicates.
+     */
+    @CheckForNull public Event pollAny() {
+        Iterator<Map.Entry<Long, Window>> iterator = this.windows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Window window = iterator.next().getValue();
+            iterator.remove();
+            Event aggregate = window.toEvent();
+            if (aggregate != null) return aggregate;
+        }
+        return null;
+    }
+
+    /** <p>An open aggregation window for one fingerprint.</p> */
+    private static final class Window {
+
+        private final long fingerprint;
+        private final long closesAt;
+        private ThrowableSnapshot latest = null;
+        private int duplicates = 0;
+        private long firstTimestamp = 0L;
+        private long lastTimestamp = 0L;
+
+        private Window(long fingerprint, long closesAt) {
+            this.fingerprint = fingerprint;
+            this.closesAt = closesAt;
+        }
+
+        private void absorb(@NonNull Event event) {
+            if (this.duplicates == 0) this.firstTimestamp = event.getFirstTimestamp();
+            this.duplicates = (int) Math.min(Integer.MAX_VALUE, (long) this.duplicates + event.getOccurrences());
+            this.lastTimestamp = event.getLastTimestamp();
+            this.latest = event.getSnapshot();
+        }
+
+        @CheckForNull private Event toEvent() {
+            if (this.duplicates == 0) return null;
+            return new Event(this.latest, this.duplicates, this.firstTimestamp, this.lastTimestamp);
+        }
+
+    }
+
+}
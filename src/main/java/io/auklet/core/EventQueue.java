@@ -0,0 +1,271 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The bounded queue through which events are handed from application threads to the agent's event
+ * thread.</p>
+ *
+ * <p>Each throwable is converted into a {@link ThrowableSnapshot} before it is queued, so that the
+ * amount of memory held by the queue is bounded by its capacity and by the depth of the queued stack
+ * traces, regardless of what the throwables reference. Snapshots are held in an {@link EventRing}.</p>
+ *
+ * <p>When the ring is full, the {@link EventRing.OverflowPolicy} decides what is shed. With
+ * {@link EventRing.OverflowPolicy#COALESCE}, a snapshot that does not fit is merged into a pending
+ * overflow entry for its fingerprint instead, which the event thread later collects as a single
+ * aggregate event via {@link #pollCoalesced()}. At most {@value #MAX_COALESCED_FINGERPRINTS}
+ * fingerprints can be pending at once; snapshots of other fingerprints are dropped.</p>
+ *
+ * <p>The number of dropped events is tracked so that it can be reported in the next event that is sent;
+ * see {@link #takeUnreportedDrops()}.</p>
+ */
+@ThreadSafe
+public final class EventQueue {
+
+    private static final int MAX_COALESCED_FINGERPRINTS = 256;
+    private final EventRing<ThrowableSnapshot> ring;
+    private final ConcurrentHashMap<Long, Overflow> overflow = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reportedDrops = new AtomicLong();
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param capacity the requested capacity, rounded up to the next power of two, and to at least two.
+     * @param policy the overflow policy. Never {@code null}.
+     * @throws IllegalArgumentException if the capacity is less than 1 or greater than 2<sup>30</sup>,
+     * or if the policy is {@code null}.
+     */
+    public EventQueue(int capacity, @NonNull EventRing.OverflowPolicy policy) {
+        this.ring = new EventRing<>(capacity, policy);
+    }
+
+    /**
+     * <p>Takes a snapshot of the given throwable and queues it. This method never blocks.</p>
+     *
+     * @param throwable if {@code null}, this method is no-op and returns {@code false}.
+     * @return {@code true} if the event was queued or coalesced, {@code false} if it was dropped.
+     */
+    public boolean offer(@Nullable Throwable throwable) {
+        if (throwable == null) return false;
+        return this.offer(ThrowableSnapshot.of(throwable, System.currentTimeMillis()));
+    }
+
+    /**
+     * <p>Queues the given snapshot. This method never blocks.</p>
+     *
+     * @param snapshot if {@code null}, this method is no-op and returns {@code false}.
+     * @return {@code true} if the event was queued or coalesced, {@code false} if it was dropped.
+     */
+    public boolean offer(@Nullable ThrowableSnapshot snapshot) {
+        if (snapshot == null) return false;
+        if (this.ring.offer(snapshot)) return true;
+        // With DROP_OLDEST, the ring always makes room, so this is either DROP_NEWEST or COALESCE.
+        if (this.ring.getOverflowPolicy() == EventRing.OverflowPolicy.COALESCE && this.coalesce(snapshot)) {
+            this.coalesced.incrementAndGet();
+            return true;
+        }
+        this.rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * <p>Removes and returns the oldest queued snapshot.</p>
+     *
+     * @return {@code null} if the queue is empty.
+     */
+    @CheckForNull public ThrowableSnapshot poll() {
+        return this.ring.poll();
+    }
+
+    /**
+     * <p>Removes and returns the oldest queued snapshot, waiting up to the given amount of time for one
+     * to be queued. Only the event thread may call this method.</p>
+     *
+     * @param timeout how long to wait.
+     * @param unit the time unit of the timeout. Never {@code null}.
+     * @return {@code null} if the timeout elapsed, or if the waiting thread was interrupted, before
+     * a snapshot became available.
+     */
+    @CheckForNull public ThrowableSnapshot poll(long timeout, @NonNull TimeUnit unit) {
+        return this.ring.poll(timeout, unit);
+    }
+
+    /**
+     * <p>Removes one pending overflow entry, if any, and returns it as an event that represents all of
+     * the occurrences that were coalesced into it.</p>
+     *
+     * @return {@code null} if there are no pending overflow entries.
+     */
+    @CheckForNull public Event pollCoalesced() {
+        if (this.overflow.isEmpty()) return null;
+        Iterator<Overflow> iterator = this.overflow.values().iterator();
+        while (iterator.hasNext()) {
+            Overflow entry = iterator.next();
+            iterator.remove();
+            Event event = entry.close();
+            if (event != null) return event;
+        }
+        return null;
+    }
+
+    /** <p>Wakes up the thread, if any, that is currently waiting in {@link #poll(long, TimeUnit)}.</p> */
+    public void wakeConsumer() {
+        this.ring.wakeConsumer();
+    }
+
+    /**
+     * <p>Returns the approximate number of queued snapshots, not counting pending overflow entries.</p>
+     *
+     * @return a value between zero and the capacity of the queue.
+     */
+    public int size() {
+        return this.ring.size();
+    }
+
+    /**
+     * <p>Returns the capacity of the queue.</p>
+     *
+     * @return a power of two.
+     */
+    public int capacity() {
+        return this.ring.capacity();
+    }
+
+    /**
+     * <p>Returns the overflow policy of the queue.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public EventRing.OverflowPolicy getOverflowPolicy() {
+        return this.ring.getOverflowPolicy();
+    }
+
+    /**
+     * <p>Returns the number of snapshots that have been queued, not counting coalesced ones.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getEnqueuedCount() {
+        return this.ring.getEnqueuedCount();
+    }
+
+    /**
+     * <p>Returns the number of events that were coalesced into pending overflow entries.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * <p>Returns the number of events that have been dropped.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getDroppedCount() {
+        // The ring also counts snapshots that it rejected, some of which were then coalesced.
+        if (this.ring.getOverflowPolicy() == EventRing.OverflowPolicy.DROP_OLDEST) return this.ring.getDroppedCount();
+        return this.rejected.get();
+    }
+
+    /**
+     * <p>Returns the highest number of snapshots that have been queued at once.</p>
+     *
+     * @return a value between zero and the capacity of the queue.
+     */
+    public long getHighWatermark() {
+        return this.ring.getHighWatermark();
+    }
+
+    /**
+     * <p>Returns the number of events that have been dropped since the last call to this method, and
+     * marks them as reported. Only the event thread may call this method.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long takeUnreportedDrops() {
+        long total = this.getDroppedCount();
+        return Math.max(0L, total - this.reportedDrops.getAndSet(total));
+    }
+
+    /**
+     * <p>Marks drops that were returned by {@link #takeUnreportedDrops()} as unreported again, because
+     * the event that was meant to report them could not be sent. The event thread also uses this to
+     * report events that it dropped after taking them from the queue.</p>
+     *
+     * @param drops no-op if less than 1.
+     */
+    public void restoreUnreportedDrops(long drops) {
+        if (drops < 1) return;
+        this.reportedDrops.addAndGet(-drops);
+    }
+
+    /**
+     * <p>Merges the given snapshot into the pending overflow entry for its fingerprint, creating the
+     * entry if needed.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @return {@code false} if too many fingerprints are already pending.
+     */
+    private boolean coalesce(@NonNull ThrowableSnapshot snapshot) {
+        Long fingerprint = snapshot.getFingerprint();
+        while (true) {
+            Overflow entry = this.overflow.get(fingerprint);
+            if (entry == null) {
+                if (this.overflow.size() >= MAX_COALESCED_FINGERPRINTS) return false;
+                entry = new Overflow(snapshot);
+                if (this.overflow.putIfAbsent(fingerprint, entry) == null) return true;
+            } else if (entry.absorb(snapshot)) {
+                return true;
+            } else {
+                // The event thread closed this entry; remove it, if it is still mapped, and start another.
+                this.overflow.remove(fingerprint, entry);
+            }
+        }
+    }
+
+    /** <p>The occurrences of one fingerprint that did not fit in the ring.</p> */
+    @ThreadSafe
+    private static final class Overflow {
+
+        @GuardedBy("this") private ThrowableSnapshot latest;
+        @GuardedBy("this") private int occurrences = 1;
+        private final long firstTimestamp;
+        @GuardedBy("this") private long lastTimestamp;
+        @GuardedBy("this") private boolean closed = false;
+
+        private Overflow(@NonNull ThrowableSnapshot snapshot) {
+            this.latest = snapshot;
+            this.firstTimestamp = snapshot.getTimestamp();
+            this.lastTimestamp = snapshot.getTimestamp();
+        }
+
+        private synchronized boolean absorb(@NonNull ThrowableSnapshot snapshot) {
+            if (this.closed) return false;
+            if (this.occurrences < Integer.MAX_VALUE) this.occurrences++;
+            this.latest = snapshot;
+            this.lastTimestamp = snapshot.getTimestamp();
+            return true;
+        }
+
+        @CheckForNull private synchronized Event close() {
+            if (this.closed) return null;
+            this.closed = true;
+            return new Event(this.latest, this.occurrences, this.firstTimestamp, this.lastTimestamp);
+        }
+
+    }
+
+}
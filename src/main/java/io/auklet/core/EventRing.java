@@ -0,0 +1,278 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A bounded, lock-free ring buffer into which any number of threads may publish without blocking,
+ * and from which a single drain thread consumes.</p>
+ *
+ * <p>All slots are allocated up front. Each slot carries a sequence number that tells producers and
+ * the consumer whether the slot is free or full for the current lap around the ring, so that claiming
+ * a slot is a single CAS on the producer (or consumer) position. When the ring is full, the configured
+ * {@link OverflowPolicy} decides whether the new element or the oldest queued element is dropped. A
+ * producer makes at most {@value #MAX_EVICTION_ATTEMPTS} attempts to evict the oldest element; if it
+ * keeps losing the freed slot to other producers, or if the oldest slot has been claimed but not yet
+ * published by a stalled producer, it drops the new element instead, so that it never spins.</p>
+ *
+ * <p>The ring maintains counters for the number of elements enqueued and dropped, and for the highest
+ * number of elements that were ever queued at once.</p>
+ *
+ * @param <E> the type of element held by this ring.
+ */
+@ThreadSafe
+public final class EventRing<E> {
+
+    /** <p>What to do when an element is published into a full ring.</p> */
+    public enum OverflowPolicy {
+        /** <p>Discard the element being published.</p> */
+        DROP_NEWEST,
+        /** <p>Discard the oldest queued element to make room for the element being published.</p> */
+        DROP_OLDEST,
+        /**
+         * <p>Merge the element being published into a pending duplicate. The ring itself cannot find
+         * duplicates, so it treats this policy like {@link #DROP_NEWEST}; {@link EventQueue} implements it.</p>
+         */
+        COALESCE;
+
+        /**
+         * <p>Parses an overflow policy name, ignoring case and treating dashes as underscores.</p>
+         *
+         * @param name the policy name, possibly {@code null}.
+         * @param fallback returned if the name is {@code null} or does not name a policy.
+         * @return the parsed policy, or the fallback.
+         */
+        @CheckForNull public static OverflowPolicy fromString(@Nullable String name, @Nullable OverflowPolicy fallback) {
+            if (name == null) return fallback;
+            try {
+                return OverflowPolicy.valueOf(name.trim().replace('-', '_').toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return fallback;
+            }
+        }
+    }
+
+    private static final int MAX_EVICTION_ATTEMPTS = 16;
+    private final int mask;
+    private final OverflowPolicy policy;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerPosition = new AtomicLong();
+    private final AtomicLong consumerPosition = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong highWatermark = new AtomicLong();
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param capacity the requested capacity, rounded up to the next power of two, and to at least two.
+     * @param policy the overflow policy. Never {@code null}.
+     * @throws IllegalArgumentException if the capacity is less than 1 or greater than 2<sup>30</sup>,
+     * or if the policy is {@code null}.
+     */
+    public EventRing(int capacity, @NonNull OverflowPolicy policy) {
+        if (capacity < 1 || capacity > (1 << 30)) throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+        if (policy == null) throw new IllegalArgumentException("Overflow policy is null.");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        // With a single slot, the sequence number of a full slot equals the next producer position, so the
+        // ring could not tell full from empty.
+        size = Math.max(2, size);
+        this.mask = size - 1;
+        this.policy = policy;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) this.sequences.set(i, i);
+    }
+
+    /**
+     * <p>Publishes the given element into the ring. This method never blocks.</p>
+     *
+     * @param element if {@code null}, this method is no-op and returns {@code false}.
+     * @return {@code true} if the element was queued, {@code false} if it was dropped.
+     */
+    public boolean offer(@Nullable E element) {
+        if (element == null) return false;
+        for (int attempt = 0; ; attempt++) {
+            if (this.tryPublish(element)) {
+                this.enqueued.incrementAndGet();
+                this.updateHighWatermark();
+                Thread consumer = this.waitingConsumer;
+                if (consumer != null) LockSupport.unpark(consumer);
+                return true;
+            }
+            // The ring is full.
+            if (this.policy != OverflowPolicy.DROP_OLDEST || attempt >= MAX_EVICTION_ATTEMPTS) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+            // Evict the oldest element, then retry. If another producer claims the freed slot first,
+            // evict again, up to the attempt limit.
+            if (this.poll() != null) this.dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * <p>Removes and returns the oldest element in the ring.</p>
+     *
+     * @return {@code null} if the ring is empty.
+     */
+    @CheckForNull public E poll() {
+        while (true) {
+            long position = this.consumerPosition.get();
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (this.consumerPosition.compareAndSet(position, position + 1)) {
+                    E element = this.slots.get(index);
+                    this.slots.lazySet(index, null);
+                    this.sequences.lazySet(index, position + this.mask + 1);
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * <p>Removes and returns the oldest element in the ring, waiting up to the given amount of time for
+     * one to be published. Only one thread may wait on a ring at any given time.</p>
+     *
+     * @param timeout how long to wait.
+     * @param unit the time unit of the timeout. Never {@code null}.
+     * @return {@code null} if the timeout elapsed, or if the waiting thread was interrupted, before
+     * an element became available.
+     */
+    @CheckForNull public E poll(long timeout, @NonNull TimeUnit unit) {
+        E element = this.poll();
+        if (element != null) return element;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        this.waitingConsumer = current;
+        try {
+            while (true) {
+                // Re-check after registering, so that a publish that raced with registration is not missed.
+                element = this.poll();
+                if (element != null) return element;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) return null;
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            this.waitingConsumer = null;
+        }
+    }
+
+    /** <p>Wakes up the thread, if any, that is currently waiting in {@link #poll(long, TimeUnit)}.</p> */
+    public void wakeConsumer() {
+        Thread consumer = this.waitingConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    /** <p>Discards all elements currently in the ring. Discarded elements are counted as dropped.</p> */
+    public void clear() {
+        while (this.poll() != null) this.dropped.incrementAndGet();
+    }
+
+    /**
+     * <p>Returns the approximate number of elements in the ring.</p>
+     *
+     * @return a value between zero and the capacity of the ring.
+     */
+    public int size() {
+        long size = this.producerPosition.get() - this.consumerPosition.get();
+        if (size < 0) return 0;
+        return (int) Math.min(size, this.capacity());
+    }
+
+    /**
+     * <p>Returns the capacity of the ring.</p>
+     *
+     * @return a power of two.
+     */
+    public int capacity() {
+        return this.mask + 1;
+    }
+
+    /**
+     * <p>Returns the overflow policy of the ring.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public OverflowPolicy getOverflowPolicy() {
+        return this.policy;
+    }
+
+    /**
+     * <p>Returns the number of elements that have been queued in this ring.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getEnqueuedCount() {
+        return this.enqueued.get();
+    }
+
+    /**
+     * <p>Returns the number of elements that have been dropped by this ring, due to overflow or
+     * to {@link #clear()}.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * <p>Returns the highest number of elements that have been queued in this ring at once.</p>
+     *
+     * @return a value between zero and the capacity of the ring.
+     */
+    public long getHighWatermark() {
+        return this.highWatermark.get();
+    }
+
+    /**
+     * <p>Attempts to claim a slot and store the given element in it.</p>
+     *
+     * @param element never {@code null}.
+     * @return {@code false} if the ring is full.
+     */
+    private boolean tryPublish(@NonNull E element) {
+        while (true) {
+            long position = this.producerPosition.get();
+            int index = (int) position & this.mask;
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.producerPosition.compareAndSet(position, position + 1)) {
+                    this.slots.lazySet(index, element);
+                    // Publishing the sequence number is what makes the element visible to the consumer.
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /** <p>Raises the high watermark to the current size of the ring, if needed.</p> */
+    private void updateHighWatermark() {
+        long size = this.size();
+        long current = this.highWatermark.get();
+        while (size > current && !this.highWatermark.compareAndSet(current, size)) {
+            current = this.highWatermark.get();
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Limits the rate at which events are sent, so that an exception storm keeps data usage and agent
+ * CPU flat, without hiding new failures.</p>
+ *
+ * <p>Each {@link ThrowableFingerprint} has a token bucket that holds up to {@code burst} tokens and
+ * refills at {@code rate} tokens per second; all fingerprints also share a global bucket that refills at
+ * {@code globalRate} tokens per second, and holds one second's worth of tokens. An event is sent if
+ * both buckets have a token, and skipped otherwise. The first event of a fingerprint that is not being
+ * tracked is always sent, even if the global bucket is empty.</p>
+ *
+ * <p>Skipped occurrences are not lost: they are counted against their fingerprint, and the next event
+ * of that fingerprint that is sent carries a {@linkplain Event#getSampleWeight() sample weight} such
+ * that its occurrences multiplied by its weight equal the occurrences it stands for. The backend
+ * extrapolates counts from this weight. If a fingerprint is evicted while it has skipped occurrences,
+ * they are reported as dropped events instead; see {@link #takeEvictedOccurrences()}. When the agent
+ * shuts down, the events that are still pending carry what was skipped for their fingerprints, and the
+ * rest is reported as dropped events; see {@link #flush(Event)} and {@link #takeSkippedOccurrences()}.</p>
+ *
+ * <p>At most {@value #MAX_TRACKED_FINGERPRINTS} fingerprints are tracked at once; the least recently
+ * seen fingerprint is evicted to make room. A rate of zero disables that bucket; if both rates are zero,
+ * every event is sent.</p>
+ *
+ * <p>This class is not thread-safe; it is owned by the agent's event thread.</p>
+ */
+@NotThreadSafe
+public final class EventSampler {
+
+    private static final int MAX_TRACKED_FINGERPRINTS = 1024;
+    private final double tokensPerMilli;
+    private final double burst;
+    private final double globalTokensPerMilli;
+    private final double globalBurst;
+    // Access order, so that the least recently seen fingerprint is at the head of the map.
+    private final LinkedHashMap<Long, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private double globalTokens;
+    private long globalRefilledAt = Long.MIN_VALUE;
+    private long evictedOccurrences = 0L;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param rate the number of events per second that may be sent per fingerprint. Zero or less
+     * disables the per-fingerprint limit.
+     * @param burst the number of events per fingerprint that may be sent in a burst. Values less than 1
+     * are coerced to 1.
+     * @param globalRate the number of events per second that may be sent in total. Zero or less disables
+     * the global limit.
+     */
+    public EventSampler(double rate, int burst, double globalRate) {
+        this.tokensPerMilli = rate > 0 ? rate / 1000.0 : 0.0;
+        this.burst = Math.max(1, burst);
+        this.globalTokensPerMilli = globalRate > 0 ? globalRate / 1000.0 : 0.0;
+        this.globalBurst = Math.max(1.0, globalRate);
+        this.globalTokens = this.globalBurst;
+    }
+
+    /**
+     * <p>Returns whether or not this sampler limits anything.</p>
+     *
+     * @return {@code false} if every event is sent.
+     */
+    public boolean isEnabled() {
+        return this.tokensPerMilli > 0 || this.globalTokensPerMilli > 0;
+    }
+
+    /**
+     * <p>Decides whether the given event is sent.</p>
+     *
+     * @param event never {@code null}.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the event to send, carrying its sample weight, or {@code null} if the event was skipped.
+     */
+    @CheckForNull public Event sample(@NonNull Event event, long now) {
+        if (!this.isEnabled()) return event;
+        this.refillGlobal(now);
+        Long fingerprint = event.getFingerprint();
+        Bucket bucket = this.buckets.get(fingerprint);
+        if (bucket == null) {
+            // A new failure mode is always reported.
+            this.track(fingerprint, new Bucket(this.burst - 1, now));
+            this.globalTokens = Math.max(0.0, this.globalTokens - 1);
+            return event;
+        }
+        bucket.refill(now, this.tokensPerMilli, this.burst);
+        boolean allowed = (this.tokensPerMilli == 0 || bucket.tokens >= 1)
+                && (this.globalTokensPerMilli == 0 || this.globalTokens >= 1);
+        if (!allowed) {
+            bucket.skipped += event.getOccurrences();
+            return null;
+        }
+        if (this.tokensPerMilli > 0) bucket.tokens -= 1;
+        if (this.globalTokensPerMilli > 0) this.globalTokens -= 1;
+        return carrySkipped(event, bucket);
+    }
+
+    /**
+     * <p>Returns the given event carrying the occurrences skipped for its fingerprint, without consuming
+     * any tokens. This is used for the events that are sent when the agent shuts down, which are never
+     * skipped.</p>
+     *
+     * @param event never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull public Event flush(@NonNull Event event) {
+        Bucket bucket = this.buckets.get(event.getFingerprint());
+        return bucket == null ? event : carrySkipped(event, bucket);
+    }
+
+    /**
+     * <p>Returns the number of skipped occurrences that no event has carried yet, including those of
+     * evicted fingerprints, and forgets them. This is used when the agent shuts down, since the
+     * fingerprints may never recur.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long takeSkippedOccurrences() {
+        long skipped = this.takeEvictedOccurrences();
+        for (Bucket bucket : this.buckets.values()) {
+            skipped += bucket.skipped;
+            bucket.skipped = 0L;
+        }
+        return skipped;
+    }
+
+    /**
+     * <p>Returns the number of skipped occurrences whose fingerprints were evicted since the last call
+     * to this method, and which therefore cannot be carried by a sample weight.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long takeEvictedOccurrences() {
+        long evicted = this.evictedOccurrences;
+        this.evictedOccurrences = 0L;
+        return evicted;
+    }
+
+    /**
+     * <p>Returns the number of fingerprints being tracked.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int getTrackedFingerprints() {
+        return this.buckets.size();
+    }
+
+    /** <p>Returns the given event with a sample weight that accounts for the bucket's skipped occurrences.</p> */
+    @NonNull private static Event carrySkipped(@NonNull Event event, @NonNull Bucket bucket) {
+        if (bucket.skipped == 0) return event;
+        double weight = (event.getOccurrences() + (double) bucket.skipped) / event.getOccurrences();
+        bucket.skipped = 0L;
+        return event.withSampleWeight(weight);
+    }
+
+    /** <p>Starts tracking the given fingerprint, evicting the least recently seen one if needed.</p> */
+    private void track(@NonNull Long fingerprint, @NonNull Bucket bucket) {
+        if (this.buckets.size() >= MAX_TRACKED_FINGERPRINTS) {
+            Iterator<Map.Entry<Long, Bucket>> eldest = this.buckets.entrySet().iterator();
+            this.evictedOccurrences += eldest.next().getValue().skipped;
+            eldest.remove();
+        }
+        this.buckets.put(fingerprint, bucket);
+    }
+
+    /** <p>Adds the tokens that the global bucket earned since it was last refilled.</p> */
+    private void refillGlobal(long now) {
+        if (this.globalTokensPerMilli > 0 && this.globalRefilledAt != Long.MIN_VALUE) {
+            // Ignore the wall clock being set backwards.
+            long elapsed = Math.max(0L, now - this.globalRefilledAt);
+            this.globalTokens = Math.min(this.globalBurst, this.globalTokens + elapsed * this.globalTokensPerMilli);
+        }
+        this.globalRefilledAt = now;
+    }
+
+    /** <p>The token bucket of one fingerprint.</p> */
+    private static final class Bucket {
+
+        private double tokens;
+        private long refilledAt;
+        private long skipped = 0L;
+
+        private Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+
+        private void refill(long now, double tokensPerMilli, double burst) {
+            long elapsed = Math.max(0L, now - this.refilledAt);
+            this.tokens = Math.min(burst, this.tokens + elapsed * tokensPerMilli);
+            this.refilledAt = now;
+        }
+
+    }
+
+}
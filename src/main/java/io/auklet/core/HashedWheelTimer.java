@@ -0,0 +1,463 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A hashed timer wheel, for timers that are created and cancelled at a high rate, such as emission
+ * batch flushes.</p>
+ *
+ * <p>Scheduling and cancelling a timer are O(1) and never take a lock: new timers and cancellations are
+ * handed to the timer thread through lock-free queues, and the timer thread files each timer into the
+ * wheel bucket for its deadline. Once per tick, the timer thread expires the timers in the current
+ * bucket and removes cancelled timers from the wheel, so that they do not linger until their deadline.
+ * Timers are accurate to one tick, and a timer that is due is never run early.</p>
+ *
+ * <p>The timer thread does not run tasks itself; it hands each expired task to the executor that was
+ * given when the timer was scheduled. A timer with no delay is handed to its executor immediately,
+ * without involving the wheel. The timer thread is started when the first timer is scheduled, and
+ * parks while no timers are pending, so an idle timer does not wake up the CPU.</p>
+ */
+@ThreadSafe
+public final class HashedWheelTimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private static final int STATE_INIT = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final ThreadFactory threadFactory;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong scheduledCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+    private volatile Thread worker = null;
+    private volatile long startNanos = 0L;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param tickDuration the duration of one tick.
+     * @param unit the time unit of the tick duration. Never {@code null}.
+     * @param ticksPerWheel the number of buckets in the wheel, rounded up to the next power of two.
+     * @param threadFactory the factory for the timer thread. Never {@code null}.
+     * @throws IllegalArgumentException if the tick duration is less than 1 millisecond, if the number of
+     * buckets is less than 1 or greater than 2<sup>16</sup>, or if any argument is {@code null}.
+     */
+    public HashedWheelTimer(long tickDuration, @NonNull TimeUnit unit, int ticksPerWheel, @NonNull ThreadFactory threadFactory) {
+        if (unit == null) throw new IllegalArgumentException("Tick duration unit is null.");
+        if (threadFactory == null) throw new IllegalArgumentException("Thread factory is null.");
+        if (unit.toMillis(tickDuration) < 1) throw new IllegalArgumentException("Tick duration is less than 1 ms.");
+        if (ticksPerWheel < 1 || ticksPerWheel > (1 << 16)) throw new IllegalArgumentException("Invalid number of ticks per wheel: " + ticksPerWheel);
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) size <<= 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) this.wheel[i] = new Bucket();
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * <p>Schedules the given task to be handed to the given executor after the given delay.</p>
+     *
+     * @param executor the executor that runs the task. Never {@code null}.
+     * @param task the task. Never {@code null}.
+     * @param delay the delay. If less than 1, the task is handed to the executor immediately.
+     * @param unit the time unit of the delay. Never {@code null}.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if any argument is {@code null}.
+     * @throws IllegalStateException if the timer has been stopped.
+     * @throws RejectedExecutionException if the delay is less than 1 and the executor rejects the task.
+     */
+    @NonNull public Timeout newTimeout(@NonNull Executor executor, @NonNull Runnable task, long delay, @NonNull TimeUnit unit) {
+        return this.schedule(executor, task, delay, 0L, unit);
+    }
+
+    /**
+     * <p>Schedules the given task to be handed to the given executor after the given initial delay, and
+     * then repeatedly at the given period, until the returned timeout is cancelled.</p>
+     *
+     * @param executor the executor that runs the task. Never {@code null}.
+     * @param task the task. Never {@code null}.
+     * @param initialDelay the delay before the first run.
+     * @param period the period between runs; must be positive.
+     * @param unit the time unit of the delay and period. Never {@code null}.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if the period is not positive, or if any argument is {@code null}.
+     * @throws IllegalStateException if the timer has been stopped.
+     */
+    @NonNull public Timeout newPeriodicTimeout(@NonNull Executor executor, @NonNull Runnable task, long initialDelay, long period, @NonNull TimeUnit unit) {
+        if (period < 1) throw new IllegalArgumentException("Period must be positive.");
+        return this.schedule(executor, task, Math.max(1L, initialDelay), period, unit);
+    }
+
+    /**
+     * <p>Stops the timer thread. Timers that have not expired are discarded.</p>
+     *
+     * @return the number of timers that were discarded.
+     */
+    public int stop() {
+        if (this.state.getAndSet(STATE_STOPPED) != STATE_STARTED) return 0;
+        Thread current = this.worker;
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return this.active.getAndSet(0);
+    }
+
+    /**
+     * <p>Returns the number of timers that have neither expired nor been cancelled.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int getPendingCount() {
+        return this.active.get();
+    }
+
+    /**
+     * <p>Returns the number of timers that have been scheduled, including timers with no delay.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getScheduledCount() {
+        return this.scheduledCount.get();
+    }
+
+    /**
+     * <p>Returns the number of times that a timer has expired and its task was handed to its executor.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getExpiredCount() {
+        return this.expiredCount.get();
+    }
+
+    /**
+     * <p>Returns the number of timers that have been cancelled before they expired.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getCancelledCount() {
+        return this.cancelledCount.get();
+    }
+
+    /**
+     * <p>Creates a timer and hands it to the timer thread, or runs it immediately if it has no delay.</p>
+     *
+     * @param executor the executor.
+     * @param task the task.
+     * @param delay the delay before the first run.
+     * @param period the period, or zero for a one-shot timer.
+     * @param unit the time unit of the delay and period.
+     * @return never {@code null}.
+     */
+    @NonNull private Timeout schedule(@NonNull Executor executor, @NonNull Runnable task, long delay, long period, @NonNull TimeUnit unit) {
+        if (executor == null) throw new IllegalArgumentException("Executor is null.");
+        if (task == null) throw new IllegalArgumentException("Task is null.");
+        if (unit == null) throw new IllegalArgumentException("Delay unit is null.");
+        this.scheduledCount.incrementAndGet();
+        if (delay < 1) {
+            // Fast path: nothing to wait for.
+            Timeout timeout = new Timeout(this, executor, task, 0L, 0L);
+            timeout.state.set(Timeout.EXPIRED);
+            executor.execute(task);
+            this.expiredCount.incrementAndGet();
+            return timeout;
+        }
+        this.start();
+        // Cap the delay so that the deadline cannot overflow; nobody waits for 70 years.
+        long deadline = System.nanoTime() - this.startNanos + Math.min(unit.toNanos(delay), Long.MAX_VALUE >> 2);
+        Timeout timeout = new Timeout(this, executor, task, deadline, unit.toNanos(period));
+        this.pending.add(timeout);
+        if (this.active.getAndIncrement() == 0) {
+            Thread current = this.worker;
+            if (current != null) LockSupport.unpark(current);
+        }
+        return timeout;
+    }
+
+    /**
+     * <p>Starts the timer thread, if it has not been started yet.</p>
+     *
+     * @throws IllegalStateException if the timer has been stopped.
+     */
+    private void start() {
+        switch (this.state.get()) {
+            case STATE_STARTED:
+                return;
+            case STATE_STOPPED:
+                throw new IllegalStateException("Timer has been stopped.");
+            default:
+                synchronized (this.state) {
+                    if (this.state.get() != STATE_INIT) {
+                        if (this.state.get() == STATE_STOPPED) throw new IllegalStateException("Timer has been stopped.");
+                        return;
+                    }
+                    this.startNanos = System.nanoTime();
+                    Thread thread = this.threadFactory.newThread(new Worker());
+                    this.worker = thread;
+                    this.state.set(STATE_STARTED);
+                    thread.start();
+                }
+        }
+    }
+
+    /** <p>The timer thread.</p> */
+    @NotThreadSafe
+    private final class Worker implements Runnable {
+
+        private long tick = 0L;
+        private final List<Timeout> rescheduled = new ArrayList<>();
+
+        @Override public void run() {
+            while (state.get() == STATE_STARTED) {
+                if (active.get() == 0 && pending.isEmpty()) {
+                    LockSupport.park(this);
+                    // The wheel is empty, so no buckets are skipped by catching up with the clock.
+                    this.tick = Math.max(this.tick, (System.nanoTime() - startNanos) / tickNanos);
+                    continue;
+                }
+                long deadline = this.awaitTick();
+                if (deadline < 0) continue;
+                this.removeCancelled();
+                this.transferPending();
+                this.expire(wheel[(int) (this.tick & mask)], deadline);
+                this.tick++;
+                this.fileRescheduled();
+            }
+        }
+
+        /**
+         * <p>Waits until the current tick has elapsed.</p>
+         *
+         * @return the time at which the tick ended, relative to the start of the timer; negative if the wait
+         * was interrupted by a newly scheduled timer or by the timer being stopped.
+         */
+        private long awaitTick() {
+            long deadline = (this.tick + 1) * tickNanos;
+            long now = System.nanoTime() - startNanos;
+            if (now >= deadline) return now;
+            LockSupport.parkNanos(this, deadline - now);
+            now = System.nanoTime() - startNanos;
+            return now >= deadline ? now : -1L;
+        }
+
+        /** <p>Removes cancelled timers from the wheel.</p> */
+        private void removeCancelled() {
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) timeout.bucket.remove(timeout);
+            }
+        }
+
+        /** <p>Files newly scheduled timers into their buckets.</p> */
+        private void transferPending() {
+            // Bound the work per tick, in case timers are scheduled faster than they can be filed.
+            for (int i = 0; i < 100000; i++) {
+                Timeout timeout = pending.poll();
+                if (timeout == null) return;
+                if (timeout.state.get() == Timeout.CANCELLED) continue;
+                this.file(timeout);
+            }
+        }
+
+        /**
+         * <p>Files the periodic timers that ran during the last tick into the buckets for their next
+         * deadlines. This is only done once the tick has advanced: filed during the tick, a timer that lands
+         * in the bucket being expired would miss that bucket's countdown and run a round late.</p>
+         */
+        private void fileRescheduled() {
+            for (int i = 0; i < this.rescheduled.size(); i++) {
+                Timeout timeout = this.rescheduled.get(i);
+                if (timeout.state.get() == Timeout.INIT) this.file(timeout);
+            }
+            this.rescheduled.clear();
+        }
+
+        /**
+         * <p>Files the given timer into the bucket for its deadline.</p>
+         *
+         * @param timeout never {@code null}.
+         */
+        private void file(@NonNull Timeout timeout) {
+            long due = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (due - this.tick) / wheel.length;
+            // A timer whose deadline has already passed goes into the current bucket.
+            long ticks = Math.max(due, this.tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+
+        /**
+         * <p>Expires the timers in the given bucket that are due, and counts down the others.</p>
+         *
+         * @param bucket never {@code null}.
+         * @param deadline the time at which the current tick ended, relative to the start of the timer.
+         */
+        private void expire(@NonNull Bucket bucket, long deadline) {
+            Timeout timeout = bucket.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state.get() == Timeout.CANCELLED) {
+                    bucket.remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    bucket.remove(timeout);
+                    this.run(timeout);
+                } else if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        /**
+         * <p>Hands the task of the given timer to its executor, and queues the timer for rescheduling if it is periodic.</p>
+         *
+         * @param timeout never {@code null}.
+         */
+        private void run(@NonNull Timeout timeout) {
+            boolean periodic = timeout.period > 0;
+            if (!periodic && !timeout.state.compareAndSet(Timeout.INIT, Timeout.EXPIRED)) return;
+            if (!periodic) active.decrementAndGet();
+            expiredCount.incrementAndGet();
+            try {
+                timeout.executor.execute(timeout.task);
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Executor rejected timer task.", e);
+            }
+            if (periodic && timeout.state.get() == Timeout.INIT) {
+                timeout.deadline += timeout.period;
+                this.rescheduled.add(timeout);
+            }
+        }
+
+    }
+
+    /** <p>A bucket of the wheel: a doubly linked list of timers, only accessed by the timer thread.</p> */
+    @NotThreadSafe
+    private static final class Bucket {
+
+        private Timeout head = null;
+        private Timeout tail = null;
+
+        private void add(@NonNull Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = this.tail;
+            timeout.next = null;
+            if (this.tail == null) this.head = timeout;
+            else this.tail.next = timeout;
+            this.tail = timeout;
+        }
+
+        private void remove(@NonNull Timeout timeout) {
+            if (timeout.bucket != this) return;
+            if (timeout.prev == null) this.head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) this.tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+    }
+
+    /** <p>A handle to a scheduled timer.</p> */
+    @ThreadSafe
+    public static final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final HashedWheelTimer timer;
+        private final Executor executor;
+        private final Runnable task;
+        private final long period;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        // The fields below are only accessed by the timer thread.
+        private long deadline;
+        private long remainingRounds = 0L;
+        @Nullable private Bucket bucket = null;
+        @Nullable private Timeout prev = null;
+        @Nullable private Timeout next = null;
+
+        private Timeout(@NonNull HashedWheelTimer timer, @NonNull Executor executor, @NonNull Runnable task, long deadline, long period) {
+            this.timer = timer;
+            this.executor = executor;
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * <p>Cancels this timer, if it has not expired yet. A periodic timer stops being rescheduled; a run
+         * that has already been handed to the executor is not affected.</p>
+         *
+         * @return {@code true} if this call cancelled the timer.
+         */
+        public boolean cancel() {
+            if (!this.state.compareAndSet(INIT, CANCELLED)) return false;
+            this.timer.active.decrementAndGet();
+            this.timer.cancelledCount.incrementAndGet();
+            this.timer.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * <p>Returns whether or not this timer has been cancelled.</p>
+         *
+         * @return {@code true} if this timer was cancelled before it expired.
+         */
+        public boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        /**
+         * <p>Returns whether or not this one-shot timer has expired, i.e. its task was handed to its executor.</p>
+         *
+         * @return always {@code false} for periodic timers.
+         */
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        /**
+         * <p>Returns the task of this timer.</p>
+         *
+         * @return never {@code null}.
+         */
+        @NonNull public Runnable getTask() {
+            return this.task;
+        }
+
+    }
+
+}
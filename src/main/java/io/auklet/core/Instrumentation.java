@@ -0,0 +1,142 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Marks the agent's internal work with events that profilers can attribute, so that agent overhead
+ * shows up as named operations next to the application's own hot spots rather than as anonymous time
+ * on the agent's threads.</p>
+ *
+ * <p>On JVMs that provide Java Flight Recorder ({@code jdk.jfr}, Java 11 and newer), the implementation
+ * in {@code io.auklet.jfr}, which is compiled separately, emits a custom JFR event for each
+ * {@link Kind}. On other JVMs, including Android, the no-op implementation is used. Either way,
+ * {@link #begin(Kind)} returns a shared no-op {@link Span} unless a recording that enables the event is
+ * in progress, so an instrumented operation costs one call and does not allocate when JFR is off.</p>
+ *
+ * <p>Usage:</p>
+ *
+ * <pre>
+ * Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.SERIALIZATION);
+ * ... do the work ...
+ * span.setBytes(payload.length);
+ * span.finish();
+ * </pre>
+ */
+@ThreadSafe
+public abstract class Instrumentation {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Instrumentation.class);
+    private static final String JFR_IMPLEMENTATION = "io.auklet.jfr.JfrInstrumentation";
+    /** <p>The span returned when an event is not being recorded.</p> */
+    public static final Span NOOP_SPAN = new Span() {
+        @Override public void setBytes(long bytes) { /* no-op */ }
+        @Override public void setCount(int count) { /* no-op */ }
+        @Override public void setDetail(@Nullable String detail) { /* no-op */ }
+        @Override public void setSuccess(boolean success) { /* no-op */ }
+        @Override public void finish() { /* no-op */ }
+    };
+    private static final Instrumentation NOOP = new Instrumentation() {
+        @NonNull @Override public Span begin(@NonNull Kind kind) {
+            return NOOP_SPAN;
+        }
+    };
+    private static final Instrumentation INSTANCE = load();
+
+    /** <p>The instrumented operations.</p> */
+    public enum Kind {
+        /** <p>Taking the snapshot of a throwable and queuing it, on the application thread.</p> */
+        CAPTURE,
+        /** <p>Serializing an event. Records the number of bytes and of stack frames.</p> */
+        SERIALIZATION,
+        /** <p>Checking a message against the data usage limit. Records the number of bytes, and whether it fits.</p> */
+        QUOTA_CHECK,
+        /** <p>Handing a message to the MQTT client. Records the number of bytes.</p> */
+        MQTT_PUBLISH,
+        /** <p>The time from publishing a message until the broker acknowledged it.</p> */
+        MQTT_ACK,
+        /** <p>Fetching a config file from the API. Records the name of the config file.</p> */
+        CONFIG_FETCH,
+        /** <p>Flushing one of the agent's files to the storage device. Records the name of the store.</p> */
+        DISK_PERSIST
+    }
+
+    /**
+     * <p>An instrumented operation that is in progress. Setters that do not apply to the operation's
+     * {@link Kind} are ignored. Spans are not thread-safe, but may be ended on a different thread than
+     * the one that began them.</p>
+     */
+    public interface Span {
+
+        /**
+         * <p>Sets the number of bytes that the operation processed.</p>
+         *
+         * @param bytes the number of bytes.
+         */
+        void setBytes(long bytes);
+
+        /**
+         * <p>Sets the number of items (e.g. stack frames) that the operation processed.</p>
+         *
+         * @param count the number of items.
+         */
+        void setCount(int count);
+
+        /**
+         * <p>Sets a short description of what the operation processed.</p>
+         *
+         * @param detail may be {@code null}.
+         */
+        void setDetail(@Nullable String detail);
+
+        /**
+         * <p>Sets whether the operation succeeded.</p>
+         *
+         * @param success the outcome.
+         */
+        void setSuccess(boolean success);
+
+        /** <p>Ends the operation and records it. Must be called at most once.</p> */
+        void finish();
+
+    }
+
+    /**
+     * <p>Returns the instrumentation for this JVM.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public static Instrumentation get() {
+        return INSTANCE;
+    }
+
+    /**
+     * <p>Begins an instrumented operation.</p>
+     *
+     * @param kind the operation. Never {@code null}.
+     * @return never {@code null}. {@link #NOOP_SPAN} if the operation is not being recorded.
+     */
+    @NonNull public abstract Span begin(@NonNull Kind kind);
+
+    /**
+     * <p>Loads the JFR implementation if this JVM provides JFR and the implementation was compiled into
+     * the agent JAR, and falls back to the no-op implementation otherwise.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private static Instrumentation load() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            Instrumentation jfr = (Instrumentation) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+            LOGGER.debug("JFR events are available.");
+            return jfr;
+        } catch (ReflectiveOperationException | LinkageError | SecurityException | ClassCastException e) {
+            LOGGER.debug("JFR events are not available.", e);
+            return NOOP;
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.misc.ThreadMX;
+import io.auklet.util.ThreadUtil;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the agent's own overhead within a budget. Once per second, the governor measures the CPU
+ * time used, and the bytes allocated, by the agent's threads (see
+ * {@link ThreadUtil#getAgentThreadIds()}) and publishes them in the {@link AgentMetrics}. If either
+ * exceeds its budget, the governor raises its <i>degradation level</i> by one; once both have stayed
+ * below half of their budgets for {@value #RELAX_AFTER_SAMPLES} consecutive seconds, it lowers the
+ * level by one.</p>
+ *
+ * <p>Each level sheds more work, starting with the degradations that lose the least information:</p>
+ *
+ * <ul>
+ *   <li>From level 1, the system metrics attached to events are refreshed every
+ *   {@value #BASE_METRICS_INTERVAL_MILLIS} ms, doubling with each level, instead of for every event.</li>
+ *   <li>From level 2, stack traces are truncated to {@value #BASE_MAX_STACK_FRAMES} frames, halving with
+ *   each level, to no fewer than {@value #MIN_STACK_FRAMES}, in the same way as the depth cap of the
+ *   {@link io.auklet.sink.StackTraceReducer}.</li>
+ *   <li>From level 3, only one in two events is sent, halving with each level. Events that are not sent
+ *   are reported to the backend as dropped events.</li>
+ * </ul>
+ *
+ * <p>A budget of zero disables enforcement of that budget, but overhead is still measured. On JVMs that
+ * cannot measure thread CPU time (e.g. Android), the governor does nothing.</p>
+ */
+@ThreadSafe
+public final class OverheadGovernor extends HasAgent {
+
+    /** <p>The highest degradation level.</p> */
+    public static final int MAX_LEVEL = 6;
+    private static final Logger LOGGER = LoggerFactory.getLogger(OverheadGovernor.class);
+    private static final long SAMPLE_PERIOD_SECONDS = 1L;
+    private static final int RELAX_AFTER_SAMPLES = 10;
+    private static final long BASE_METRICS_INTERVAL_MILLIS = 10000L;
+    private static final int BASE_MAX_STACK_FRAMES = 64;
+    private static final int MIN_STACK_FRAMES = 8;
+
+    private final double cpuBudgetPercent;
+    private final long allocationBudget;
+    private final AgentMetrics metrics;
+    private final AtomicLong admitted = new AtomicLong();
+    private volatile int level = 0;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Map<Long, long[]> previous = new HashMap<>();
+    @GuardedBy("lock") private long lastSampleNanos = 0L;
+    @GuardedBy("lock") private int samplesUnderBudget = 0;
+    @GuardedBy("lock") private ScheduledFuture<?> sampler = null;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param cpuBudgetPercent the CPU budget, as a percentage of one core. Zero or less disables it.
+     * @param allocationBudget the allocation budget, in bytes per second. Zero or less disables it.
+     * @param metrics the agent's metrics registry. Never {@code null}.
+     */
+    public OverheadGovernor(double cpuBudgetPercent, long allocationBudget, @NonNull AgentMetrics metrics) {
+        if (metrics == null) throw new IllegalArgumentException("Agent metrics are null.");
+        this.cpuBudgetPercent = Math.max(0.0, cpuBudgetPercent);
+        this.allocationBudget = Math.max(0L, allocationBudget);
+        this.metrics = metrics;
+    }
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        this.setAgent(agent);
+        if (!ThreadMX.BEAN.isThreadCpuTimeAvailable()) {
+            LOGGER.info("Thread CPU time is not available; agent overhead will not be measured.");
+            return;
+        }
+        if (this.cpuBudgetPercent > 0 || this.allocationBudget > 0) {
+            LOGGER.info("Agent overhead budget: {}% of one core, {} bytes/s allocated (0 = unlimited).", this.cpuBudgetPercent, this.allocationBudget);
+        }
+        ScheduledFuture<?> task = agent.scheduleRepeatingTask(new Runnable() {
+            @Override public void run() {
+                sample(System.nanoTime());
+            }
+        }, 0L, SAMPLE_PERIOD_SECONDS, TimeUnit.SECONDS);
+        synchronized (this.lock) {
+            this.sampler = task;
+        }
+    }
+
+    /** <p>Stops sampling the agent's overhead. The current degradation level is kept.</p> */
+    public void shutdown() {
+        synchronized (this.lock) {
+            if (this.sampler != null) this.sampler.cancel(false);
+            this.sampler = null;
+        }
+    }
+
+    /**
+     * <p>Returns the current degradation level.</p>
+     *
+     * @return between 0 (no degradation) and {@link #MAX_LEVEL}.
+     */
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * <p>Decides whether the next event is sent, per the sampling rate of the current level. Callers
+     * must report events that are not sent as dropped.</p>
+     *
+     * @return {@code true} if the event should be sent.
+     */
+    public boolean admit() {
+        int rate = sampleRateFor(this.level);
+        return rate == 1 || this.admitted.getAndIncrement() % rate == 0;
+    }
+
+    /**
+     * <p>Returns the maximum number of stack frames to send per event at the current level.</p>
+     *
+     * @return {@link Integer#MAX_VALUE} if stack traces are not truncated.
+     */
+    public int getMaxStackFrames() {
+        return maxStackFramesFor(this.level);
+    }
+
+    /**
+     * <p>Returns how long the system metrics attached to events may be reused at the current level.</p>
+     *
+     * @return zero if they are refreshed for every event.
+     */
+    public long getSystemMetricsIntervalMillis() {
+        return systemMetricsIntervalFor(this.level);
+    }
+
+    /**
+     * <p>Returns the sampling rate at the given level.</p>
+     *
+     * @param level the level.
+     * @return one in how many events is sent; 1 if events are not sampled.
+     */
+    public static int sampleRateFor(int level) {
+        return level < 3 ? 1 : 1 << (level - 2);
+    }
+
+    /**
+     * <p>Returns the maximum number of stack frames to send per event at the given level.</p>
+     *
+     * @param level the level.
+     * @return {@link Integer#MAX_VALUE} if stack traces are not truncated.
+     */
+    public static int maxStackFramesFor(int level) {
+        return level < 2 ? Integer.MAX_VALUE : Math.max(MIN_STACK_FRAMES, BASE_MAX_STACK_FRAMES >> (level - 2));
+    }
+
+    /**
+     * <p>Returns how long the system metrics attached to events may be reused at the given level.</p>
+     *
+     * @param level the level.
+     * @return zero if they are refreshed for every event.
+     */
+    public static long systemMetricsIntervalFor(int level) {
+        return level < 1 ? 0L : BASE_METRICS_INTERVAL_MILLIS << (level - 1);
+    }
+
+    /**
+     * <p>Measures the agent's threads since the previous sample, publishes the result and adjusts the
+     * degradation level. The first sample only establishes the baseline.</p>
+     *
+     * @param nowNanos the current value of {@link System#nanoTime()}.
+     */
+    /*package*/ void sample(long nowNanos) {
+        synchronized (this.lock) {
+            long cpuNanos = 0L;
+            long allocatedBytes = 0L;
+            Map<Long, long[]> current = new HashMap<>();
+            for (long id : ThreadUtil.getAgentThreadIds()) {
+                long cpu = ThreadMX.BEAN.getThreadCpuTime(id);
+                if (cpu < 0) continue; // The thread exited.
+                long allocated = Math.max(0L, ThreadMX.BEAN.getThreadAllocatedBytes(id));
+                long[] last = this.previous.get(id);
+                // Threads that started since the previous sample are counted from zero.
+                cpuNanos += last == null ? cpu : Math.max(0L, cpu - last[0]);
+                allocatedBytes += last == null ? allocated : Math.max(0L, allocated - last[1]);
+                current.put(id, new long[] {cpu, allocated});
+            }
+            this.previous.clear();
+            this.previous.putAll(current);
+            long elapsedNanos = nowNanos - this.lastSampleNanos;
+            boolean baseline = this.lastSampleNanos == 0L;
+            this.lastSampleNanos = nowNanos;
+            if (baseline || elapsedNanos <= 0) return;
+            this.metrics.getAgentCpuNanos().add(cpuNanos);
+            this.metrics.getAgentAllocatedBytes().add(allocatedBytes);
+            double cpuPercent = 100.0 * cpuNanos / elapsedNanos;
+            long allocationRate = (long) (allocatedBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos);
+            this.metrics.setAgentOverhead(cpuPercent, allocationRate);
+            this.adjustLevel(cpuPercent, allocationRate);
+        }
+    }
+
+    /**
+     * <p>Raises or lowers the degradation level according to the measured overhead. This is called by
+     * {@link #sample(long)}, and by tests that do not measure real threads.</p>
+     *
+     * @param cpuPercent CPU usage, as a percentage of one core.
+     * @param allocationRate allocation rate, in bytes per second.
+     */
+    /*package*/ void adjust(double cpuPercent, long allocationRate) {
+        synchronized (this.lock) {
+            this.adjustLevel(cpuPercent, allocationRate);
+        }
+    }
+
+    @GuardedBy("lock") private void adjustLevel(double cpuPercent, long allocationRate) {
+        boolean overCpu = this.cpuBudgetPercent > 0 && cpuPercent > this.cpuBudgetPercent;
+        boolean overAllocation = this.allocationBudget > 0 && allocationRate > this.allocationBudget;
+        int newLevel = this.level;
+        if (overCpu || overAllocation) {
+            this.samplesUnderBudget = 0;
+            if (newLevel < MAX_LEVEL) {
+                newLevel++;
+                this.metrics.getOverheadEscalations().increment();
+                LOGGER.info("Agent overhead ({}% CPU, {} bytes/s allocated) exceeds budget; degradation level is now {}.",
+                        String.format(Locale.ROOT, "%.2f", cpuPercent), allocationRate, newLevel);
+            }
+        } else if ((this.cpuBudgetPercent <= 0 || cpuPercent < this.cpuBudgetPercent / 2)
+                && (this.allocationBudget <= 0 || allocationRate < this.allocationBudget / 2)) {
+            if (newLevel > 0 && ++this.samplesUnderBudget >= RELAX_AFTER_SAMPLES) {
+                this.samplesUnderBudget = 0;
+                newLevel--;
+                LOGGER.info("Agent overhead is well within budget; degradation level is now {}.", newLevel);
+            }
+        } else {
+            this.samplesUnderBudget = 0;
+        }
+        this.level = newLevel;
+        this.metrics.setOverheadLevel(newLevel);
+    }
+
+}
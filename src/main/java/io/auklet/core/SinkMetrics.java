@@ -0,0 +1,39 @@
+package io.auklet.core;
+
+/**
+ * <p>State of the agent's data sink that is published by {@link AgentMetricsBean}. Values are read
+ * when the corresponding attribute is read, so implementations must be thread-safe and must not
+ * block.</p>
+ */
+public interface SinkMetrics {
+
+    /**
+     * <p>Returns the total size of the messages waiting to be sent because they could not be published
+     * immediately.</p>
+     *
+     * @return a non-negative value; zero if the sink does not buffer messages.
+     */
+    long getOutboundResidentBytes();
+
+    /**
+     * <p>Returns the number of waiting messages that were evicted to make room for newer ones.</p>
+     *
+     * @return a non-negative value; zero if the sink does not buffer messages.
+     */
+    long getOutboundEvictions();
+
+    /**
+     * <p>Returns the fraction of stack frame lookups that were found in the sink's cache of encoded frames.</p>
+     *
+     * @return a value between 0 and 1, or 0 if there have been no lookups.
+     */
+    double getFrameCacheHitRate();
+
+    /**
+     * <p>Returns the number of encoded frames that were evicted from the sink's cache to make room for others.</p>
+     *
+     * @return a non-negative value.
+     */
+    long getFrameCacheEvictions();
+
+}
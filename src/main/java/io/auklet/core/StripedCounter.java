@@ -0,0 +1,52 @@
+package io.auklet.core;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter that is spread over several cells, so that threads that update it at the same time
+ * rarely contend for the same cell (the idea behind Java 8's {@code LongAdder}, which is not available
+ * on Java 7). Each thread updates the cell chosen by its ID, and the cells are padded so that no two
+ * of them share a cache line. Updates do not allocate.</p>
+ */
+@ThreadSafe
+public final class StripedCounter {
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /** <p>Constructor.</p> */
+    public StripedCounter() {
+        int stripes = Stripes.count();
+        this.cells = new AtomicLongArray(stripes * Stripes.PADDING);
+        this.mask = stripes - 1;
+    }
+
+    /** <p>Adds one to this counter.</p> */
+    public void increment() {
+        this.add(1L);
+    }
+
+    /**
+     * <p>Adds the given value to this counter.</p>
+     *
+     * @param value the value.
+     */
+    public void add(long value) {
+        this.cells.getAndAdd(Stripes.of(this.mask) * Stripes.PADDING, value);
+    }
+
+    /**
+     * <p>Returns the sum of all updates. The sum is not an atomic snapshot if the counter is being
+     * updated concurrently.</p>
+     *
+     * @return the sum.
+     */
+    public long sum() {
+        long sum = 0L;
+        for (int i = 0; i < this.cells.length(); i += Stripes.PADDING) sum += this.cells.get(i);
+        return sum;
+    }
+
+}
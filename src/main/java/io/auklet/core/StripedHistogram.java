@@ -0,0 +1,150 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of non-negative values with power-of-two buckets: bucket 0 counts zeros, and bucket
+ * {@code n} counts values between 2<sup>n-1</sup> and 2<sup>n</sup>-1. Percentiles are therefore
+ * accurate to within a factor of two, which is enough to tell whether the agent is keeping up.</p>
+ *
+ * <p>Like {@link StripedCounter}, the buckets are spread over one stripe per processor, so that
+ * concurrent recording rarely contends. Recording does not allocate; only {@link #snapshot()} does.</p>
+ */
+@ThreadSafe
+public final class StripedHistogram {
+
+    private static final int BUCKETS = 64;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    // 64 buckets, the count and the sum, rounded up to a whole number of cache lines.
+    private static final int STRIPE_LENGTH = (SUM + Stripes.PADDING) / Stripes.PADDING * Stripes.PADDING;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private final AtomicLong max = new AtomicLong();
+
+    /** <p>Constructor.</p> */
+    public StripedHistogram() {
+        int stripes = Stripes.count();
+        this.cells = new AtomicLongArray(stripes * STRIPE_LENGTH);
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * <p>Records the given value.</p>
+     *
+     * @param value negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int base = Stripes.of(this.mask) * STRIPE_LENGTH;
+        this.cells.getAndIncrement(base + BUCKETS - Long.numberOfLeadingZeros(value));
+        this.cells.getAndIncrement(base + COUNT);
+        this.cells.getAndAdd(base + SUM, value);
+        long current;
+        while (value > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, value)) break;
+        }
+    }
+
+    /**
+     * <p>Returns a snapshot of the values recorded so far. The snapshot is not atomic if values are
+     * being recorded concurrently.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0L;
+        long sum = 0L;
+        for (int base = 0; base < this.cells.length(); base += STRIPE_LENGTH) {
+            for (int i = 0; i < BUCKETS; i++) buckets[i] += this.cells.get(base + i);
+            count += this.cells.get(base + COUNT);
+            sum += this.cells.get(base + SUM);
+        }
+        return new Snapshot(buckets, count, sum, this.max.get());
+    }
+
+    /** <p>The values recorded by a {@link StripedHistogram} up to some point in time.</p> */
+    @Immutable
+    public static final class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(@NonNull long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * <p>Returns the number of recorded values.</p>
+         *
+         * @return a non-negative value.
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * <p>Returns the sum of the recorded values.</p>
+         *
+         * @return a non-negative value.
+         */
+        public long getSum() {
+            return this.sum;
+        }
+
+        /**
+         * <p>Returns the largest recorded value.</p>
+         *
+         * @return zero if no values have been recorded.
+         */
+        public long getMax() {
+            return this.max;
+        }
+
+        /**
+         * <p>Returns the mean of the recorded values.</p>
+         *
+         * @return zero if no values have been recorded.
+         */
+        public double getMean() {
+            return this.count == 0 ? 0.0 : (double) this.sum / this.count;
+        }
+
+        /**
+         * <p>Returns an upper bound of the given percentile of the recorded values: the upper end of the
+         * bucket that contains it, or the largest recorded value if that is smaller.</p>
+         *
+         * @param percentile a value between 0 and 1.
+         * @return zero if no values have been recorded.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0L;
+            for (long bucket : this.buckets) total += bucket;
+            if (total == 0) return 0L;
+            long rank = (long) Math.ceil(Math.min(1.0, Math.max(0.0, percentile)) * total);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets[i];
+                if (seen >= rank && this.buckets[i] > 0) {
+                    long upper = i == 0 ? 0L : (i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, this.max);
+                }
+            }
+            return this.max;
+        }
+
+    }
+
+}
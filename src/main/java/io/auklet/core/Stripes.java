@@ -0,0 +1,39 @@
+package io.auklet.core;
+
+import net.jcip.annotations.Immutable;
+
+/** <p>Sizing and cell selection shared by {@link StripedCounter} and {@link StripedHistogram}.</p> */
+@Immutable
+/*package*/ final class Stripes {
+
+    /** <p>The number of longs in a 64-byte cache line; stripes are padded to a multiple of this.</p> */
+    /*package*/ static final int PADDING = 8;
+    private static final int MAX_STRIPES = 16;
+
+    private Stripes() {}
+
+    /**
+     * <p>Returns the number of stripes to use: the number of processors, rounded up to a power of two
+     * and capped at {@value #MAX_STRIPES}.</p>
+     *
+     * @return a power of two.
+     */
+    /*package*/ static int count() {
+        int processors = Math.min(MAX_STRIPES, Math.max(1, Runtime.getRuntime().availableProcessors()));
+        return processors == 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+    }
+
+    /**
+     * <p>Returns the stripe of the current thread.</p>
+     *
+     * @param mask the number of stripes, minus one.
+     * @return a value between zero and the mask.
+     */
+    /*package*/ static int of(int mask) {
+        long id = Thread.currentThread().getId();
+        // Thread IDs are sequential; spread them so that threads created together use different stripes.
+        int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & mask;
+    }
+
+}
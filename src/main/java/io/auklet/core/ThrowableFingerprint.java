@@ -0,0 +1,126 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.Immutable;
+
+/**
+ * <p>Computes a stable 64-bit fingerprint for a throwable, from its type, its normalized message and
+ * its topmost stack frames. Two throwables with the same fingerprint are considered duplicates of
+ * each other.</p>
+ *
+ * <p>Messages are normalized by collapsing every run of digits into a single {@code #} and by only
+ * considering the first {@value #MAX_MESSAGE_CHARS} characters, so that messages that only differ by
+ * IDs, ports, sizes or timestamps produce the same fingerprint. The fingerprint is an FNV-1a hash and
+ * does not allocate.</p>
+ */
+@Immutable
+public final class ThrowableFingerprint {
+
+    /** <p>The number of topmost stack frames that contribute to the fingerprint.</p> */
+    public static final int FRAMES = 5;
+    private static final int MAX_MESSAGE_CHARS = 256;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ThrowableFingerprint() {}
+
+    /**
+     * <p>Computes the fingerprint of the given throwable.</p>
+     *
+     * @param throwable never {@code null}.
+     * @return the fingerprint.
+     */
+    public static long of(@NonNull Throwable throwable) {
+        return of(throwable.getClass().getName(), throwable.getMessage(), throwable.getStackTrace());
+    }
+
+    /**
+     * <p>Computes the fingerprint of a throwable from parts that the caller already has, so that the
+     * throwable's stack trace does not have to be copied again.</p>
+     *
+     * @param className the fully qualified class name of the throwable. Never {@code null}.
+     * @param message the message of the throwable. May be {@code null}.
+     * @param stackTrace the stack trace of the throwable. Never {@code null}.
+     * @return the fingerprint.
+     */
+    public static long of(@NonNull String className, @Nullable String message, @NonNull StackTraceElement[] stackTrace) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, className);
+        hash = hashMessage(hash, message);
+        int frames = Math.min(FRAMES, stackTrace.length);
+        for (int i = 0; i < frames; i++) {
+            StackTraceElement frame = stackTrace[i];
+            hash = hash(hash, frame.getClassName());
+            hash = hash(hash, frame.getMethodName());
+            hash = mix(hash, frame.getLineNumber());
+        }
+        return hash;
+    }
+
+    /**
+     * <p>Returns the given fingerprint as a 16-character hexadecimal string.</p>
+     *
+     * @param fingerprint the fingerprint.
+     * @return never {@code null}.
+     */
+    @NonNull public static String toHex(long fingerprint) {
+        String hex = Long.toHexString(fingerprint);
+        if (hex.length() == 16) return hex;
+        StringBuilder padded = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) padded.append('0');
+        return padded.append(hex).toString();
+    }
+
+    /**
+     * <p>Adds the normalized form of the given message to the hash.</p>
+     *
+     * @param hash the hash so far.
+     * @param message possibly {@code null}.
+     * @return the new hash.
+     */
+    private static long hashMessage(long hash, @Nullable String message) {
+        if (message == null) return mix(hash, 0);
+        int length = Math.min(message.length(), MAX_MESSAGE_CHARS);
+        boolean inDigits = false;
+        for (int i = 0; i < length; i++) {
+            char c = message.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (inDigits) continue;
+                inDigits = true;
+                c = '#';
+            } else {
+                inDigits = false;
+            }
+            hash = mix(hash, c);
+        }
+        // Separate the message from whatever is hashed next.
+        return mix(hash, 0);
+    }
+
+    /**
+     * <p>Adds the given string to the hash.</p>
+     *
+     * @param hash the hash so far.
+     * @param s possibly {@code null}.
+     * @return the new hash.
+     */
+    private static long hash(long hash, @Nullable String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) hash = mix(hash, s.charAt(i));
+        }
+        return mix(hash, 0);
+    }
+
+    /**
+     * <p>Adds the given value to the hash.</p>
+     *
+     * @param hash the hash so far.
+     * @param value the value to add.
+     * @return the new hash.
+     */
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+}
@@ -0,0 +1,180 @@
+package io.auklet.core;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.Immutable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>The parts of a throwable that the agent reports: its type, message and stack trace, plus its
+ * {@link ThrowableFingerprint} and the time at which it was reported.</p>
+ *
+ * <p>The snapshot also includes snapshots of the throwable's cause and suppressed throwables, and of
+ * theirs, in turn. Each throwable in this graph is included at most once, so that cycles (e.g. a
+ * throwable that suppresses its own cause) terminate, and at most {@value #MAX_RELATED} related
+ * throwables are included.</p>
+ *
+ * <p>Snapshots are taken on the application thread when a throwable is passed to the agent, so that the
+ * agent's queues never hold a reference to the throwable itself, which could keep its cause chain and
+ * anything else that it references from being garbage collected for as long as it is queued.</p>
+ */
+@Immutable
+public final class ThrowableSnapshot {
+
+    /** <p>The maximum number of causes and suppressed throwables included in a snapshot.</p> */
+    public static final int MAX_RELATED = 32;
+    private static final ThrowableSnapshot[] NO_SUPPRESSED = new ThrowableSnapshot[0];
+
+    private final String className;
+    private final String message;
+    private final StackTraceElement[] stackTrace;
+    private final long fingerprint;
+    private final long timestamp;
+    private final ThrowableSnapshot cause;
+    private final ThrowableSnapshot[] suppressed;
+
+    private ThrowableSnapshot(@NonNull String className, @Nullable String message, @NonNull StackTraceElement[] stackTrace,
+                              long fingerprint, long timestamp, @Nullable ThrowableSnapshot cause, @NonNull ThrowableSnapshot[] suppressed) {
+        this.className = className;
+        this.message = message;
+        this.stackTrace = stackTrace;
+        this.fingerprint = fingerprint;
+        this.timestamp = timestamp;
+        this.cause = cause;
+        this.suppressed = suppressed;
+    }
+
+    /**
+     * <p>Takes a snapshot of the given throwable.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp when the throwable was reported, in milliseconds since the epoch.
+     * @return never {@code null}.
+     * @throws IllegalArgumentException if the throwable is {@code null}.
+     */
+    @NonNull public static ThrowableSnapshot of(@NonNull Throwable throwable, long timestamp) {
+        if (throwable == null) throw new IllegalArgumentException("Throwable is null.");
+        return of(throwable, timestamp, null);
+    }
+
+    /**
+     * <p>Takes a snapshot of the given throwable and of the related throwables that have not been
+     * seen yet. Each of the throwable's accessors is invoked once, since {@link Throwable#getStackTrace()}
+     * and {@link Throwable#getSuppressed()} return a new copy every time.</p>
+     *
+     * @param throwable never {@code null}.
+     * @param timestamp when the throwable was reported, in milliseconds since the epoch.
+     * @param seen the throwables already included in the snapshot, including this one. {@code null} for
+     * the top-level throwable, which is the only one that is fingerprinted.
+     * @return never {@code null}.
+     */
+    @NonNull private static ThrowableSnapshot of(@NonNull Throwable throwable, long timestamp, @Nullable Set<Throwable> seen) {
+        String className = throwable.getClass().getName();
+        String message = throwable.getMessage();
+        StackTraceElement[] stackTrace = throwable.getStackTrace();
+        long fingerprint = seen == null ? ThrowableFingerprint.of(className, message, stackTrace) : 0L;
+        ThrowableSnapshot[] suppressed = NO_SUPPRESSED;
+        Throwable[] suppressedThrowables = throwable.getSuppressed();
+        Throwable c = throwable.getCause();
+        // Most throwables have neither a cause nor suppressed throwables; do not allocate for them.
+        if (seen == null && (c != null || suppressedThrowables.length > 0)) {
+            seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+            seen.add(throwable);
+        }
+        if (suppressedThrowables.length > 0) {
+            List<ThrowableSnapshot> snapshots = new ArrayList<>(suppressedThrowables.length);
+            for (Throwable s : suppressedThrowables) {
+                if (isNew(s, seen)) snapshots.add(of(s, timestamp, seen));
+            }
+            suppressed = snapshots.toArray(NO_SUPPRESSED);
+        }
+        ThrowableSnapshot cause = c != null && isNew(c, seen) ? of(c, timestamp, seen) : null;
+        return new ThrowableSnapshot(className, message, stackTrace, fingerprint, timestamp, cause, suppressed);
+    }
+
+    /**
+     * <p>Marks the given related throwable as seen, unless it already was or the snapshot is full.</p>
+     *
+     * @param related may be {@code null}.
+     * @param seen never {@code null}.
+     * @return {@code true} if the throwable should be included in the snapshot.
+     */
+    private static boolean isNew(@Nullable Throwable related, @NonNull Set<Throwable> seen) {
+        // The set also holds the top-level throwable, which does not count against the limit.
+        return related != null && seen.size() <= MAX_RELATED && seen.add(related);
+    }
+
+    /**
+     * <p>Returns the fully qualified class name of the throwable.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public String getClassName() {
+        return this.className;
+    }
+
+    /**
+     * <p>Returns the message of the throwable.</p>
+     *
+     * @return possibly {@code null}.
+     */
+    @CheckForNull public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * <p>Returns the stack trace of the throwable. The array is shared, and must not be modified.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StackTraceElement[] getStackTrace() {
+        return this.stackTrace; //NOSONAR
+    }
+
+    /**
+     * <p>Returns the snapshot of the cause of the throwable.</p>
+     *
+     * @return {@code null} if the throwable has no cause, or if the cause was already included elsewhere
+     * in the snapshot, or if the snapshot is full.
+     */
+    @CheckForNull public ThrowableSnapshot getCause() {
+        return this.cause;
+    }
+
+    /**
+     * <p>Returns the snapshots of the throwables that were suppressed by the throwable, in the order in
+     * which they were suppressed. The array is shared, and must not be modified.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public ThrowableSnapshot[] getSuppressed() {
+        return this.suppressed; //NOSONAR
+    }
+
+    /**
+     * <p>Returns the fingerprint of the throwable. Only the top-level throwable of a snapshot is
+     * fingerprinted; the snapshots of its cause and suppressed throwables return zero.</p>
+     *
+     * @return the fingerprint.
+     * @see ThrowableFingerprint
+     */
+    public long getFingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * <p>Returns when the throwable was reported.</p>
+     *
+     * @return milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+}
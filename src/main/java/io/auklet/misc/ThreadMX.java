@@ -0,0 +1,87 @@
+package io.auklet.misc;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A frontend for {@link java.lang.management.ThreadMXBean} and {@link com.sun.management.ThreadMXBean},
+ * depending on whether or not the JVM implements these classes.</p>
+ *
+ * <p>Methods in this class return negative values if the underlying measurement is not supported or not
+ * enabled on this JVM, if the required classes are missing (e.g. on Android), or if the thread with the
+ * given ID is no longer alive. This class never enables measurements that the JVM has disabled.</p>
+ *
+ * <p>This is a singleton; use {@link #BEAN} to retrieve the instance. The {@link #BEAN} maintains no
+ * state and is thus immutable.</p>
+ */
+@Immutable
+public enum ThreadMX {
+
+    BEAN;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThreadMX.class);
+    private static final Object realBean;
+    private static final boolean CPU_TIME;
+    private static final boolean ALLOCATED_BYTES;
+
+    // See OSMX for why this is a static initializer.
+    static {
+        Object bean = null;
+        boolean cpuTime = false;
+        boolean allocatedBytes = false;
+        try {
+            java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+            bean = threads;
+            cpuTime = threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        } catch (NoClassDefFoundError e) {
+            LOGGER.warn("java.lang.management classes do not exist; agent thread CPU time will not be available.");
+        } catch (UnsupportedOperationException | SecurityException e) {
+            LOGGER.warn("Thread CPU time is not available on this JVM.");
+        }
+        if (bean != null) {
+            try {
+                if (bean instanceof com.sun.management.ThreadMXBean) { // NOSONAR
+                    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean; // NOSONAR
+                    allocatedBytes = sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled();
+                }
+            } catch (NoClassDefFoundError e) {
+                LOGGER.warn("com.sun.management.ThreadMXBean does not exist; agent thread allocations will not be available.");
+            } catch (UnsupportedOperationException | SecurityException e) {
+                LOGGER.warn("Thread allocation measurement is not available on this JVM.");
+            }
+        }
+        realBean = bean;
+        CPU_TIME = cpuTime;
+        ALLOCATED_BYTES = allocatedBytes;
+    }
+
+    public boolean isThreadCpuTimeAvailable() {
+        return CPU_TIME;
+    }
+    public boolean isThreadAllocatedBytesAvailable() {
+        return ALLOCATED_BYTES;
+    }
+    public long getThreadCpuTime(long id) {
+        long value = -1;
+        if (CPU_TIME) value = get().getThreadCpuTime(id);
+        return value;
+    }
+    public long getThreadAllocatedBytes(long id) {
+        long value = -1;
+        if (ALLOCATED_BYTES) value = asSun().getThreadAllocatedBytes(id);
+        return value;
+    }
+
+    // These methods return the realBean object cast to the appropriate type.
+    // Calls to these methods must always be guarded by checking the corresponding
+    // boolean flag via an if/else statement, as in OSMX.
+    @NonNull private static java.lang.management.ThreadMXBean get() {
+        return (java.lang.management.ThreadMXBean) realBean;
+    }
+    @NonNull private static com.sun.management.ThreadMXBean asSun() {
+        return (com.sun.management.ThreadMXBean) realBean;
+    }
+
+}
@@ -36,6 +36,7 @@ public final class AndroidMetrics {
     @GuardedBy("lock") private long workBefore = 0L;
     @GuardedBy("lock") private long workDiff = 0L;
     @GuardedBy("lock") private float cpuUsage = 0;
+    @GuardedBy("lock") private final long[] times = new long[2];
 
     /**
      * <p>Constructor.</p>
@@ -64,17 +65,20 @@ public final class AndroidMetrics {
             @Override
             public void run() {
                 // Obtain current CPU load.
-                String[] s;
+                String line;
                 try (BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"))) {
-                    s = reader.readLine().split("[ ]+", 9);
+                    line = reader.readLine();
                 } catch (IOException e) {
                     LOGGER.warn("Unable to obtain CPU usage", e);
                     return;
                 }
                 synchronized (lock) {
-                    work = Long.parseLong(s[1]) + Long.parseLong(s[2]) + Long.parseLong(s[3]);
-                    total = work + Long.parseLong(s[4]) + Long.parseLong(s[5]) +
-                            Long.parseLong(s[6]) + Long.parseLong(s[7]);
+                    if (!ProcStat.parseCpuLine(line, times)) {
+                        LOGGER.warn("Unable to parse CPU usage: {}", line);
+                        return;
+                    }
+                    work = times[ProcStat.WORK];
+                    total = times[ProcStat.TOTAL];
                     // Calculate CPU Percentage
                     if (totalBefore != 0) {
                         workDiff = work - workBefore;
@@ -0,0 +1,62 @@
+package io.auklet.platform.metrics;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.Immutable;
+
+/**
+ * <p>Parses the aggregate CPU line of the Linux {@code /proc/stat} file, which looks like:</p>
+ *
+ * <pre>cpu  4705 356 584 3699176 23060 0 277 0 0 0</pre>
+ *
+ * <p>The fields after the label are the time spent in user, nice, system, idle, iowait, irq and softirq
+ * mode (followed by fields that are not used here). Parsing does not allocate, because it runs once a
+ * second for as long as the agent runs.</p>
+ */
+@Immutable
+public final class ProcStat {
+
+    /** <p>The index of the work time (user + nice + system) in the array filled by {@link #parseCpuLine(String, long[])}.</p> */
+    public static final int WORK = 0;
+    /** <p>The index of the total time (work + idle + iowait + irq + softirq) in the array filled by {@link #parseCpuLine(String, long[])}.</p> */
+    public static final int TOTAL = 1;
+    private static final int FIELDS = 7;
+
+    private ProcStat() {}
+
+    /**
+     * <p>Parses the given line.</p>
+     *
+     * @param line the first line of {@code /proc/stat}. May be {@code null}.
+     * @param times an array of at least 2 elements, into which the work and total times are written at
+     * {@link #WORK} and {@link #TOTAL} if parsing succeeds.
+     * @return {@code false} if the line is {@code null}, or does not have a label followed by at least
+     * {@value #FIELDS} numeric fields.
+     */
+    public static boolean parseCpuLine(@Nullable String line, long[] times) {
+        if (line == null) return false;
+        int length = line.length();
+        int i = 0;
+        // Skip the label.
+        while (i < length && line.charAt(i) != ' ') i++;
+        long work = 0L;
+        long total = 0L;
+        for (int field = 0; field < FIELDS; field++) {
+            while (i < length && line.charAt(i) == ' ') i++;
+            if (i == length) return false;
+            long value = 0L;
+            int start = i;
+            char c;
+            while (i < length && (c = line.charAt(i)) >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                i++;
+            }
+            if (i == start || (i < length && line.charAt(i) != ' ')) return false;
+            if (field < 3) work += value;
+            total += value;
+        }
+        times[WORK] = work;
+        times[TOTAL] = total;
+        return true;
+    }
+
+}
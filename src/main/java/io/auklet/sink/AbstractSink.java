@@ -4,9 +4,18 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
+import io.auklet.config.FrameDictionary;
+import io.auklet.core.AgentMetrics;
+import io.auklet.core.Event;
 import io.auklet.core.HasAgent;
+import io.auklet.core.Instrumentation;
+import io.auklet.core.OverheadGovernor;
+import io.auklet.core.SinkMetrics;
+import io.auklet.core.ThrowableFingerprint;
+import io.auklet.core.ThrowableSnapshot;
+import io.auklet.platform.Platform;
 import io.auklet.util.Util;
-import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 import org.msgpack.core.MessageBufferPacker;
 import org.msgpack.core.MessagePack;
@@ -14,92 +23,618 @@ import org.msgpack.core.MessagePacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 /**
- * <p>Base class of all Auklet agent data sinks. Each implementation provides a {@link MessagePacker} that
- * is used to construct MessagePack payloads that are then sent to the underlying output in the
- * {@link MessagePacker} object (e.g. an {@code OutputStream}).</p>
+ * <p>Base class of all Auklet agent data sinks. Events are assembled into MessagePack payloads using
+ * packers borrowed from a {@link MessagePackerPool}, so that multiple threads can assemble events at
+ * the same time; the finished payload is then handed to {@link #write(byte[])}, which sends it to the
+ * underlying output (e.g. an {@code OutputStream}).</p>
  *
- * <p>Subclasses are thread-safe as long as they synchronize on {@link #msgpack}.</p>
+ * <p>If compression is enabled, payloads are compressed by a {@link PayloadCompressor} just before they
+ * are written, so every sink sends compressed payloads the same way.</p>
+ *
+ * <p>Payloads are not necessarily written as soon as they are assembled; the {@link EmissionScheduler}
+ * may batch them together according to the emission period set in the agent's data usage config.</p>
+ *
+ * <p>Subclasses are thread-safe as long as their implementation of {@link #write(byte[])} is
+ * thread-safe. Subclasses must invoke {@code super.start(agent)} when they are started.</p>
  */
 @ThreadSafe
-public abstract class AbstractSink extends HasAgent implements Sink {
+public abstract class AbstractSink extends HasAgent implements Sink, SinkMetrics {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractSink.class);
-    @GuardedBy("itself") protected final MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker();
+    private final MessagePackerPool packers = new MessagePackerPool();
+    private final StackFrameCache frames = new StackFrameCache();
+    private final EventWriter mapWriter = EventWriter.forMap(this.frames);
+    private final EmissionScheduler emitter = new EmissionScheduler(this, this.packers);
+    private volatile EnvelopeTemplate envelope = null;
+    private volatile EncodedMetrics systemMetrics = null;
+    private volatile PayloadCompressor compressor = null;
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        this.setAgent(agent);
+        if (agent.isCompressionEnabled()) this.compressor = new PayloadCompressor(agent.getCompressionDictionary(), agent.getCompressionThreshold());
+        this.emitter.start(agent);
+    }
 
     @Override public void shutdown() {
-        synchronized (this.msgpack) {
-            try {
-                this.msgpack.close();
-            } catch (IOException e) {
-                LOGGER.warn("Error while shutting down MessagePacker.", e);
-            }
+        try {
+            this.emitter.flush();
+        } catch (AukletException e) {
+            LOGGER.warn("Could not emit pending events during shutdown.", e);
         }
+        this.packers.clear();
+        this.frames.clear();
+        PayloadCompressor current = this.compressor;
+        this.compressor = null;
+        if (current != null) current.shutdown();
     }
 
-    @Override public void send(@Nullable Throwable throwable) throws AukletException {
-        if (throwable == null) return;
-        StackTraceElement[] stackTrace = throwable.getStackTrace();
-        // Assemble the complete message.
-        synchronized (this.msgpack) {
-            this.msgpack.clear();
-            try {
-                this.initMessage(11);
-                this.msgpack
-                        .packString("timestamp").packLong(System.currentTimeMillis())
-                        .packString("excType").packString(throwable.getClass().getName())
-                        .packString("message").packString(Util.orElse(throwable.getMessage(), ""))
-                        .packString("stackTrace").packArrayHeader(stackTrace.length);
-                for (StackTraceElement ste : stackTrace) {
-                    int lineNumber = ste.getLineNumber();
-                    this.msgpack.packMapHeader(4)
-                            .packString("functionName").packString(ste.getMethodName())
-                            .packString("className").packString(ste.getClassName())
-                            .packString("filePath").packString(Util.orElse(ste.getFileName(), ""))
-                            // Normalize all negative return values.
-                            .packString("lineNumber").packInt(lineNumber < 0 ? -1 : lineNumber);
-                }
-                this.msgpack.flush();
-            } catch (IOException e) {
-                throw new AukletException("Could not assemble event message.", e);
-            }
-            byte[] payload = this.msgpack.toByteArray();
-            if (payload == null || payload.length == 0) return;
-            this.write(payload);
+    @Override public void send(@Nullable Event event) throws AukletException {
+        if (event == null) return;
+        EnvelopeTemplate template = this.envelope;
+        if (template == null) {
+            this.refreshEnvelope();
+            template = this.envelope;
+        }
+        Auklet agent = this.getAgent();
+        OverheadGovernor governor = agent.getGovernor();
+        StackTraceReducer reducer = agent.getStackTraceReducer();
+        WireFormat format = agent.getEventFormat();
+        FrameDictionary dictionary = agent.getFrameDictionary();
+        // Without a dictionary, the best that both sides accept is the compact format.
+        if (format == WireFormat.DICTIONARY && !dictionary.isEnabled()) format = WireFormat.COMPACT;
+        int maxStackFrames = governor.getMaxStackFrames();
+        int stackFrames = countFrames(event.getSnapshot());
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.SERIALIZATION);
+        int writtenFrames;
+        byte[] payload;
+        MessagePackerPool.Entry entry = this.packers.acquire();
+        try {
+            writtenFrames = this.packMessage(entry, event, template, agent.getPlatform(), format, dictionary, reducer, maxStackFrames, governor.getSystemMetricsIntervalMillis());
+            payload = entry.toByteArray();
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event message.", e);
+        } finally {
+            this.packers.release(entry);
+        }
+        span.setBytes(payload.length);
+        span.setCount(writtenFrames);
+        span.finish();
+        if (payload.length == 0) return;
+        AgentMetrics metrics = agent.getMetrics();
+        if (event.getSnapshot().getStackTrace().length > maxStackFrames && maxStackFrames < reducer.getMaxDepth()) {
+            metrics.getStacksTruncatedByGovernor().increment();
+        }
+        if (writtenFrames < stackFrames) metrics.getStackFramesElided().add(stackFrames - writtenFrames);
+        metrics.getEventsSerialized().increment();
+        metrics.getEventBytes().record(payload.length);
+        this.emitter.submit(payload);
+    }
+
+    /**
+     * <p>Assembles the complete message for the given event.</p>
+     *
+     * @param event never {@code null}.
+     * @param template the pre-encoded envelope. Never {@code null}.
+     * @param platform the platform that provides the system metrics. Never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if the message cannot be assembled.
+     */
+    @NonNull /*package*/ final byte[] serialize(@NonNull Event event, @NonNull EnvelopeTemplate template, @NonNull Platform platform) throws AukletException {
+        return this.serialize(event, template, platform, WireFormat.MAP, null, StackTraceReducer.NONE, Integer.MAX_VALUE, 0L);
+    }
+
+    /**
+     * <p>Assembles the complete message for the given event in the given format, reduced per the given
+     * {@link StackTraceReducer} and degraded per the {@link OverheadGovernor}.</p>
+     *
+     * @param event never {@code null}.
+     * @param template the pre-encoded envelope. Never {@code null}.
+     * @param platform the platform that provides the system metrics. Never {@code null}.
+     * @param format the wire format. Never {@code null}.
+     * @param dictionary the dictionary through which frames are referenced in the
+     * {@link WireFormat#DICTIONARY} format. Ignored in other formats.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include, in addition to the reducer's
+     * own depth cap.
+     * @param systemMetricsIntervalMillis how long previously encoded system metrics may be reused. If zero
+     * or less, they are read from the platform for this event.
+     * @return never {@code null}.
+     * @throws AukletException if the message cannot be assembled.
+     */
+    @NonNull /*package*/ final byte[] serialize(@NonNull Event event, @NonNull EnvelopeTemplate template, @NonNull Platform platform,
+                                                 @NonNull WireFormat format, @Nullable FrameDictionary dictionary,
+                                                 @NonNull StackTraceReducer reducer, int maxStackFrames,
+                                                 long systemMetricsIntervalMillis) throws AukletException {
+        MessagePackerPool.Entry entry = this.packers.acquire();
+        try {
+            this.packMessage(entry, event, template, platform, format, dictionary, reducer, maxStackFrames, systemMetricsIntervalMillis);
+            return entry.toByteArray();
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event message.", e);
+        } finally {
+            this.packers.release(entry);
+        }
+    }
+
+    /**
+     * <p>Same as {@link #serialize(Event, EnvelopeTemplate, Platform, WireFormat, FrameDictionary,
+     * StackTraceReducer, int, long)}, but packs the message into the given pool entry, so that the
+     * number of stack frames that were included can be returned without allocating a holder for it.</p>
+     *
+     * @param entry the entry into which the message is packed. Never {@code null}.
+     * @return the number of stack frames that were included, including those of related throwables.
+     * @throws AukletException if the system metrics cannot be encoded.
+     * @throws IOException if the message cannot be packed.
+     */
+    private int packMessage(@NonNull MessagePackerPool.Entry entry, @NonNull Event event, @NonNull EnvelopeTemplate template,
+                            @NonNull Platform platform, @NonNull WireFormat format, @Nullable FrameDictionary dictionary,
+                            @NonNull StackTraceReducer reducer, int maxStackFrames,
+                            long systemMetricsIntervalMillis) throws AukletException, IOException {
+        byte[] encodedMetrics = systemMetricsIntervalMillis > 0 ? this.getEncodedSystemMetrics(platform, systemMetricsIntervalMillis) : null;
+        int mapSize = EnvelopeTemplate.FIELD_COUNT + 2 + countEventEntries(event, format, reducer, maxStackFrames);
+        MessagePacker msgpack = entry.getPacker();
+        if (format == WireFormat.MAP) {
+            initMessage(msgpack, this.mapWriter, mapSize, template, platform, encodedMetrics);
+            return packEvent(msgpack, event, this.mapWriter, reducer, maxStackFrames);
         }
+        // The string tables are only complete once the event has been packed, but must precede it.
+        EventWriter writer = new CompactEventWriter(format == WireFormat.DICTIONARY ? dictionary : null);
+        MessagePackerPool.Entry body = this.packers.acquire();
+        try {
+            int writtenFrames = packEvent(body.getPacker(), event, writer, reducer, maxStackFrames);
+            initMessage(msgpack, writer, mapSize, template, platform, encodedMetrics);
+            body.writeTo(msgpack);
+            return writtenFrames;
+        } finally {
+            this.packers.release(body);
+        }
+    }
+
+    /**
+     * <p>Rebuilds the pre-encoded part of the event message that is common to all events, if any of the
+     * values it contains have changed. This is done automatically before the first event is sent; it
+     * must be invoked again whenever one of those values (e.g. the {@link io.auklet.config.DeviceAuth})
+     * changes afterwards.</p>
+     *
+     * @throws AukletException if the agent reference has not been set, or if the template cannot be
+     * assembled.
+     */
+    public final void refreshEnvelope() throws AukletException {
+        Auklet agent = this.getAgent();
+        String appId = agent.getAppId();
+        String macHash = agent.getMacHash();
+        String ipAddress = agent.getIpAddress();
+        String deviceId = agent.getDeviceAuth().getClientUsername();
+        EnvelopeTemplate current = this.envelope;
+        if (current != null && current.hasValues(appId, macHash, ipAddress, Auklet.VERSION, deviceId)) return;
+        this.envelope = EnvelopeTemplate.create(appId, macHash, ipAddress, Auklet.VERSION, deviceId);
     }
 
     /**
-     * <p>Writes the given byte array to the underlying data sink.</p>
+     * <p>Returns the cache of encoded stack frames used by this sink.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public StackFrameCache getFrameCache() {
+        return this.frames;
+    }
+
+    /** <p>This sink does not buffer messages, so this returns zero unless overridden.</p> */
+    @Override public long getOutboundResidentBytes() {
+        return 0L;
+    }
+
+    /** <p>This sink does not buffer messages, so this returns zero unless overridden.</p> */
+    @Override public long getOutboundEvictions() {
+        return 0L;
+    }
+
+    @Override public double getFrameCacheHitRate() {
+        return this.frames.getHitRate();
+    }
+
+    @Override public long getFrameCacheEvictions() {
+        return this.frames.getEvictionCount();
+    }
+
+    /**
+     * <p>Returns the scheduler that decides when assembled events are written by this sink.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public EmissionScheduler getEmissionScheduler() {
+        return this.emitter;
+    }
+
+    /**
+     * <p>Writes the given byte array to the underlying data sink. This method may be invoked by multiple
+     * threads at the same time.</p>
      *
      * @param bytes the byte array, never {@code null} or empty.
      * @throws AukletException if the data cannot be written.
      */
-    @GuardedBy("msgpack") protected abstract void write(@NonNull byte[] bytes) throws AukletException;
+    protected abstract void write(@NonNull byte[] bytes) throws AukletException;
+
+    /**
+     * <p>Compresses the given payload, if compression is enabled and the payload is large enough, and
+     * writes it to the underlying data sink. This method may be invoked by multiple threads at the same
+     * time.</p>
+     *
+     * @param payload the payload, never {@code null} or empty.
+     * @throws AukletException if the payload cannot be written.
+     */
+    /*package*/ final void emit(@NonNull byte[] payload) throws AukletException {
+        PayloadCompressor current = this.compressor;
+        if (current == null) {
+            this.write(payload);
+            return;
+        }
+        byte[] compressed;
+        try {
+            compressed = current.compress(payload);
+        } catch (IOException e) {
+            throw new AukletException("Could not compress payload.", e);
+        }
+        if (compressed != payload) this.getAgent().getMetrics().getBytesSavedByCompression().add((long) payload.length - compressed.length);
+        this.write(compressed);
+    }
+
+    /**
+     * <p>Adds the timestamp, exception type, message and stack trace of the given event to the current
+     * position in the given MessagePacker as map entries (4 entries). If the event is an aggregate of
+     * duplicates, its fingerprint, number of occurrences and first/last occurrence timestamps are also
+     * added (4 more entries). If events were dropped since the previous event was sent, their number is
+     * also added (1 more entry). If duplicates of the event were skipped by sampling, its sample weight is
+     * also added (1 more entry). If the throwable has a cause or suppressed throwables, they are also
+     * added (1 more entry each). See {@link #countEventEntries(Event)}.</p>
+     *
+     * <p>The cause is added as a map with the same {@code excType}, {@code message} and
+     * {@code stackTrace} entries, and with {@code cause} and {@code suppressed} entries of its own if
+     * needed; the suppressed throwables are added as an array of such maps. As in
+     * {@link Throwable#printStackTrace()}, the frames that a related throwable has in common with the
+     * bottom of the stack trace of the throwable that encloses it are left out, and their number is added
+     * to its map as {@code framesInCommon}.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param event never {@code null}.
+     * @param frames the cache of encoded stack frames. Never {@code null}.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    /*package*/ static void packEvent(@NonNull MessagePacker msgpack, @NonNull Event event, @NonNull StackFrameCache frames) throws IOException {
+        packEvent(msgpack, event, EventWriter.forMap(frames), StackTraceReducer.NONE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * <p>Same as {@link #packEvent(MessagePacker, Event, StackFrameCache)}, but in the given writer's
+     * {@link WireFormat}, and reduces the message and stack trace with the given
+     * {@link StackTraceReducer}. When the reducer replaces parts of the stack trace, the
+     * {@code stackTrace} array contains, besides frames, marker maps:</p>
+     *
+     * <ul>
+     *   <li>{@code {"repeat": n, "cycleLength": m}}: the next {@code m} frames repeat {@code n} times back
+     *   to back.</li>
+     *   <li>{@code {"elidedFrames": n, "package": p}}: {@code n} frames in package {@code p} were left
+     *   out. {@code package} is absent if the frames were left out to cap the depth of the stack
+     *   trace.</li>
+     * </ul>
+     *
+     * <p>The map format has no markers (see {@link WireFormat#hasStackTraceMarkers()}), so in that format
+     * stack traces are only cut to the depth cap, keeping the topmost frames, and the number of frames
+     * cut from all of them is added to the event as {@code elidedFrames}.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param event never {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include, in addition to the reducer's
+     * own depth cap.
+     * @return the number of stack frames that were included, including those of related throwables.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    /*package*/ static int packEvent(@NonNull MessagePacker msgpack, @NonNull Event event, @NonNull EventWriter writer,
+                                     @NonNull StackTraceReducer reducer, int maxStackFrames) throws IOException {
+        if (event.isAggregate()) {
+            writer.packKey(msgpack, WireFormat.Field.FINGERPRINT);
+            writer.packFingerprint(msgpack, event.getFingerprint());
+            writer.packKey(msgpack, WireFormat.Field.OCCURRENCES);
+            msgpack.packInt(event.getOccurrences());
+            writer.packKey(msgpack, WireFormat.Field.FIRST_TIMESTAMP);
+            msgpack.packLong(event.getFirstTimestamp());
+            writer.packKey(msgpack, WireFormat.Field.LAST_TIMESTAMP);
+            msgpack.packLong(event.getLastTimestamp());
+        }
+        if (event.getDroppedEvents() > 0) {
+            writer.packKey(msgpack, WireFormat.Field.DROPPED_EVENTS);
+            msgpack.packLong(event.getDroppedEvents());
+        }
+        if (event.getSampleWeight() > 1) {
+            writer.packKey(msgpack, WireFormat.Field.SAMPLE_WEIGHT);
+            msgpack.packDouble(event.getSampleWeight());
+        }
+        ThrowableSnapshot snapshot = event.getSnapshot();
+        int truncated = countTruncatedFrames(snapshot, writer.getFormat(), reducer, maxStackFrames);
+        if (truncated > 0) {
+            writer.packKey(msgpack, WireFormat.Field.ELIDED_FRAMES);
+            msgpack.packInt(truncated);
+        }
+        writer.packKey(msgpack, WireFormat.Field.TIMESTAMP);
+        msgpack.packLong(event.getFirstTimestamp());
+        int written = packThrowable(msgpack, snapshot, snapshot.getStackTrace(), writer, reducer, maxStackFrames);
+        return written + packRelated(msgpack, snapshot, writer, reducer, maxStackFrames);
+    }
+
+    /**
+     * <p>Returns the number of map entries that {@link #packEvent(MessagePacker, Event, StackFrameCache)}
+     * adds for the given event.</p>
+     *
+     * @param event never {@code null}.
+     * @return at least 4.
+     */
+    /*package*/ static int countEventEntries(@NonNull Event event) {
+        ThrowableSnapshot snapshot = event.getSnapshot();
+        return 4 + (event.isAggregate() ? 4 : 0) + (event.getDroppedEvents() > 0 ? 1 : 0) + (event.getSampleWeight() > 1 ? 1 : 0)
+                + (snapshot.getCause() != null ? 1 : 0) + (snapshot.getSuppressed().length > 0 ? 1 : 0);
+    }
+
+    /**
+     * <p>Returns the number of map entries that {@link #packEvent(MessagePacker, Event, EventWriter, StackTraceReducer, int)}
+     * adds for the given event in the given format.</p>
+     *
+     * @param event never {@code null}.
+     * @param format never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include per throwable.
+     * @return at least 4.
+     */
+    private static int countEventEntries(@NonNull Event event, @NonNull WireFormat format, @NonNull StackTraceReducer reducer, int maxStackFrames) {
+        int entries = countEventEntries(event);
+        return countTruncatedFrames(event.getSnapshot(), format, reducer, maxStackFrames) > 0 ? entries + 1 : entries;
+    }
+
+    /**
+     * <p>Returns the number of frames that are cut from the stack traces of the given snapshot and of its
+     * related throwables in formats without stack trace markers.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @param format never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include per throwable.
+     * @return zero if the format has markers.
+     */
+    private static int countTruncatedFrames(@NonNull ThrowableSnapshot snapshot, @NonNull WireFormat format, @NonNull StackTraceReducer reducer, int maxStackFrames) {
+        if (format.hasStackTraceMarkers()) return 0;
+        int depth = reducer.getDepth(maxStackFrames);
+        return depth == Integer.MAX_VALUE ? 0 : countTruncatedFrames(snapshot, snapshot.getStackTrace().length, depth);
+    }
+
+    /**
+     * <p>Returns the number of frames that are cut from the stack traces of the given snapshot and of its
+     * related throwables when each is cut to the given depth.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @param frames the number of frames of the snapshot that are sent, i.e. not in common with its
+     * enclosing throwable.
+     * @param depth the maximum number of frames per throwable.
+     * @return a non-negative value.
+     */
+    private static int countTruncatedFrames(@NonNull ThrowableSnapshot snapshot, int frames, int depth) {
+        int count = Math.max(0, frames - depth);
+        StackTraceElement[] enclosingTrace = snapshot.getStackTrace();
+        for (ThrowableSnapshot related : snapshot.getSuppressed()) {
+            StackTraceElement[] stackTrace = related.getStackTrace();
+            count += countTruncatedFrames(related, stackTrace.length - countFramesInCommon(stackTrace, enclosingTrace), depth);
+        }
+        ThrowableSnapshot cause = snapshot.getCause();
+        if (cause != null) {
+            StackTraceElement[] stackTrace = cause.getStackTrace();
+            count += countTruncatedFrames(cause, stackTrace.length - countFramesInCommon(stackTrace, enclosingTrace), depth);
+        }
+        return count;
+    }
+
+    /**
+     * <p>Adds the {@code excType}, {@code message} and {@code stackTrace} entries of the given throwable to
+     * the current position in the given MessagePacker.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param snapshot never {@code null}.
+     * @param stackTrace the frames of the throwable to include. Never {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include.
+     * @return the number of stack frames that were included.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    private static int packThrowable(@NonNull MessagePacker msgpack, @NonNull ThrowableSnapshot snapshot, @NonNull StackTraceElement[] stackTrace,
+                                     @NonNull EventWriter writer, @NonNull StackTraceReducer reducer, int maxStackFrames) throws IOException {
+        writer.packKey(msgpack, WireFormat.Field.EXC_TYPE);
+        writer.packClassName(msgpack, snapshot.getClassName());
+        writer.packKey(msgpack, WireFormat.Field.MESSAGE);
+        msgpack.packString(Util.orElse(reducer.reduceMessage(snapshot.getMessage()), ""));
+        writer.packKey(msgpack, WireFormat.Field.STACK_TRACE);
+        return packStackTrace(msgpack, stackTrace, writer, reducer, maxStackFrames);
+    }
+
+    /**
+     * <p>Adds the {@code cause} and {@code suppressed} entries of the given snapshot, if it has related
+     * throwables, to the current position in the given MessagePacker.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param enclosing the snapshot whose related throwables are added. Never {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include per throwable.
+     * @return the number of stack frames that were included.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    private static int packRelated(@NonNull MessagePacker msgpack, @NonNull ThrowableSnapshot enclosing, @NonNull EventWriter writer,
+                                   @NonNull StackTraceReducer reducer, int maxStackFrames) throws IOException {
+        int written = 0;
+        StackTraceElement[] enclosingTrace = enclosing.getStackTrace();
+        ThrowableSnapshot[] suppressed = enclosing.getSuppressed();
+        if (suppressed.length > 0) {
+            writer.packKey(msgpack, WireFormat.Field.SUPPRESSED);
+            msgpack.packArrayHeader(suppressed.length);
+            for (ThrowableSnapshot related : suppressed) written += packRelatedThrowable(msgpack, related, enclosingTrace, writer, reducer, maxStackFrames);
+        }
+        ThrowableSnapshot cause = enclosing.getCause();
+        if (cause != null) {
+            writer.packKey(msgpack, WireFormat.Field.CAUSE);
+            written += packRelatedThrowable(msgpack, cause, enclosingTrace, writer, reducer, maxStackFrames);
+        }
+        return written;
+    }
+
+    /**
+     * <p>Adds the given cause or suppressed throwable, as a map, to the current position in the given
+     * MessagePacker.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param related never {@code null}.
+     * @param enclosingTrace the stack trace of the throwable that encloses the related throwable. Never
+     * {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include per throwable.
+     * @return the number of stack frames that were included.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    private static int packRelatedThrowable(@NonNull MessagePacker msgpack, @NonNull ThrowableSnapshot related, @NonNull StackTraceElement[] enclosingTrace,
+                                            @NonNull EventWriter writer, @NonNull StackTraceReducer reducer, int maxStackFrames) throws IOException {
+        StackTraceElement[] stackTrace = related.getStackTrace();
+        int inCommon = countFramesInCommon(stackTrace, enclosingTrace);
+        StackTraceElement[] unique = inCommon == 0 ? stackTrace : Arrays.copyOf(stackTrace, stackTrace.length - inCommon);
+        int entries = 3 + (inCommon > 0 ? 1 : 0) + (related.getCause() != null ? 1 : 0) + (related.getSuppressed().length > 0 ? 1 : 0);
+        msgpack.packMapHeader(entries);
+        int written = packThrowable(msgpack, related, unique, writer, reducer, maxStackFrames);
+        if (inCommon > 0) {
+            writer.packKey(msgpack, WireFormat.Field.FRAMES_IN_COMMON);
+            msgpack.packInt(inCommon);
+        }
+        return written + packRelated(msgpack, related, writer, reducer, maxStackFrames);
+    }
+
+    /**
+     * <p>Returns the number of frames at the bottom of the given stack trace that are the same as the
+     * frames at the bottom of the enclosing stack trace.</p>
+     *
+     * @param stackTrace never {@code null}.
+     * @param enclosingTrace never {@code null}.
+     * @return a non-negative value.
+     */
+    private static int countFramesInCommon(@NonNull StackTraceElement[] stackTrace, @NonNull StackTraceElement[] enclosingTrace) {
+        int m = stackTrace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && stackTrace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        return stackTrace.length - 1 - m;
+    }
+
+    /**
+     * <p>Returns the number of stack frames of the given snapshot and of all of its related throwables.</p>
+     *
+     * @param snapshot never {@code null}.
+     * @return a non-negative value.
+     */
+    private static int countFrames(@NonNull ThrowableSnapshot snapshot) {
+        int count = snapshot.getStackTrace().length;
+        for (ThrowableSnapshot related : snapshot.getSuppressed()) count += countFrames(related);
+        ThrowableSnapshot cause = snapshot.getCause();
+        return cause == null ? count : count + countFrames(cause);
+    }
+
+    /**
+     * <p>Adds the given stack trace, reduced per the given {@link StackTraceReducer}, as an array to the
+     * current position in the given MessagePacker. In formats without stack trace markers, the stack
+     * trace is only cut to the depth cap.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param stackTrace never {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
+     * @param reducer the stack trace reduction policies. Never {@code null}.
+     * @param maxStackFrames the maximum number of stack frames to include, in addition to the reducer's
+     * own depth cap.
+     * @return the number of stack frames that were included.
+     * @throws IOException if an error occurs while assembling the message.
+     */
+    private static int packStackTrace(@NonNull MessagePacker msgpack, @NonNull StackTraceElement[] stackTrace, @NonNull EventWriter writer,
+                                      @NonNull StackTraceReducer reducer, int maxStackFrames) throws IOException {
+        if (!writer.getFormat().hasStackTraceMarkers()) {
+            // Without markers, frames can only be cut; the event carries the number of frames cut.
+            int written = Math.min(stackTrace.length, reducer.getDepth(maxStackFrames));
+            msgpack.packArrayHeader(written);
+            for (int i = 0; i < written; i++) writer.packFrame(msgpack, stackTrace[i]);
+            return written;
+        }
+        List<StackTraceReducer.Entry> reduced = reducer.reduce(stackTrace, maxStackFrames);
+        if (reduced == null) {
+            msgpack.packArrayHeader(stackTrace.length);
+            for (StackTraceElement frame : stackTrace) writer.packFrame(msgpack, frame);
+            return stackTrace.length;
+        }
+        int size = 0;
+        for (StackTraceReducer.Entry entry : reduced) size += entry.getWrittenFrames() + (entry.getWrittenFrames() == 1 && entry.getRepeats() == 1 ? 0 : 1);
+        msgpack.packArrayHeader(size);
+        int written = 0;
+        for (StackTraceReducer.Entry entry : reduced) {
+            if (entry.getElidedFrames() > 0) {
+                String pkg = entry.getPackage();
+                msgpack.packMapHeader(pkg == null ? 1 : 2);
+                writer.packKey(msgpack, WireFormat.Field.ELIDED_FRAMES);
+                msgpack.packInt(entry.getElidedFrames());
+                if (pkg != null) {
+                    writer.packKey(msgpack, WireFormat.Field.PACKAGE);
+                    writer.packClassName(msgpack, pkg);
+                }
+            } else if (entry.getRepeats() > 1) {
+                msgpack.packMapHeader(2);
+                writer.packKey(msgpack, WireFormat.Field.REPEAT);
+                msgpack.packInt(entry.getRepeats());
+                writer.packKey(msgpack, WireFormat.Field.CYCLE_LENGTH);
+                msgpack.packInt(entry.getWrittenFrames());
+            }
+            for (StackTraceElement frame : entry.getFrames()) writer.packFrame(msgpack, frame);
+            written += entry.getWrittenFrames();
+        }
+        return written;
+    }
 
     /**
      * <p>Starts assembling an Auklet-compatible MessagePack message, which is defined as a MessagePack
-     * map with at least 7 elements in it.</p>
+     * map with at least 7 elements in it: the pre-encoded envelope, the event ID and the system
+     * metrics. In the compact format, the map also starts with the format version and the string
+     * tables, which are not included in the given map size.</p>
      *
+     * @param msgpack never {@code null}.
+     * @param writer the writer for the wire format. Never {@code null}.
      * @param mapSize the size of the map message.
+     * @param template the pre-encoded envelope. Never {@code null}.
+     * @param platform the platform that provides the system metrics. Never {@code null}.
+     * @param encodedMetrics previously encoded system metrics. If {@code null}, they are read from the
+     * platform.
      * @throws AukletException if the map size is less than 7, or if an error occurs while assembling the
      * message payload.
      */
-    @GuardedBy("msgpack") private void initMessage(int mapSize) throws AukletException {
-        if (mapSize < 7) throw new AukletException("Message size is too small.");
+    private static void initMessage(@NonNull MessagePacker msgpack, @NonNull EventWriter writer, int mapSize, @NonNull EnvelopeTemplate template,
+                                    @NonNull Platform platform, @Nullable byte[] encodedMetrics) throws AukletException {
+        if (mapSize < EnvelopeTemplate.FIELD_COUNT + 2) throw new AukletException("Message size is too small.");
         try {
-            this.msgpack.packMapHeader(mapSize)
-                    .packString("id").packString(UUID.randomUUID().toString())
-                    .packString("application").packString(this.getAgent().getAppId())
-                    .packString("macAddressHash").packString(this.getAgent().getMacHash())
-                    .packString("publicIP").packString(this.getAgent().getIpAddress())
-                    .packString("systemMetrics");
-            this.addSystemMetrics();
-            this.msgpack.packString("agentVersion").packString(Auklet.VERSION)
-                    .packString("device").packString(this.getAgent().getDeviceAuth().getClientUsername());
+            msgpack.packMapHeader(mapSize + writer.getTableFields());
+            writer.packTables(msgpack);
+            template.writeTo(msgpack, writer.getFormat());
+            writer.packKey(msgpack, WireFormat.Field.ID);
+            writer.packId(msgpack, UUID.randomUUID());
+            writer.packKey(msgpack, WireFormat.Field.SYSTEM_METRICS);
+            if (encodedMetrics == null) addSystemMetrics(msgpack, platform);
+            else msgpack.writePayload(encodedMetrics);
         } catch (IOException | IllegalArgumentException e) {
             throw new AukletException("Error while assembling msgpack payload.", e);
         }
@@ -108,17 +643,56 @@ public abstract class AbstractSink extends HasAgent implements Sink {
     /**
      * <p>Adds system metrics to the current position in the given MessagePacker as a map object.</p>
      *
+     * @param msgpack never {@code null}.
+     * @param platform the platform that provides the system metrics. Never {@code null}.
      * @throws AukletException if an error occurs while assembling the message.
      */
-    @GuardedBy("msgpack") private void addSystemMetrics() throws AukletException {
+    private static void addSystemMetrics(@NonNull MessagePacker msgpack, @NonNull Platform platform) throws AukletException {
         try {
-            this.msgpack.packMapHeader(4);
-            this.getAgent().getPlatform().addSystemMetrics(this.msgpack);
+            msgpack.packMapHeader(4);
+            platform.addSystemMetrics(msgpack);
             // Add other system metrics.
-            this.msgpack.packString("outboundNetwork").packDouble(0);
-            this.msgpack.packString("inboundNetwork").packDouble(0);
+            msgpack.packString("outboundNetwork").packDouble(0);
+            msgpack.packString("inboundNetwork").packDouble(0);
         } catch (IOException e) {
             throw new AukletException("Error while assembling msgpack payload.", e);
         }
     }
+
+    /**
+     * <p>Returns the system metrics map, encoded, re-reading it from the platform if the previously
+     * encoded map is older than the given interval.</p>
+     *
+     * @param platform the platform that provides the system metrics. Never {@code null}.
+     * @param intervalMillis how long the encoded map may be reused.
+     * @return never {@code null}.
+     * @throws AukletException if an error occurs while encoding the metrics.
+     */
+    @NonNull private byte[] getEncodedSystemMetrics(@NonNull Platform platform, long intervalMillis) throws AukletException {
+        long now = System.currentTimeMillis();
+        EncodedMetrics cached = this.systemMetrics;
+        if (cached == null || now - cached.timestamp >= intervalMillis) {
+            // Concurrent refreshes are harmless; the last one wins.
+            MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker();
+            addSystemMetrics(msgpack, platform);
+            cached = new EncodedMetrics(msgpack.toByteArray(), now);
+            this.systemMetrics = cached;
+        }
+        return cached.encoded;
+    }
+
+    /** <p>A system metrics map that was encoded at some point in time.</p> */
+    @Immutable
+    private static final class EncodedMetrics {
+
+        private final byte[] encoded;
+        private final long timestamp;
+
+        private EncodedMetrics(@NonNull byte[] encoded, long timestamp) {
+            this.encoded = encoded;
+            this.timestamp = timestamp;
+        }
+
+    }
+
 }
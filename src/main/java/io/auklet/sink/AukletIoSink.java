@@ -1,31 +1,58 @@
 package io.auklet.sink;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
 import io.auklet.config.AukletIoBrokers;
 import io.auklet.config.AukletIoCert;
+import io.auklet.core.AgentMetrics;
 import io.auklet.core.AukletDaemonExecutor;
+import io.auklet.core.DaemonLane;
+import io.auklet.core.DataUsageMonitor;
+import io.auklet.core.Instrumentation;
 import io.auklet.util.ThreadUtil;
 import io.auklet.net.X509Trust;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.Collections;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-/** <p>The default Auklet data sink, which sends data to {@code auklet.io} via MQTT.</p> */
+/**
+ * <p>The default Auklet data sink, which sends data to {@code auklet.io} via MQTT.</p>
+ *
+ * <p>Messages that cannot be published immediately (because the client is disconnected, or because
+ * too many messages are already in flight) are held in an {@link OutboundBuffer}, and are published in
+ * order once the client reconnects or in-flight messages are acknowledged. The storage limit in the data
+ * usage config bounds the buffer and the MQTT client's in-flight store together: one
+ * {@value #IN_FLIGHT_SHARE_DIVISOR}th of it goes to the in-flight store, and the rest to the buffer.</p>
+ */
 @ThreadSafe
 public final class AukletIoSink extends AbstractSink {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AukletIoSink.class);
+    private static final String STORE_DIR = "mqtt";
+    private static final String OUTBOUND_FILE = "outbound";
+    // Only a few messages are in flight at a time, so the in-flight store needs a small share of the budget.
+    private static final int IN_FLIGHT_SHARE_DIVISOR = 8;
     private final Object lock = new Object();
     @GuardedBy("lock") private AukletDaemonExecutor executorService;
     @GuardedBy("lock") private MqttAsyncClient client;
+    @GuardedBy("lock") private ScheduledFuture<?> flushTask;
+    // Set once during start-up; read without the lock by MQTT callbacks, which must not block.
+    private volatile OutboundBuffer outbound;
+    private volatile SegmentFilePersistence persistence;
+    // Only one drain needs to be queued at a time; every delivery acknowledgement would otherwise queue another.
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
 
     /**
      * <p>Constructs the underlying MQTT client.</p>
@@ -34,7 +61,7 @@ public final class AukletIoSink extends AbstractSink {
      * the SSL cert/broker config cannot be obtained.
      */
     @Override public void start(@NonNull Auklet agent) throws AukletException {
-        this.setAgent(agent);
+        super.start(agent);
         LOGGER.info("Establishing MQTT client.");
         try {
             AukletIoCert cert = new AukletIoCert();
@@ -46,32 +73,65 @@ public final class AukletIoSink extends AbstractSink {
             // MQTT threads must be daemon threads or else the JVM will hang on shutdown.
             this.executorService = new AukletDaemonExecutor(agent.getMqttThreads(), ThreadUtil.createDaemonThreadFactory("AukletPahoMQTT-%d"));
             org.eclipse.paho.client.mqttv3.logging.LoggerFactory.setLogger("io.auklet.misc.PahoLogger");
-            this.client = new MqttAsyncClient(brokers.getUrl(), agent.getDeviceAuth().getClientId(), new MemoryPersistence(), new TimerPingSender(), executorService);
+            // Undelivered messages are kept on disk so that they survive a restart.
+            long storageLimit = agent.getUsageMonitor().getUsageConfig().getStorageLimit();
+            if (storageLimit < 1) storageLimit = SegmentFilePersistence.DEFAULT_MAX_BYTES;
+            long inFlightLimit = storageLimit / IN_FLIGHT_SHARE_DIVISOR;
+            File storeDir = new File(agent.getConfigDir(), STORE_DIR);
+            this.persistence = new SegmentFilePersistence(storeDir, inFlightLimit);
+            this.outbound = this.openOutboundBuffer(new File(storeDir, OUTBOUND_FILE), storageLimit - inFlightLimit);
+            // Stored messages are flushed to the storage device in the background, not on every publish.
+            this.flushTask = agent.scheduleRepeatingTask(DaemonLane.BLOCKING_IO, this.createFlushTask(),
+                    SegmentFilePersistence.FORCE_PERIOD_MILLIS, SegmentFilePersistence.FORCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            this.client = new MqttAsyncClient(brokers.getUrl(), agent.getDeviceAuth().getClientId(), this.persistence, new TimerPingSender(), executorService);
             this.client.setCallback(this.getCallback());
-            this.client.setBufferOpts(this.getDisconnectBufferOptions(agent));
             // Wait 10 seconds for connect to succeed, then give up.
             this.client.connect(this.getConnectOptions(agent, cert.getCert())).waitForCompletion(10000L);
         } catch (MqttException e) {
             this.shutdown();
             throw new AukletException("Could not initialize MQTT sink.", e);
+        } catch (AukletException | RuntimeException e) {
+            // Release the store lock, the mapped buffer file and the flush task opened above.
+            this.shutdown();
+            throw e;
         }
     }
 
     @Override protected void write(@NonNull byte[] bytes) throws AukletException {
         synchronized (this.lock) {
-            try {
-                MqttMessage message = new MqttMessage(bytes);
-                message.setQos(1);
-                int size = bytes.length;
-                boolean willExceedLimit = this.getAgent().getUsageMonitor().willExceedLimit(size);
-                if (!willExceedLimit) {
-                    client.publish(this.getAgent().getDeviceAuth().getMqttEventsTopic(), message);
-                    this.getAgent().getUsageMonitor().addMoreData(size);
-                }
-            } catch (MqttException e) {
-                throw new AukletException("Error while publishing MQTT message.", e);
+            OutboundBuffer buffer = this.outbound;
+            // Preserve ordering: if older messages are waiting, this one must wait behind them.
+            if ((buffer == null || buffer.isEmpty()) && this.publish(bytes)) return;
+            if (buffer == null || !buffer.offer(bytes)) {
+                this.getAgent().getMetrics().getMessagesDroppedByOverload().increment();
+                LOGGER.warn("Dropping MQTT message that cannot be buffered ({} bytes).", bytes.length);
+                return;
             }
+            // While disconnected, the buffer is drained once the client reconnects.
+            if (this.client == null || !this.client.isConnected()) return;
         }
+        // The last acknowledgement may have arrived while the buffer was still empty, in which case no
+        // drain is pending; without this, the message would wait for the next reconnect.
+        this.scheduleDrain();
+    }
+
+    /**
+     * <p>Returns the buffer that holds messages that could not be published immediately.</p>
+     *
+     * @return {@code null} if this sink has not been started.
+     */
+    @CheckForNull public OutboundBuffer getOutboundBuffer() {
+        return this.outbound;
+    }
+
+    @Override public long getOutboundResidentBytes() {
+        OutboundBuffer buffer = this.outbound;
+        return buffer == null ? 0L : buffer.getResidentBytes();
+    }
+
+    @Override public long getOutboundEvictions() {
+        OutboundBuffer buffer = this.outbound;
+        return buffer == null ? 0L : buffer.getEvictedCount();
     }
 
     @Override public void shutdown() {
@@ -103,20 +163,188 @@ public final class AukletIoSink extends AbstractSink {
                 } catch (MqttException e) {
                     LOGGER.warn("Error while closing MQTT client.", e);
                 }
+            } else if (this.persistence != null) {
+                // The client closes the store itself; without a client, it must be closed here.
+                try {
+                    this.persistence.close();
+                } catch (MqttPersistenceException e) {
+                    LOGGER.warn("Error while closing MQTT message store.", e);
+                }
             }
             ThreadUtil.shutdown(this.executorService);
+            if (this.flushTask != null) {
+                this.flushTask.cancel(false);
+                this.flushTask = null;
+            }
+            if (this.outbound != null) this.outbound.close();
+        }
+        // A clean disconnect does not invoke the connectionLost() callback.
+        this.recordConnectionState(false, false);
+    }
+
+    /**
+     * <p>Publishes the given message, unless doing so would exceed the data usage limit, in which case
+     * the message is dropped.</p>
+     *
+     * @param bytes the message. Never {@code null}.
+     * @return {@code false} if the message could not be published right now (because the client is
+     * disconnected or has too many messages in flight) and should be retried later, {@code true}
+     * otherwise.
+     * @throws AukletException if an error occurs while publishing the message.
+     */
+    @GuardedBy("lock") private boolean publish(@NonNull byte[] bytes) throws AukletException {
+        if (this.client == null || !this.client.isConnected()) return false;
+        Auklet agent = this.getAgent();
+        DataUsageMonitor usageMonitor = agent.getUsageMonitor();
+        int size = bytes.length;
+        Instrumentation instrumentation = Instrumentation.get();
+        Instrumentation.Span quotaCheck = instrumentation.begin(Instrumentation.Kind.QUOTA_CHECK);
+        boolean reserved = usageMonitor.reserve(size);
+        quotaCheck.setBytes(size);
+        quotaCheck.setSuccess(reserved);
+        quotaCheck.finish();
+        if (!reserved) {
+            agent.getMetrics().getMessagesDroppedByQuota().increment();
+            return true;
+        }
+        Instrumentation.Span publish = instrumentation.begin(Instrumentation.Kind.MQTT_PUBLISH);
+        publish.setBytes(size);
+        // Finished by the callback when the broker acknowledges the message.
+        Instrumentation.Span ack = instrumentation.begin(Instrumentation.Kind.MQTT_ACK);
+        ack.setBytes(size);
+        try {
+            MqttMessage message = new MqttMessage(bytes);
+            message.setQos(1);
+            this.client.publish(agent.getDeviceAuth().getMqttEventsTopic(), message, ack, null);
+            usageMonitor.commit(size);
+            agent.getMetrics().getMessagesPublished().increment();
+            publish.setSuccess(true);
+            publish.finish();
+            return true;
+        } catch (MqttException e) {
+            publish.finish();
+            usageMonitor.release(size);
+            switch (e.getReasonCode()) {
+                case MqttException.REASON_CODE_CLIENT_NOT_CONNECTED:
+                case MqttException.REASON_CODE_CLIENT_DISCONNECTING:
+                case MqttException.REASON_CODE_MAX_INFLIGHT:
+                    return false;
+                default:
+                    throw new AukletException("Error while publishing MQTT message.", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Publishes buffered messages, oldest first, until the buffer is empty or a message cannot be
+     * published right now.</p>
+     */
+    private void drainOutbound() {
+        OutboundBuffer buffer = this.outbound;
+        if (buffer == null) return;
+        synchronized (this.lock) {
+            byte[] bytes;
+            while ((bytes = buffer.peek()) != null) {
+                try {
+                    if (!this.publish(bytes)) return;
+                } catch (AukletException e) {
+                    LOGGER.warn("Dropping buffered MQTT message that could not be published.", e);
+                }
+                buffer.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Records a change of the MQTT connection state in the agent's metrics.</p>
+     *
+     * @param connected whether the client is now connected.
+     * @param reconnect whether the client has reconnected after losing its connection.
+     */
+    private void recordConnectionState(boolean connected, boolean reconnect) {
+        try {
+            AgentMetrics metrics = this.getAgent().getMetrics();
+            metrics.setMqttConnected(connected);
+            if (reconnect) metrics.getMqttReconnects().increment();
+        } catch (AukletException e) {
+            LOGGER.warn("Could not record MQTT connection state.", e);
+        }
+    }
+
+    /**
+     * <p>Schedules {@link #drainOutbound()} in the agent's delivery lane, if any messages are buffered
+     * and no drain is already waiting to run.</p>
+     */
+    private void scheduleDrain() {
+        OutboundBuffer buffer = this.outbound;
+        if (buffer == null || buffer.isEmpty()) return;
+        if (!this.drainScheduled.compareAndSet(false, true)) return;
+        try {
+            this.getAgent().newTimeout(DaemonLane.DELIVERY, new Runnable() {
+                @Override public void run() {
+                    // Cleared first, so that messages buffered while draining schedule another drain.
+                    drainScheduled.set(false);
+                    drainOutbound();
+                }
+            }, 0L, TimeUnit.MILLISECONDS);
+        } catch (AukletException e) {
+            this.drainScheduled.set(false);
+            LOGGER.warn("Could not schedule publishing of buffered MQTT messages.", e);
         }
     }
 
+    /**
+     * <p>Opens the outbound message buffer.</p>
+     *
+     * @param file the buffer file. Never {@code null}.
+     * @param storageLimit the share of the storage limit from the data usage config that the buffer may use.
+     * @return never {@code null}. If the buffer file cannot be opened, the returned buffer rejects all
+     * messages.
+     */
+    @NonNull private OutboundBuffer openOutboundBuffer(@NonNull File file, long storageLimit) {
+        OutboundBuffer buffer = new OutboundBuffer(file, storageLimit);
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create directory: " + dir);
+            buffer.open();
+        } catch (IOException | SecurityException e) {
+            LOGGER.warn("Could not open outbound MQTT buffer; messages will be dropped while disconnected.", e);
+        }
+        return buffer;
+    }
+
+    /**
+     * <p>Creates the periodic task that flushes stored messages to the storage device.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createFlushTask() {
+        return new Runnable() {
+            @Override public void run() {
+                SegmentFilePersistence store = persistence;
+                if (store != null) store.flush();
+                OutboundBuffer buffer = outbound;
+                if (buffer != null) buffer.flush();
+            }
+        };
+    }
+
     /**
      * <p>Returns the MQTT callback object used by the MQTT client.</p>
      *
      * @return never {@code null}.
      */
     @NonNull private MqttCallback getCallback() {
-        return new MqttCallback() {
+        return new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                recordConnectionState(true, reconnect);
+                scheduleDrain();
+            }
+
             @Override
             public void connectionLost(Throwable cause) {
+                recordConnectionState(false, false);
                 LOGGER.error("Unexpected disconnect from MQTT.", cause);
             }
 
@@ -127,31 +355,14 @@ public final class AukletIoSink extends AbstractSink {
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken token) {
-                // TODO: handle what happens when MQTT message delivery completes
+                Object context = token.getUserContext();
+                if (context instanceof Instrumentation.Span) ((Instrumentation.Span) context).finish();
+                // A slot for an in-flight message has opened up.
+                scheduleDrain();
             }
         };
     }
 
-    /**
-     * <p>Returns the MQTT disconnected buffer options object.</p>
-     *
-     * @param agent the Auklet agent reference. Never {@code null}.
-     * @return never {@code null}.
-     * @throws AukletException if the options object cannot be constructed, or if any argument is {@code null}.
-     */
-    @NonNull private DisconnectedBufferOptions getDisconnectBufferOptions(@NonNull Auklet agent) throws AukletException {
-        if (agent == null) throw new AukletException("Auklet agent is null.");
-        // Divide by 5KB to get amount of messages.
-        long storageLimit = agent.getUsageMonitor().getUsageConfig().getStorageLimit();
-        int bufferSize = (storageLimit == 0) ? 5000 : (int) storageLimit / 5000;
-        DisconnectedBufferOptions disconnectOptions = new DisconnectedBufferOptions();
-        disconnectOptions.setBufferEnabled(true);
-        disconnectOptions.setDeleteOldestMessages(true);
-        disconnectOptions.setPersistBuffer(true);
-        disconnectOptions.setBufferSize(bufferSize);
-        return disconnectOptions;
-    }
-
     /**
      * <p>Returns the MQTT connect options object.</p>
      *
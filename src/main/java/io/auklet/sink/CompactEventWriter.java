@@ -0,0 +1,153 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.config.FrameDictionary;
+import net.jcip.annotations.NotThreadSafe;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>Writes the {@link WireFormat#COMPACT} format. Keys are packed as the integer tags of their
+ * {@link WireFormat.Field}, and strings that tend to repeat are interned in two string tables, and
+ * packed as their index in the table:</p>
+ *
+ * <ul>
+ *   <li>The {@link WireFormat.Field#CLASSES} table holds class and package names. It is packed as an
+ *   array of alternating integers and strings: each name is the given number of leading characters of
+ *   the previous name, followed by the given string.</li>
+ *   <li>The {@link WireFormat.Field#NAMES} table holds method and file names. It is packed as an array of
+ *   strings.</li>
+ * </ul>
+ *
+ * <p>A stack frame is packed as an array of the index of its class name, the index of its method name,
+ * the index of its file name (or nil if the file name is unknown) and its line number (or -1 if it is
+ * unknown). In the {@link WireFormat#DICTIONARY} format, a frame that the backend already holds in the
+ * {@link FrameDictionary} is packed as its dictionary ID instead, and a message that contains such IDs
+ * carries the ID of the dictionary in an additional table entry.</p>
+ *
+ * <p>Because the tables are only complete once the rest of the message has been written, a writer is
+ * used for one message only: the body of the message is written first, into a separate buffer, and then
+ * {@link #packTables(MessagePacker)} is written ahead of it.</p>
+ */
+@NotThreadSafe
+/*package*/ final class CompactEventWriter extends EventWriter {
+
+    private static final int TABLE_FIELDS = 3;
+    private final StringTable classes = new StringTable();
+    private final StringTable names = new StringTable();
+    private final FrameDictionary dictionary;
+    private boolean referencedDictionary = false;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param dictionary the dictionary through which frames are referenced. If {@code null}, the writer
+     * writes the {@link WireFormat#COMPACT} format; otherwise, the {@link WireFormat#DICTIONARY} format.
+     */
+    CompactEventWriter(@Nullable FrameDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    @NonNull @Override WireFormat getFormat() {
+        return this.dictionary == null ? WireFormat.COMPACT : WireFormat.DICTIONARY;
+    }
+
+    @Override void packClassName(@NonNull MessagePacker msgpack, @NonNull String className) throws IOException {
+        msgpack.packInt(this.classes.indexOf(className));
+    }
+
+    @Override void packFrame(@NonNull MessagePacker msgpack, @NonNull StackTraceElement frame) throws IOException {
+        int id = this.dictionary == null ? -1 : this.dictionary.lookup(frame);
+        if (id >= 0) {
+            msgpack.packInt(id);
+            this.referencedDictionary = true;
+            return;
+        }
+        String fileName = frame.getFileName();
+        int lineNumber = frame.getLineNumber();
+        msgpack.packArrayHeader(4)
+                .packInt(this.classes.indexOf(frame.getClassName()))
+                .packInt(this.names.indexOf(frame.getMethodName()));
+        if (fileName == null) msgpack.packNil();
+        else msgpack.packInt(this.names.indexOf(fileName));
+        // Normalize all negative return values.
+        msgpack.packInt(lineNumber < 0 ? -1 : lineNumber);
+    }
+
+    @Override void packId(@NonNull MessagePacker msgpack, @NonNull UUID id) throws IOException {
+        // 16 bytes instead of a 36-character string.
+        byte[] bytes = ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+        msgpack.packBinaryHeader(bytes.length).writePayload(bytes);
+    }
+
+    @Override void packFingerprint(@NonNull MessagePacker msgpack, long fingerprint) throws IOException {
+        msgpack.packLong(fingerprint);
+    }
+
+    @Override int getTableFields() {
+        return this.referencedDictionary ? TABLE_FIELDS + 1 : TABLE_FIELDS;
+    }
+
+    /** <p>Packs the format version, the dictionary ID if any frame refers to it, and the string tables.</p> */
+    @Override void packTables(@NonNull MessagePacker msgpack) throws IOException {
+        this.packKey(msgpack, WireFormat.Field.VERSION);
+        msgpack.packInt(this.getFormat().getVersion());
+        if (this.referencedDictionary) {
+            this.packKey(msgpack, WireFormat.Field.DICTIONARY);
+            this.packId(msgpack, this.dictionary.getDictionaryId());
+        }
+        this.packKey(msgpack, WireFormat.Field.CLASSES);
+        msgpack.packArrayHeader(this.classes.size * 2);
+        String previous = "";
+        for (int i = 0; i < this.classes.size; i++) {
+            String current = this.classes.strings[i];
+            int shared = sharedPrefixLength(previous, current);
+            msgpack.packInt(shared).packString(current.substring(shared));
+            previous = current;
+        }
+        this.packKey(msgpack, WireFormat.Field.NAMES);
+        msgpack.packArrayHeader(this.names.size);
+        for (int i = 0; i < this.names.size; i++) msgpack.packString(this.names.strings[i]);
+    }
+
+    /**
+     * <p>Returns the number of leading characters that the given strings have in common, without
+     * splitting a surrogate pair.</p>
+     */
+    private static int sharedPrefixLength(@NonNull String previous, @NonNull String current) {
+        int max = Math.min(previous.length(), current.length());
+        int shared = 0;
+        while (shared < max && previous.charAt(shared) == current.charAt(shared)) shared++;
+        if (shared > 0 && shared < current.length() && Character.isLowSurrogate(current.charAt(shared))) shared--;
+        return shared;
+    }
+
+    /** <p>Strings in the order in which they were first seen.</p> */
+    private static final class StringTable {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private String[] strings = new String[16];
+        private int size = 0;
+
+        private int indexOf(@NonNull String string) {
+            Integer index = this.indexes.get(string);
+            if (index != null) return index;
+            if (this.size == this.strings.length) {
+                String[] grown = new String[this.size * 2];
+                System.arraycopy(this.strings, 0, grown, 0, this.size);
+                this.strings = grown;
+            }
+            this.strings[this.size] = string;
+            this.indexes.put(string, this.size);
+            return this.size++;
+        }
+
+    }
+
+}
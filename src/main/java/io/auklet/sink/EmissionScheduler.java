@@ -0,0 +1,300 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.Auklet;
+import io.auklet.AukletException;
+import io.auklet.core.DaemonLane;
+import io.auklet.core.DataUsageConfig;
+import io.auklet.core.HashedWheelTimer;
+import io.auklet.core.HasAgent;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessagePacker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Decides when serialized events are written to a sink, per the emission period defined in the
+ * {@link DataUsageConfig}.</p>
+ *
+ * <p>If the emission period is zero, every event is written as soon as it is submitted. Otherwise,
+ * the first event submitted to an empty batch schedules a flush one emission period later, and every
+ * event submitted until then is added to the batch. The batch is also flushed early if it grows
+ * beyond {@value #MAX_BATCH_BYTES} bytes. A flushed batch is written as a single MessagePack array of
+ * event maps, which saves one MQTT message (and one broker acknowledgement) per event; a batch that
+ * contains only one event is written as that event's map, exactly as if batching were disabled.</p>
+ *
+ * <p>The emission period is re-read each time a new batch is started, so changes made by refreshing
+ * the {@link io.auklet.config.DataUsageLimit} config take effect with the next batch.</p>
+ *
+ * <p>The flush runs in the {@linkplain DaemonLane#DELIVERY delivery} lane, whose queue is bounded. If
+ * the lane rejects the flush, it is re-armed {@value #REJECTED_FLUSH_RETRY_MILLIS}ms later; and if an
+ * event is submitted after the batch's flush was due (e.g. because the flush is still waiting in a
+ * backed-up lane), the batch is written by the submitting thread instead.</p>
+ */
+@ThreadSafe
+public final class EmissionScheduler extends HasAgent {
+
+    /** <p>The batch size, in bytes, beyond which a batch is flushed without waiting for the emission period.</p> */
+    public static final int MAX_BATCH_BYTES = 64 * 1024;
+    /** <p>The delay, in milliseconds, after which a flush rejected by the delivery lane is retried.</p> */
+    public static final long REJECTED_FLUSH_RETRY_MILLIS = 50L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmissionScheduler.class);
+
+    private final AbstractSink sink;
+    private final MessagePackerPool packers;
+    private final FlushTimer timer;
+    private final Runnable flushTask = this.createFlushTask();
+    private final Executor flushExecutor = this.createFlushExecutor();
+    private final Object lock = new Object();
+    @GuardedBy("lock") private List<byte[]> pending = new ArrayList<>();
+    @GuardedBy("lock") private int pendingBytes = 0;
+    @GuardedBy("lock") private HashedWheelTimer.Timeout flushTimeout = null;
+    @GuardedBy("lock") private long flushDeadline = 0L;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param sink the sink to which batches are written. Never {@code null}.
+     * @param packers the pool of packers used to assemble batches. Never {@code null}.
+     */
+    /*package*/ EmissionScheduler(@NonNull AbstractSink sink, @NonNull MessagePackerPool packers) {
+        this(sink, packers, null);
+    }
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param sink the sink to which batches are written. Never {@code null}.
+     * @param packers the pool of packers used to assemble batches. Never {@code null}.
+     * @param timer the source of the emission period and of flush timers; if {@code null}, the agent
+     * passed to {@link #start(Auklet)} is used.
+     */
+    /*package*/ EmissionScheduler(@NonNull AbstractSink sink, @NonNull MessagePackerPool packers, @CheckForNull FlushTimer timer) {
+        if (sink == null) throw new IllegalArgumentException("Sink is null.");
+        if (packers == null) throw new IllegalArgumentException("Packer pool is null.");
+        this.sink = sink;
+        this.packers = packers;
+        this.timer = timer == null ? this.createAgentTimer() : timer;
+    }
+
+    @Override public void start(@NonNull Auklet agent) throws AukletException {
+        this.setAgent(agent);
+    }
+
+    /**
+     * <p>Submits a serialized event for emission.</p>
+     *
+     * @param payload the serialized event. Never {@code null} or empty.
+     * @throws AukletException if the event was written immediately and the write failed, or if the
+     * batch it was added to was flushed early and the write failed.
+     */
+    public void submit(@NonNull byte[] payload) throws AukletException {
+        List<byte[]> batch = null;
+        synchronized (this.lock) {
+            if (this.pending.isEmpty()) {
+                long emissionPeriod = this.timer.getEmissionPeriod();
+                if (emissionPeriod > 0) {
+                    this.flushTimeout = this.timer.newTimeout(this.flushExecutor, this.flushTask, emissionPeriod);
+                    this.flushDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(emissionPeriod);
+                } else {
+                    batch = new ArrayList<>(1);
+                    batch.add(payload);
+                }
+            }
+            if (batch == null) {
+                this.pending.add(payload);
+                this.pendingBytes += payload.length;
+                if (this.pendingBytes >= MAX_BATCH_BYTES || System.nanoTime() - this.flushDeadline >= 0) batch = this.takeBatch();
+            }
+        }
+        if (batch != null) this.write(batch);
+    }
+
+    /**
+     * <p>Writes the current batch, if any, to the sink immediately.</p>
+     *
+     * @throws AukletException if the batch cannot be written.
+     */
+    public void flush() throws AukletException {
+        List<byte[]> batch;
+        synchronized (this.lock) {
+            batch = this.takeBatch();
+        }
+        if (batch != null) this.write(batch);
+    }
+
+    /**
+     * <p>Returns the number of events waiting in the current batch.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int getPendingCount() {
+        synchronized (this.lock) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * <p>Removes the current batch and cancels its scheduled flush.</p>
+     *
+     * @return {@code null} if the batch is empty.
+     */
+    @GuardedBy("lock") @CheckForNull private List<byte[]> takeBatch() {
+        if (this.flushTimeout != null) {
+            this.flushTimeout.cancel();
+            this.flushTimeout = null;
+        }
+        if (this.pending.isEmpty()) return null;
+        List<byte[]> batch = this.pending;
+        this.pending = new ArrayList<>(batch.size());
+        this.pendingBytes = 0;
+        return batch;
+    }
+
+    /**
+     * <p>Writes the given batch to the sink.</p>
+     *
+     * @param batch never {@code null} or empty.
+     * @throws AukletException if the batch cannot be assembled or written.
+     */
+    private void write(@NonNull List<byte[]> batch) throws AukletException {
+        if (batch.size() == 1) {
+            this.sink.emit(batch.get(0));
+            return;
+        }
+        byte[] payload;
+        MessagePackerPool.Entry entry = this.packers.acquire();
+        try {
+            MessagePacker msgpack = entry.getPacker();
+            msgpack.packArrayHeader(batch.size());
+            for (byte[] event : batch) msgpack.writePayload(event);
+            payload = entry.toByteArray();
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event batch.", e);
+        } finally {
+            this.packers.release(entry);
+        }
+        LOGGER.debug("Emitting batch of {} events ({} bytes).", batch.size(), payload.length);
+        this.sink.emit(payload);
+    }
+
+    /**
+     * <p>Creates the task that flushes the current batch when the emission period elapses.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Runnable createFlushTask() {
+        return new Runnable() {
+            @Override public void run() {
+                try {
+                    flush();
+                } catch (AukletException e) {
+                    LOGGER.warn("Could not emit event batch.", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * <p>Creates the executor to which flush timers hand the flush task. It runs the task in the
+     * delivery lane and, if the lane rejects it, re-arms the flush so that the batch is not stranded.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private Executor createFlushExecutor() {
+        return new Executor() {
+            @Override public void execute(@NonNull Runnable task) {
+                Executor lane;
+                try {
+                    lane = timer.getLane();
+                } catch (AukletException e) {
+                    LOGGER.warn("Could not emit event batch.", e);
+                    return;
+                }
+                try {
+                    lane.execute(task);
+                } catch (RejectedExecutionException e) {
+                    if (lane instanceof ExecutorService && ((ExecutorService) lane).isShutdown()) throw e;
+                    rearmRejectedFlush();
+                }
+            }
+        };
+    }
+
+    /** <p>Re-arms the flush of the current batch after the delivery lane rejected it.</p> */
+    private void rearmRejectedFlush() {
+        synchronized (this.lock) {
+            // If the batch was taken in the meantime, a later batch arms its own flush.
+            if (this.pending.isEmpty() || this.flushTimeout == null || !this.flushTimeout.isExpired()) return;
+            LOGGER.debug("Delivery lane rejected the flush of {} events; retrying in {}ms.", this.pending.size(), REJECTED_FLUSH_RETRY_MILLIS);
+            try {
+                this.flushTimeout = this.timer.newTimeout(this.flushExecutor, this.flushTask, REJECTED_FLUSH_RETRY_MILLIS);
+            } catch (AukletException e) {
+                this.flushTimeout = null;
+                LOGGER.warn("Could not re-arm event batch flush.", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Creates the flush timer backed by the agent passed to {@link #start(Auklet)}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull private FlushTimer createAgentTimer() {
+        return new FlushTimer() {
+            @Override public long getEmissionPeriod() throws AukletException {
+                return getAgent().getUsageMonitor().getUsageConfig().getEmissionPeriod();
+            }
+            @NonNull @Override public Executor getLane() throws AukletException {
+                return getAgent().getDaemonExecutor(DaemonLane.DELIVERY);
+            }
+            @NonNull @Override public HashedWheelTimer.Timeout newTimeout(@NonNull Executor executor, @NonNull Runnable task, long delayMillis) throws AukletException {
+                return getAgent().newTimeout(executor, task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    /** <p>The agent services used to schedule flushes; replaced in tests.</p> */
+    /*package*/ interface FlushTimer {
+
+        /**
+         * <p>Returns the current emission period.</p>
+         *
+         * @return the emission period, in milliseconds.
+         * @throws AukletException if the period cannot be obtained.
+         */
+        long getEmissionPeriod() throws AukletException;
+
+        /**
+         * <p>Returns the lane in which flushes run.</p>
+         *
+         * @return never {@code null}.
+         * @throws AukletException if the lane cannot be obtained.
+         */
+        @NonNull Executor getLane() throws AukletException;
+
+        /**
+         * <p>Schedules the given task to be handed to the given executor.</p>
+         *
+         * @param executor never {@code null}.
+         * @param task never {@code null}.
+         * @param delayMillis the delay, in milliseconds.
+         * @return never {@code null}.
+         * @throws AukletException if the timer cannot be scheduled.
+         */
+        @NonNull HashedWheelTimer.Timeout newTimeout(@NonNull Executor executor, @NonNull Runnable task, long delayMillis) throws AukletException;
+
+    }
+
+}
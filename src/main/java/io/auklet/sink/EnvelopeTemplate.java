@@ -0,0 +1,142 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.AukletException;
+import net.jcip.annotations.Immutable;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+
+/**
+ * <p>The part of every event message that does not change from one event to the next (application ID,
+ * MAC address hash, public IP, agent version and device ID), pre-encoded as MessagePack map entries.</p>
+ *
+ * <p>Sinks write the pre-encoded bytes into each event with a single copy, instead of re-packing
+ * these values for every event. The entries are pre-encoded once for each {@link WireFormat}. A template
+ * is immutable; when any of its inputs change, a new template must be created.</p>
+ */
+@Immutable
+public final class EnvelopeTemplate {
+
+    /** <p>The number of map entries contained in every template.</p> */
+    public static final int FIELD_COUNT = 5;
+
+    private final String appId;
+    private final String macHash;
+    private final String ipAddress;
+    private final String agentVersion;
+    private final String deviceId;
+    private final byte[] bytes;
+    private final byte[] compactBytes;
+
+    private EnvelopeTemplate(@NonNull String appId, @NonNull String macHash, @NonNull String ipAddress,
+                             @NonNull String agentVersion, @NonNull String deviceId, @NonNull byte[] bytes, @NonNull byte[] compactBytes) {
+        this.appId = appId;
+        this.macHash = macHash;
+        this.ipAddress = ipAddress;
+        this.agentVersion = agentVersion;
+        this.deviceId = deviceId;
+        this.bytes = bytes;
+        this.compactBytes = compactBytes;
+    }
+
+    /**
+     * <p>Creates a template from the given values.</p>
+     *
+     * @param appId the application ID. Never {@code null}.
+     * @param macHash the MAC address hash. Never {@code null}.
+     * @param ipAddress the public IP address. Never {@code null}.
+     * @param agentVersion the agent version. Never {@code null}.
+     * @param deviceId the device ID (the MQTT client username). Never {@code null}.
+     * @return never {@code null}.
+     * @throws AukletException if any argument is {@code null}, or if the template cannot be encoded.
+     */
+    @NonNull public static EnvelopeTemplate create(@NonNull String appId, @NonNull String macHash, @NonNull String ipAddress,
+                                                   @NonNull String agentVersion, @NonNull String deviceId) throws AukletException {
+        if (appId == null || macHash == null || ipAddress == null || agentVersion == null || deviceId == null) {
+            throw new AukletException("Event envelope value is null.");
+        }
+        try {
+            return new EnvelopeTemplate(appId, macHash, ipAddress, agentVersion, deviceId,
+                    encode(WireFormat.MAP, appId, macHash, ipAddress, agentVersion, deviceId),
+                    encode(WireFormat.COMPACT, appId, macHash, ipAddress, agentVersion, deviceId));
+        } catch (IOException e) {
+            throw new AukletException("Could not assemble event envelope.", e);
+        }
+    }
+
+    /**
+     * <p>Encodes the given values as map entries in the given format.</p>
+     *
+     * @return never {@code null}.
+     * @throws IOException if the values cannot be encoded.
+     */
+    @NonNull private static byte[] encode(@NonNull WireFormat format, @NonNull String appId, @NonNull String macHash, @NonNull String ipAddress,
+                                          @NonNull String agentVersion, @NonNull String deviceId) throws IOException {
+        try (MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker()) {
+            WireFormat.Field.APPLICATION.packKey(msgpack, format);
+            msgpack.packString(appId);
+            WireFormat.Field.MAC_ADDRESS_HASH.packKey(msgpack, format);
+            msgpack.packString(macHash);
+            WireFormat.Field.PUBLIC_IP.packKey(msgpack, format);
+            msgpack.packString(ipAddress);
+            WireFormat.Field.AGENT_VERSION.packKey(msgpack, format);
+            msgpack.packString(agentVersion);
+            WireFormat.Field.DEVICE.packKey(msgpack, format);
+            msgpack.packString(deviceId);
+            return msgpack.toByteArray();
+        }
+    }
+
+    /**
+     * <p>Determines whether or not this template was created from the given values.</p>
+     *
+     * @param appId the application ID.
+     * @param macHash the MAC address hash.
+     * @param ipAddress the public IP address.
+     * @param agentVersion the agent version.
+     * @param deviceId the device ID.
+     * @return {@code true} if all values are equal to the values this template was created from.
+     */
+    public boolean hasValues(@Nullable String appId, @Nullable String macHash, @Nullable String ipAddress,
+                             @Nullable String agentVersion, @Nullable String deviceId) {
+        return this.appId.equals(appId) && this.macHash.equals(macHash) && this.ipAddress.equals(ipAddress)
+                && this.agentVersion.equals(agentVersion) && this.deviceId.equals(deviceId);
+    }
+
+    /**
+     * <p>Writes the pre-encoded map entries of this template to the current position in the given
+     * MessagePacker. The caller must account for {@link #FIELD_COUNT} entries in the enclosing map
+     * header.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    public void writeTo(@NonNull MessagePacker msgpack) throws IOException {
+        this.writeTo(msgpack, WireFormat.MAP);
+    }
+
+    /**
+     * <p>Same as {@link #writeTo(MessagePacker)}, but writes the map entries in the given format.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param format never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    public void writeTo(@NonNull MessagePacker msgpack, @NonNull WireFormat format) throws IOException {
+        msgpack.writePayload(format == WireFormat.MAP ? this.bytes : this.compactBytes);
+    }
+
+    /**
+     * <p>Returns the size of the pre-encoded map entries.</p>
+     *
+     * @return a positive value.
+     */
+    public int size() {
+        return this.bytes.length;
+    }
+
+}
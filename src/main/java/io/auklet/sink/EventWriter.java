@@ -0,0 +1,133 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.core.ThrowableFingerprint;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * <p>Encodes the parts of an event message whose encoding depends on the {@link WireFormat}: keys,
+ * class names, stack frames and fingerprints. Everything else is packed the same way in every format by
+ * {@link AbstractSink}.</p>
+ */
+/*package*/ abstract class EventWriter {
+
+    /**
+     * <p>Returns a writer for the {@link WireFormat#MAP} format.</p>
+     *
+     * @param frames the cache of encoded stack frames. Never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull static EventWriter forMap(@NonNull StackFrameCache frames) {
+        return new MapEventWriter(frames);
+    }
+
+    /**
+     * <p>Returns the format written by this writer.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull abstract WireFormat getFormat();
+
+    /**
+     * <p>Packs the key of the given field.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param field never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    void packKey(@NonNull MessagePacker msgpack, @NonNull WireFormat.Field field) throws IOException {
+        field.packKey(msgpack, this.getFormat());
+    }
+
+    /**
+     * <p>Packs a fully qualified class or package name.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param className never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    abstract void packClassName(@NonNull MessagePacker msgpack, @NonNull String className) throws IOException;
+
+    /**
+     * <p>Packs a stack frame.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param frame never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    abstract void packFrame(@NonNull MessagePacker msgpack, @NonNull StackTraceElement frame) throws IOException;
+
+    /**
+     * <p>Packs an event ID.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param id never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    abstract void packId(@NonNull MessagePacker msgpack, @NonNull UUID id) throws IOException;
+
+    /**
+     * <p>Returns the number of map entries written by {@link #packTables(MessagePacker)}.</p>
+     *
+     * @return a non-negative value.
+     */
+    int getTableFields() {
+        return 0;
+    }
+
+    /**
+     * <p>Packs the map entries that must precede the rest of the message, if the format has any.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    void packTables(@NonNull MessagePacker msgpack) throws IOException {
+        // No tables by default.
+    }
+
+    /**
+     * <p>Packs a {@link ThrowableFingerprint}.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param fingerprint the fingerprint.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    abstract void packFingerprint(@NonNull MessagePacker msgpack, long fingerprint) throws IOException;
+
+    /** <p>Writes the original format, in which frames are copied from the {@link StackFrameCache}.</p> */
+    @ThreadSafe
+    private static final class MapEventWriter extends EventWriter {
+
+        private final StackFrameCache frames;
+
+        private MapEventWriter(@NonNull StackFrameCache frames) {
+            this.frames = frames;
+        }
+
+        @NonNull @Override WireFormat getFormat() {
+            return WireFormat.MAP;
+        }
+
+        @Override void packClassName(@NonNull MessagePacker msgpack, @NonNull String className) throws IOException {
+            msgpack.packString(className);
+        }
+
+        @Override void packFrame(@NonNull MessagePacker msgpack, @NonNull StackTraceElement frame) throws IOException {
+            this.frames.writeFrame(msgpack, frame);
+        }
+
+        @Override void packId(@NonNull MessagePacker msgpack, @NonNull UUID id) throws IOException {
+            msgpack.packString(id.toString());
+        }
+
+        @Override void packFingerprint(@NonNull MessagePacker msgpack, long fingerprint) throws IOException {
+            msgpack.packString(ThrowableFingerprint.toHex(fingerprint));
+        }
+
+    }
+
+}
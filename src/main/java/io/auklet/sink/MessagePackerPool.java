@@ -0,0 +1,160 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import io.auklet.util.Util;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>A pool of {@link MessagePacker}s, each paired with its own reusable output buffer, so that
+ * multiple threads can assemble MessagePack payloads at the same time without sharing a packer.</p>
+ *
+ * <p>Threads borrow an {@link Entry} with {@link #acquire()} and must hand it back with
+ * {@link #release(Entry)} once they have extracted the payload. Borrowing never blocks: if the pool
+ * is empty, a new entry is created, and if the pool is full when an entry is released, that entry
+ * is discarded. Entries whose buffers grew beyond a fixed size are also discarded on release, so that
+ * one unusually large payload does not pin memory for the lifetime of the agent.</p>
+ */
+@ThreadSafe
+public final class MessagePackerPool {
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private final BlockingQueue<Entry> idle;
+
+    /** <p>Constructs a pool that retains at most one idle entry per available processor.</p> */
+    public MessagePackerPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param maxIdle the maximum number of idle entries retained by the pool. Values less than 1 are
+     * coerced to 1.
+     */
+    public MessagePackerPool(int maxIdle) {
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+    }
+
+    /**
+     * <p>Borrows an entry from the pool, creating one if none are idle.</p>
+     *
+     * @return never {@code null}. The entry's buffer is empty.
+     */
+    @NonNull public Entry acquire() {
+        Entry entry = this.idle.poll();
+        return entry == null ? new Entry() : entry;
+    }
+
+    /**
+     * <p>Returns an entry to the pool, after clearing its buffer.</p>
+     *
+     * @param entry no-op if {@code null}.
+     */
+    public void release(@Nullable Entry entry) {
+        if (entry == null) return;
+        if (entry.reset() && this.idle.offer(entry)) return;
+        entry.close();
+    }
+
+    /** <p>Closes and discards all idle entries.</p> */
+    public void clear() {
+        Entry entry;
+        while ((entry = this.idle.poll()) != null) entry.close();
+    }
+
+    /**
+     * <p>A MessagePacker and the buffer into which it writes. An entry must only be used by the
+     * thread that acquired it, until it is released.</p>
+     */
+    @NotThreadSafe
+    public static final class Entry {
+
+        private final ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+        private final MessagePacker packer = MessagePack.newDefaultPacker(this.buffer);
+
+        private Entry() {}
+
+        /**
+         * <p>Returns the packer for this entry.</p>
+         *
+         * @return never {@code null}.
+         */
+        @NonNull public MessagePacker getPacker() {
+            return this.packer;
+        }
+
+        /**
+         * <p>Flushes the packer and returns a copy of everything written to it since the entry was
+         * acquired.</p>
+         *
+         * @return never {@code null}.
+         * @throws IOException if the packer cannot be flushed.
+         */
+        @NonNull public byte[] toByteArray() throws IOException {
+            this.packer.flush();
+            return this.buffer.toByteArray();
+        }
+
+        /**
+         * <p>Flushes the packer and returns the number of bytes written to it since the entry was
+         * acquired.</p>
+         *
+         * @return a non-negative value.
+         * @throws IOException if the packer cannot be flushed.
+         */
+        public int size() throws IOException {
+            this.packer.flush();
+            return this.buffer.size();
+        }
+
+        /**
+         * <p>Flushes the packer and writes everything written to it since the entry was acquired to the
+         * given packer, without copying it to a new array first.</p>
+         *
+         * @param target never {@code null}.
+         * @throws IOException if either packer cannot be written.
+         */
+        public void writeTo(@NonNull MessagePacker target) throws IOException {
+            this.packer.flush();
+            this.buffer.writeTo(target);
+        }
+
+        /**
+         * <p>Clears the buffer for reuse.</p>
+         *
+         * @return {@code false} if the entry is unusable or oversized and should be discarded.
+         */
+        private boolean reset() {
+            try {
+                this.packer.flush();
+            } catch (IOException e) {
+                return false;
+            }
+            this.buffer.reset();
+            return this.buffer.capacity() <= MAX_RETAINED_BUFFER_SIZE;
+        }
+
+        /** <p>Closes the packer.</p> */
+        private void close() {
+            Util.closeQuietly(this.packer);
+        }
+
+    }
+
+    /** <p>A {@link ByteArrayOutputStream} that reports the size of its backing array.</p> */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        private ExposedByteArrayOutputStream() { super(1024); }
+        private synchronized int capacity() { return this.buf.length; }
+        private synchronized void writeTo(MessagePacker target) throws IOException { target.writePayload(this.buf, 0, this.count); }
+    }
+
+}
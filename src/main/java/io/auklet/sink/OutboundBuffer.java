@@ -0,0 +1,426 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.core.Instrumentation;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A FIFO buffer of outbound messages that is bounded by the number of bytes it holds, rather than by
+ * the number of messages. Messages are kept in a circular log inside a memory-mapped file, so the
+ * buffer lives outside of the JVM heap (and thus never adds to garbage collection pressure) and its
+ * contents survive a restart of the JVM or of the device.</p>
+ *
+ * <p>When a new message does not fit, the oldest messages are evicted until it does. A message that is
+ * larger than the whole buffer is rejected.</p>
+ *
+ * <p>The file starts with two header slots, which are written alternately; each contains a sequence
+ * number, the positions of the oldest and newest messages and a CRC32 checksum, so a header that was
+ * only partially written when the device lost power is ignored in favour of the other slot. Each
+ * message is also stored with a CRC32 checksum, and recovery stops at the first message that fails
+ * it.</p>
+ *
+ * <p>Changes reach the page cache immediately, so they survive a crash of the JVM. They are flushed to
+ * the storage device at most every {@value SegmentFilePersistence#FORCE_PERIOD_MILLIS} milliseconds,
+ * when a message is added or when {@link #flush()} runs, so a crash of the device (e.g. a power loss)
+ * can lose the messages added in the last {@value SegmentFilePersistence#FORCE_PERIOD_MILLIS}
+ * milliseconds, or bring back messages removed in that time.</p>
+ */
+@ThreadSafe
+public final class OutboundBuffer {
+
+    /** <p>The maximum size of the buffer file; larger budgets are clamped to this value, so that the mapping fits in the address space of 32-bit devices.</p> */
+    public static final int MAX_CAPACITY = 64 * 1024 * 1024;
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboundBuffer.class);
+    private static final int MIN_CAPACITY = 4 * 1024;
+    private static final int MAGIC = 0x41554f42; // AUOB
+    // The layout of the file is also used by tests.
+    /*package*/ static final int SLOT_SIZE = 48;
+    /*package*/ static final int DATA_START = 2 * SLOT_SIZE;
+    // Length and CRC32.
+    /*package*/ static final int RECORD_OVERHEAD = 8;
+    private static final int WRAP_MARKER = -1;
+
+    private final File file;
+    private final int requestedCapacity;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private RandomAccessFile raf = null;
+    @GuardedBy("lock") private MappedByteBuffer buffer = null;
+    @GuardedBy("lock") private int capacity = 0;
+    @GuardedBy("lock") private long sequence = 0L;
+    @GuardedBy("lock") private int head = 0;
+    @GuardedBy("lock") private int tail = 0;
+    @GuardedBy("lock") private int count = 0;
+    @GuardedBy("lock") private long residentBytes = 0L;
+    @GuardedBy("lock") private long evictedCount = 0L;
+    @GuardedBy("lock") private boolean forcePending = false;
+    @GuardedBy("lock") private long lastForce = 0L;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param file the file in which messages are stored. Never {@code null}.
+     * @param maxBytes the maximum number of bytes to store, including per-message overhead. If less
+     * than 1, {@link SegmentFilePersistence#DEFAULT_MAX_BYTES} is used.
+     * @throws IllegalArgumentException if the file is {@code null}.
+     */
+    public OutboundBuffer(@NonNull File file, long maxBytes) {
+        if (file == null) throw new IllegalArgumentException("File is null.");
+        this.file = file;
+        long budget = maxBytes < 1 ? SegmentFilePersistence.DEFAULT_MAX_BYTES : maxBytes;
+        this.requestedCapacity = (int) Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, budget));
+    }
+
+    /**
+     * <p>Opens the buffer file, creating it if necessary, and recovers any messages stored in it.</p>
+     *
+     * <p>If the file exists and still contains messages, it keeps its existing size even if the budget
+     * has changed; the new budget takes effect the next time the buffer is opened while empty.</p>
+     *
+     * @throws IOException if the file cannot be opened or mapped.
+     */
+    public void open() throws IOException {
+        synchronized (this.lock) {
+            if (this.buffer != null) return;
+            try {
+                this.raf = new RandomAccessFile(this.file, "rw");
+                long existing = this.raf.length();
+                if (existing >= DATA_START + MIN_CAPACITY && existing <= DATA_START + MAX_CAPACITY) {
+                    this.map((int) existing - DATA_START);
+                    this.recover();
+                    if (this.count == 0 && this.capacity != this.requestedCapacity) {
+                        this.unmap();
+                        this.raf.setLength(0);
+                    }
+                }
+                if (this.buffer == null) {
+                    this.raf.setLength(DATA_START + (long) this.requestedCapacity);
+                    this.map(this.requestedCapacity);
+                    this.writeHeader();
+                }
+            } catch (IOException | RuntimeException e) {
+                this.close();
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            if (this.count > 0) LOGGER.info("Recovered {} buffered outbound messages ({} bytes).", this.count, this.residentBytes);
+        }
+    }
+
+    /** <p>Flushes and closes the buffer file. Messages that are still in the buffer remain in the file.</p> */
+    public void close() {
+        synchronized (this.lock) {
+            if (this.buffer != null) this.force();
+            this.unmap();
+            try {
+                if (this.raf != null) this.raf.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close outbound buffer file.", e);
+            }
+            this.raf = null;
+        }
+    }
+
+    /**
+     * <p>Adds a message to the end of the buffer, evicting the oldest messages if necessary.</p>
+     *
+     * @param message never {@code null}.
+     * @return {@code false} if the buffer is not open, or if the message is larger than the buffer.
+     */
+    public boolean offer(@NonNull byte[] message) {
+        synchronized (this.lock) {
+            if (this.buffer == null) return false;
+            int needed = RECORD_OVERHEAD + message.length;
+            if (needed > this.capacity) return false;
+            int position;
+            while ((position = this.reserve(needed)) < 0) this.evict();
+            CRC32 crc = new CRC32();
+            crc.update(message, 0, message.length);
+            ByteBuffer target = this.buffer.duplicate();
+            target.position(DATA_START + position + RECORD_OVERHEAD);
+            target.put(message);
+            this.buffer.putInt(DATA_START + position, message.length);
+            this.buffer.putInt(DATA_START + position + 4, (int) crc.getValue());
+            this.tail = position + needed;
+            this.count++;
+            this.residentBytes += message.length;
+            this.writeHeader();
+            long now = System.currentTimeMillis();
+            if (Math.abs(now - this.lastForce) >= SegmentFilePersistence.FORCE_PERIOD_MILLIS) this.force();
+            return true;
+        }
+    }
+
+    /** <p>Flushes the buffer file to the storage device, if it has changed since it was last flushed.</p> */
+    public void flush() {
+        synchronized (this.lock) {
+            if (this.buffer != null && this.forcePending) this.force();
+        }
+    }
+
+    /**
+     * <p>Returns the oldest message in the buffer, without removing it.</p>
+     *
+     * @return {@code null} if the buffer is empty or not open.
+     */
+    @CheckForNull public byte[] peek() {
+        synchronized (this.lock) {
+            if (this.buffer == null || this.count == 0) return null;
+            this.skipWrap();
+            byte[] message = new byte[this.buffer.getInt(DATA_START + this.head)];
+            ByteBuffer source = this.buffer.duplicate();
+            source.position(DATA_START + this.head + RECORD_OVERHEAD);
+            source.get(message);
+            return message;
+        }
+    }
+
+    /** <p>Removes the oldest message from the buffer. No-op if the buffer is empty or not open.</p> */
+    public void remove() {
+        synchronized (this.lock) {
+            if (this.buffer == null || this.count == 0) return;
+            this.removeHead();
+            this.writeHeader();
+        }
+    }
+
+    /**
+     * <p>Returns whether or not the buffer is empty.</p>
+     *
+     * @return {@code true} if the buffer contains no messages or is not open.
+     */
+    public boolean isEmpty() {
+        synchronized (this.lock) {
+            return this.count == 0;
+        }
+    }
+
+    /**
+     * <p>Returns the number of messages in the buffer.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int size() {
+        synchronized (this.lock) {
+            return this.count;
+        }
+    }
+
+    /**
+     * <p>Returns the total size of the messages in the buffer, excluding per-message overhead.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getResidentBytes() {
+        synchronized (this.lock) {
+            return this.residentBytes;
+        }
+    }
+
+    /**
+     * <p>Returns the number of messages that have been evicted to make room for newer messages since the
+     * buffer file was created.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getEvictedCount() {
+        synchronized (this.lock) {
+            return this.evictedCount;
+        }
+    }
+
+    /**
+     * <p>Returns the size of the message area of the buffer file.</p>
+     *
+     * @return zero if the buffer is not open.
+     */
+    public int getCapacity() {
+        synchronized (this.lock) {
+            return this.capacity;
+        }
+    }
+
+    /**
+     * <p>Returns the position at which a record of the given size can be written, wrapping around to the
+     * start of the message area if necessary.</p>
+     *
+     * @param needed the size of the record.
+     * @return a negative value if there is not enough free space.
+     */
+    @GuardedBy("lock") private int reserve(int needed) {
+        if (this.count == 0) {
+            this.head = 0;
+            this.tail = 0;
+            return 0;
+        }
+        if (this.tail > this.head) {
+            if (this.capacity - this.tail >= needed) return this.tail;
+            if (this.head < needed) return -1;
+            // Wrap around; the reader skips the rest of the message area when it sees the marker.
+            if (this.capacity - this.tail >= 4) this.buffer.putInt(DATA_START + this.tail, WRAP_MARKER);
+            this.tail = 0;
+            return 0;
+        }
+        return this.head - this.tail >= needed ? this.tail : -1;
+    }
+
+    /** <p>Evicts the oldest message.</p> */
+    @GuardedBy("lock") private void evict() {
+        this.removeHead();
+        this.evictedCount++;
+    }
+
+    /** <p>Removes the oldest message, without updating the header.</p> */
+    @GuardedBy("lock") private void removeHead() {
+        this.skipWrap();
+        int length = this.buffer.getInt(DATA_START + this.head);
+        this.head += RECORD_OVERHEAD + length;
+        this.count--;
+        this.residentBytes -= length;
+        if (this.count == 0) {
+            this.head = 0;
+            this.tail = 0;
+        }
+    }
+
+    /** <p>Moves the head to the start of the message area if the writer wrapped around at its position.</p> */
+    @GuardedBy("lock") private void skipWrap() {
+        if (this.capacity - this.head < RECORD_OVERHEAD || this.buffer.getInt(DATA_START + this.head) == WRAP_MARKER) {
+            this.head = 0;
+        }
+    }
+
+    /**
+     * <p>Restores the state of the buffer from the newest valid header slot, and then discards any
+     * messages at the end of the buffer that fail their checksum.</p>
+     */
+    @GuardedBy("lock") private void recover() {
+        long best = -1L;
+        for (int slot = 0; slot < 2; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (this.buffer.getInt(base) != MAGIC) continue;
+            CRC32 crc = new CRC32();
+            byte[] contents = new byte[SLOT_SIZE - 4];
+            ByteBuffer source = this.buffer.duplicate();
+            source.position(base);
+            source.get(contents);
+            crc.update(contents, 0, contents.length);
+            if ((int) crc.getValue() != this.buffer.getInt(base + SLOT_SIZE - 4)) continue;
+            long sequence = this.buffer.getLong(base + 4);
+            int head = this.buffer.getInt(base + 12);
+            int tail = this.buffer.getInt(base + 16);
+            int count = this.buffer.getInt(base + 20);
+            if (sequence <= best || head < 0 || head > this.capacity || tail < 0 || tail > this.capacity || count < 0) continue;
+            best = sequence;
+            this.sequence = sequence;
+            this.head = head;
+            this.tail = tail;
+            this.count = count;
+            this.residentBytes = this.buffer.getLong(base + 24);
+            this.evictedCount = this.buffer.getLong(base + 32);
+        }
+        if (best < 0) {
+            this.head = 0;
+            this.tail = 0;
+            this.count = 0;
+            this.residentBytes = 0L;
+            return;
+        }
+        // Walk the messages from oldest to newest and keep the intact prefix.
+        int position = this.head;
+        int valid = 0;
+        long bytes = 0L;
+        CRC32 crc = new CRC32();
+        while (valid < this.count) {
+            if (this.capacity - position < RECORD_OVERHEAD || this.buffer.getInt(DATA_START + position) == WRAP_MARKER) position = 0;
+            int length = this.buffer.getInt(DATA_START + position);
+            if (length < 0 || length > this.capacity - position - RECORD_OVERHEAD) break;
+            byte[] message = new byte[length];
+            ByteBuffer source = this.buffer.duplicate();
+            source.position(DATA_START + position + RECORD_OVERHEAD);
+            source.get(message);
+            crc.reset();
+            crc.update(message, 0, length);
+            if ((int) crc.getValue() != this.buffer.getInt(DATA_START + position + 4)) break;
+            position += RECORD_OVERHEAD + length;
+            valid++;
+            bytes += length;
+        }
+        if (valid != this.count) {
+            LOGGER.warn("Discarding {} corrupt outbound messages.", this.count - valid);
+            this.count = valid;
+            this.tail = position;
+            this.writeHeader();
+        }
+        this.residentBytes = bytes;
+        if (this.count == 0) {
+            this.head = 0;
+            this.tail = 0;
+        }
+    }
+
+    /** <p>Writes the current state to the older of the two header slots.</p> */
+    @GuardedBy("lock") private void writeHeader() {
+        this.sequence++;
+        int base = (int) (this.sequence & 1) * SLOT_SIZE;
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putInt(MAGIC).putLong(this.sequence).putInt(this.head).putInt(this.tail).putInt(this.count)
+                .putLong(this.residentBytes).putLong(this.evictedCount);
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, SLOT_SIZE - 4);
+        slot.putInt(SLOT_SIZE - 4, (int) crc.getValue());
+        ByteBuffer target = this.buffer.duplicate();
+        target.position(base);
+        target.put(slot.array());
+        this.forcePending = true;
+    }
+
+    /** <p>Flushes the buffer file to the storage device.</p> */
+    @GuardedBy("lock") private void force() {
+        Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.DISK_PERSIST);
+        span.setDetail("outbound buffer");
+        span.setBytes(this.buffer.capacity());
+        this.lastForce = System.currentTimeMillis();
+        try {
+            this.buffer.force();
+            this.forcePending = false;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not flush outbound buffer file.", e);
+        } finally {
+            span.finish();
+        }
+    }
+
+    /**
+     * <p>Maps the buffer file.</p>
+     *
+     * @param capacity the size of the message area.
+     * @throws IOException if the file cannot be mapped.
+     */
+    @GuardedBy("lock") private void map(int capacity) throws IOException {
+        this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_START + (long) capacity);
+        this.capacity = capacity;
+    }
+
+    /** <p>Drops the reference to the mapping; the mapping itself is released when it is garbage collected.</p> */
+    @GuardedBy("lock") private void unmap() {
+        this.buffer = null;
+        this.capacity = 0;
+        this.sequence = 0L;
+        this.head = 0;
+        this.tail = 0;
+        this.count = 0;
+        this.residentBytes = 0L;
+    }
+
+}
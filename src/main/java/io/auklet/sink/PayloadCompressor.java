@@ -0,0 +1,104 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.config.CompressionDictionary;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Compresses payloads with zlib, using the preset {@link CompressionDictionary}, before they are
+ * written to the sink. A compressed payload is sent in place of the original one, as a MessagePack map
+ * with three entries:</p>
+ *
+ * <ul>
+ *   <li>{@code contentEncoding}: always {@value #CONTENT_ENCODING}.</li>
+ *   <li>{@code size}: the size of the original payload, in bytes.</li>
+ *   <li>{@code payload}: the zlib stream, as binary. Its header carries the Adler-32 checksum of the
+ *   dictionary.</li>
+ * </ul>
+ *
+ * <p>The backend tells compressed payloads apart from event maps by the {@code contentEncoding} key,
+ * which never appears in an event. Payloads smaller than the threshold, where the map and the zlib
+ * header and trailer would eat up most of the savings, are sent as they are, as are payloads that do
+ * not get smaller.</p>
+ */
+@ThreadSafe
+public final class PayloadCompressor {
+
+    /** <p>The value of the {@code contentEncoding} key of a compressed payload.</p> */
+    public static final String CONTENT_ENCODING = "zlib";
+    private final CompressionDictionary dictionary;
+    private final int threshold;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    @GuardedBy("lock") private byte[] buffer = new byte[1024];
+    @GuardedBy("lock") private boolean ended = false;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param dictionary the preset dictionary. Never {@code null}.
+     * @param threshold the size, in bytes, below which payloads are not compressed.
+     */
+    public PayloadCompressor(@NonNull CompressionDictionary dictionary, int threshold) {
+        this.dictionary = dictionary;
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /**
+     * <p>Compresses the given payload, if it is worth it.</p>
+     *
+     * @param payload never {@code null}.
+     * @return the compressed payload, or the given payload if it was not compressed. Never {@code null}.
+     * @throws IOException if the compressed payload cannot be assembled.
+     */
+    @NonNull public byte[] compress(@NonNull byte[] payload) throws IOException {
+        if (payload.length < this.threshold) return payload;
+        byte[] preset = this.dictionary.getDictionary();
+        synchronized (this.lock) {
+            // A sink that is shutting down may still emit a payload after the deflater has ended.
+            if (this.ended) return payload;
+            this.deflater.reset();
+            if (preset.length > 0) this.deflater.setDictionary(preset);
+            this.deflater.setInput(payload);
+            this.deflater.finish();
+            int length = 0;
+            while (!this.deflater.finished()) {
+                if (length == this.buffer.length) {
+                    // Give up as soon as the output is no smaller than the input.
+                    if (length >= payload.length) return payload;
+                    byte[] grown = new byte[Math.min(this.buffer.length * 2, payload.length + 64)];
+                    System.arraycopy(this.buffer, 0, grown, 0, length);
+                    this.buffer = grown;
+                }
+                length += this.deflater.deflate(this.buffer, length, this.buffer.length - length);
+            }
+            try (MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker()) {
+                msgpack.packMapHeader(3)
+                        .packString("contentEncoding").packString(CONTENT_ENCODING)
+                        .packString("size").packInt(payload.length)
+                        .packString("payload").packBinaryHeader(length);
+                msgpack.writePayload(this.buffer, 0, length);
+                byte[] compressed = msgpack.toByteArray();
+                return compressed.length < payload.length ? compressed : payload;
+            }
+        }
+    }
+
+    /**
+     * <p>Releases the native resources held by the compressor. Payloads passed to it afterwards are not
+     * compressed.</p>
+     */
+    public void shutdown() {
+        synchronized (this.lock) {
+            this.ended = true;
+            this.deflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,602 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.core.Instrumentation;
+import io.auklet.util.FileUtil;
+import io.auklet.util.Util;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An MQTT client persistence store that keeps messages in append-only, memory-mapped segment files,
+ * so that messages which are in flight (published, but not yet acknowledged by the broker) survive a
+ * restart of the JVM or of the device. Messages that could not be published at all are held by the
+ * {@link OutboundBuffer} instead; the MQTT client's own disconnected buffer is not used, so the client
+ * only ever stores in-flight messages here.</p>
+ *
+ * <p>Every {@link #put(String, MqttPersistable)} and {@link #remove(String)} appends a record (a
+ * message or a tombstone) to the newest segment; a CRC32 checksum is stored with every record, so a
+ * record that was only partially written when the device lost power is discarded on recovery. The
+ * live records are indexed in memory. Segments are only ever deleted oldest-first, which guarantees
+ * that a tombstone is never lost while the record it cancels still exists on disk.</p>
+ *
+ * <p>The total size of the segment files is bounded. When a new segment is needed and the bound would
+ * be exceeded, the oldest segments are dropped, and the live messages they contain are carried over
+ * into the new segment. If the live messages alone do not fit within the bound, the message is not
+ * stored, and the MQTT client fails the publish.</p>
+ *
+ * <p>Appended records reach the page cache immediately, so they survive a crash of the JVM. They are
+ * flushed to the storage device at most every {@value #FORCE_PERIOD_MILLIS} milliseconds, when a message
+ * is stored or when {@link #flush()} runs, so a crash of the device (e.g. a power loss) can lose the
+ * messages stored in the last {@value #FORCE_PERIOD_MILLIS} milliseconds. Records that are carried over
+ * from dropped segments are flushed before those segments are deleted.</p>
+ */
+@ThreadSafe
+public final class SegmentFilePersistence implements MqttClientPersistence {
+
+    /** <p>The size bound used when the data usage config does not define a storage limit.</p> */
+    public static final long DEFAULT_MAX_BYTES = 25L * 1000 * 1000;
+    /** <p>The longest time for which stored messages are not flushed to the storage device.</p> */
+    public static final long FORCE_PERIOD_MILLIS = 1000L;
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentFilePersistence.class);
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String LOCK_FILE = "store.lck";
+    private static final int MIN_SEGMENT_SIZE = 4 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    // length, type, key length ... crc. Also used by tests.
+    /*package*/ static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4;
+
+    private final File dir;
+    private final long maxBytes;
+    private final int segmentSize;
+    private final Object lock = new Object();
+    @GuardedBy("lock") private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    // Iteration order is the order in which the messages were stored.
+    @GuardedBy("lock") private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+    @GuardedBy("lock") private RandomAccessFile lockFile = null;
+    @GuardedBy("lock") private FileLock fileLock = null;
+    @GuardedBy("lock") private long diskBytes = 0L;
+    @GuardedBy("lock") private long nextSegmentId = 0L;
+    @GuardedBy("lock") private long lastForce = 0L;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param dir the directory in which to store segment files. Never {@code null}.
+     * @param maxBytes the maximum total size of the segment files. If less than 1,
+     * {@link #DEFAULT_MAX_BYTES} is used.
+     * @throws IllegalArgumentException if the directory is {@code null}.
+     */
+    public SegmentFilePersistence(@NonNull File dir, long maxBytes) {
+        if (dir == null) throw new IllegalArgumentException("Directory is null.");
+        this.dir = dir;
+        this.maxBytes = maxBytes < 1 ? DEFAULT_MAX_BYTES : maxBytes;
+        this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, this.maxBytes / 8));
+    }
+
+    @Override public void open(String clientId, String serverURI) throws MqttPersistenceException {
+        synchronized (this.lock) {
+            // The MQTT client re-opens the store after a failed put, so this must be idempotent.
+            if (this.fileLock != null) return;
+            try {
+                if (!this.dir.isDirectory() && !this.dir.mkdirs()) throw new IOException("Could not create directory: " + this.dir);
+                this.lockFile = new RandomAccessFile(new File(this.dir, LOCK_FILE), "rw");
+                try {
+                    this.fileLock = this.lockFile.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    this.fileLock = null;
+                }
+                if (this.fileLock == null) {
+                    this.closeLockFile();
+                    throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+                }
+                this.recover();
+            } catch (IOException | SecurityException e) {
+                this.closeQuietly();
+                throw new MqttPersistenceException(e);
+            }
+        }
+    }
+
+    @Override public void close() throws MqttPersistenceException {
+        synchronized (this.lock) {
+            for (Segment segment : this.segments.values()) segment.force();
+            this.closeQuietly();
+        }
+    }
+
+    @Override public void put(String key, MqttPersistable message) throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            byte[] record = encodePut(key, message);
+            Segment segment = this.segmentFor(record.length);
+            Location previous = this.index.remove(key);
+            if (previous != null) previous.segment.liveBytes -= previous.length;
+            int offset = segment.append(record);
+            segment.liveBytes += record.length;
+            this.index.put(key, new Location(segment, offset, record.length));
+            segment.dirty = true;
+            long now = System.currentTimeMillis();
+            if (Math.abs(now - this.lastForce) >= FORCE_PERIOD_MILLIS) this.forceDirty(now);
+        }
+    }
+
+    /** <p>Flushes the segments that have changed since they were last flushed to the storage device.</p> */
+    public void flush() {
+        synchronized (this.lock) {
+            this.forceDirty(System.currentTimeMillis());
+        }
+    }
+
+    @Override public MqttPersistable get(String key) throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            Location location = this.index.get(key);
+            if (location == null) return null;
+            ByteBuffer record = location.segment.read(location.offset, location.length);
+            record.position(4 + 1);
+            int keyLength = record.getShort() & 0xFFFF;
+            record.position(record.position() + keyLength);
+            byte[] header = new byte[record.getInt()];
+            record.get(header);
+            byte[] payload = new byte[record.getInt()];
+            record.get(payload);
+            return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length);
+        }
+    }
+
+    @Override public void remove(String key) throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            Location location = this.index.get(key);
+            if (location == null) return;
+            byte[] record = encodeRemove(key);
+            Segment segment = this.segmentFor(record.length);
+            // The key may have been carried into the new segment.
+            location = this.index.remove(key);
+            if (location == null) return;
+            location.segment.liveBytes -= location.length;
+            segment.append(record);
+            segment.dirty = true;
+            this.reclaim();
+        }
+    }
+
+    @Override public Enumeration keys() throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            return Collections.enumeration(new ArrayList<>(this.index.keySet()));
+        }
+    }
+
+    @Override public void clear() throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            for (Segment segment : this.segments.values()) segment.delete();
+            this.segments.clear();
+            this.index.clear();
+            this.diskBytes = 0L;
+        }
+    }
+
+    @Override public boolean containsKey(String key) throws MqttPersistenceException {
+        synchronized (this.lock) {
+            this.checkOpen();
+            return this.index.containsKey(key);
+        }
+    }
+
+    /**
+     * <p>Returns the total size of the segment files.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getDiskBytes() {
+        synchronized (this.lock) {
+            return this.diskBytes;
+        }
+    }
+
+    /**
+     * <p>Returns the segment to which a record of the given length should be appended, creating a new
+     * segment (and dropping old ones to stay within the size bound) if necessary.</p>
+     *
+     * @param recordLength the length of the record.
+     * @return never {@code null}.
+     * @throws MqttPersistenceException if the record cannot fit within the size bound, or if a new
+     * segment cannot be created.
+     */
+    @GuardedBy("lock") @NonNull private Segment segmentFor(int recordLength) throws MqttPersistenceException {
+        Segment active = this.segments.isEmpty() ? null : this.segments.lastEntry().getValue();
+        if (active != null && active.remaining() >= recordLength) return active;
+        this.reclaim();
+        // Decide which of the oldest segments to drop, and how much of their data must be carried over.
+        List<Segment> dropped = new ArrayList<>();
+        long droppedBytes = 0L;
+        int carriedBytes = 0;
+        int newSize = Math.max(this.segmentSize, recordLength);
+        Iterator<Segment> oldest = this.segments.values().iterator();
+        while (this.diskBytes - droppedBytes + newSize > this.maxBytes) {
+            if (!oldest.hasNext()) throw new MqttPersistenceException(new IOException("Message does not fit within the storage limit: " + recordLength));
+            Segment segment = oldest.next();
+            dropped.add(segment);
+            droppedBytes += segment.capacity;
+            carriedBytes += segment.liveBytes;
+            newSize = Math.max(this.segmentSize, recordLength + carriedBytes);
+        }
+        Segment created = this.createSegment(newSize);
+        if (!dropped.isEmpty()) this.drop(dropped, created);
+        return created;
+    }
+
+    /**
+     * <p>Deletes the given segments (which must be the oldest segments), after copying every live
+     * message that they contain to the given segment.</p>
+     *
+     * @param dropped never {@code null} or empty.
+     * @param target never {@code null}.
+     */
+    @GuardedBy("lock") private void drop(@NonNull List<Segment> dropped, @NonNull Segment target) {
+        Set<Segment> droppedSet = new HashSet<>(dropped);
+        List<Map.Entry<String, Location>> carried = new ArrayList<>();
+        Iterator<Map.Entry<String, Location>> entries = this.index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Location> entry = entries.next();
+            if (!droppedSet.contains(entry.getValue().segment)) continue;
+            carried.add(entry);
+            entries.remove();
+        }
+        for (Map.Entry<String, Location> entry : carried) {
+            Location location = entry.getValue();
+            ByteBuffer record = location.segment.read(location.offset, location.length);
+            byte[] bytes = new byte[location.length];
+            record.get(bytes);
+            int offset = target.append(bytes);
+            target.liveBytes += bytes.length;
+            this.index.put(entry.getKey(), new Location(target, offset, bytes.length));
+        }
+        target.force();
+        for (Segment segment : dropped) {
+            this.segments.remove(segment.id);
+            this.diskBytes -= segment.capacity;
+            segment.delete();
+        }
+    }
+
+    /**
+     * <p>Flushes the segments that have changed since they were last flushed.</p>
+     *
+     * @param now the current time.
+     */
+    @GuardedBy("lock") private void forceDirty(long now) {
+        for (Segment segment : this.segments.values()) {
+            if (segment.dirty) segment.force();
+        }
+        this.lastForce = now;
+    }
+
+    /** <p>Deletes the oldest segments, except for the newest segment, for as long as they contain no live messages.</p> */
+    @GuardedBy("lock") private void reclaim() {
+        while (this.segments.size() > 1) {
+            Segment oldest = this.segments.firstEntry().getValue();
+            if (oldest.liveBytes > 0) return;
+            this.segments.remove(oldest.id);
+            this.diskBytes -= oldest.capacity;
+            oldest.delete();
+        }
+    }
+
+    /**
+     * <p>Creates a new, empty segment file after all existing segments.</p>
+     *
+     * @param capacity the size of the segment file.
+     * @return never {@code null}.
+     * @throws MqttPersistenceException if the segment file cannot be created.
+     */
+    @GuardedBy("lock") @NonNull private Segment createSegment(int capacity) throws MqttPersistenceException {
+        long id = this.nextSegmentId++;
+        File file = new File(this.dir, String.format("%016x%s", id, SEGMENT_SUFFIX));
+        try {
+            Segment segment = Segment.open(id, file, capacity);
+            this.segments.put(id, segment);
+            this.diskBytes += segment.capacity;
+            return segment;
+        } catch (IOException | SecurityException e) {
+            FileUtil.deleteQuietly(file);
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    /**
+     * <p>Loads all existing segment files and rebuilds the index by replaying their records in order.</p>
+     *
+     * @throws IOException if a segment file cannot be opened.
+     */
+    @GuardedBy("lock") private void recover() throws IOException {
+        File[] files = this.dir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() < MIN_SEGMENT_SIZE || file.length() > Integer.MAX_VALUE) {
+                FileUtil.deleteQuietly(file);
+                continue;
+            }
+            Segment segment = Segment.open(id, file, (int) file.length());
+            this.segments.put(id, segment);
+            this.diskBytes += segment.capacity;
+            this.nextSegmentId = Math.max(this.nextSegmentId, id + 1);
+        }
+        for (Segment segment : this.segments.values()) this.replay(segment);
+        this.reclaim();
+        if (!this.index.isEmpty()) LOGGER.info("Recovered {} stored MQTT messages.", this.index.size());
+    }
+
+    /**
+     * <p>Applies every intact record in the given segment to the index, and sets the segment's write
+     * position after the last intact record.</p>
+     *
+     * @param segment never {@code null}.
+     */
+    @GuardedBy("lock") private void replay(@NonNull Segment segment) {
+        ByteBuffer buffer = segment.read(0, segment.capacity);
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (segment.capacity - position >= RECORD_OVERHEAD) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_OVERHEAD || length > segment.capacity - position) break;
+            byte[] body = new byte[length - 8];
+            buffer.position(position + 4);
+            buffer.get(body);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != buffer.getInt()) break;
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            byte[] keyBytes = new byte[record.getShort() & 0xFFFF];
+            record.get(keyBytes);
+            String key = decodeKey(keyBytes);
+            Location previous = this.index.remove(key);
+            if (previous != null) previous.segment.liveBytes -= previous.length;
+            if (type == TYPE_PUT) {
+                this.index.put(key, new Location(segment, position, length));
+                segment.liveBytes += length;
+            }
+            position += length;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * <p>Throws if this store is not open.</p>
+     *
+     * @throws MqttPersistenceException if this store is not open.
+     */
+    @GuardedBy("lock") private void checkOpen() throws MqttPersistenceException {
+        if (this.fileLock == null) throw new MqttPersistenceException(new IOException("MQTT store is not open."));
+    }
+
+    /** <p>Unmaps all segments, releases the directory lock and resets the in-memory state.</p> */
+    @GuardedBy("lock") private void closeQuietly() {
+        for (Segment segment : this.segments.values()) segment.close();
+        this.segments.clear();
+        this.index.clear();
+        this.diskBytes = 0L;
+        this.closeLockFile();
+    }
+
+    /** <p>Releases the directory lock.</p> */
+    @GuardedBy("lock") private void closeLockFile() {
+        try {
+            if (this.fileLock != null) this.fileLock.release();
+        } catch (IOException e) {
+            LOGGER.warn("Could not release MQTT store lock.", e);
+        }
+        this.fileLock = null;
+        try {
+            if (this.lockFile != null) this.lockFile.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close MQTT store lock file.", e);
+        }
+        this.lockFile = null;
+    }
+
+    /**
+     * <p>Encodes a message record.</p>
+     *
+     * @param key never {@code null}.
+     * @param message never {@code null}.
+     * @return never {@code null}.
+     * @throws MqttPersistenceException if the message cannot be read.
+     */
+    @NonNull private static byte[] encodePut(@NonNull String key, @NonNull MqttPersistable message) throws MqttPersistenceException {
+        byte[] keyBytes = encodeKey(key);
+        int headerLength = message.getHeaderLength();
+        int payloadLength = message.getPayloadBytes() == null ? 0 : message.getPayloadLength();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + keyBytes.length + 4 + headerLength + 4 + payloadLength);
+        record.position(4);
+        record.put(TYPE_PUT).putShort((short) keyBytes.length).put(keyBytes);
+        record.putInt(headerLength).put(message.getHeaderBytes(), message.getHeaderOffset(), headerLength);
+        record.putInt(payloadLength);
+        if (payloadLength > 0) record.put(message.getPayloadBytes(), message.getPayloadOffset(), payloadLength);
+        return seal(record);
+    }
+
+    /**
+     * <p>Encodes a tombstone record.</p>
+     *
+     * @param key never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private static byte[] encodeRemove(@NonNull String key) {
+        byte[] keyBytes = encodeKey(key);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + keyBytes.length);
+        record.position(4);
+        record.put(TYPE_REMOVE).putShort((short) keyBytes.length).put(keyBytes);
+        return seal(record);
+    }
+
+    /**
+     * <p>Writes the length and checksum of the given record.</p>
+     *
+     * @param record a record with 4 bytes of space remaining for the checksum. Never {@code null}.
+     * @return the record's backing array.
+     */
+    @NonNull private static byte[] seal(@NonNull ByteBuffer record) {
+        byte[] bytes = record.array();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 4, bytes.length - 8);
+        record.putInt((int) crc.getValue());
+        record.putInt(0, bytes.length);
+        return bytes;
+    }
+
+    @NonNull private static byte[] encodeKey(@NonNull String key) {
+        try {
+            byte[] bytes = key.getBytes(Util.UTF_8);
+            if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Key too long: " + bytes.length);
+            return bytes;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull private static String decodeKey(@NonNull byte[] bytes) {
+        try {
+            return new String(bytes, Util.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** <p>The location of a live message record.</p> */
+    private static final class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(@NonNull Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /** <p>A memory-mapped segment file.</p> */
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int writePosition = 0;
+        private int liveBytes = 0;
+        private boolean dirty = false;
+
+        private Segment(long id, @NonNull File file, @NonNull RandomAccessFile raf, @NonNull MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        @NonNull private static Segment open(long id, @NonNull File file, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < capacity) raf.setLength(capacity);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                return new Segment(id, file, raf, buffer, capacity);
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private int remaining() {
+            return this.capacity - this.writePosition;
+        }
+
+        /**
+         * <p>Appends the given record. The length prefix is written last, so a torn write leaves a
+         * zero length behind, which marks the end of the segment on recovery.</p>
+         */
+        private int append(@NonNull byte[] record) {
+            int offset = this.writePosition;
+            ByteBuffer target = this.buffer.duplicate();
+            target.position(offset + 4);
+            target.put(record, 4, record.length - 4);
+            target.putInt(offset, ByteBuffer.wrap(record).getInt(0));
+            this.writePosition += record.length;
+            return offset;
+        }
+
+        @NonNull private ByteBuffer read(int offset, int length) {
+            ByteBuffer view = this.buffer.duplicate();
+            view.limit(offset + length).position(offset);
+            return view.slice();
+        }
+
+        private void force() {
+            Instrumentation.Span span = Instrumentation.get().begin(Instrumentation.Kind.DISK_PERSIST);
+            span.setDetail("MQTT store");
+            span.setBytes(this.buffer.capacity());
+            try {
+                this.buffer.force();
+                this.dirty = false;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not flush MQTT store segment {}.", this.file.getName(), e);
+            } finally {
+                span.finish();
+            }
+        }
+
+        private void close() {
+            try {
+                this.raf.close();
+            } catch (IOException e) {
+                LOGGER.warn("Could not close MQTT store segment {}.", this.file.getName(), e);
+            }
+        }
+
+        private void delete() {
+            this.close();
+            FileUtil.deleteQuietly(this.file);
+        }
+
+    }
+
+}
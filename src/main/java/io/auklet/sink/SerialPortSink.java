@@ -1,11 +1,14 @@
 package io.auklet.sink;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.Auklet;
 import io.auklet.AukletException;
+import io.auklet.core.DataUsageMonitor;
+import io.auklet.core.Instrumentation;
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import purejavacomm.CommPortIdentifier;
@@ -16,7 +19,10 @@ import purejavacomm.SerialPort;
 import java.io.IOException;
 import java.io.OutputStream;
 
-/** <p>An Auklet data sink backed by a named serial port.</p> */
+/**
+ * <p>An Auklet data sink backed by a named serial port. Each event payload is wrapped inside another
+ * MessagePack map with 2 elements: the name of the target MQTT topic and the event payload.</p>
+ */
 @ThreadSafe
 public final class SerialPortSink extends AbstractSink {
 
@@ -24,6 +30,8 @@ public final class SerialPortSink extends AbstractSink {
     private final Object lock = new Object();
     @GuardedBy("lock") private SerialPort port;
     @GuardedBy("lock") private OutputStream out;
+    // Set once during start-up.
+    private volatile byte[] wrapperHeader;
 
     /**
      * <p>Constructs the serial data sink and opens the underlying serial port.</p>
@@ -32,7 +40,7 @@ public final class SerialPortSink extends AbstractSink {
      * serial port's underlying output stream cannot be obtained.
      */
     @Override public void start(@NonNull Auklet agent) throws AukletException {
-        this.setAgent(agent);
+        super.start(agent);
         String portName = this.getAgent().getSerialPort();
         LOGGER.info("Connecting to serial port: {}", portName);
         try {
@@ -48,40 +56,43 @@ public final class SerialPortSink extends AbstractSink {
             this.shutdown();
             throw new AukletException("Could not initialize serial port sink.", e);
         }
-    }
-
-    /**
-     * <p>Sends the given throwable as an Auklet event object, wrapped further inside another MessagePack
-     * map with 2 elements: the name of the target MQTT topic and the event payload.</p>
-     */
-    @Override public void send(@Nullable Throwable throwable) throws AukletException {
-        synchronized (this.msgpack) {
-            try {
-                LOGGER.debug("Adding MQTT info to payload.");
-                this.msgpack.packMapHeader(2)
-                        .packString("topic").packString(this.getAgent().getDeviceAuth().getMqttEventsTopic())
-                        .packString("payload"); // The value will be set by calling super.write().
-            } catch (IOException e) {
-                throw new AukletException("Could not assemble event message.", e);
-            }
-            super.send(throwable);
+        // The topic never changes, so the wrapper map header only needs to be assembled once.
+        try (MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker()) {
+            msgpack.packMapHeader(2)
+                    .packString("topic").packString(this.getAgent().getDeviceAuth().getMqttEventsTopic())
+                    .packString("payload"); // The value is the event payload, written after this header.
+            this.wrapperHeader = msgpack.toByteArray();
+        } catch (IOException e) {
+            this.shutdown();
+            throw new AukletException("Could not assemble serial port message header.", e);
         }
     }
 
     @Override protected void write(@NonNull byte[] bytes) throws AukletException {
+        Auklet agent = this.getAgent();
+        DataUsageMonitor usageMonitor = agent.getUsageMonitor();
+        int size = this.wrapperHeader.length + bytes.length;
+        Instrumentation.Span quotaCheck = Instrumentation.get().begin(Instrumentation.Kind.QUOTA_CHECK);
+        boolean reserved = usageMonitor.reserve(size);
+        quotaCheck.setBytes(size);
+        quotaCheck.setSuccess(reserved);
+        quotaCheck.finish();
+        if (!reserved) {
+            agent.getMetrics().getMessagesDroppedByQuota().increment();
+            return;
+        }
         synchronized (this.lock) {
             try {
-                int size = bytes.length;
-                boolean willExceedLimit = this.getAgent().getUsageMonitor().willExceedLimit(size);
-                if (!willExceedLimit) {
-                    this.out.write(bytes);
-                    this.out.flush();
-                    this.getAgent().getUsageMonitor().addMoreData(size);
-                }
+                this.out.write(this.wrapperHeader);
+                this.out.write(bytes);
+                this.out.flush();
             } catch (IOException e) {
+                usageMonitor.release(size);
                 throw new AukletException("Could not write data to serial port.", e);
             }
         }
+        usageMonitor.commit(size);
+        agent.getMetrics().getMessagesPublished().increment();
     }
 
     @Override public void shutdown() {
@@ -2,17 +2,18 @@ package io.auklet.sink;
 
 import edu.umd.cs.findbugs.annotations.Nullable;
 import io.auklet.AukletException;
+import io.auklet.core.Event;
 
 /** <p>A location to which the Auklet agent will write data.</p> */
 public interface Sink {
 
     /**
-     * <p>Transforms the given throwable object into an Auklet event object and sends it to this sink.</p>
+     * <p>Transforms the given event into an Auklet event object and sends it to this sink.</p>
      *
-     * @param throwable if {@code null}, this method is no-op.
+     * @param event if {@code null}, this method is no-op.
      * @throws AukletException if an error occurs while sending the event to the sink.
      */
-    void send(@Nullable Throwable throwable) throws AukletException;
+    void send(@Nullable Event event) throws AukletException;
 
     /**
      * <p>Shuts down this data sink and disconnects/closes any underlying resources.</p>
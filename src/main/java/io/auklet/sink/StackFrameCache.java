@@ -0,0 +1,197 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import io.auklet.util.Util;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A bounded cache of stack frames that have already been encoded as Auklet MessagePack frame maps.
+ * Applications tend to throw the same exceptions from the same places over and over, so most frames
+ * can be written into an event with a single bulk copy instead of being re-encoded.</p>
+ *
+ * <p>Frames are keyed by {@link StackTraceElement} equality (class, method, file and line). The cache
+ * is split into independently locked segments, each of which evicts its least recently used frame
+ * when it is full. Hits, misses and evictions are counted so that the hit rate can be monitored.</p>
+ */
+@ThreadSafe
+public final class StackFrameCache {
+
+    /** <p>The default maximum number of frames held by the cache.</p> */
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int SEGMENTS = 16;
+    private static final MessagePack.PackerConfig FRAME_PACKER_CONFIG = new MessagePack.PackerConfig().withBufferSize(256);
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** <p>Constructs a cache that holds up to {@link #DEFAULT_CAPACITY} frames.</p> */
+    public StackFrameCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param capacity the maximum number of frames held by the cache. Values less than the number
+     * of internal segments are coerced to that number.
+     */
+    public StackFrameCache(int capacity) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) this.segments[i] = new Segment(perSegment, this.evictions);
+    }
+
+    /**
+     * <p>Writes the given frame, as an Auklet frame map, to the current position in the given
+     * MessagePacker.</p>
+     *
+     * @param msgpack never {@code null}.
+     * @param frame never {@code null}.
+     * @throws IOException if an error occurs while writing to the MessagePacker.
+     */
+    public void writeFrame(@NonNull MessagePacker msgpack, @NonNull StackTraceElement frame) throws IOException {
+        Segment segment = this.segmentFor(frame);
+        byte[] encoded;
+        synchronized (segment) {
+            encoded = segment.get(frame);
+        }
+        if (encoded != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+            // Encode outside the segment lock; if two threads race to encode the same frame, both
+            // produce identical bytes, so it does not matter whose copy is kept.
+            encoded = encode(frame);
+            synchronized (segment) {
+                segment.put(frame, encoded);
+            }
+        }
+        msgpack.writePayload(encoded);
+    }
+
+    /**
+     * <p>Returns the number of frames currently held by the cache.</p>
+     *
+     * @return a non-negative value.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * <p>Returns the number of frames that were found in the cache.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * <p>Returns the number of frames that had to be encoded because they were not in the cache.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * <p>Returns the number of frames that were evicted from the cache to make room for other frames.</p>
+     *
+     * @return a non-negative value.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * <p>Returns the fraction of frame lookups that were found in the cache.</p>
+     *
+     * @return a value between 0 and 1, or 0 if there have been no lookups.
+     */
+    public double getHitRate() {
+        long hitCount = this.hits.get();
+        long total = hitCount + this.misses.get();
+        return total == 0 ? 0d : (double) hitCount / total;
+    }
+
+    /** <p>Removes all frames from the cache. Counters are not reset.</p> */
+    public void clear() {
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * <p>Encodes the given frame as an Auklet frame map.</p>
+     *
+     * @param frame never {@code null}.
+     * @return never {@code null}.
+     * @throws IOException if an error occurs while encoding the frame.
+     */
+    @NonNull private static byte[] encode(@NonNull StackTraceElement frame) throws IOException {
+        int lineNumber = frame.getLineNumber();
+        try (MessageBufferPacker msgpack = FRAME_PACKER_CONFIG.newBufferPacker()) {
+            msgpack.packMapHeader(4)
+                    .packString("functionName").packString(frame.getMethodName())
+                    .packString("className").packString(frame.getClassName())
+                    .packString("filePath").packString(Util.orElse(frame.getFileName(), ""))
+                    // Normalize all negative return values.
+                    .packString("lineNumber").packInt(lineNumber < 0 ? -1 : lineNumber);
+            return msgpack.toByteArray();
+        }
+    }
+
+    /**
+     * <p>Returns the segment responsible for the given frame.</p>
+     *
+     * @param frame never {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull private Segment segmentFor(@NonNull StackTraceElement frame) {
+        int hash = frame.hashCode();
+        hash ^= (hash >>> 16);
+        return this.segments[hash & (SEGMENTS - 1)];
+    }
+
+    /** <p>An access-ordered map that evicts its least recently used entry when it is full.</p> */
+    private static final class Segment extends LinkedHashMap<StackTraceElement, byte[]> {
+
+        private static final long serialVersionUID = 0L;
+        private final int capacity;
+        private final transient AtomicLong evictions;
+
+        private Segment(int capacity, @NonNull AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @GuardedBy("this") @Override protected boolean removeEldestEntry(Map.Entry<StackTraceElement, byte[]> eldest) {
+            if (this.size() <= this.capacity) return false;
+            this.evictions.incrementAndGet();
+            return true;
+        }
+
+    }
+
+}
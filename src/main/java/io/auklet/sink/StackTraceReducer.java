@@ -0,0 +1,339 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import net.jcip.annotations.Immutable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Shrinks stack traces and messages before they are sent, so that pathological throwables (e.g. a
+ * {@link StackOverflowError} with 1024 near-identical frames, or a call through a deep framework stack)
+ * do not dominate data usage. The following policies are applied, in this order:</p>
+ *
+ * <ol>
+ *   <li><b>Recursion folding:</b> a sequence of up to {@value #MAX_CYCLE_LENGTH} frames that repeats
+ *   back to back is replaced by a single copy of the sequence and the number of times it repeats.</li>
+ *   <li><b>Package collapsing:</b> a run of consecutive frames whose classes are in the same configured
+ *   package (e.g. {@code org.springframework}) is replaced by the topmost frame of the run, which is the
+ *   one the framework called into, and the number of frames that were left out.</li>
+ *   <li><b>Depth cap:</b> if more than the maximum number of frames are left, the topmost three quarters
+ *   of them and the bottommost quarter, which shows how the thread got there, are kept, and the number
+ *   of frames in between is recorded.</li>
+ * </ol>
+ *
+ * <p>Each policy is disabled by default. Messages that are longer than the maximum length are cut, and
+ * followed by an ellipsis.</p>
+ */
+@Immutable
+public final class StackTraceReducer {
+
+    /** <p>A reducer that leaves stack traces and messages as they are.</p> */
+    public static final StackTraceReducer NONE = new StackTraceReducer(0, false, null, 0);
+    private static final int MAX_CYCLE_LENGTH = 16;
+    private static final String ELLIPSIS = "...";
+
+    private final int maxDepth;
+    private final boolean foldRecursion;
+    private final String[] collapsePackages;
+    private final int maxMessageLength;
+
+    /**
+     * <p>Constructor.</p>
+     *
+     * @param maxDepth the maximum number of frames to keep. Zero or less disables the depth cap.
+     * @param foldRecursion whether or not to fold repeated cycles of frames.
+     * @param collapsePackages the packages whose consecutive frames are collapsed. If {@code null}, no
+     * frames are collapsed. Empty entries are ignored.
+     * @param maxMessageLength the maximum number of characters of the message to keep. Zero or less
+     * disables the cap.
+     */
+    public StackTraceReducer(int maxDepth, boolean foldRecursion, @Nullable List<String> collapsePackages, int maxMessageLength) {
+        this.maxDepth = Math.max(0, maxDepth);
+        this.foldRecursion = foldRecursion;
+        List<String> prefixes = new ArrayList<>();
+        if (collapsePackages != null) {
+            for (String pkg : collapsePackages) {
+                if (pkg == null) continue;
+                pkg = pkg.trim();
+                if (pkg.isEmpty()) continue;
+                // Match whole package names only, so that "org.spring" does not match "org.springframework".
+                prefixes.add(pkg.endsWith(".") ? pkg : pkg + '.');
+            }
+        }
+        this.collapsePackages = prefixes.toArray(new String[0]);
+        this.maxMessageLength = Math.max(0, maxMessageLength);
+    }
+
+    /**
+     * <p>Parses a comma-separated list of package names, as accepted by the constructor.</p>
+     *
+     * @param packages may be {@code null}.
+     * @return never {@code null}.
+     */
+    @NonNull public static List<String> parsePackages(@Nullable String packages) {
+        if (packages == null || packages.trim().isEmpty()) return Collections.emptyList();
+        return Arrays.asList(packages.split(","));
+    }
+
+    /**
+     * <p>Returns the maximum number of frames kept by this reducer.</p>
+     *
+     * @return {@link Integer#MAX_VALUE} if there is no depth cap.
+     */
+    public int getMaxDepth() {
+        return this.maxDepth == 0 ? Integer.MAX_VALUE : this.maxDepth;
+    }
+
+    /**
+     * <p>Cuts the given message to the maximum length.</p>
+     *
+     * @param message may be {@code null}.
+     * @return {@code null} if the message is {@code null}.
+     */
+    @CheckForNull public String reduceMessage(@Nullable String message) {
+        if (message == null || this.maxMessageLength == 0 || message.length() <= this.maxMessageLength) return message;
+        int end = this.maxMessageLength;
+        // Do not split a surrogate pair.
+        if (Character.isHighSurrogate(message.charAt(end - 1))) end--;
+        return message.substring(0, end) + ELLIPSIS;
+    }
+
+    /**
+     * <p>Returns the number of frames to which stack traces are cut, given an additional cap.</p>
+     *
+     * @param maxDepth the maximum number of frames to keep, in addition to this reducer's own depth cap.
+     * @return a positive value.
+     */
+    public int getDepth(int maxDepth) {
+        return Math.min(this.getMaxDepth(), Math.max(1, maxDepth));
+    }
+
+    /**
+     * <p>Applies this reducer's policies to the given stack trace.</p>
+     *
+     * @param stackTrace never {@code null}.
+     * @param maxDepth the maximum number of frames to keep, in addition to this reducer's own depth cap
+     * (e.g. to stay within an overhead budget).
+     * @return {@code null} if the stack trace is left as it is; otherwise, the entries that replace it,
+     * from the top of the stack to the bottom.
+     */
+    @CheckForNull public List<Entry> reduce(@NonNull StackTraceElement[] stackTrace, int maxDepth) {
+        int depth = this.getDepth(maxDepth);
+        if (!this.foldRecursion && this.collapsePackages.length == 0 && stackTrace.length <= depth) return null;
+        List<Entry> entries = new ArrayList<>(Math.min(stackTrace.length, 64));
+        boolean changed = this.fold(stackTrace, entries);
+        if (this.collapsePackages.length > 0) changed |= this.collapse(entries);
+        changed |= cap(entries, depth);
+        return changed ? entries : null;
+    }
+
+    /**
+     * <p>Converts the given stack trace into entries, folding repeated cycles if enabled.</p>
+     *
+     * @return whether or not any cycle was folded.
+     */
+    private boolean fold(@NonNull StackTraceElement[] stackTrace, @NonNull List<Entry> entries) {
+        boolean folded = false;
+        int i = 0;
+        while (i < stackTrace.length) {
+            int bestLength = 0;
+            int bestRepeats = 1;
+            if (this.foldRecursion) {
+                for (int length = 1; length <= MAX_CYCLE_LENGTH && i + 2 * length <= stackTrace.length; length++) {
+                    int repeats = countRepeats(stackTrace, i, length);
+                    // Folding must save at least two frames to pay for the marker; prefer the shortest cycle.
+                    if (repeats > 1 && length * (repeats - 1) > 1) {
+                        bestLength = length;
+                        bestRepeats = repeats;
+                        break;
+                    }
+                }
+            }
+            if (bestLength == 0) {
+                entries.add(new Entry(new StackTraceElement[] {stackTrace[i]}, 1, 0, null));
+                i++;
+            } else {
+                entries.add(new Entry(Arrays.copyOfRange(stackTrace, i, i + bestLength), bestRepeats, 0, null));
+                i += bestLength * bestRepeats;
+                folded = true;
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * <p>Returns how many times the cycle of the given length, starting at the given index, repeats back
+     * to back.</p>
+     */
+    private static int countRepeats(@NonNull StackTraceElement[] stackTrace, int start, int length) {
+        int repeats = 1;
+        int next = start + length;
+        while (next + length <= stackTrace.length) {
+            for (int j = 0; j < length; j++) {
+                if (!stackTrace[start + j].equals(stackTrace[next + j])) return repeats;
+            }
+            repeats++;
+            next += length;
+        }
+        return repeats;
+    }
+
+    /**
+     * <p>Collapses runs of single frames that are in the same configured package.</p>
+     *
+     * @return whether or not any frame was collapsed.
+     */
+    private boolean collapse(@NonNull List<Entry> entries) {
+        boolean collapsed = false;
+        List<Entry> result = new ArrayList<>(entries.size());
+        int i = 0;
+        while (i < entries.size()) {
+            Entry entry = entries.get(i);
+            String pkg = entry.isSingleFrame() ? this.packageOf(entry.frames[0]) : null;
+            int end = i + 1;
+            if (pkg != null) {
+                while (end < entries.size() && entries.get(end).isSingleFrame() && pkg.equals(this.packageOf(entries.get(end).frames[0]))) end++;
+            }
+            result.add(entry);
+            // Collapsing must leave out at least two frames to pay for the marker.
+            if (end - i > 2) {
+                result.add(new Entry(null, 1, end - i - 1, pkg.substring(0, pkg.length() - 1)));
+                collapsed = true;
+            } else {
+                for (int j = i + 1; j < end; j++) result.add(entries.get(j));
+            }
+            i = end;
+        }
+        if (collapsed) {
+            entries.clear();
+            entries.addAll(result);
+        }
+        return collapsed;
+    }
+
+    /** <p>Returns the configured package that contains the class of the given frame, if any.</p> */
+    @CheckForNull private String packageOf(@NonNull StackTraceElement frame) {
+        String className = frame.getClassName();
+        for (String prefix : this.collapsePackages) {
+            if (className.startsWith(prefix)) return prefix;
+        }
+        return null;
+    }
+
+    /**
+     * <p>Keeps the topmost three quarters and the bottommost quarter of the given maximum number of
+     * frames, and replaces the rest with a single marker. Folded cycles are kept or left out as a
+     * whole.</p>
+     *
+     * @return whether or not any frame was left out.
+     */
+    private static boolean cap(@NonNull List<Entry> entries, int maxDepth) {
+        int total = 0;
+        for (Entry entry : entries) total += entry.getWrittenFrames();
+        if (total <= maxDepth) return false;
+        int tailBudget = maxDepth / 4;
+        int headBudget = maxDepth - tailBudget;
+        int head = 0;
+        int headFrames = 0;
+        while (head < entries.size() && headFrames + entries.get(head).getWrittenFrames() <= headBudget) {
+            headFrames += entries.get(head++).getWrittenFrames();
+        }
+        int tail = entries.size();
+        int tailFrames = 0;
+        while (tail > head && tailFrames + entries.get(tail - 1).getWrittenFrames() <= tailBudget) {
+            tailFrames += entries.get(--tail).getWrittenFrames();
+        }
+        int elided = 0;
+        for (int i = head; i < tail; i++) elided += entries.get(i).getRepresentedFrames();
+        List<Entry> middle = entries.subList(head, tail);
+        middle.clear();
+        middle.add(new Entry(null, 1, elided, null));
+        return true;
+    }
+
+    /**
+     * <p>One element of a reduced stack trace: either one frame, a cycle of frames that repeats, or a
+     * marker for frames that were left out.</p>
+     */
+    @Immutable
+    public static final class Entry {
+
+        private final StackTraceElement[] frames;
+        private final int repeats;
+        private final int elided;
+        private final String pkg;
+
+        private Entry(@Nullable StackTraceElement[] frames, int repeats, int elided, @Nullable String pkg) {
+            this.frames = frames == null ? new StackTraceElement[0] : frames;
+            this.repeats = repeats;
+            this.elided = elided;
+            this.pkg = pkg;
+        }
+
+        /**
+         * <p>Returns the frames of this entry, from the top of the stack to the bottom. The array is
+         * shared, and must not be modified.</p>
+         *
+         * @return never {@code null}. Empty if this entry is a marker for frames that were left out.
+         */
+        @NonNull public StackTraceElement[] getFrames() {
+            return this.frames; //NOSONAR
+        }
+
+        /**
+         * <p>Returns how many times the frames of this entry repeat back to back.</p>
+         *
+         * @return 1 if the frames of this entry are not a folded cycle.
+         */
+        public int getRepeats() {
+            return this.repeats;
+        }
+
+        /**
+         * <p>Returns the number of frames that were left out in place of this entry.</p>
+         *
+         * @return 0 if this entry is not a marker.
+         */
+        public int getElidedFrames() {
+            return this.elided;
+        }
+
+        /**
+         * <p>Returns the package whose frames were collapsed in place of this entry.</p>
+         *
+         * @return {@code null} if this entry is not a marker, or if frames were left out to cap the depth.
+         */
+        @CheckForNull public String getPackage() {
+            return this.pkg;
+        }
+
+        /**
+         * <p>Returns the number of frames of the original stack trace that this entry stands for.</p>
+         *
+         * @return a non-negative value.
+         */
+        public int getRepresentedFrames() {
+            return this.frames.length * this.repeats + this.elided;
+        }
+
+        /**
+         * <p>Returns the number of frames that are sent for this entry.</p>
+         *
+         * @return a non-negative value.
+         */
+        public int getWrittenFrames() {
+            return this.frames.length;
+        }
+
+        private boolean isSingleFrame() {
+            return this.frames.length == 1 && this.repeats == 1;
+        }
+
+    }
+
+}
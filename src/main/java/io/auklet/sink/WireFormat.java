@@ -0,0 +1,160 @@
+package io.auklet.sink;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.jcip.annotations.Immutable;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+
+/**
+ * <p>The encodings of event messages that the agent can send. The backend advertises the highest
+ * version it accepts in the app config (see {@link io.auklet.core.DataUsageConfig#getEventFormatVersion()}),
+ * and the agent uses the highest version that both sides support.</p>
+ *
+ * <ul>
+ *   <li>{@link #MAP} (version 1) is the original format: a MessagePack map with string keys, in which
+ *   every stack frame is a map of its own.</li>
+ *   <li>{@link #COMPACT} (version 2) is a MessagePack map with the integer keys defined by
+ *   {@link Field}. Class names, method names and file names are sent once per message, in string
+ *   tables, and referenced by index; class names are front-coded, so that a package prefix shared with
+ *   the previous class name is sent as its length only. See {@link CompactEventWriter}.</li>
+ *   <li>{@link #DICTIONARY} (version 3) is the compact format, in which a stack frame that the backend
+ *   already holds in the device's {@link io.auklet.config.FrameDictionary} is sent as its dictionary ID.
+ *   Messages that refer to the dictionary carry its ID in {@link Field#DICTIONARY}.</li>
+ * </ul>
+ *
+ * <p>A batch of events is a MessagePack array of event messages in either format; the backend can tell
+ * the formats apart by the type of their keys.</p>
+ */
+@Immutable
+public enum WireFormat {
+
+    MAP(1),
+    COMPACT(2),
+    DICTIONARY(3);
+
+    private final int version;
+
+    WireFormat(int version) {
+        this.version = version;
+    }
+
+    /**
+     * <p>Returns the version number of this format.</p>
+     *
+     * @return a positive value.
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * <p>Returns whether or not stack traces in this format may contain the marker maps that stand in for
+     * frames left out by the {@link StackTraceReducer}. The map format predates them.</p>
+     *
+     * @return {@code false} for {@link #MAP}.
+     */
+    public boolean hasStackTraceMarkers() {
+        return this != MAP;
+    }
+
+    /**
+     * <p>Returns the highest format that is supported by both the backend and the agent.</p>
+     *
+     * @param serverVersion the highest version accepted by the backend.
+     * @param maxVersion the highest version the agent is configured to use.
+     * @return never {@code null}. {@link #MAP} if either version is less than 2.
+     */
+    @NonNull public static WireFormat negotiate(int serverVersion, int maxVersion) {
+        int version = Math.min(serverVersion, maxVersion);
+        WireFormat best = MAP;
+        for (WireFormat format : values()) {
+            if (format.version <= version) best = format;
+        }
+        return best;
+    }
+
+    /**
+     * <p>The fields of an event message, with their key in each format.</p>
+     */
+    public enum Field {
+
+        /** <p>The format version. Not in the map format.</p> */
+        VERSION(null, 0),
+        /** <p>The front-coded class name table. Not in the map format.</p> */
+        CLASSES(null, 1),
+        /** <p>The method and file name table. Not in the map format.</p> */
+        NAMES(null, 2),
+        APPLICATION("application", 3),
+        MAC_ADDRESS_HASH("macAddressHash", 4),
+        PUBLIC_IP("publicIP", 5),
+        AGENT_VERSION("agentVersion", 6),
+        DEVICE("device", 7),
+        ID("id", 8),
+        SYSTEM_METRICS("systemMetrics", 9),
+        TIMESTAMP("timestamp", 10),
+        EXC_TYPE("excType", 11),
+        MESSAGE("message", 12),
+        STACK_TRACE("stackTrace", 13),
+        FINGERPRINT("fingerprint", 14),
+        OCCURRENCES("occurrences", 15),
+        FIRST_TIMESTAMP("firstTimestamp", 16),
+        LAST_TIMESTAMP("lastTimestamp", 17),
+        DROPPED_EVENTS("droppedEvents", 18),
+        SAMPLE_WEIGHT("sampleWeight", 19),
+        CAUSE("cause", 20),
+        SUPPRESSED("suppressed", 21),
+        FRAMES_IN_COMMON("framesInCommon", 22),
+        REPEAT("repeat", 23),
+        CYCLE_LENGTH("cycleLength", 24),
+        /**
+         * <p>In a stack trace marker, the number of frames it stands in for. In the map format, which has
+         * no markers, the number of frames cut from all of the event's stack traces.</p>
+         */
+        ELIDED_FRAMES("elidedFrames", 25),
+        PACKAGE("package", 26),
+        /** <p>The ID of the frame dictionary that frame IDs refer to. Dictionary format only.</p> */
+        DICTIONARY(null, 27);
+
+        private final String name;
+        private final int tag;
+
+        Field(String name, int tag) {
+            this.name = name;
+            this.tag = tag;
+        }
+
+        /**
+         * <p>Returns the key of this field in the {@link #MAP} format.</p>
+         *
+         * @return {@code null} if the field does not exist in the map format.
+         */
+        @CheckForNull public String getName() {
+            return this.name;
+        }
+
+        /**
+         * <p>Returns the key of this field in the {@link #COMPACT} and {@link #DICTIONARY} formats.</p>
+         *
+         * @return a non-negative value.
+         */
+        public int getTag() {
+            return this.tag;
+        }
+
+        /**
+         * <p>Packs the key of this field in the given format.</p>
+         *
+         * @param msgpack never {@code null}.
+         * @param format never {@code null}.
+         * @throws IOException if an error occurs while writing to the MessagePacker.
+         */
+        /*package*/ void packKey(@NonNull MessagePacker msgpack, @NonNull WireFormat format) throws IOException {
+            if (format != MAP) msgpack.packInt(this.tag);
+            else msgpack.packString(this.name);
+        }
+
+    }
+
+}
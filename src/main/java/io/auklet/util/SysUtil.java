@@ -87,6 +87,28 @@ public final class SysUtil {
         }
     }
 
+    /**
+     * <p>Returns a decimal value, falling back on an environment variable or JVM system property.</p>
+     *
+     * @param fromThisObj this function returns this object if it is not {@code null}.
+     * @param envVar see {@link #getValue(Integer, String, String, boolean)}.
+     * @param sysProp see {@link #getValue(Integer, String, String, boolean)}.
+     * @param warnOnException see {@link #getValue(Integer, String, String, boolean)}.
+     * @return whatever decimal value is determined by the logic described above, or {@code null}
+     * if all above described options fail to produce a value.
+     */
+    @CheckForNull
+    public static Double getValue(@Nullable Double fromThisObj, @Nullable String envVar, @Nullable String sysProp, boolean warnOnException) {
+        if (fromThisObj != null) return fromThisObj;
+        String stringValue = getValue((String) null, envVar, sysProp, warnOnException);
+        if (stringValue == null) return null;
+        try {
+            return Double.valueOf(stringValue);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * <p>Returns a JVM environment variable.</p>
      *
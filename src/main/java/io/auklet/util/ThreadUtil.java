@@ -5,6 +5,12 @@ import edu.umd.cs.findbugs.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -15,11 +21,14 @@ import java.util.concurrent.atomic.AtomicLong;
 public final class ThreadUtil {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ThreadUtil.class);
+    // Threads are held weakly so that threads that have exited can be garbage collected.
+    private static final Set<Thread> AGENT_THREADS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Thread, Boolean>()));
 
     private ThreadUtil() {}
 
     /**
-     * <p>Returns a thread factory that produces daemon threads.</p>
+     * <p>Returns a thread factory that produces daemon threads. The threads are counted as the agent's
+     * own threads by {@link #getAgentThreadIds()}.</p>
      *
      * @param nameFormat the name format for threads created by this factory. If {@code null},
      * thread names will be autogenerated by the JVM. If not {@code null}, you can use the placeholder
@@ -35,11 +44,31 @@ public final class ThreadUtil {
                 t.setDaemon(true);
                 final long count = counter.incrementAndGet();
                 if (nameFormat != null) t.setName(String.format(nameFormat, count));
+                AGENT_THREADS.add(t);
                 return t;
             }
         };
     }
 
+    /**
+     * <p>Returns the IDs of the live threads that were created by thread factories returned by
+     * {@link #createDaemonThreadFactory(String)}.</p>
+     *
+     * @return never {@code null}.
+     */
+    @NonNull public static long[] getAgentThreadIds() {
+        List<Thread> threads;
+        synchronized (AGENT_THREADS) {
+            threads = new ArrayList<>(AGENT_THREADS);
+        }
+        long[] ids = new long[threads.size()];
+        int count = 0;
+        for (Thread thread : threads) {
+            if (thread.isAlive()) ids[count++] = thread.getId();
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
     /**
      * <p>Shuts down the given executor service. If it does not shut down within 3 seconds,
      * or if the current thread is interrupted while waiting for shutdown to complete,
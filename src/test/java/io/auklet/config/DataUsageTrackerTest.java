@@ -0,0 +1,173 @@
+package io.auklet.config;
+
+import io.auklet.util.StoreDirectory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DataUsageTrackerTest {
+
+    // The file holds a header, followed by slots of two records, each holding a sequence number, the
+    // epoch, the count and a checksum.
+    private static final int HEADER_SIZE = DataUsageTracker.HEADER_SIZE;
+    private static final int SLOT_SIZE = DataUsageTracker.SLOT_SIZE;
+    private static final int RECORD_SIZE = DataUsageTracker.RECORD_SIZE;
+    private static final int COUNT_OFFSET = 16;
+    private static final int HEADER_CHECKSUM_OFFSET = 24;
+
+    @Rule public final StoreDirectory<DataUsageTracker> directory = new StoreDirectory<DataUsageTracker>() {
+        @Override protected void close(DataUsageTracker tracker) {
+            tracker.shutdown();
+        }
+    };
+    private File file;
+    private File legacyFile;
+
+    @Before public void setUp() {
+        this.file = this.directory.file("usage.shm");
+        this.legacyFile = this.directory.file("usage");
+    }
+
+    private DataUsageTracker open() {
+        DataUsageTracker tracker = new DataUsageTracker();
+        tracker.file = this.file;
+        tracker.open(this.legacyFile);
+        return this.directory.register(tracker);
+    }
+
+    /** <p>Returns the position of the record with the highest sequence number in the given slot.</p> */
+    private long newestRecord(int slot) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+            long first = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            long second = first + RECORD_SIZE;
+            raf.seek(first);
+            long firstSequence = raf.readLong();
+            raf.seek(second);
+            long secondSequence = raf.readLong();
+            return firstSequence > secondSequence ? first : second;
+        }
+    }
+
+    @Test public void reopenRecoversCount() {
+        DataUsageTracker tracker = this.open();
+        tracker.addMoreData(100L);
+        tracker.addMoreData(0L);
+        tracker.shutdown();
+        assertEquals(100L, this.open().getBytesSent());
+    }
+
+    @Test public void corruptNewestRecordFallsBackToOlderRecord() throws IOException {
+        DataUsageTracker tracker = this.open();
+        tracker.addMoreData(100L);
+        tracker.sync();
+        tracker.addMoreData(50L);
+        tracker.shutdown();
+        StoreDirectory.flipByte(this.file, this.newestRecord(0) + COUNT_OFFSET);
+        assertEquals(100L, this.open().getBytesSent());
+    }
+
+    @Test public void tornRecordIsIgnored() throws IOException {
+        DataUsageTracker tracker = this.open();
+        tracker.addMoreData(100L);
+        tracker.shutdown();
+        // A write that got as far as the sequence number of the older record, but no further.
+        long newest = this.newestRecord(0);
+        long older = newest == HEADER_SIZE ? HEADER_SIZE + RECORD_SIZE : HEADER_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.seek(newest);
+            long sequence = raf.readLong();
+            raf.seek(older);
+            raf.writeLong(sequence + 1);
+        }
+        assertEquals(100L, this.open().getBytesSent());
+    }
+
+    @Test public void slotWithNoValidRecordCountsAsZero() throws IOException {
+        DataUsageTracker tracker = this.open();
+        tracker.addMoreData(100L);
+        tracker.sync();
+        tracker.addMoreData(50L);
+        tracker.shutdown();
+        StoreDirectory.flipByte(this.file, HEADER_SIZE + COUNT_OFFSET);
+        StoreDirectory.flipByte(this.file, HEADER_SIZE + RECORD_SIZE + COUNT_OFFSET);
+        assertEquals(0L, this.open().getBytesSent());
+    }
+
+    @Test public void trackersShareUsageAndTakeOverSlots() {
+        DataUsageTracker first = this.open();
+        DataUsageTracker second = this.open();
+        first.addMoreData(10L);
+        second.addMoreData(20L);
+        first.sync();
+        second.sync();
+        first.sync();
+        assertEquals(20L, first.getExternalBytesSent());
+        assertEquals(10L, second.getExternalBytesSent());
+        first.shutdown();
+        // The next tracker claims the slot that the first one released, along with its count.
+        DataUsageTracker third = this.open();
+        assertEquals(10L, third.getBytesSent());
+        assertEquals(20L, third.getExternalBytesSent());
+    }
+
+    @Test public void resetIsAdoptedByOtherTrackers() {
+        DataUsageTracker first = this.open();
+        DataUsageTracker second = this.open();
+        first.addMoreData(10L);
+        second.addMoreData(20L);
+        first.sync();
+        second.sync();
+        assertEquals(10L, first.reset());
+        assertEquals(0L, first.getBytesSent());
+        assertEquals(0L, first.getExternalBytesSent());
+        // The second tracker drops its usage when it notices the new epoch.
+        assertEquals(20L, second.sync());
+        assertEquals(0L, second.getBytesSent());
+        first.addMoreData(5L);
+        first.sync();
+        // Both trackers already reset this month, so this does not reset the first tracker's usage.
+        assertEquals(0L, second.reset());
+        first.sync();
+        assertEquals(5L, first.getBytesSent());
+        assertEquals(5L, second.getExternalBytesSent());
+    }
+
+    @Test public void corruptHeaderDoesNotRevertEpoch() throws IOException {
+        DataUsageTracker tracker = this.open();
+        tracker.reset();
+        tracker.addMoreData(100L);
+        tracker.shutdown();
+        StoreDirectory.flipByte(this.file, HEADER_CHECKSUM_OFFSET);
+        // The epoch is rebuilt from the records, so the count still belongs to the current epoch.
+        assertEquals(100L, this.open().getBytesSent());
+    }
+
+    @Test public void legacyUsageIsMigrated() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(this.legacyFile)) {
+            out.write("{\"usage\": 1234}".getBytes("UTF-8"));
+        }
+        DataUsageTracker tracker = this.open();
+        assertEquals(1234L, tracker.getBytesSent());
+        assertFalse(this.legacyFile.exists());
+        tracker.shutdown();
+        // The migrated usage is in the slot now, and is not counted twice.
+        assertEquals(1234L, this.open().getBytesSent());
+    }
+
+    @Test public void unreadableLegacyUsageIsDiscarded() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(this.legacyFile)) {
+            out.write("not json".getBytes("UTF-8"));
+        }
+        assertEquals(0L, this.open().getBytesSent());
+        assertFalse(this.legacyFile.exists());
+    }
+
+}
@@ -0,0 +1,61 @@
+package io.auklet.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/** <p>Opens frame dictionaries on arbitrary files, without an agent.</p> */
+public final class FrameDictionaries {
+
+    // Follows the magic number in the header.
+    private static final int ACKNOWLEDGED_OFFSET = 4;
+
+    private FrameDictionaries() {}
+
+    /**
+     * <p>Opens the dictionary in the given file.</p>
+     *
+     * @param file the dictionary file, which is created if it does not exist.
+     * @return the dictionary, which is disabled if the file could not be opened.
+     */
+    public static FrameDictionary open(File file) {
+        FrameDictionary dictionary = new FrameDictionary();
+        dictionary.file = file;
+        dictionary.open();
+        return dictionary;
+    }
+
+    /**
+     * <p>Saves the given frames in the dictionary in the given file, marks all of its entries as
+     * acknowledged by the backend, and reopens it.</p>
+     *
+     * @param file the dictionary file, which is created if it does not exist.
+     * @param frames the frames to add.
+     * @return the reopened dictionary.
+     * @throws IOException if the file cannot be written.
+     */
+    public static FrameDictionary openAcknowledged(File file, StackTraceElement... frames) throws IOException {
+        FrameDictionary dictionary = open(file);
+        for (StackTraceElement frame : frames) dictionary.lookup(frame);
+        int size = dictionary.size();
+        dictionary.shutdown();
+        setAcknowledged(file, size);
+        return open(file);
+    }
+
+    /**
+     * <p>Overwrites the number of entries that the backend has acknowledged in the header of the given
+     * dictionary file, which must not be open.</p>
+     *
+     * @param file the dictionary file.
+     * @param count the number of acknowledged entries.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void setAcknowledged(File file, int count) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(ACKNOWLEDGED_OFFSET);
+            raf.writeInt(count);
+        }
+    }
+
+}
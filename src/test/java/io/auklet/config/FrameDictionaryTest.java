@@ -0,0 +1,103 @@
+package io.auklet.config;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDictionaryTest {
+
+    private static final StackTraceElement FIRST = new StackTraceElement("com.example.First", "run", "First.java", 1);
+    private static final StackTraceElement SECOND = new StackTraceElement("com.example.Second", "run", null, -2);
+    private static final StackTraceElement THIRD = new StackTraceElement("com.example.Third", "run", "Third.java", 3);
+    @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private File file;
+
+    @Before public void setUp() throws IOException {
+        this.file = this.temporaryFolder.newFile();
+    }
+
+    @Test public void framesAreOnlyReferencedOnceAcknowledged() {
+        FrameDictionary dictionary = FrameDictionaries.open(this.file);
+        assertTrue(dictionary.isEnabled());
+        assertEquals(-1, dictionary.lookup(FIRST));
+        assertEquals(-1, dictionary.lookup(FIRST));
+        assertEquals(1, dictionary.size());
+        // Saving is not enough; the backend must acknowledge the entry.
+        dictionary.sync(false);
+        assertEquals(-1, dictionary.lookup(FIRST));
+        assertEquals(0, dictionary.getAcknowledged());
+        dictionary.shutdown();
+    }
+
+    @Test public void reloadKeepsIdsAndAcknowledgedCount() throws IOException {
+        FrameDictionary dictionary = FrameDictionaries.openAcknowledged(this.file, FIRST, SECOND);
+        UUID id = dictionary.getDictionaryId();
+        int first = dictionary.lookup(FIRST);
+        int second = dictionary.lookup(SECOND);
+        assertTrue(first >= 0 && first < 2);
+        assertTrue(second >= 0 && second < 2);
+        assertNotEquals(first, second);
+        assertEquals(-1, dictionary.lookup(THIRD));
+        dictionary.shutdown();
+
+        FrameDictionary reopened = FrameDictionaries.open(this.file);
+        assertEquals(id, reopened.getDictionaryId());
+        assertEquals(3, reopened.size());
+        assertEquals(2, reopened.getAcknowledged());
+        assertEquals(first, reopened.lookup(FIRST));
+        assertEquals(second, reopened.lookup(SECOND));
+        // The third frame was saved at shutdown, but never acknowledged.
+        assertEquals(-1, reopened.lookup(THIRD));
+        reopened.shutdown();
+    }
+
+    @Test public void tornEntryIsDiscarded() throws IOException {
+        FrameDictionaries.openAcknowledged(this.file, FIRST, SECOND).shutdown();
+        long length = this.file.length();
+        // Cut the last entry in half, as if the agent stopped while it was being appended.
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.setLength(length - 3);
+        }
+        FrameDictionary dictionary = FrameDictionaries.open(this.file);
+        assertTrue(dictionary.isEnabled());
+        assertEquals(1, dictionary.size());
+        // The acknowledged count is capped at the number of entries that survived.
+        assertEquals(1, dictionary.getAcknowledged());
+        dictionary.shutdown();
+        assertTrue(this.file.length() < length - 3);
+    }
+
+    @Test public void unknownFileIsReplaced() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.write(new byte[64]);
+        }
+        FrameDictionary dictionary = FrameDictionaries.open(this.file);
+        assertTrue(dictionary.isEnabled());
+        assertEquals(0, dictionary.size());
+        assertEquals(0, dictionary.getAcknowledged());
+        dictionary.shutdown();
+        assertEquals(24, this.file.length());
+    }
+
+    @Test public void lockedFileDisablesDictionary() {
+        FrameDictionary first = FrameDictionaries.open(this.file);
+        FrameDictionary second = FrameDictionaries.open(this.file);
+        assertTrue(first.isEnabled());
+        assertFalse(second.isEnabled());
+        assertEquals(-1, second.lookup(FIRST));
+        first.shutdown();
+        second.shutdown();
+    }
+
+}
@@ -0,0 +1,51 @@
+package io.auklet.core;
+
+import io.auklet.config.DataUsageTracker;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataUsageMonitorTest {
+
+    private static final long LIMIT = 100L;
+
+    private DataUsageTracker tracker;
+    private DataUsageMonitor monitor;
+
+    @Before public void setUp() {
+        // The tracker is not started, so it only counts in memory.
+        this.tracker = new DataUsageTracker();
+        this.monitor = new DataUsageMonitor(this.tracker, new DataUsageConfig(0L, 0L, LIMIT, 1, 1));
+    }
+
+    @Test public void committedReservationIsCountedOnce() {
+        assertTrue(this.monitor.reserve(60));
+        this.monitor.commit(60);
+        assertEquals(60L, this.tracker.getBytesSent());
+        // The reservation is what counts against the limit; committing it does not count it again.
+        assertFalse(this.monitor.willExceedLimit(40L));
+        assertTrue(this.monitor.willExceedLimit(41L));
+        assertTrue(this.monitor.reserve(40));
+        assertFalse(this.monitor.reserve(1));
+    }
+
+    @Test public void releasedReservationIsNotCounted() {
+        assertTrue(this.monitor.reserve(60));
+        assertFalse(this.monitor.reserve(60));
+        this.monitor.release(60);
+        assertEquals(0L, this.tracker.getBytesSent());
+        assertFalse(this.monitor.willExceedLimit(LIMIT));
+        assertTrue(this.monitor.reserve(60));
+    }
+
+    @Test public void unreservedDataCountsAgainstTheLimit() {
+        this.monitor.addMoreData(70);
+        assertEquals(70L, this.tracker.getBytesSent());
+        assertFalse(this.monitor.reserve(31));
+        assertTrue(this.monitor.reserve(30));
+    }
+
+}
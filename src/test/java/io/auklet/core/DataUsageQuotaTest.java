@@ -0,0 +1,105 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataUsageQuotaTest {
+
+    private static final int THREADS = 8;
+    private static final int ATTEMPTS = 20000;
+
+    /**
+     * <p>Runs the given task on {@link #THREADS} threads that start at the same time, and waits for all
+     * of them to finish.</p>
+     */
+    private static void race(final Runnable task) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    task.run();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+    }
+
+    @Test public void reservationsStopAtTheLimit() {
+        DataUsageQuota quota = new DataUsageQuota();
+        quota.setLimit(100L);
+        quota.setExternalUsage(30L);
+        assertTrue(quota.tryReserve(60L));
+        assertFalse(quota.tryReserve(11L));
+        assertTrue(quota.tryReserve(10L));
+        assertEquals(70L, quota.getUsed());
+        // Returning a reservation makes room for another one.
+        quota.release(10L);
+        assertTrue(quota.tryReserve(10L));
+        assertEquals(70L, quota.getUsed());
+    }
+
+    @Test public void concurrentReservationsNeverOvershootTheLimit() throws InterruptedException {
+        final DataUsageQuota quota = new DataUsageQuota();
+        final long limit = 100003L;
+        quota.setLimit(limit);
+        final AtomicLong reserved = new AtomicLong();
+        final AtomicBoolean overshot = new AtomicBoolean();
+        race(new Runnable() {
+            @Override public void run() {
+                for (int i = 0; i < ATTEMPTS; i++) {
+                    if (!quota.tryReserve(7L)) continue;
+                    reserved.addAndGet(7L);
+                    if (quota.getUsed() > limit) overshot.set(true);
+                }
+            }
+        });
+        assertFalse(overshot.get());
+        assertEquals(reserved.get(), quota.getUsed());
+        // The attempts add up to more than the limit, so the quota must be full.
+        assertTrue(quota.getUsed() > limit - 7L);
+    }
+
+    @Test public void releasedReservationsAreReturnedUnderContention() throws InterruptedException {
+        final DataUsageQuota quota = new DataUsageQuota();
+        final long limit = 50000L;
+        quota.setLimit(limit);
+        final AtomicLong kept = new AtomicLong();
+        final AtomicBoolean overshot = new AtomicBoolean();
+        race(new Runnable() {
+            @Override public void run() {
+                for (int i = 0; i < ATTEMPTS; i++) {
+                    if (!quota.tryReserve(5L)) continue;
+                    if (quota.getUsed() > limit) overshot.set(true);
+                    // Every other payload is not sent, so its reservation is released.
+                    if (i % 2 == 0) {
+                        quota.release(5L);
+                    } else {
+                        kept.addAndGet(5L);
+                    }
+                }
+            }
+        });
+        assertFalse(overshot.get());
+        assertEquals(kept.get(), quota.getUsed());
+    }
+
+}
@@ -0,0 +1,99 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EventAggregatorTest {
+
+    private static final long WINDOW = 100L;
+    // Created once, so that every event of a kind has the same stack trace and therefore the same fingerprint.
+    private static final Throwable A = new IllegalStateException("a");
+    private static final Throwable B = new IllegalStateException("b");
+
+    private static Event event(Throwable throwable, long timestamp) {
+        return Event.of(throwable, timestamp);
+    }
+
+    @Test public void duplicatesWithinWindowAreEmittedAsOneEvent() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        Event first = event(A, 0L);
+        assertSame(first, aggregator.add(first, 0L));
+        assertNull(aggregator.add(event(A, 10L), 10L));
+        assertNull(aggregator.add(event(A, 20L), 20L));
+        assertEquals(50L, aggregator.millisUntilNextExpiry(50L));
+        assertNull(aggregator.pollExpired(50L));
+        Event aggregate = aggregator.pollExpired(WINDOW);
+        assertNotNull(aggregate);
+        assertEquals(2, aggregate.getOccurrences());
+        assertEquals(10L, aggregate.getFirstTimestamp());
+        assertEquals(20L, aggregate.getLastTimestamp());
+        assertNull(aggregator.pollExpired(WINDOW));
+    }
+
+    @Test public void continuingStormKeepsAggregating() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        assertNull(aggregator.add(event(A, 50L), 50L));
+        assertEquals(1, aggregator.pollExpired(100L).getOccurrences());
+        // The window was re-opened when it closed, so the next duplicate is absorbed too.
+        assertNull(aggregator.add(event(A, 150L), 150L));
+        assertNull(aggregator.pollExpired(199L));
+        assertEquals(1, aggregator.pollExpired(200L).getOccurrences());
+        // A window without duplicates closes without an event, and the fingerprint stops being tracked.
+        assertNull(aggregator.pollExpired(300L));
+        assertEquals(Long.MAX_VALUE, aggregator.millisUntilNextExpiry(300L));
+        assertNotNull(aggregator.add(event(A, 310L), 310L));
+    }
+
+    @Test public void fingerprintsAreAggregatedSeparately() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        assertNotNull(aggregator.add(event(B, 10L), 10L));
+        assertNull(aggregator.add(event(B, 20L), 20L));
+        // The window of A closes first, but only the window of B absorbed a duplicate.
+        assertNull(aggregator.pollExpired(WINDOW));
+        Event aggregate = aggregator.pollExpired(10L + WINDOW);
+        assertEquals(B.getMessage(), aggregate.getSnapshot().getMessage());
+        assertEquals(1, aggregate.getOccurrences());
+    }
+
+    @Test public void aggregatesAreAbsorbedWithTheirOccurrences() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        Event coalesced = new Event(ThrowableSnapshot.of(A, 10L), 5, 10L, 30L);
+        assertNull(aggregator.add(coalesced, 30L));
+        Event aggregate = aggregator.pollAny();
+        assertEquals(5, aggregate.getOccurrences());
+        assertEquals(10L, aggregate.getFirstTimestamp());
+        assertEquals(30L, aggregate.getLastTimestamp());
+    }
+
+    @Test public void pollAnyClosesWindowsBeforeTheyAreDue() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        assertNotNull(aggregator.add(event(B, 0L), 0L));
+        assertNull(aggregator.add(event(B, 1L), 1L));
+        assertEquals(B.getMessage(), aggregator.pollAny().getSnapshot().getMessage());
+        assertNull(aggregator.pollAny());
+        assertEquals(Long.MAX_VALUE, aggregator.millisUntilNextExpiry(1L));
+    }
+
+    @Test public void windowIsDueIfClockIsSetBackwards() {
+        EventAggregator aggregator = new EventAggregator(WINDOW);
+        assertNotNull(aggregator.add(event(A, 1000L), 1000L));
+        assertNull(aggregator.add(event(A, 1010L), 1010L));
+        assertEquals(1, aggregator.pollExpired(500L).getOccurrences());
+    }
+
+    @Test public void zeroWindowDisablesAggregation() {
+        EventAggregator aggregator = new EventAggregator(0L);
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        assertNotNull(aggregator.add(event(A, 0L), 0L));
+        assertNull(aggregator.pollAny());
+    }
+
+}
@@ -0,0 +1,111 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventQueueTest {
+
+    private static ThrowableSnapshot snapshot(String message, long timestamp) {
+        Throwable throwable = new IllegalStateException(message);
+        throwable.setStackTrace(new StackTraceElement[] {new StackTraceElement("com.example.Foo", "bar", "Foo.java", 10)});
+        return ThrowableSnapshot.of(throwable, timestamp);
+    }
+
+    @Test public void coalescesDuplicatesThatDoNotFit() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.COALESCE);
+        assertTrue(queue.offer(snapshot("first", 1L)));
+        assertTrue(queue.offer(snapshot("second", 2L)));
+        // The message only differs by digits, so these share a fingerprint.
+        assertTrue(queue.offer(snapshot("overflow 1", 3L)));
+        assertTrue(queue.offer(snapshot("overflow 2", 4L)));
+        assertTrue(queue.offer(snapshot("overflow 3", 5L)));
+        assertEquals(2, queue.size());
+        assertEquals(3, queue.getCoalescedCount());
+        assertEquals(0, queue.getDroppedCount());
+
+        assertEquals("first", queue.poll().getMessage());
+        assertEquals("second", queue.poll().getMessage());
+        assertNull(queue.poll());
+
+        Event event = queue.pollCoalesced();
+        assertNotNull(event);
+        assertTrue(event.isAggregate());
+        assertEquals(3, event.getOccurrences());
+        assertEquals(3L, event.getFirstTimestamp());
+        assertEquals(5L, event.getLastTimestamp());
+        assertEquals("overflow 3", event.getSnapshot().getMessage());
+        assertNull(queue.pollCoalesced());
+    }
+
+    @Test public void keepsSeparateEntriesPerFingerprint() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.COALESCE);
+        assertTrue(queue.offer(snapshot("queued", 1L)));
+        assertTrue(queue.offer(snapshot("queued", 1L)));
+        assertTrue(queue.offer(snapshot("alpha", 2L)));
+        assertTrue(queue.offer(snapshot("beta", 3L)));
+        assertTrue(queue.offer(snapshot("alpha", 4L)));
+        int occurrences = 0;
+        int entries = 0;
+        Event event;
+        while ((event = queue.pollCoalesced()) != null) {
+            entries++;
+            occurrences += event.getOccurrences();
+        }
+        assertEquals(2, entries);
+        assertEquals(3, occurrences);
+    }
+
+    @Test public void newOverflowEntryStartsAfterPoll() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.COALESCE);
+        queue.offer(snapshot("queued", 1L));
+        queue.offer(snapshot("queued", 1L));
+        queue.offer(snapshot("overflow", 2L));
+        assertEquals(1, queue.pollCoalesced().getOccurrences());
+        queue.offer(snapshot("overflow", 3L));
+        Event event = queue.pollCoalesced();
+        assertEquals(1, event.getOccurrences());
+        assertEquals(3L, event.getFirstTimestamp());
+    }
+
+    @Test public void dropNewestCountsDrops() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.DROP_NEWEST);
+        assertTrue(queue.offer(snapshot("queued", 1L)));
+        assertTrue(queue.offer(snapshot("queued", 1L)));
+        assertFalse(queue.offer(snapshot("dropped", 2L)));
+        assertFalse(queue.offer(snapshot("dropped", 3L)));
+        assertNull(queue.pollCoalesced());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test public void dropOldestCountsEvictions() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(snapshot("evicted", 1L)));
+        assertTrue(queue.offer(snapshot("kept", 2L)));
+        assertTrue(queue.offer(snapshot("newest", 3L)));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals("kept", queue.poll().getMessage());
+        assertEquals("newest", queue.poll().getMessage());
+    }
+
+    @Test public void reportsEachDropOnce() {
+        EventQueue queue = new EventQueue(2, EventRing.OverflowPolicy.DROP_NEWEST);
+        queue.offer(snapshot("queued", 1L));
+        queue.offer(snapshot("queued", 1L));
+        queue.offer(snapshot("dropped", 2L));
+        queue.offer(snapshot("dropped", 3L));
+        assertEquals(2, queue.takeUnreportedDrops());
+        assertEquals(0, queue.takeUnreportedDrops());
+        queue.restoreUnreportedDrops(2);
+        queue.offer(snapshot("dropped", 4L));
+        assertEquals(3, queue.takeUnreportedDrops());
+        queue.restoreUnreportedDrops(0);
+        assertEquals(0, queue.takeUnreportedDrops());
+    }
+
+}
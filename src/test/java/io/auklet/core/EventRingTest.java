@@ -0,0 +1,118 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventRingTest {
+
+    @Test public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(2, new EventRing<Integer>(1, EventRing.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new EventRing<Integer>(5, EventRing.OverflowPolicy.DROP_NEWEST).capacity());
+        assertEquals(8, new EventRing<Integer>(8, EventRing.OverflowPolicy.DROP_NEWEST).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejectsZeroCapacity() {
+        new EventRing<Integer>(0, EventRing.OverflowPolicy.DROP_NEWEST);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejectsNullPolicy() {
+        new EventRing<Integer>(4, null);
+    }
+
+    @Test public void preservesOrderAcrossWraparound() {
+        EventRing<Integer> ring = new EventRing<>(4, EventRing.OverflowPolicy.DROP_NEWEST);
+        int next = 0;
+        int expected = 0;
+        // Keep the ring partially full while the positions run several laps around it.
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) assertTrue(ring.offer(next++));
+            for (int i = 0; i < 3; i++) assertEquals(Integer.valueOf(expected++), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+        assertEquals(30, ring.getEnqueuedCount());
+        assertEquals(0, ring.getDroppedCount());
+        assertEquals(3, ring.getHighWatermark());
+    }
+
+    @Test public void dropNewestKeepsQueuedElements() {
+        EventRing<Integer> ring = new EventRing<>(4, EventRing.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 4; i++) assertTrue(ring.offer(i));
+        assertFalse(ring.offer(4));
+        assertFalse(ring.offer(5));
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getDroppedCount());
+        for (int i = 0; i < 4; i++) assertEquals(Integer.valueOf(i), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test public void dropOldestEvictsHead() {
+        EventRing<Integer> ring = new EventRing<>(4, EventRing.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 7; i++) assertTrue(ring.offer(i));
+        assertEquals(4, ring.size());
+        assertEquals(3, ring.getDroppedCount());
+        assertEquals(7, ring.getEnqueuedCount());
+        for (int i = 3; i < 7; i++) assertEquals(Integer.valueOf(i), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test public void coalesceBehavesLikeDropNewest() {
+        EventRing<Integer> ring = new EventRing<>(2, EventRing.OverflowPolicy.COALESCE);
+        assertTrue(ring.offer(0));
+        assertTrue(ring.offer(1));
+        assertFalse(ring.offer(2));
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertEquals(Integer.valueOf(1), ring.poll());
+    }
+
+    @Test public void singleSlotRequestDoesNotOverwrite() {
+        EventRing<Integer> ring = new EventRing<>(1, EventRing.OverflowPolicy.DROP_NEWEST);
+        assertTrue(ring.offer(0));
+        assertTrue(ring.offer(1));
+        assertFalse(ring.offer(2));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertEquals(Integer.valueOf(1), ring.poll());
+        assertNull(ring.poll());
+    }
+
+    @Test public void nullIsNotQueued() {
+        EventRing<Integer> ring = new EventRing<>(2, EventRing.OverflowPolicy.DROP_NEWEST);
+        assertFalse(ring.offer(null));
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test public void clearEmptiesRing() {
+        EventRing<Integer> ring = new EventRing<>(4, EventRing.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) ring.offer(i);
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertNull(ring.poll());
+        assertTrue(ring.offer(9));
+        assertEquals(Integer.valueOf(9), ring.poll());
+    }
+
+    @Test public void timedPollReturnsQueuedElementOrTimesOut() {
+        EventRing<Integer> ring = new EventRing<>(2, EventRing.OverflowPolicy.DROP_NEWEST);
+        assertNull(ring.poll(10, TimeUnit.MILLISECONDS));
+        Integer element = 42;
+        ring.offer(element);
+        assertSame(element, ring.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void parsesPolicyNames() {
+        assertEquals(EventRing.OverflowPolicy.DROP_OLDEST, EventRing.OverflowPolicy.fromString(" drop-oldest ", null));
+        assertEquals(EventRing.OverflowPolicy.COALESCE, EventRing.OverflowPolicy.fromString("Coalesce", null));
+        assertEquals(EventRing.OverflowPolicy.DROP_NEWEST, EventRing.OverflowPolicy.fromString("bogus", EventRing.OverflowPolicy.DROP_NEWEST));
+        assertNull(EventRing.OverflowPolicy.fromString(null, null));
+    }
+
+}
@@ -0,0 +1,112 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class EventSamplerTest {
+
+    private static final double DELTA = 1e-9;
+
+    // Created once, so that every event of a kind has the same stack trace and therefore the same fingerprint.
+    private static final Throwable A = new IllegalStateException("a");
+    private static final Throwable B = new IllegalStateException("b");
+    private static final Throwable C = new IllegalStateException("c");
+
+    private static Event event(Throwable throwable) {
+        return Event.of(throwable, 0L);
+    }
+
+    /** <p>Returns an event with a fingerprint of its own; digits in messages do not change fingerprints.</p> */
+    private static Event distinct(int id) {
+        StringBuilder message = new StringBuilder();
+        for (int rest = id; rest > 0 || message.length() == 0; rest /= 26) message.append((char) ('a' + rest % 26));
+        return Event.of(new IllegalArgumentException(message.toString()), 0L);
+    }
+
+    @Test public void burstIsSentAndTheRestIsSkipped() {
+        EventSampler sampler = new EventSampler(1.0, 3, 0.0);
+        for (int i = 0; i < 3; i++) assertEquals(1.0, sampler.sample(event(A), 0L).getSampleWeight(), DELTA);
+        assertNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 999L));
+        // One token is earned per second.
+        Event sent = sampler.sample(event(A), 1000L);
+        assertNotNull(sent);
+        assertEquals(3.0, sent.getSampleWeight(), DELTA);
+        assertNull(sampler.sample(event(A), 1000L));
+    }
+
+    @Test public void weightAccountsForAggregatedOccurrences() {
+        EventSampler sampler = new EventSampler(1.0, 1, 0.0);
+        assertNotNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(new Event(ThrowableSnapshot.of(A, 0L), 6, 0L, 0L), 0L));
+        Event sent = sampler.sample(new Event(ThrowableSnapshot.of(A, 1000L), 4, 1000L, 1000L), 1000L);
+        // The 4 occurrences that are sent stand for 10.
+        assertEquals(2.5, sent.getSampleWeight(), DELTA);
+        assertEquals(0L, sampler.takeSkippedOccurrences());
+    }
+
+    @Test public void globalBucketIsSharedButNewFingerprintsAreAlwaysSent() {
+        EventSampler sampler = new EventSampler(0.0, 1, 2.0);
+        assertNotNull(sampler.sample(event(A), 0L));
+        assertNotNull(sampler.sample(event(B), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(B), 0L));
+        assertNotNull(sampler.sample(event(C), 0L));
+        // Two tokens are earned per second, for all fingerprints together.
+        assertEquals(2.0, sampler.sample(event(A), 500L).getSampleWeight(), DELTA);
+        assertNull(sampler.sample(event(B), 500L));
+        assertEquals(3.0, sampler.sample(event(B), 1000L).getSampleWeight(), DELTA);
+    }
+
+    @Test public void zeroRatesDisableSampling() {
+        EventSampler sampler = new EventSampler(0.0, 1, 0.0);
+        assertFalse(sampler.isEnabled());
+        for (int i = 0; i < 10; i++) {
+            Event event = event(A);
+            assertSame(event, sampler.sample(event, 0L));
+        }
+        assertEquals(0, sampler.getTrackedFingerprints());
+    }
+
+    @Test public void evictedFingerprintReportsItsSkippedOccurrences() {
+        EventSampler sampler = new EventSampler(1.0, 1, 0.0);
+        assertNotNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        for (int id = 0; id < 1024; id++) assertNotNull(sampler.sample(distinct(id), 0L));
+        assertEquals(1024, sampler.getTrackedFingerprints());
+        assertEquals(2L, sampler.takeEvictedOccurrences());
+        assertEquals(0L, sampler.takeEvictedOccurrences());
+        // The evicted fingerprint starts over as a new one.
+        assertEquals(1.0, sampler.sample(event(A), 0L).getSampleWeight(), DELTA);
+    }
+
+    @Test public void pendingEventCarriesSkippedOccurrencesAtShutdown() {
+        EventSampler sampler = new EventSampler(1.0, 1, 0.0);
+        assertNotNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        Event flushed = sampler.flush(event(A));
+        assertEquals(3.0, flushed.getSampleWeight(), DELTA);
+        // The skipped occurrences are carried once, and flushing does not consume tokens.
+        assertEquals(1.0, sampler.flush(event(A)).getSampleWeight(), DELTA);
+        assertEquals(0L, sampler.takeSkippedOccurrences());
+    }
+
+    @Test public void skippedOccurrencesOfFingerprintsThatDidNotRecurAreTaken() {
+        EventSampler sampler = new EventSampler(1.0, 1, 0.0);
+        assertNotNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        assertNull(sampler.sample(event(A), 0L));
+        Event other = event(B);
+        assertSame(other, sampler.flush(other));
+        assertEquals(2L, sampler.takeSkippedOccurrences());
+        assertEquals(0L, sampler.takeSkippedOccurrences());
+    }
+
+}
@@ -0,0 +1,142 @@
+package io.auklet.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    // Four 25 ms buckets, so one round of the wheel takes 100 ms.
+    private static final long TICK_MILLIS = 25L;
+    private static final int TICKS_PER_WHEEL = 4;
+    private static final long ROUND_MILLIS = TICK_MILLIS * TICKS_PER_WHEEL;
+    private static final Executor DIRECT = new Executor() {
+        @Override public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private HashedWheelTimer timer;
+
+    @Before public void setUp() {
+        this.timer = new HashedWheelTimer(TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL, new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HashedWheelTimerTest");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @After public void tearDown() {
+        this.timer.stop();
+    }
+
+    @Test public void zeroDelayRunsImmediately() {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = this.timer.newTimeout(DIRECT, new Counter(runs, null), 0L, TimeUnit.MILLISECONDS);
+        assertEquals(1, runs.get());
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+        assertEquals(1, this.timer.getExpiredCount());
+    }
+
+    @Test public void delayLongerThanOneRoundIsNotRunEarly() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long delay = ROUND_MILLIS * 2 + TICK_MILLIS;
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = this.timer.newTimeout(DIRECT, new Counter(new AtomicInteger(), done), delay, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(delay + ROUND_MILLIS * 4, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("ran after " + elapsed + " ms", elapsed >= delay);
+        // Counting down the rounds must not cost an extra round.
+        assertTrue("ran after " + elapsed + " ms", elapsed < delay + ROUND_MILLIS);
+        assertTrue(timeout.isExpired());
+        assertEquals(0, this.timer.getPendingCount());
+    }
+
+    @Test public void cancelledTimerDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout cancelled = this.timer.newTimeout(DIRECT, new Counter(runs, null), ROUND_MILLIS + TICK_MILLIS, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(1);
+        this.timer.newTimeout(DIRECT, new Counter(new AtomicInteger(), done), ROUND_MILLIS * 2, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        assertTrue(done.await(ROUND_MILLIS * 6, TimeUnit.MILLISECONDS));
+        assertEquals(0, runs.get());
+        assertFalse(cancelled.isExpired());
+        assertEquals(1, this.timer.getCancelledCount());
+        assertEquals(1, this.timer.getExpiredCount());
+        assertEquals(0, this.timer.getPendingCount());
+    }
+
+    @Test public void periodicTimerIsRescheduledAcrossRounds() throws InterruptedException {
+        // A period of exactly one round puts every run back into the bucket that is being expired.
+        CountDownLatch done = new CountDownLatch(3);
+        AtomicInteger runs = new AtomicInteger();
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = this.timer.newPeriodicTimeout(DIRECT, new Counter(runs, done), ROUND_MILLIS, ROUND_MILLIS, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(ROUND_MILLIS * 10, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("ran 3 times after " + elapsed + " ms", elapsed >= ROUND_MILLIS * 3);
+        assertTrue("ran 3 times after " + elapsed + " ms", elapsed < ROUND_MILLIS * 4);
+        assertFalse(timeout.isExpired());
+        assertTrue(timeout.cancel());
+        int seen = runs.get();
+        Thread.sleep(ROUND_MILLIS * 2);
+        assertEquals(seen, runs.get());
+        assertEquals(0, this.timer.getPendingCount());
+    }
+
+    @Test public void periodShorterThanTickRunsOncePerTick() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(4);
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = this.timer.newPeriodicTimeout(DIRECT, new Counter(runs, done), 1L, 1L, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(ROUND_MILLIS * 4, TimeUnit.MILLISECONDS));
+        timeout.cancel();
+    }
+
+    @Test public void stopDiscardsPendingTimers() {
+        AtomicInteger runs = new AtomicInteger();
+        this.timer.newTimeout(DIRECT, new Counter(runs, null), ROUND_MILLIS * 10, TimeUnit.MILLISECONDS);
+        this.timer.newPeriodicTimeout(DIRECT, new Counter(runs, null), ROUND_MILLIS * 10, ROUND_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(2, this.timer.getPendingCount());
+        assertEquals(2, this.timer.stop());
+        assertEquals(0, this.timer.getPendingCount());
+        assertEquals(0, runs.get());
+    }
+
+    @Test(expected = IllegalStateException.class) public void stoppedTimerRejectsTimers() {
+        this.timer.newTimeout(DIRECT, new Counter(new AtomicInteger(), null), ROUND_MILLIS, TimeUnit.MILLISECONDS);
+        this.timer.stop();
+        this.timer.newTimeout(DIRECT, new Counter(new AtomicInteger(), null), ROUND_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Counter implements Runnable {
+
+        private final AtomicInteger runs;
+        private final CountDownLatch latch;
+
+        private Counter(AtomicInteger runs, CountDownLatch latch) {
+            this.runs = runs;
+            this.latch = latch;
+        }
+
+        @Override public void run() {
+            this.runs.incrementAndGet();
+            if (this.latch != null) this.latch.countDown();
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package io.auklet.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverheadGovernorTest {
+
+    private static final double CPU_BUDGET = 10.0;
+    private static final long ALLOCATION_BUDGET = 1000L;
+
+    private final AgentMetrics metrics = new AgentMetrics();
+
+    private OverheadGovernor governor() {
+        return new OverheadGovernor(CPU_BUDGET, ALLOCATION_BUDGET, this.metrics);
+    }
+
+    private static void adjust(OverheadGovernor governor, int samples, double cpuPercent, long allocationRate) {
+        for (int i = 0; i < samples; i++) governor.adjust(cpuPercent, allocationRate);
+    }
+
+    private static int admitted(OverheadGovernor governor, int events) {
+        int admitted = 0;
+        for (int i = 0; i < events; i++) {
+            if (governor.admit()) admitted++;
+        }
+        return admitted;
+    }
+
+    @Test public void levelRisesOncePerSampleOverBudget() {
+        OverheadGovernor governor = this.governor();
+        adjust(governor, 2, CPU_BUDGET + 1, 0L);
+        assertEquals(2, governor.getLevel());
+        // Either budget raises the level.
+        adjust(governor, 1, 0.0, ALLOCATION_BUDGET + 1);
+        assertEquals(3, governor.getLevel());
+        assertEquals(3, this.metrics.getOverheadLevel());
+        assertEquals(3L, this.metrics.getOverheadEscalations().sum());
+    }
+
+    @Test public void levelIsCappedAtMaximum() {
+        OverheadGovernor governor = this.governor();
+        adjust(governor, OverheadGovernor.MAX_LEVEL + 3, CPU_BUDGET * 2, 0L);
+        assertEquals(OverheadGovernor.MAX_LEVEL, governor.getLevel());
+        assertEquals(OverheadGovernor.MAX_LEVEL, this.metrics.getOverheadEscalations().sum());
+    }
+
+    @Test public void levelFallsAfterTenSamplesWellWithinBudget() {
+        OverheadGovernor governor = this.governor();
+        adjust(governor, 2, CPU_BUDGET + 1, 0L);
+        adjust(governor, 9, CPU_BUDGET / 4, 0L);
+        assertEquals(2, governor.getLevel());
+        adjust(governor, 1, CPU_BUDGET / 4, 0L);
+        assertEquals(1, governor.getLevel());
+        adjust(governor, 10, CPU_BUDGET / 4, 0L);
+        assertEquals(0, governor.getLevel());
+        adjust(governor, 10, CPU_BUDGET / 4, 0L);
+        assertEquals(0, governor.getLevel());
+    }
+
+    @Test public void sampleNearBudgetRestartsTheCountdown() {
+        OverheadGovernor governor = this.governor();
+        adjust(governor, 1, CPU_BUDGET + 1, 0L);
+        adjust(governor, 9, CPU_BUDGET / 4, 0L);
+        // Within budget, but not by half: the level holds, and the countdown starts over.
+        adjust(governor, 1, CPU_BUDGET * 0.75, 0L);
+        adjust(governor, 9, CPU_BUDGET / 4, 0L);
+        assertEquals(1, governor.getLevel());
+        adjust(governor, 1, 0.0, ALLOCATION_BUDGET * 3 / 4);
+        adjust(governor, 9, CPU_BUDGET / 4, 0L);
+        assertEquals(1, governor.getLevel());
+        adjust(governor, 1, CPU_BUDGET / 4, 0L);
+        assertEquals(0, governor.getLevel());
+    }
+
+    @Test public void zeroBudgetsAreNotEnforced() {
+        OverheadGovernor governor = new OverheadGovernor(0.0, 0L, this.metrics);
+        adjust(governor, 5, 100.0, Long.MAX_VALUE);
+        assertEquals(0, governor.getLevel());
+        assertEquals(100, admitted(governor, 100));
+    }
+
+    @Test public void higherLevelsShedMoreWork() {
+        OverheadGovernor governor = this.governor();
+        assertEquals(0L, governor.getSystemMetricsIntervalMillis());
+        assertEquals(Integer.MAX_VALUE, governor.getMaxStackFrames());
+        assertEquals(100, admitted(governor, 100));
+        adjust(governor, 1, CPU_BUDGET + 1, 0L);
+        assertEquals(10000L, governor.getSystemMetricsIntervalMillis());
+        assertEquals(Integer.MAX_VALUE, governor.getMaxStackFrames());
+        adjust(governor, 1, CPU_BUDGET + 1, 0L);
+        assertEquals(64, governor.getMaxStackFrames());
+        assertEquals(100, admitted(governor, 100));
+        adjust(governor, 1, CPU_BUDGET + 1, 0L);
+        assertEquals(32, governor.getMaxStackFrames());
+        assertEquals(50, admitted(governor, 100));
+        adjust(governor, 1, CPU_BUDGET + 1, 0L);
+        assertEquals(25, admitted(governor, 100));
+        adjust(governor, 2, CPU_BUDGET + 1, 0L);
+        assertEquals(OverheadGovernor.MAX_LEVEL, governor.getLevel());
+        // Stack traces are never truncated below the minimum depth.
+        assertEquals(8, governor.getMaxStackFrames());
+        assertEquals(320000L, governor.getSystemMetricsIntervalMillis());
+    }
+
+}
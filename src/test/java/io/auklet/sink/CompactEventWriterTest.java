@@ -0,0 +1,381 @@
+package io.auklet.sink;
+
+import io.auklet.AukletException;
+import io.auklet.config.FrameDictionaries;
+import io.auklet.config.FrameDictionary;
+import io.auklet.core.Event;
+import io.auklet.core.ThrowableFingerprint;
+import io.auklet.core.ThrowableSnapshot;
+import io.auklet.platform.JavaPlatform;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactEventWriterTest {
+
+    // U+1D400 and U+1D401 share their high surrogate, so a prefix that ends between the two halves of
+    // the pair would split it.
+    private static final String BOLD_A = "\uD835\uDC00";
+    private static final String BOLD_B = "\uD835\uDC01";
+    @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+    private FakeSink sink;
+    private EnvelopeTemplate template;
+    private JavaPlatform platform;
+
+    @Before public void setUp() throws AukletException {
+        this.sink = new FakeSink();
+        this.template = EnvelopeTemplate.create("app", "0123456789abcdef", "127.0.0.1", "test", "device");
+        this.platform = new JavaPlatform();
+    }
+
+    @After public void tearDown() {
+        this.sink.shutdown();
+    }
+
+    private static Throwable throwable(String message, StackTraceElement... frames) {
+        Throwable throwable = new IllegalStateException(message);
+        throwable.setStackTrace(frames);
+        return throwable;
+    }
+
+    private static StackTraceElement frame(String className, String methodName, String fileName, int line) {
+        return new StackTraceElement(className, methodName, fileName, line);
+    }
+
+    private byte[] serialize(Event event, WireFormat format, StackTraceReducer reducer) throws AukletException {
+        return this.serialize(event, format, null, reducer);
+    }
+
+    private byte[] serialize(Event event, WireFormat format, FrameDictionary dictionary, StackTraceReducer reducer) throws AukletException {
+        // System metrics are encoded once and reused, so that messages in both formats carry the same ones.
+        return this.sink.serialize(event, this.template, this.platform, format, dictionary, reducer, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** <p>Asserts that the event decodes to the same message in the map and compact formats.</p> */
+    private void assertRoundTrip(Event event, StackTraceReducer reducer) throws AukletException, IOException {
+        this.assertRoundTrip(event, reducer, null, new CompactDecoder());
+    }
+
+    /**
+     * <p>Asserts that the event decodes to the same message in the map format and in the compact or, if
+     * a dictionary is given, the dictionary format.</p>
+     */
+    private void assertRoundTrip(Event event, StackTraceReducer reducer, FrameDictionary dictionary, CompactDecoder decoder)
+            throws AukletException, IOException {
+        WireFormat format = dictionary == null ? WireFormat.COMPACT : WireFormat.DICTIONARY;
+        Map<String, Object> expected = decodeMap(this.serialize(event, WireFormat.MAP, reducer));
+        Map<String, Object> actual = decoder.decode(this.serialize(event, format, dictionary, reducer));
+        assertEquals(format.getVersion(), decoder.version);
+        // The message IDs are random.
+        assertNotEquals(expected.remove("id"), actual.remove("id"));
+        assertEquals(expected, actual);
+    }
+
+    @Test public void roundTripsSimpleEvent() throws AukletException, IOException {
+        Throwable throwable = throwable("message 42",
+                frame("com.example.service.Handler", "handle", "Handler.java", 10),
+                frame("com.example.service.Dispatcher", "dispatch", null, -2),
+                frame("com.example.Main", "main", "Main.java", 3));
+        this.assertRoundTrip(Event.of(throwable, 1000L), StackTraceReducer.NONE);
+    }
+
+    @Test public void roundTripsAggregateWithRelatedThrowables() throws AukletException, IOException {
+        StackTraceElement main = frame("com.example.Main", "main", "Main.java", 3);
+        Throwable root = throwable("root", frame("java.net.Socket", "connect", "Socket.java", 100), main);
+        Throwable suppressed = throwable("close", frame("java.io.FileInputStream", "close", "FileInputStream.java", 7), main);
+        Throwable top = throwable("top", frame("com.example.Client", "call", "Client.java", 20), main);
+        top.initCause(root);
+        top.addSuppressed(suppressed);
+        Event event = new Event(ThrowableSnapshot.of(top, 1000L), 7, 1000L, 2000L).withDroppedEvents(3).withSampleWeight(2.5);
+        this.assertRoundTrip(event, StackTraceReducer.NONE);
+    }
+
+    @Test public void compactFormatMarksReducedStackTrace() throws AukletException, IOException {
+        List<StackTraceElement> frames = new ArrayList<>();
+        frames.add(frame("com.example.Top", "run", "Top.java", 1));
+        for (int i = 0; i < 8; i++) {
+            frames.add(frame("com.example.Even", "recurse", "Even.java", 2));
+            frames.add(frame("com.example.Odd", "recurse", "Odd.java", 3));
+        }
+        for (int i = 0; i < 4; i++) frames.add(frame("org.framework.Layer" + i, "invoke", "Layer.java", i));
+        for (int i = 0; i < 40; i++) frames.add(frame("com.example.Deep" + i, "call", "Deep.java", i));
+        Throwable throwable = throwable("reduced", frames.toArray(new StackTraceElement[0]));
+        StackTraceReducer reducer = new StackTraceReducer(16, true, Arrays.asList("org.framework"), 4);
+        Map<String, Object> compact = new CompactDecoder().decode(this.serialize(Event.of(throwable, 1000L), WireFormat.COMPACT, reducer));
+        List<?> stackTrace = (List<?>) compact.get("stackTrace");
+        // The recursion, the framework frames and the middle of the stack are each replaced by a marker.
+        assertEquals(3, countMarkers(stackTrace));
+        assertEquals(16 + 3, stackTrace.size());
+        assertNull(compact.get("elidedFrames"));
+    }
+
+    @Test public void mapFormatCutsReducedStackTraceWithoutMarkers() throws AukletException, IOException {
+        List<StackTraceElement> frames = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            frames.add(frame("com.example.Even", "recurse", "Even.java", 2));
+            frames.add(frame("com.example.Odd", "recurse", "Odd.java", 3));
+        }
+        Throwable cause = throwable("cause", frames.toArray(new StackTraceElement[0]));
+        Throwable throwable = throwable("reduced", frames.toArray(new StackTraceElement[0]));
+        throwable.initCause(cause);
+        StackTraceReducer reducer = new StackTraceReducer(0, true, null, 0);
+        // Folding alone does not change the map format, since it would need markers.
+        Map<String, Object> folded = decodeMap(this.serialize(Event.of(throwable, 1000L), WireFormat.MAP, reducer));
+        assertEquals(16, ((List<?>) folded.get("stackTrace")).size());
+        assertNull(folded.get("elidedFrames"));
+        // A depth cap cuts each stack trace, and the event carries the number of frames cut.
+        byte[] payload = this.sink.serialize(Event.of(throwable, 1000L), this.template, this.platform, WireFormat.MAP, null, reducer, 4, Long.MAX_VALUE);
+        Map<String, Object> cut = decodeMap(payload);
+        List<?> stackTrace = (List<?>) cut.get("stackTrace");
+        assertEquals(4, stackTrace.size());
+        assertEquals(0, countMarkers(stackTrace));
+        // The cause has no frames of its own: all 16 are in common with the enclosing stack trace.
+        assertEquals(12L, cut.get("elidedFrames"));
+    }
+
+    @Test public void roundTripsSurrogatePairAtPrefixBoundary() throws AukletException, IOException {
+        Throwable throwable = throwable("\uD83D\uDE00",
+                frame("com.example." + BOLD_A + "lpha", "run", "A.java", 1),
+                frame("com.example." + BOLD_B + "eta", "run", "B.java", 2),
+                frame("com.example." + BOLD_B, "run", "B.java", 3),
+                frame("com.example." + BOLD_B + BOLD_A, "run", "B.java", 4));
+        this.assertRoundTrip(Event.of(throwable, 1000L), StackTraceReducer.NONE);
+        CompactDecoder decoder = new CompactDecoder();
+        decoder.decode(this.serialize(Event.of(throwable, 1000L), WireFormat.COMPACT, StackTraceReducer.NONE));
+        assertEquals(Arrays.asList(IllegalStateException.class.getName(), "com.example." + BOLD_A + "lpha",
+                "com.example." + BOLD_B + "eta", "com.example." + BOLD_B, "com.example." + BOLD_B + BOLD_A), decoder.classes);
+    }
+
+    @Test public void roundTripsDictionaryReferences() throws AukletException, IOException {
+        StackTraceElement known = frame("com.example.Known", "run", "Known.java", 1);
+        StackTraceElement knownWithoutFile = frame("com.example.Known", "call", null, -2);
+        StackTraceElement unknown = frame("com.example.Unknown", "run", "Unknown.java", 3);
+        File file = this.temporaryFolder.newFile();
+        FrameDictionary dictionary = FrameDictionaries.openAcknowledged(file, known, knownWithoutFile);
+        try {
+            CompactDecoder decoder = new CompactDecoder();
+            decoder.frames.put(dictionary.lookup(known), known);
+            decoder.frames.put(dictionary.lookup(knownWithoutFile), knownWithoutFile);
+            Throwable throwable = throwable("dictionary", known, unknown, knownWithoutFile);
+            this.assertRoundTrip(Event.of(throwable, 1000L), StackTraceReducer.NONE, dictionary, decoder);
+            assertEquals(dictionary.getDictionaryId(), decoder.dictionaryId);
+            // Only the unknown frame was sent in full.
+            assertEquals(Arrays.asList(IllegalStateException.class.getName(), "com.example.Unknown"), decoder.classes);
+        } finally {
+            dictionary.shutdown();
+        }
+    }
+
+    @Test public void dictionaryIdIsOnlySentWhenReferenced() throws AukletException, IOException {
+        FrameDictionary dictionary = FrameDictionaries.open(this.temporaryFolder.newFile());
+        try {
+            CompactDecoder decoder = new CompactDecoder();
+            Throwable throwable = throwable("unacknowledged", frame("com.example.Main", "main", "Main.java", 3));
+            this.assertRoundTrip(Event.of(throwable, 1000L), StackTraceReducer.NONE, dictionary, decoder);
+            assertNull(decoder.dictionaryId);
+        } finally {
+            dictionary.shutdown();
+        }
+    }
+
+    @Test public void compactFormatIsSmaller() throws AukletException {
+        StackTraceElement[] frames = new StackTraceElement[32];
+        for (int i = 0; i < frames.length; i++) frames[i] = frame("com.example.service.Frame" + (i % 4), "run", "Frame.java", i);
+        Event event = Event.of(throwable("size", frames), 1000L);
+        int mapSize = this.serialize(event, WireFormat.MAP, StackTraceReducer.NONE).length;
+        int compactSize = this.serialize(event, WireFormat.COMPACT, StackTraceReducer.NONE).length;
+        assertTrue("compact " + compactSize + " vs map " + mapSize, compactSize * 2 < mapSize);
+    }
+
+    @Test public void compactIdIsBinary() throws AukletException, IOException {
+        byte[] payload = this.serialize(Event.of(throwable("id"), 1000L), WireFormat.COMPACT, StackTraceReducer.NONE);
+        Value id = unpack(payload).asMapValue().map().get(tag(WireFormat.Field.ID));
+        assertEquals(16, id.asBinaryValue().asByteArray().length);
+    }
+
+    private static Value unpack(byte[] payload) throws IOException {
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(payload);
+        Value value = unpacker.unpackValue();
+        // The map header must match the number of entries that were packed.
+        assertFalse(unpacker.hasNext());
+        return value;
+    }
+
+    private static Value tag(WireFormat.Field field) {
+        return ValueFactory.newInteger(field.getTag());
+    }
+
+    /** <p>Decodes a message in the map format into plain Java objects.</p> */
+    @SuppressWarnings("unchecked")
+    /** <p>Returns the number of marker maps in the given decoded stack trace.</p> */
+    private static int countMarkers(List<?> stackTrace) {
+        int markers = 0;
+        for (Object element : stackTrace) {
+            Map<?, ?> map = (Map<?, ?>) element;
+            if (map.containsKey("repeat") || map.containsKey("elidedFrames")) markers++;
+        }
+        return markers;
+    }
+
+    private static Map<String, Object> decodeMap(byte[] payload) throws IOException {
+        return (Map<String, Object>) plain(unpack(payload));
+    }
+
+    private static Object plain(Value value) {
+        switch (value.getValueType()) {
+            case NIL:
+                return null;
+            case BOOLEAN:
+                return value.asBooleanValue().getBoolean();
+            case INTEGER:
+                return value.asIntegerValue().asLong();
+            case FLOAT:
+                return value.asFloatValue().toDouble();
+            case STRING:
+                return value.asStringValue().asString();
+            case ARRAY:
+                List<Object> list = new ArrayList<>();
+                for (Value element : value.asArrayValue().list()) list.add(plain(element));
+                return list;
+            case MAP:
+                Map<Object, Object> map = new HashMap<>();
+                for (Map.Entry<Value, Value> entry : value.asMapValue().map().entrySet()) map.put(plain(entry.getKey()), plain(entry.getValue()));
+                return map;
+            default:
+                throw new AssertionError("Unexpected value: " + value);
+        }
+    }
+
+    /**
+     * <p>Decodes a message in the compact format into the plain Java objects that the same message in the
+     * map format decodes to.</p>
+     */
+    private static final class CompactDecoder {
+
+        private final List<String> classes = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private final Map<Integer, StackTraceElement> frames = new HashMap<>();
+        private int version = 0;
+        private UUID dictionaryId = null;
+
+        private Map<String, Object> decode(byte[] payload) throws IOException {
+            Map<Value, Value> message = unpack(payload).asMapValue().map();
+            this.version = message.get(tag(WireFormat.Field.VERSION)).asIntegerValue().asInt();
+            List<Value> classTable = message.get(tag(WireFormat.Field.CLASSES)).asArrayValue().list();
+            String previous = "";
+            for (int i = 0; i < classTable.size(); i += 2) {
+                previous = previous.substring(0, classTable.get(i).asIntegerValue().asInt()) + classTable.get(i + 1).asStringValue().asString();
+                this.classes.add(previous);
+            }
+            for (Value name : message.get(tag(WireFormat.Field.NAMES)).asArrayValue().list()) this.names.add(name.asStringValue().asString());
+            return this.map(message);
+        }
+
+        private Map<String, Object> map(Map<Value, Value> map) {
+            Map<String, Object> result = new HashMap<>();
+            for (Map.Entry<Value, Value> entry : map.entrySet()) {
+                WireFormat.Field field = field(entry.getKey().asIntegerValue().asInt());
+                Value value = entry.getValue();
+                switch (field) {
+                    case VERSION:
+                    case CLASSES:
+                    case NAMES:
+                        break;
+                    case DICTIONARY:
+                        this.dictionaryId = uuid(value);
+                        break;
+                    case EXC_TYPE:
+                    case PACKAGE:
+                        result.put(field.getName(), this.classes.get(value.asIntegerValue().asInt()));
+                        break;
+                    case ID:
+                        result.put(field.getName(), uuid(value).toString());
+                        break;
+                    case FINGERPRINT:
+                        result.put(field.getName(), ThrowableFingerprint.toHex(value.asIntegerValue().asLong()));
+                        break;
+                    case STACK_TRACE:
+                        List<Object> frames = new ArrayList<>();
+                        for (Value frame : value.asArrayValue().list()) frames.add(this.frame(frame));
+                        result.put(field.getName(), frames);
+                        break;
+                    case CAUSE:
+                        result.put(field.getName(), this.map(value.asMapValue().map()));
+                        break;
+                    case SUPPRESSED:
+                        List<Object> suppressed = new ArrayList<>();
+                        for (Value related : value.asArrayValue().list()) suppressed.add(this.map(related.asMapValue().map()));
+                        result.put(field.getName(), suppressed);
+                        break;
+                    default:
+                        result.put(field.getName(), plain(value));
+                }
+            }
+            return result;
+        }
+
+        private Object frame(Value value) {
+            // Markers are maps, as in the map format.
+            if (value.isMapValue()) return this.map(value.asMapValue().map());
+            Map<String, Object> frame = new HashMap<>();
+            if (value.isIntegerValue()) {
+                StackTraceElement element = this.frames.get(value.asIntegerValue().asInt());
+                frame.put("className", element.getClassName());
+                frame.put("functionName", element.getMethodName());
+                frame.put("filePath", element.getFileName() == null ? "" : element.getFileName());
+                frame.put("lineNumber", (long) Math.max(-1, element.getLineNumber()));
+                return frame;
+            }
+            List<Value> parts = value.asArrayValue().list();
+            frame.put("className", this.classes.get(parts.get(0).asIntegerValue().asInt()));
+            frame.put("functionName", this.names.get(parts.get(1).asIntegerValue().asInt()));
+            frame.put("filePath", parts.get(2).isNilValue() ? "" : this.names.get(parts.get(2).asIntegerValue().asInt()));
+            frame.put("lineNumber", parts.get(3).asIntegerValue().asLong());
+            return frame;
+        }
+
+        private static UUID uuid(Value value) {
+            ByteBuffer bytes = ByteBuffer.wrap(value.asBinaryValue().asByteArray());
+            return new UUID(bytes.getLong(), bytes.getLong());
+        }
+
+        private static WireFormat.Field field(int tag) {
+            for (WireFormat.Field field : WireFormat.Field.values()) {
+                if (field.getTag() == tag) return field;
+            }
+            throw new AssertionError("Unknown tag: " + tag);
+        }
+
+    }
+
+    /** <p>A sink that discards everything written to it.</p> */
+    private static final class FakeSink extends AbstractSink {
+        @Override protected void write(byte[] bytes) { /* discard */ }
+        @Override public void shutdown() {
+            // Nothing was started, so there is nothing to flush.
+        }
+    }
+
+}
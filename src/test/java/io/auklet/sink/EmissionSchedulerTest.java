@@ -0,0 +1,145 @@
+package io.auklet.sink;
+
+import io.auklet.AukletException;
+import io.auklet.core.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EmissionSchedulerTest {
+
+    private static final long EMISSION_PERIOD_MILLIS = 20L;
+    private static final byte[] FIRST = {0x01};
+    private static final byte[] SECOND = {0x02};
+
+    private final AtomicInteger rejections = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private HashedWheelTimer wheel;
+    private ThreadPoolExecutor lane;
+    private RecordingSink sink;
+    private EmissionScheduler scheduler;
+
+    @Before public void setUp() {
+        this.wheel = new HashedWheelTimer(10L, TimeUnit.MILLISECONDS, 16, new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EmissionSchedulerTest");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // A one-thread lane with room for one queued task, like the delivery lane but much smaller.
+        this.lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.AbortPolicy() {
+            @Override public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                rejections.incrementAndGet();
+                super.rejectedExecution(task, executor);
+            }
+        });
+        this.sink = new RecordingSink();
+        this.scheduler = new EmissionScheduler(this.sink, new MessagePackerPool(), new EmissionScheduler.FlushTimer() {
+            @Override public long getEmissionPeriod() {
+                return EMISSION_PERIOD_MILLIS;
+            }
+            @Override public Executor getLane() {
+                return lane;
+            }
+            @Override public HashedWheelTimer.Timeout newTimeout(Executor executor, Runnable task, long delayMillis) {
+                return wheel.newTimeout(executor, task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    @After public void tearDown() {
+        this.release.countDown();
+        this.lane.shutdownNow();
+        this.wheel.stop();
+    }
+
+    private void fillLane() {
+        Runnable blocker = new Runnable() {
+            @Override public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        this.lane.execute(blocker);
+        this.lane.execute(blocker);
+        try {
+            this.lane.execute(blocker);
+        } catch (RejectedExecutionException e) {
+            // Expected; the lane is now full.
+        }
+        this.rejections.set(0);
+    }
+
+    private void awaitRejections(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (this.rejections.get() < count && System.nanoTime() < deadline) Thread.sleep(5L);
+        assertTrue("rejections: " + this.rejections.get(), this.rejections.get() >= count);
+    }
+
+    @Test public void batchIsFlushedAfterTheEmissionPeriod() throws AukletException, InterruptedException {
+        this.scheduler.submit(FIRST);
+        this.scheduler.submit(SECOND);
+        byte[] written = this.sink.await();
+        assertNotNull(written);
+        // A MessagePack fixarray of two elements, followed by the two events.
+        assertArrayEquals(new byte[] {(byte) 0x92, 0x01, 0x02}, written);
+        assertEquals(0, this.scheduler.getPendingCount());
+    }
+
+    @Test public void flushRejectedByAFullLaneIsRearmed() throws AukletException, InterruptedException {
+        this.fillLane();
+        this.scheduler.submit(FIRST);
+        // Let the flush be rejected at least twice before the lane drains.
+        awaitRejections(2);
+        assertNull(this.sink.written.poll());
+        assertEquals(1, this.scheduler.getPendingCount());
+        this.release.countDown();
+        assertArrayEquals(FIRST, this.sink.await());
+        assertEquals(0, this.scheduler.getPendingCount());
+    }
+
+    @Test public void overdueBatchIsWrittenBySubmitter() throws AukletException, InterruptedException {
+        this.fillLane();
+        this.scheduler.submit(FIRST);
+        awaitRejections(1);
+        this.scheduler.submit(SECOND);
+        // The lane is still full, so this can only have been written by the submitting thread.
+        assertArrayEquals(new byte[] {(byte) 0x92, 0x01, 0x02}, this.sink.written.poll());
+        assertEquals(0, this.scheduler.getPendingCount());
+    }
+
+    private static final class RecordingSink extends AbstractSink {
+        private final BlockingQueue<byte[]> written = new LinkedBlockingQueue<>();
+        @Override protected void write(byte[] bytes) {
+            this.written.add(bytes);
+        }
+        @Override public void shutdown() {
+            // Nothing was started, so there is nothing to flush.
+        }
+        private byte[] await() throws InterruptedException {
+            return this.written.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+}
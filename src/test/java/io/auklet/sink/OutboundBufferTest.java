@@ -0,0 +1,199 @@
+package io.auklet.sink;
+
+import io.auklet.util.StoreDirectory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundBufferTest {
+
+    // The file holds two header slots, each ending with its checksum, followed by the message area, in
+    // which each message is preceded by its length and checksum.
+    private static final int SLOT_SIZE = OutboundBuffer.SLOT_SIZE;
+    private static final int DATA_START = OutboundBuffer.DATA_START;
+    private static final int RECORD_OVERHEAD = OutboundBuffer.RECORD_OVERHEAD;
+    private static final int CAPACITY = 4096;
+
+    @Rule public final StoreDirectory<OutboundBuffer> directory = new StoreDirectory<OutboundBuffer>() {
+        @Override protected void close(OutboundBuffer buffer) {
+            buffer.close();
+        }
+    };
+    private File file;
+
+    @Before public void setUp() {
+        this.file = this.directory.file("outbound");
+    }
+
+    private OutboundBuffer open() throws IOException {
+        OutboundBuffer buffer = new OutboundBuffer(this.file, CAPACITY);
+        buffer.open();
+        return this.directory.register(buffer);
+    }
+
+    private OutboundBuffer reopen(OutboundBuffer buffer) throws IOException {
+        buffer.close();
+        return this.open();
+    }
+
+    private static byte[] message(int id, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) id);
+        return message;
+    }
+
+    /** <p>Removes all messages from the buffer and returns the ID of each one.</p> */
+    private static List<Integer> drain(OutboundBuffer buffer) {
+        List<Integer> ids = new ArrayList<>();
+        byte[] message;
+        while ((message = buffer.peek()) != null) {
+            ids.add((int) message[0]);
+            buffer.remove();
+        }
+        return ids;
+    }
+
+    /** <p>Returns the header slot that was written last, assuming that the buffer has been closed.</p> */
+    private int newestSlot() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+            raf.seek(4);
+            long first = raf.readLong();
+            raf.seek(SLOT_SIZE + 4);
+            long second = raf.readLong();
+            return first > second ? 0 : 1;
+        }
+    }
+
+    @Test public void reopenRecoversMessagesInOrder() throws IOException {
+        OutboundBuffer buffer = this.open();
+        assertTrue(buffer.offer(message(1, 10)));
+        assertTrue(buffer.offer(message(2, 20)));
+        assertTrue(buffer.offer(message(3, 30)));
+        buffer.remove();
+        buffer = this.reopen(buffer);
+        assertEquals(2, buffer.size());
+        assertEquals(50L, buffer.getResidentBytes());
+        assertArrayEquals(message(2, 20), buffer.peek());
+        assertEquals(Arrays.asList(2, 3), drain(buffer));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test public void reopenAfterWrapAroundFollowsMarker() throws IOException {
+        OutboundBuffer buffer = this.open();
+        // Four records of 1008 bytes leave 64 bytes at the end, so the fifth evicts the first and wraps.
+        for (int id = 1; id <= 5; id++) assertTrue(buffer.offer(message(id, 1000)));
+        assertEquals(1L, buffer.getEvictedCount());
+        buffer = this.reopen(buffer);
+        assertEquals(4, buffer.size());
+        assertEquals(1L, buffer.getEvictedCount());
+        assertEquals(Arrays.asList(2, 3, 4, 5), drain(buffer));
+    }
+
+    @Test public void reopenAfterWrapAroundWithoutRoomForMarker() throws IOException {
+        OutboundBuffer buffer = this.open();
+        // Leave 2 bytes at the end of the message area, which is too little for a marker.
+        for (int id = 1; id <= 3; id++) assertTrue(buffer.offer(message(id, 1024 - RECORD_OVERHEAD)));
+        assertTrue(buffer.offer(message(4, 1022 - RECORD_OVERHEAD)));
+        assertTrue(buffer.offer(message(5, 1024 - RECORD_OVERHEAD)));
+        buffer = this.reopen(buffer);
+        assertEquals(Arrays.asList(2, 3, 4, 5), drain(buffer));
+    }
+
+    @Test public void corruptHeaderSlotFallsBackToOtherSlot() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.offer(message(2, 10));
+        buffer.close();
+        // The newest header slot records both messages; the other one only the first.
+        StoreDirectory.flipByte(this.file, this.newestSlot() * SLOT_SIZE + SLOT_SIZE - 1);
+        buffer = this.open();
+        assertEquals(1, buffer.size());
+        assertEquals(10L, buffer.getResidentBytes());
+        assertEquals(Arrays.asList(1), drain(buffer));
+    }
+
+    @Test public void corruptHeaderSlotCanBringBackRemovedMessage() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.offer(message(2, 10));
+        buffer.remove();
+        buffer.close();
+        StoreDirectory.flipByte(this.file, this.newestSlot() * SLOT_SIZE + 12);
+        assertEquals(Arrays.asList(1, 2), drain(this.open()));
+    }
+
+    @Test public void corruptHeaderSlotsStartEmpty() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.close();
+        StoreDirectory.flipByte(this.file, 0);
+        StoreDirectory.flipByte(this.file, SLOT_SIZE);
+        buffer = this.open();
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.offer(message(2, 10)));
+        assertEquals(Arrays.asList(2), drain(this.reopen(buffer)));
+    }
+
+    @Test public void corruptRecordStopsRecovery() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.offer(message(2, 10));
+        buffer.offer(message(3, 10));
+        buffer.close();
+        // Corrupt the payload of the second message; the third one is discarded along with it.
+        StoreDirectory.flipByte(this.file, DATA_START + (RECORD_OVERHEAD + 10) + RECORD_OVERHEAD + 5);
+        buffer = this.open();
+        assertEquals(1, buffer.size());
+        assertEquals(10L, buffer.getResidentBytes());
+        // The buffer continues after the intact prefix.
+        assertTrue(buffer.offer(message(4, 10)));
+        assertEquals(Arrays.asList(1, 4), drain(this.reopen(buffer)));
+    }
+
+    @Test public void tornRecordLengthStopsRecovery() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.offer(message(2, 10));
+        buffer.close();
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.seek(DATA_START + RECORD_OVERHEAD + 10);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+        assertEquals(Arrays.asList(1), drain(this.open()));
+    }
+
+    @Test public void rejectsMessageLargerThanBuffer() throws IOException {
+        OutboundBuffer buffer = this.open();
+        assertFalse(buffer.offer(message(1, CAPACITY)));
+        assertTrue(buffer.offer(message(2, CAPACITY - RECORD_OVERHEAD)));
+        assertEquals(Arrays.asList(2), drain(buffer));
+    }
+
+    @Test public void emptyBufferIsResizedOnOpen() throws IOException {
+        OutboundBuffer buffer = this.open();
+        buffer.offer(message(1, 10));
+        buffer.close();
+        OutboundBuffer larger = new OutboundBuffer(this.file, 2 * CAPACITY);
+        larger.open();
+        this.directory.register(larger);
+        // Messages are never discarded to apply a new budget.
+        assertEquals(CAPACITY, larger.getCapacity());
+        drain(larger);
+        larger.close();
+        larger.open();
+        assertEquals(2 * CAPACITY, larger.getCapacity());
+    }
+
+}
@@ -0,0 +1,107 @@
+package io.auklet.sink;
+
+import io.auklet.config.CompressionDictionary;
+import org.junit.After;
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+
+    private static final int THRESHOLD = 256;
+
+    private final CompressionDictionary dictionary = new CompressionDictionary();
+    private final PayloadCompressor compressor = new PayloadCompressor(this.dictionary, THRESHOLD);
+
+    @After public void tearDown() {
+        this.compressor.shutdown();
+    }
+
+    /** <p>Returns a payload that looks like the stack trace of an event.</p> */
+    private static byte[] stackTrace(int frames) throws UnsupportedEncodingException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < frames; i++) {
+            text.append("at java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:").append(1100 + i).append(")\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    /** <p>Decodes a compressed payload the way the backend does, and returns the original payload.</p> */
+    private byte[] decompress(byte[] compressed) throws IOException, DataFormatException {
+        byte[] stream;
+        int size;
+        try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(compressed)) {
+            assertEquals(3, unpacker.unpackMapHeader());
+            assertEquals("contentEncoding", unpacker.unpackString());
+            assertEquals(PayloadCompressor.CONTENT_ENCODING, unpacker.unpackString());
+            assertEquals("size", unpacker.unpackString());
+            size = unpacker.unpackInt();
+            assertEquals("payload", unpacker.unpackString());
+            stream = unpacker.readPayload(unpacker.unpackBinaryHeader());
+        }
+        byte[] preset = this.dictionary.getDictionary();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stream);
+            ByteArrayOutputStream original = new ByteArrayOutputStream(size);
+            byte[] chunk = new byte[512];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && inflater.needsDictionary()) {
+                    // The zlib header identifies the dictionary by its checksum.
+                    Adler32 checksum = new Adler32();
+                    checksum.update(preset, 0, preset.length);
+                    assertEquals(checksum.getValue(), inflater.getAdler());
+                    inflater.setDictionary(preset);
+                }
+                original.write(chunk, 0, length);
+            }
+            assertEquals(size, original.size());
+            return original.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Test public void compressedPayloadRoundTripsWithTheDictionary() throws IOException, DataFormatException {
+        assertTrue(this.dictionary.getDictionary().length > 0);
+        byte[] payload = stackTrace(40);
+        byte[] compressed = this.compressor.compress(payload);
+        assertTrue(compressed.length < payload.length);
+        assertArrayEquals(payload, this.decompress(compressed));
+        // The deflater is reused for the next payload.
+        payload = stackTrace(10);
+        assertArrayEquals(payload, this.decompress(this.compressor.compress(payload)));
+    }
+
+    @Test public void smallPayloadIsNotCompressed() throws IOException {
+        byte[] payload = new byte[THRESHOLD - 1];
+        assertSame(payload, this.compressor.compress(payload));
+    }
+
+    @Test public void incompressiblePayloadIsNotCompressed() throws IOException {
+        byte[] payload = new byte[4096];
+        new Random(42L).nextBytes(payload);
+        assertSame(payload, this.compressor.compress(payload));
+    }
+
+    @Test public void payloadIsNotCompressedAfterShutdown() throws IOException {
+        this.compressor.shutdown();
+        byte[] payload = stackTrace(40);
+        assertSame(payload, this.compressor.compress(payload));
+    }
+
+}
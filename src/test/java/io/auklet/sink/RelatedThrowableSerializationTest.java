@@ -0,0 +1,159 @@
+package io.auklet.sink;
+
+import io.auklet.core.Event;
+import io.auklet.core.ThrowableSnapshot;
+import org.junit.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class RelatedThrowableSerializationTest {
+
+    private static StackTraceElement frame(String name) {
+        return new StackTraceElement("com.example." + name, "run", name + ".java", 1);
+    }
+
+    private static StackTraceElement[] frames(String... names) {
+        StackTraceElement[] frames = new StackTraceElement[names.length];
+        for (int i = 0; i < names.length; i++) frames[i] = frame(names[i]);
+        return frames;
+    }
+
+    private static Throwable throwable(String message, String... frameNames) {
+        Throwable throwable = new RuntimeException(message);
+        throwable.setStackTrace(frames(frameNames));
+        return throwable;
+    }
+
+    /** <p>Packs the event in the map format, as the body of a message, and decodes it.</p> */
+    private static Map<String, Value> pack(Throwable throwable) throws IOException {
+        Event event = Event.of(ThrowableSnapshot.of(throwable, 1L));
+        MessageBufferPacker msgpack = MessagePack.newDefaultBufferPacker();
+        msgpack.packMapHeader(AbstractSink.countEventEntries(event));
+        AbstractSink.packEvent(msgpack, event, new StackFrameCache());
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(msgpack.toByteArray());
+        Value value = unpacker.unpackValue();
+        // The map header must match the number of entries that were packed.
+        assertFalse(unpacker.hasNext());
+        return toMap(value);
+    }
+
+    private static Map<String, Value> toMap(Value value) {
+        Map<String, Value> map = new HashMap<>();
+        for (Map.Entry<Value, Value> entry : value.asMapValue().map().entrySet()) {
+            map.put(entry.getKey().asStringValue().asString(), entry.getValue());
+        }
+        return map;
+    }
+
+    private static String[] classNames(Map<String, Value> map) {
+        List<Value> stackTrace = map.get("stackTrace").asArrayValue().list();
+        String[] names = new String[stackTrace.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = toMap(stackTrace.get(i)).get("className").asStringValue().asString().substring("com.example.".length());
+        }
+        return names;
+    }
+
+    private static int framesInCommon(Map<String, Value> map) {
+        Value value = map.get("framesInCommon");
+        return value == null ? 0 : value.asIntegerValue().asInt();
+    }
+
+    @Test public void causeLeavesOutFramesInCommon() throws IOException {
+        Throwable cause = throwable("cause", "Inner", "Helper", "Service", "Main");
+        Throwable top = throwable("top", "Wrapper", "Service", "Main");
+        top.initCause(cause);
+        Map<String, Value> decoded = pack(top);
+        assertEquals(3, classNames(decoded).length);
+        Map<String, Value> decodedCause = toMap(decoded.get("cause"));
+        assertEquals("cause", decodedCause.get("message").asStringValue().asString());
+        assertEquals(2, framesInCommon(decodedCause));
+        assertEquals(2, classNames(decodedCause).length);
+        assertEquals("Inner", classNames(decodedCause)[0]);
+        assertEquals("Helper", classNames(decodedCause)[1]);
+    }
+
+    @Test public void relatedThrowableWithoutFramesInCommonIsSentInFull() throws IOException {
+        Throwable top = throwable("top", "Main");
+        top.initCause(throwable("cause", "Worker", "Thread"));
+        Map<String, Value> decodedCause = toMap(pack(top).get("cause"));
+        assertNull(decodedCause.get("framesInCommon"));
+        assertEquals(2, classNames(decodedCause).length);
+    }
+
+    @Test public void suppressedWithSameTraceIsEmpty() throws IOException {
+        Throwable top = throwable("top", "Close", "Main");
+        top.addSuppressed(throwable("same", "Close", "Main"));
+        top.addSuppressed(throwable("deeper", "Flush", "Close", "Main"));
+        List<Value> suppressed = pack(top).get("suppressed").asArrayValue().list();
+        assertEquals(2, suppressed.size());
+        Map<String, Value> same = toMap(suppressed.get(0));
+        assertEquals(0, classNames(same).length);
+        assertEquals(2, framesInCommon(same));
+        Map<String, Value> deeper = toMap(suppressed.get(1));
+        assertEquals(1, classNames(deeper).length);
+        assertEquals(2, framesInCommon(deeper));
+    }
+
+    @Test public void nestedCauseIsComparedWithItsEnclosingThrowable() throws IOException {
+        Throwable root = throwable("root", "Socket", "Client", "Main");
+        Throwable middle = throwable("middle", "Client", "Other", "Main");
+        Throwable top = throwable("top", "Handler", "Main");
+        middle.initCause(root);
+        top.initCause(middle);
+        Map<String, Value> decodedMiddle = toMap(pack(top).get("cause"));
+        assertEquals(1, framesInCommon(decodedMiddle));
+        Map<String, Value> decodedRoot = toMap(decodedMiddle.get("cause"));
+        // Compared with the middle throwable, not with the top one: only "Main" is in common.
+        assertEquals(1, framesInCommon(decodedRoot));
+        assertEquals("Socket", classNames(decodedRoot)[0]);
+        assertEquals("Client", classNames(decodedRoot)[1]);
+    }
+
+    @Test public void causeCycleIsSentOnce() throws IOException {
+        Throwable first = throwable("first", "A", "Main");
+        Throwable second = throwable("second", "B", "Main");
+        first.initCause(second);
+        second.initCause(first);
+        Map<String, Value> decoded = pack(first);
+        Map<String, Value> decodedCause = toMap(decoded.get("cause"));
+        assertEquals("second", decodedCause.get("message").asStringValue().asString());
+        assertEquals(1, framesInCommon(decodedCause));
+        assertNull(decodedCause.get("cause"));
+    }
+
+    @Test public void suppressedCycleIsSentOnce() throws IOException {
+        Throwable first = throwable("first", "A", "Main");
+        Throwable second = throwable("second", "B", "Main");
+        Throwable third = throwable("third", "C", "Main");
+        first.addSuppressed(second);
+        second.addSuppressed(first);
+        second.addSuppressed(third);
+        third.initCause(second);
+        first.initCause(third);
+        Map<String, Value> decoded = pack(first);
+        List<Value> suppressed = decoded.get("suppressed").asArrayValue().list();
+        assertEquals(1, suppressed.size());
+        Map<String, Value> decodedSecond = toMap(suppressed.get(0));
+        // The first throwable is already being sent, so only the third is left.
+        List<Value> nested = decodedSecond.get("suppressed").asArrayValue().list();
+        assertEquals(1, nested.size());
+        Map<String, Value> decodedThird = toMap(nested.get(0));
+        assertEquals("third", decodedThird.get("message").asStringValue().asString());
+        assertNull(decodedThird.get("cause"));
+        // The third throwable was sent as a suppressed throwable, so it is not sent again as the cause.
+        assertNull(decoded.get("cause"));
+    }
+
+}
@@ -0,0 +1,154 @@
+package io.auklet.sink;
+
+import io.auklet.util.StoreDirectory;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentFilePersistenceTest {
+
+    // A record holds its length, its type, the key length and key, the header length and header, the
+    // payload length and payload, and a checksum of everything between length and checksum.
+    private static final int RECORD_OVERHEAD = SegmentFilePersistence.RECORD_OVERHEAD;
+    private static final byte[] HEADER = {0x30, 0x00};
+    private static final long MAX_BYTES = 64 * 1024;
+
+    @Rule public final StoreDirectory<SegmentFilePersistence> directory = new StoreDirectory<SegmentFilePersistence>() {
+        @Override protected void close(SegmentFilePersistence store) throws MqttPersistenceException {
+            store.close();
+        }
+    };
+    private File dir;
+
+    @Before public void setUp() {
+        this.dir = this.directory.file("mqtt");
+    }
+
+    private SegmentFilePersistence open() throws MqttPersistenceException {
+        SegmentFilePersistence store = this.directory.register(new SegmentFilePersistence(this.dir, MAX_BYTES));
+        store.open("client", "ssl://localhost:8883");
+        return store;
+    }
+
+    private SegmentFilePersistence reopen(SegmentFilePersistence store) throws MqttPersistenceException {
+        store.close();
+        return this.open();
+    }
+
+    private static String key(int id) {
+        return "s-" + id;
+    }
+
+    private static void put(SegmentFilePersistence store, int id, int length) throws MqttPersistenceException {
+        byte[] payload = new byte[length];
+        Arrays.fill(payload, (byte) id);
+        store.put(key(id), new MqttPersistentData(key(id), HEADER, 0, HEADER.length, payload, 0, length));
+    }
+
+    /** <p>Returns the length of the record that {@link #put(SegmentFilePersistence, int, int)} appends.</p> */
+    private static int recordLength(int id, int length) {
+        return RECORD_OVERHEAD + key(id).length() + 4 + HEADER.length + 4 + length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> keys(SegmentFilePersistence store) throws MqttPersistenceException {
+        return Collections.list(store.keys());
+    }
+
+    private File firstSegment() {
+        return new File(this.dir, String.format("%016x.seg", 0L));
+    }
+
+    @Test public void reopenRecoversMessagesInOrder() throws MqttPersistenceException {
+        SegmentFilePersistence store = this.open();
+        put(store, 1, 10);
+        put(store, 2, 20);
+        put(store, 3, 30);
+        store.remove(key(2));
+        store = this.reopen(store);
+        assertEquals(Arrays.asList(key(1), key(3)), keys(store));
+        MqttPersistable message = store.get(key(3));
+        assertArrayEquals(HEADER, message.getHeaderBytes());
+        assertEquals(30, message.getPayloadLength());
+        assertEquals(3, message.getPayloadBytes()[0]);
+    }
+
+    @Test public void tornRecordIsDiscardedOnRecovery() throws IOException, MqttPersistenceException {
+        SegmentFilePersistence store = this.open();
+        put(store, 1, 10);
+        put(store, 2, 100);
+        store.close();
+        // Only the start of the second record reached the disk before the device lost power.
+        int offset = recordLength(1, 10);
+        try (RandomAccessFile raf = new RandomAccessFile(this.firstSegment(), "rw")) {
+            raf.seek(offset + recordLength(2, 100) / 2);
+            raf.write(new byte[recordLength(2, 100) / 2]);
+        }
+        store = this.open();
+        assertEquals(Arrays.asList(key(1)), keys(store));
+        // New records are appended after the intact prefix.
+        put(store, 3, 10);
+        assertEquals(Arrays.asList(key(1), key(3)), keys(this.reopen(store)));
+    }
+
+    @Test public void truncatedSegmentIsDiscardedOnRecovery() throws IOException, MqttPersistenceException {
+        SegmentFilePersistence store = this.open();
+        put(store, 1, 10);
+        store.close();
+        // The segment file was being created when the device lost power.
+        try (RandomAccessFile raf = new RandomAccessFile(this.firstSegment(), "rw")) {
+            raf.setLength(100);
+        }
+        store = this.open();
+        assertTrue(keys(store).isEmpty());
+        assertEquals(0L, store.getDiskBytes());
+        put(store, 2, 10);
+        assertEquals(Arrays.asList(key(2)), keys(this.reopen(store)));
+    }
+
+    @Test public void checksumFailureStopsRecovery() throws IOException, MqttPersistenceException {
+        SegmentFilePersistence store = this.open();
+        put(store, 1, 10);
+        put(store, 2, 10);
+        put(store, 3, 10);
+        store.close();
+        // Corrupt the payload of the second message; the third one is discarded along with it.
+        StoreDirectory.flipByte(this.firstSegment(), recordLength(1, 10) + recordLength(2, 10) - 4 - 5);
+        store = this.open();
+        assertEquals(Arrays.asList(key(1)), keys(store));
+        assertEquals(1, store.get(key(1)).getPayloadBytes()[0]);
+    }
+
+    @Test public void directoryCanOnlyBeOpenedOnce() throws MqttPersistenceException {
+        SegmentFilePersistence first = this.open();
+        put(first, 1, 10);
+        SegmentFilePersistence second = new SegmentFilePersistence(this.dir, MAX_BYTES);
+        try {
+            second.open("client", "ssl://localhost:8883");
+            fail("The directory is locked by another store.");
+        } catch (MqttPersistenceException e) {
+            assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e.getReasonCode());
+        }
+        // The failed store does not hold the lock, so it can be opened once the first one is closed.
+        first.close();
+        this.directory.register(second);
+        second.open("client", "ssl://localhost:8883");
+        assertEquals(Arrays.asList(key(1)), keys(second));
+    }
+
+}
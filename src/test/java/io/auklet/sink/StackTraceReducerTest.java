@@ -0,0 +1,158 @@
+package io.auklet.sink;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StackTraceReducerTest {
+
+    private static StackTraceElement frame(String className, int line) {
+        return new StackTraceElement(className, "run", "Source.java", line);
+    }
+
+    private static StackTraceElement[] distinctFrames(int count) {
+        StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) frames[i] = frame("com.example.Frame" + i, i);
+        return frames;
+    }
+
+    private static int represented(List<StackTraceReducer.Entry> entries) {
+        int total = 0;
+        for (StackTraceReducer.Entry entry : entries) total += entry.getRepresentedFrames();
+        return total;
+    }
+
+    private static int written(List<StackTraceReducer.Entry> entries) {
+        int total = 0;
+        for (StackTraceReducer.Entry entry : entries) total += entry.getWrittenFrames();
+        return total;
+    }
+
+    @Test public void leavesShortStackTraceAlone() {
+        StackTraceReducer reducer = new StackTraceReducer(10, false, null, 0);
+        assertNull(reducer.reduce(distinctFrames(10), Integer.MAX_VALUE));
+        assertNull(StackTraceReducer.NONE.reduce(distinctFrames(5000), Integer.MAX_VALUE));
+    }
+
+    @Test public void capKeepsHeadAndTail() {
+        StackTraceElement[] stackTrace = distinctFrames(100);
+        List<StackTraceReducer.Entry> entries = new StackTraceReducer(20, false, null, 0).reduce(stackTrace, Integer.MAX_VALUE);
+        // 15 frames from the top, one marker, and 5 frames from the bottom.
+        assertEquals(21, entries.size());
+        for (int i = 0; i < 15; i++) assertEquals(stackTrace[i], entries.get(i).getFrames()[0]);
+        StackTraceReducer.Entry marker = entries.get(15);
+        assertEquals(0, marker.getWrittenFrames());
+        assertEquals(80, marker.getElidedFrames());
+        assertNull(marker.getPackage());
+        for (int i = 0; i < 5; i++) assertEquals(stackTrace[95 + i], entries.get(16 + i).getFrames()[0]);
+        assertEquals(20, written(entries));
+        assertEquals(100, represented(entries));
+    }
+
+    @Test public void callerDepthTightensCap() {
+        StackTraceReducer reducer = new StackTraceReducer(50, false, null, 0);
+        List<StackTraceReducer.Entry> entries = reducer.reduce(distinctFrames(100), 8);
+        assertEquals(8, written(entries));
+        assertEquals(100, represented(entries));
+        assertEquals(92, entries.get(6).getElidedFrames());
+    }
+
+    @Test public void foldsRepeatedCycle() {
+        List<StackTraceElement> frames = new ArrayList<>();
+        frames.add(frame("com.example.Top", 1));
+        for (int i = 0; i < 10; i++) {
+            frames.add(frame("com.example.Even", 2));
+            frames.add(frame("com.example.Odd", 3));
+        }
+        frames.add(frame("com.example.Main", 4));
+        StackTraceElement[] stackTrace = frames.toArray(new StackTraceElement[0]);
+        List<StackTraceReducer.Entry> entries = new StackTraceReducer(0, true, null, 0).reduce(stackTrace, Integer.MAX_VALUE);
+        assertEquals(3, entries.size());
+        assertArrayEquals(new StackTraceElement[] {stackTrace[0]}, entries.get(0).getFrames());
+        assertArrayEquals(new StackTraceElement[] {stackTrace[1], stackTrace[2]}, entries.get(1).getFrames());
+        assertEquals(10, entries.get(1).getRepeats());
+        assertArrayEquals(new StackTraceElement[] {stackTrace[21]}, entries.get(2).getFrames());
+        assertEquals(22, represented(entries));
+        assertEquals(4, written(entries));
+    }
+
+    @Test public void doesNotFoldWhenNothingIsSaved() {
+        StackTraceElement repeated = frame("com.example.Twice", 1);
+        StackTraceElement[] stackTrace = {repeated, repeated, frame("com.example.Main", 2)};
+        assertNull(new StackTraceReducer(0, true, null, 0).reduce(stackTrace, Integer.MAX_VALUE));
+    }
+
+    @Test public void foldsBeforeCapping() {
+        // A StackOverflowError: one frame repeated 1000 times below a few distinct frames.
+        StackTraceElement[] stackTrace = new StackTraceElement[1004];
+        StackTraceElement recursive = frame("com.example.Recursive", 7);
+        Arrays.fill(stackTrace, recursive);
+        System.arraycopy(distinctFrames(4), 0, stackTrace, 1000, 4);
+        List<StackTraceReducer.Entry> entries = new StackTraceReducer(8, true, null, 0).reduce(stackTrace, Integer.MAX_VALUE);
+        assertEquals(5, entries.size());
+        assertEquals(1000, entries.get(0).getRepeats());
+        assertEquals(1004, represented(entries));
+    }
+
+    @Test public void capKeepsFoldedCycleWhole() {
+        List<StackTraceElement> frames = new ArrayList<>(Arrays.asList(distinctFrames(3)));
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 4; j++) frames.add(frame("com.example.Cycle" + j, j));
+        }
+        frames.addAll(Arrays.asList(distinctFrames(10)));
+        List<StackTraceReducer.Entry> entries = new StackTraceReducer(6, true, null, 0)
+                .reduce(frames.toArray(new StackTraceElement[0]), Integer.MAX_VALUE);
+        // The cycle does not fit in the 5 frames left for the head, so it is left out as a whole.
+        for (StackTraceReducer.Entry entry : entries) assertEquals(1, entry.getRepeats());
+        assertEquals(33, represented(entries));
+    }
+
+    @Test public void collapsesPackageRuns() {
+        StackTraceElement[] stackTrace = {
+                frame("com.example.App", 1),
+                frame("org.framework.Dispatcher", 2),
+                frame("org.framework.Filter", 3),
+                frame("org.framework.Chain", 4),
+                frame("org.framework.Servlet", 5),
+                frame("org.frameworkextras.Other", 6),
+                frame("com.example.Main", 7)
+        };
+        StackTraceReducer reducer = new StackTraceReducer(0, false, StackTraceReducer.parsePackages(" org.framework ,,"), 0);
+        List<StackTraceReducer.Entry> entries = reducer.reduce(stackTrace, Integer.MAX_VALUE);
+        assertEquals(5, entries.size());
+        assertEquals(stackTrace[1], entries.get(1).getFrames()[0]);
+        assertEquals(3, entries.get(2).getElidedFrames());
+        assertEquals("org.framework", entries.get(2).getPackage());
+        // Only whole package names match.
+        assertEquals(stackTrace[5], entries.get(3).getFrames()[0]);
+        assertEquals(7, represented(entries));
+    }
+
+    @Test public void doesNotCollapseShortRuns() {
+        StackTraceElement[] stackTrace = {
+                frame("org.framework.A", 1),
+                frame("org.framework.B", 2),
+                frame("com.example.Main", 3)
+        };
+        StackTraceReducer reducer = new StackTraceReducer(0, false, Collections.singletonList("org.framework"), 0);
+        assertNull(reducer.reduce(stackTrace, Integer.MAX_VALUE));
+    }
+
+    @Test public void cutsLongMessages() {
+        StackTraceReducer reducer = new StackTraceReducer(0, false, null, 5);
+        assertNull(reducer.reduceMessage(null));
+        assertEquals("short", reducer.reduceMessage("short"));
+        assertEquals("too l...", reducer.reduceMessage("too long"));
+        // The cut would fall between the two halves of U+1F600, so it is moved before the pair.
+        assertEquals("abcd...", reducer.reduceMessage("abcd\uD83D\uDE00"));
+        assertEquals("too long", StackTraceReducer.NONE.reduceMessage("too long"));
+    }
+
+}
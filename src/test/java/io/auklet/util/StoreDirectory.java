@@ -0,0 +1,84 @@
+package io.auklet.util;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A temporary directory for tests of stores that keep their state in files. The stores that a test
+ * registers are closed when the test ends, whether or not it passed, before the directory is
+ * deleted.</p>
+ *
+ * @param <S> the type of store.
+ */
+public abstract class StoreDirectory<S> extends ExternalResource {
+
+    private final TemporaryFolder folder = new TemporaryFolder();
+    private final List<S> stores = new ArrayList<>();
+
+    @Override protected void before() throws Throwable {
+        this.folder.create();
+    }
+
+    @Override protected void after() {
+        try {
+            for (S store : this.stores) this.close(store);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            this.stores.clear();
+            this.folder.delete();
+        }
+    }
+
+    /**
+     * <p>Closes the given store. Stores may be closed more than once.</p>
+     *
+     * @param store never {@code null}.
+     * @throws Exception if the store cannot be closed.
+     */
+    protected abstract void close(S store) throws Exception;
+
+    /**
+     * <p>Returns a file in the directory, which is not created.</p>
+     *
+     * @param name the name of the file.
+     * @return never {@code null}.
+     */
+    public File file(String name) {
+        return new File(this.folder.getRoot(), name);
+    }
+
+    /**
+     * <p>Closes the given store when the test ends.</p>
+     *
+     * @param store never {@code null}.
+     * @return the store.
+     */
+    public S register(S store) {
+        this.stores.add(store);
+        return store;
+    }
+
+    /**
+     * <p>Inverts every bit of the byte at the given position of the given file, which must not be open.</p>
+     *
+     * @param file the file.
+     * @param position the position of the byte.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void flipByte(File file, long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+    }
+
+}